@@ -0,0 +1,180 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache 2.0 License: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.data;
+
+import java.io.Serializable;
+import java.util.Calendar;
+import java.util.Date;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.Version;
+
+/**
+ * Class for storing the total change of an account's balance on a specific
+ * day; maintained by FinanceAccount together with its balance, and only
+ * updated in the database by AccountTotalsUpdate
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Entity
+@Table(indexes = {
+	@Index(columnList = "account_id,balanceDate")})
+public class AccountDailyBalance implements Serializable {
+
+	/**
+	 * Version UID
+	 */
+	private static final long serialVersionUID = 1L;
+	/**
+	 * The daily balance ID (only for persistence); uses a separate sequence
+	 * since daily balances are updated much more often than other entities
+	 */
+	@Id
+	@SequenceGenerator(name = "AccountDailyBalanceSequence", sequenceName = "AccountDailyBalance_SEQ")
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "AccountDailyBalanceSequence")
+	protected Long id;
+	/**
+	 * JPA version
+	 */
+	@Version
+	private long version = 0L;
+	/**
+	 * The account
+	 */
+	@ManyToOne
+	@JoinColumn
+	protected FinanceAccount account;
+	/**
+	 * The day
+	 */
+	@Temporal(javax.persistence.TemporalType.DATE)
+	protected Date balanceDate;
+	/**
+	 * The amount by which the account's balance changed on this day
+	 */
+	protected Long amount;
+	/**
+	 * The number of the account's transaction components on this day; days
+	 * with components are shown in balance graphs even if the balance didn't
+	 * change
+	 */
+	protected Long componentCount;
+
+	/**
+	 * Default constructor for a daily balance
+	 */
+	protected AccountDailyBalance() {
+	}
+
+	/**
+	 * Constructor for a daily balance
+	 *
+	 * @param account the account
+	 * @param balanceDate the day
+	 */
+	protected AccountDailyBalance(FinanceAccount account, Date balanceDate) {
+		this.account = account;
+		this.balanceDate = balanceDate;
+		this.amount = 0L;
+		this.componentCount = 0L;
+	}
+
+	/**
+	 * Returns the start of the day containing a date, as used by the
+	 * balanceDate field
+	 *
+	 * @param date the date
+	 * @return the start of the day containing date
+	 */
+	public static Date getDay(Date date) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTime();
+	}
+
+	/**
+	 * Adds a raw amount and a number of components to the day's balance
+	 * change
+	 *
+	 * @param amount the raw amount to add
+	 * @param componentCount the number of components to add (negative if
+	 * removing components)
+	 */
+	void add(long amount, long componentCount) {
+		this.amount += amount;
+		this.componentCount += componentCount;
+	}
+
+	/*
+	 * Getters/setters
+	 */
+	/**
+	 * Returns the associated account
+	 *
+	 * @return the account
+	 */
+	public FinanceAccount getAccount() {
+		return account;
+	}
+
+	/**
+	 * Returns the day
+	 *
+	 * @return the day
+	 */
+	public Date getDate() {
+		return balanceDate;
+	}
+
+	/**
+	 * Returns the raw balance change (should be divided by
+	 * Constants.rawAmountMultiplier to get the real amount)
+	 *
+	 * @return the raw balance change
+	 */
+	public long getRawAmount() {
+		return amount;
+	}
+
+	/**
+	 * Returns the number of transaction components on this day
+	 *
+	 * @return the number of transaction components on this day
+	 */
+	public long getComponentCount() {
+		return componentCount != null ? componentCount : 0L;
+	}
+
+	/**
+	 * Returns the ID for this class instance
+	 *
+	 * @return the ID for this class instance
+	 */
+	public Long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the version for this class instance
+	 *
+	 * @return the version for this class instance
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache 2.0 License: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.data;
+
+import java.io.Serializable;
+import java.util.Calendar;
+import java.util.Date;
+import javax.persistence.Embedded;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.Version;
+
+/**
+ * Class for storing the monthly total of a tag in an account, used to build
+ * reports without reading every transaction; maintained by FinanceTransaction
+ * whenever the transaction or its components are changed
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Entity
+@Table(indexes = {
+	@Index(columnList = "account_id,monthStart")})
+public class AccountTagTotal implements Serializable {
+
+	/**
+	 * The kind of transactions included in the total
+	 */
+	public enum Sign {
+
+		/**
+		 * Expense/income transactions with a negative amount
+		 */
+		EXPENSE,
+		/**
+		 * Expense/income transactions with a positive amount
+		 */
+		INCOME,
+		/**
+		 * Expense/income transactions with a zero amount
+		 */
+		BALANCED,
+		/**
+		 * Transfer transactions
+		 */
+		TRANSFER
+	};
+
+	/**
+	 * Version UID
+	 */
+	private static final long serialVersionUID = 1L;
+	/**
+	 * The total ID (only for persistence); uses a separate sequence since
+	 * totals are updated much more often than other entities
+	 */
+	@Id
+	@SequenceGenerator(name = "AccountTagTotalSequence", sequenceName = "AccountTagTotal_SEQ")
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "AccountTagTotalSequence")
+	protected Long id;
+	/**
+	 * JPA version
+	 */
+	@Version
+	private long version = 0L;
+	/**
+	 * The account
+	 */
+	@ManyToOne
+	@JoinColumn
+	protected FinanceAccount account;
+	/**
+	 * The tag, month and sign
+	 */
+	@Embedded
+	protected AccountTagTotalKey key;
+	/**
+	 * The total amount of the account's components in matching transactions
+	 */
+	protected Long amount;
+	/**
+	 * The number of matching transactions
+	 */
+	protected Long transactionCount;
+
+	/**
+	 * Default constructor for a total
+	 */
+	protected AccountTagTotal() {
+	}
+
+	/**
+	 * Constructor for a total
+	 *
+	 * @param account the account
+	 * @param key the tag, month and sign
+	 */
+	protected AccountTagTotal(FinanceAccount account, AccountTagTotalKey key) {
+		this.account = account;
+		this.key = key;
+		this.amount = 0L;
+		this.transactionCount = 0L;
+	}
+
+	/**
+	 * Returns the first day of the month containing a date
+	 *
+	 * @param date the date
+	 * @return the first day of the month containing date
+	 */
+	public static Date getMonthStart(Date date) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(AccountDailyBalance.getDay(date));
+		calendar.set(Calendar.DAY_OF_MONTH, 1);
+		return calendar.getTime();
+	}
+
+	/**
+	 * Adds a transaction to the total
+	 *
+	 * @param amount the raw amount to add
+	 * @param transactionCount the number of transactions to add (negative if
+	 * removing transactions)
+	 */
+	void add(long amount, long transactionCount) {
+		this.amount += amount;
+		this.transactionCount += transactionCount;
+	}
+
+	/*
+	 * Getters/setters
+	 */
+	/**
+	 * Returns the associated account
+	 *
+	 * @return the account
+	 */
+	public FinanceAccount getAccount() {
+		return account;
+	}
+
+	/**
+	 * Returns the tag, month and sign
+	 *
+	 * @return the tag, month and sign
+	 */
+	public AccountTagTotalKey getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the raw total amount (should be divided by
+	 * Constants.rawAmountMultiplier to get the real amount)
+	 *
+	 * @return the raw total amount
+	 */
+	public long getRawAmount() {
+		return amount;
+	}
+
+	/**
+	 * Returns the number of transactions included in the total
+	 *
+	 * @return the number of transactions included in the total
+	 */
+	public long getTransactionCount() {
+		return transactionCount;
+	}
+
+	/**
+	 * Returns the ID for this class instance
+	 *
+	 * @return the ID for this class instance
+	 */
+	public Long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the version for this class instance
+	 *
+	 * @return the version for this class instance
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache 2.0 License: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.data;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Objects;
+import javax.persistence.Embeddable;
+import javax.persistence.Temporal;
+
+/**
+ * Class for storing the tag, month and sign identifying an account tag total
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Embeddable
+public class AccountTagTotalKey implements Serializable {
+
+	/**
+	 * Version UID
+	 */
+	private static final long serialVersionUID = 1L;
+	/**
+	 * The tag
+	 */
+	protected String tag;
+	/**
+	 * The first day of the month
+	 */
+	@Temporal(javax.persistence.TemporalType.DATE)
+	protected Date monthStart;
+	/**
+	 * The kind of transactions included in the total
+	 */
+	protected AccountTagTotal.Sign sign;
+
+	/**
+	 * Default constructor for a key
+	 */
+	protected AccountTagTotalKey() {
+	}
+
+	/**
+	 * Constructor for a key
+	 *
+	 * @param tag the tag
+	 * @param date a date in the month
+	 * @param sign the kind of transactions included in the total
+	 */
+	public AccountTagTotalKey(String tag, Date date, AccountTagTotal.Sign sign) {
+		this.tag = tag;
+		this.monthStart = AccountTagTotal.getMonthStart(date);
+		this.sign = sign;
+	}
+
+	/**
+	 * Returns the tag
+	 *
+	 * @return the tag
+	 */
+	public String getTag() {
+		return tag;
+	}
+
+	/**
+	 * Returns the first day of the month
+	 *
+	 * @return the first day of the month
+	 */
+	public Date getMonthStart() {
+		return monthStart;
+	}
+
+	/**
+	 * Returns the kind of transactions included in the total
+	 *
+	 * @return the kind of transactions included in the total
+	 */
+	public AccountTagTotal.Sign getSign() {
+		return sign;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof AccountTagTotalKey))
+			return false;
+		AccountTagTotalKey key = (AccountTagTotalKey) obj;
+		return Objects.equals(tag, key.tag) && monthStart.getTime() == key.monthStart.getTime() && sign == key.sign;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 7;
+		hash = 37 * hash + Objects.hashCode(tag);
+		hash = 37 * hash + (int) (monthStart.getTime() ^ (monthStart.getTime() >>> 32));
+		hash = 37 * hash + Objects.hashCode(sign);
+		return hash;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache 2.0 License: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.data;
+
+import org.hibernate.boot.Metadata;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.FlushEntityEvent;
+import org.hibernate.event.spi.FlushEntityEventListener;
+import org.hibernate.event.spi.PreDeleteEvent;
+import org.hibernate.event.spi.PreDeleteEventListener;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+/**
+ * Hibernate integrator which applies the changes of account totals recorded by
+ * FinanceAccount. The changes are taken from the account when it's flushed,
+ * and applied in the database just before the transaction is committed, when
+ * all new accounts are already inserted. The totals of deleted accounts are
+ * deleted just before the account. Registered through META-INF/services.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public class AccountTotalsIntegrator implements Integrator, FlushEntityEventListener, PreDeleteEventListener {
+
+	/**
+	 * Version UID
+	 */
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public void integrate(Metadata metadata, SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+		EventListenerRegistry eventListenerRegistry = serviceRegistry.getService(EventListenerRegistry.class);
+		eventListenerRegistry.appendListeners(EventType.FLUSH_ENTITY, this);
+		eventListenerRegistry.appendListeners(EventType.PRE_DELETE, this);
+	}
+
+	@Override
+	public void disintegrate(SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+	}
+
+	/**
+	 * Takes the changes of a flushed account, and schedules them to be applied
+	 * before the transaction is committed
+	 *
+	 * @param event the flush event
+	 */
+	@Override
+	public void onFlushEntity(FlushEntityEvent event) {
+		if (!(event.getEntity() instanceof FinanceAccount))
+			return;
+		FinanceAccount account = (FinanceAccount) event.getEntity();
+		AccountTotalsUpdate totalsUpdate = account.takeTotalsUpdate();
+		if (totalsUpdate != null)
+			event.getSession().getActionQueue().registerProcess(session -> totalsUpdate.apply(session, account));
+	}
+
+	/**
+	 * Deletes the totals of an account before the account is deleted
+	 *
+	 * @param event the delete event
+	 * @return false, the delete is never vetoed
+	 */
+	@Override
+	public boolean onPreDelete(PreDeleteEvent event) {
+		if (event.getEntity() instanceof FinanceAccount)
+			AccountTotalsUpdate.deleteAll(event.getSession(), (FinanceAccount) event.getEntity());
+		return false;
+	}
+}
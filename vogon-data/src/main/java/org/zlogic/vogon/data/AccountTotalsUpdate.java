@@ -0,0 +1,234 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache 2.0 License: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.hibernate.engine.spi.SessionImplementor;
+
+/**
+ * Changes to an account's daily balances and tag totals, recorded by
+ * FinanceAccount and applied by AccountTotalsIntegrator with targeted queries
+ * before the transaction is committed; this way changing an account never
+ * loads all of its daily balances or tag totals.
+ *
+ * Existing rows are updated by adding the change to the stored values, so
+ * concurrent changes to the same row are added up by the database. If two
+ * transactions create the same row at the same time, there will be two rows
+ * with the same key; this is harmless since daily balances and tag totals are
+ * always summed, and only the first row is updated afterwards.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+class AccountTotalsUpdate {
+
+	/**
+	 * SQL for deleting all daily balances of an account
+	 */
+	private static final String DELETE_DAILY_BALANCES_SQL = "delete from AccountDailyBalance where account_id = ?"; //NOI18N
+	/**
+	 * SQL for deleting all tag totals of an account
+	 */
+	private static final String DELETE_TAG_TOTALS_SQL = "delete from AccountTagTotal where account_id = ?"; //NOI18N
+	/**
+	 * SQL for adding an amount and a component count to a daily balance
+	 */
+	private static final String UPDATE_DAILY_BALANCE_SQL = "update AccountDailyBalance set amount = amount + ?, componentCount = componentCount + ?" //NOI18N
+			+ " where id = (select min(d.id) from AccountDailyBalance d where d.account_id = ? and d.balanceDate = ?)"; //NOI18N
+	/**
+	 * SQL for adding an amount and a transaction count to a tag total
+	 */
+	private static final String UPDATE_TAG_TOTAL_SQL = "update AccountTagTotal set amount = amount + ?, transactionCount = transactionCount + ?" //NOI18N
+			+ " where id = (select min(t.id) from AccountTagTotal t where t.account_id = ? and t.tag = ? and t.monthStart = ? and t.sign = ?)"; //NOI18N
+
+	/**
+	 * True if the account's daily balances should be deleted before applying
+	 * the changes
+	 */
+	private boolean resetDailyBalances;
+	/**
+	 * The changes of the account's daily balances: the raw amount and the
+	 * number of components, by day
+	 */
+	private final Map<Date, long[]> dailyBalances = new LinkedHashMap<>();
+	/**
+	 * The changes of the account's tag totals: the raw amount and the number
+	 * of transactions, by tag, month and sign
+	 */
+	private final Map<AccountTagTotalKey, long[]> tagTotals = new LinkedHashMap<>();
+
+	/**
+	 * Deletes all totals of an account; should be called before the account
+	 * is deleted
+	 *
+	 * @param session the session deleting the account
+	 * @param account the deleted account
+	 */
+	static void deleteAll(SessionImplementor session, FinanceAccount account) {
+		account.markTotalsDeleted();
+		session.doWork(connection -> {
+			delete(connection, DELETE_DAILY_BALANCES_SQL, account);
+			delete(connection, DELETE_TAG_TOTALS_SQL, account);
+		});
+	}
+
+	/**
+	 * Deletes all daily balances, including changes recorded before
+	 */
+	void resetDailyBalances() {
+		resetDailyBalances = true;
+		dailyBalances.clear();
+	}
+
+	/**
+	 * Adds a change to a daily balance
+	 *
+	 * @param day the day, as returned by AccountDailyBalance.getDay
+	 * @param amount the raw amount to add
+	 * @param componentCount the number of components to add (negative if
+	 * removing components)
+	 */
+	void addDailyBalance(Date day, long amount, long componentCount) {
+		addChange(dailyBalances, day, amount, componentCount);
+	}
+
+	/**
+	 * Adds a change to a tag total
+	 *
+	 * @param key the tag, month and sign
+	 * @param amount the raw amount to add
+	 * @param transactionCount the number of transactions to add (negative if
+	 * removing transactions)
+	 */
+	void addTagTotal(AccountTagTotalKey key, long amount, long transactionCount) {
+		addChange(tagTotals, key, amount, transactionCount);
+	}
+
+	/**
+	 * Applies the changes in the database; rows which don't exist yet are
+	 * created as new AccountDailyBalance or AccountTagTotal entities
+	 *
+	 * @param session the session whose transaction is being committed
+	 * @param account the changed account
+	 */
+	void apply(SessionImplementor session, FinanceAccount account) {
+		if (account.isTotalsDeleted())
+			return;
+		List<Map.Entry<Date, long[]>> dailyBalanceChanges = getChanges(dailyBalances);
+		List<Map.Entry<AccountTagTotalKey, long[]>> tagTotalChanges = getChanges(tagTotals);
+		List<Map.Entry<Date, long[]>> missingDailyBalances = new ArrayList<>();
+		List<Map.Entry<AccountTagTotalKey, long[]>> missingTagTotals = new ArrayList<>();
+		session.doWork(connection -> {
+			if (resetDailyBalances)
+				delete(connection, DELETE_DAILY_BALANCES_SQL, account);
+			if (!dailyBalanceChanges.isEmpty())
+				try (PreparedStatement statement = connection.prepareStatement(UPDATE_DAILY_BALANCE_SQL)) {
+					for (Map.Entry<Date, long[]> change : dailyBalanceChanges) {
+						statement.setLong(1, change.getValue()[0]);
+						statement.setLong(2, change.getValue()[1]);
+						statement.setLong(3, account.getId());
+						statement.setDate(4, new java.sql.Date(change.getKey().getTime()));
+						statement.addBatch();
+					}
+					addMissing(statement.executeBatch(), dailyBalanceChanges, missingDailyBalances);
+				}
+			if (!tagTotalChanges.isEmpty())
+				try (PreparedStatement statement = connection.prepareStatement(UPDATE_TAG_TOTAL_SQL)) {
+					for (Map.Entry<AccountTagTotalKey, long[]> change : tagTotalChanges) {
+						statement.setLong(1, change.getValue()[0]);
+						statement.setLong(2, change.getValue()[1]);
+						statement.setLong(3, account.getId());
+						statement.setString(4, change.getKey().getTag());
+						statement.setDate(5, new java.sql.Date(change.getKey().getMonthStart().getTime()));
+						statement.setInt(6, change.getKey().getSign().ordinal());
+						statement.addBatch();
+					}
+					addMissing(statement.executeBatch(), tagTotalChanges, missingTagTotals);
+				}
+		});
+		for (Map.Entry<Date, long[]> change : missingDailyBalances) {
+			AccountDailyBalance dailyBalance = new AccountDailyBalance(account, change.getKey());
+			dailyBalance.add(change.getValue()[0], change.getValue()[1]);
+			session.persist(dailyBalance);
+		}
+		for (Map.Entry<AccountTagTotalKey, long[]> change : missingTagTotals) {
+			AccountTagTotal tagTotal = new AccountTagTotal(account, change.getKey());
+			tagTotal.add(change.getValue()[0], change.getValue()[1]);
+			session.persist(tagTotal);
+		}
+		if (!missingDailyBalances.isEmpty() || !missingTagTotals.isEmpty())
+			session.flush();
+	}
+
+	/**
+	 * Adds an amount and a count to a change
+	 *
+	 * @param <K> the key type
+	 * @param changes the changes
+	 * @param key the changed key
+	 * @param amount the raw amount to add
+	 * @param count the count to add
+	 */
+	private static <K> void addChange(Map<K, long[]> changes, K key, long amount, long count) {
+		long[] change = changes.get(key);
+		if (change == null) {
+			change = new long[2];
+			changes.put(key, change);
+		}
+		change[0] += amount;
+		change[1] += count;
+	}
+
+	/**
+	 * Returns the changes which actually change a row
+	 *
+	 * @param <K> the key type
+	 * @param changes all changes
+	 * @return the changes with a non-zero amount or count
+	 */
+	private static <K> List<Map.Entry<K, long[]>> getChanges(Map<K, long[]> changes) {
+		List<Map.Entry<K, long[]>> nonEmptyChanges = new ArrayList<>();
+		for (Map.Entry<K, long[]> change : changes.entrySet())
+			if (change.getValue()[0] != 0 || change.getValue()[1] != 0)
+				nonEmptyChanges.add(change);
+		return nonEmptyChanges;
+	}
+
+	/**
+	 * Adds the changes which didn't update any rows to a list
+	 *
+	 * @param <K> the key type
+	 * @param updatedRows the number of rows updated by every change
+	 * @param changes the changes
+	 * @param missing the list of changes which didn't update any rows
+	 */
+	private static <K> void addMissing(int[] updatedRows, List<Map.Entry<K, long[]>> changes, List<Map.Entry<K, long[]>> missing) {
+		for (int i = 0; i < updatedRows.length; i++)
+			if (updatedRows[i] == 0)
+				missing.add(changes.get(i));
+	}
+
+	/**
+	 * Deletes all rows of an account
+	 *
+	 * @param connection the connection to use
+	 * @param sql the delete SQL
+	 * @param account the account
+	 * @throws SQLException if the rows cannot be deleted
+	 */
+	private static void delete(Connection connection, String sql, FinanceAccount account) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
+			statement.setLong(1, account.getId());
+			statement.executeUpdate();
+		}
+	}
+}
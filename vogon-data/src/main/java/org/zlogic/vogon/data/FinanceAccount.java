@@ -6,11 +6,16 @@
 package org.zlogic.vogon.data;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Currency;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
 import javax.persistence.CascadeType;
@@ -20,7 +25,9 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.MapKey;
 import javax.persistence.OneToMany;
+import javax.persistence.Transient;
 import javax.persistence.Version;
 
 /**
@@ -84,6 +91,30 @@ public class FinanceAccount implements Serializable {
 	@OneToMany(cascade = CascadeType.ALL, orphanRemoval = true)
 	@JoinColumn
 	protected Set<TransactionComponent> transactionComponents;
+	/**
+	 * The account's balance changes, by day; only used in queries, rows are
+	 * changed and deleted in the database by AccountTotalsUpdate
+	 */
+	@OneToMany(mappedBy = "account")
+	@MapKey(name = "balanceDate")
+	protected Map<Date, AccountDailyBalance> dailyBalances;
+	/**
+	 * The account's monthly tag totals; only used in queries, rows are changed
+	 * and deleted in the database by AccountTotalsUpdate
+	 */
+	@OneToMany(mappedBy = "account")
+	@MapKey(name = "key")
+	protected Map<AccountTagTotalKey, AccountTagTotal> tagTotals;
+	/**
+	 * The changes of the account's totals which haven't been flushed yet
+	 */
+	@Transient
+	private AccountTotalsUpdate totalsUpdate;
+	/**
+	 * True if the account's totals were deleted together with the account
+	 */
+	@Transient
+	private boolean totalsDeleted;
 
 	/**
 	 * Creates an account
@@ -108,6 +139,8 @@ public class FinanceAccount implements Serializable {
 		this.currency = (currency != null ? currency : Currency.getInstance(Locale.getDefault())).getCurrencyCode();
 		FinanceAccount.this.setOwner(owner);
 		this.transactionComponents = new HashSet<>();
+		this.dailyBalances = new HashMap<>();
+		this.tagTotals = new HashMap<>();
 	}
 
 	/**
@@ -121,6 +154,8 @@ public class FinanceAccount implements Serializable {
 		this();
 		balance = 0L;
 		transactionComponents = new HashSet<>();
+		dailyBalances = new HashMap<>();
+		tagTotals = new HashMap<>();
 		FinanceAccount.this.setOwner(owner);
 		FinanceAccount.this.merge(account, false);
 	}
@@ -147,7 +182,19 @@ public class FinanceAccount implements Serializable {
 		includeInTotal = account.includeInTotal != null ? account.includeInTotal : includeInTotal;
 		showInList = account.showInList != null ? account.showInList : showInList;
 		name = account.name;
-		currency = (account.currency != null ? account.currency : Currency.getInstance(Locale.getDefault()).getCurrencyCode());
+		String newCurrency = account.currency != null ? account.currency : Currency.getInstance(Locale.getDefault()).getCurrencyCode();
+		if (newCurrency.equals(currency))
+			return;
+		//Transaction tag totals depend on the currency of their accounts
+		List<FinanceTransaction> transactions = new ArrayList<>();
+		for (TransactionComponent component : getComponents())
+			if (component.getTransaction() != null && !transactions.contains(component.getTransaction())) {
+				transactions.add(component.getTransaction());
+				component.getTransaction().prepareTagTotals();
+			}
+		currency = newCurrency;
+		for (FinanceTransaction transaction : transactions)
+			transaction.updateTagTotals();
 	}
 
 	/**
@@ -159,11 +206,13 @@ public class FinanceAccount implements Serializable {
 	void addComponent(TransactionComponent component) {
 		if (transactionComponents.add(component)) {
 			balance += component.getRawAmount();
+			if (component.getTransaction() != null)
+				updateDailyBalance(component.getTransaction().getDate(), component.getRawAmount(), 1);
 			component.setAccount(this);
 		}
 		//Reset balance if no components are remaining
 		if (transactionComponents.isEmpty())
-			balance = 0L;
+			resetBalance();
 	}
 
 	/**
@@ -175,11 +224,94 @@ public class FinanceAccount implements Serializable {
 	void removeComponent(TransactionComponent component) {
 		if (transactionComponents.remove(component)) {
 			balance -= component.getRawAmount();
+			if (component.getTransaction() != null)
+				updateDailyBalance(component.getTransaction().getDate(), -component.getRawAmount(), -1);
 			component.setAccount(null);
 		}
 		//Reset balance if no components are remaining
 		if (transactionComponents.isEmpty())
-			balance = 0L;
+			resetBalance();
+	}
+
+	/**
+	 * Adds an amount and a number of components to the balance change of a
+	 * specific day; the change is applied in the database when the account is
+	 * flushed
+	 *
+	 * @param date the date
+	 * @param amount the raw amount to add
+	 * @param componentCount the number of components to add (negative if
+	 * removing components)
+	 */
+	void updateDailyBalance(Date date, long amount, long componentCount) {
+		if (date == null)
+			return;
+		getTotalsUpdate().addDailyBalance(AccountDailyBalance.getDay(date), amount, componentCount);
+	}
+
+	/**
+	 * Adds an amount to a monthly tag total; totals with no transactions are
+	 * kept for the same reason as daily balances
+	 *
+	 * @param key the tag, month and sign
+	 * @param amount the raw amount to add
+	 * @param transactionCount the number of transactions to add (negative if
+	 * removing transactions)
+	 */
+	void updateTagTotal(AccountTagTotalKey key, long amount, long transactionCount) {
+		getTotalsUpdate().addTagTotal(key, amount, transactionCount);
+	}
+
+	/**
+	 * Resets the balance and daily balances to zero
+	 */
+	private void resetBalance() {
+		balance = 0L;
+		getTotalsUpdate().resetDailyBalances();
+	}
+
+	/**
+	 * Returns the changes of the account's totals which haven't been flushed
+	 * yet, creating them if necessary
+	 *
+	 * @return the changes of the account's totals
+	 */
+	private AccountTotalsUpdate getTotalsUpdate() {
+		if (totalsUpdate == null)
+			totalsUpdate = new AccountTotalsUpdate();
+		return totalsUpdate;
+	}
+
+	/**
+	 * Returns and forgets the changes of the account's totals; should be
+	 * called when the account is flushed
+	 *
+	 * @return the changes of the account's totals, or null if the totals
+	 * weren't changed
+	 */
+	AccountTotalsUpdate takeTotalsUpdate() {
+		AccountTotalsUpdate changes = totalsUpdate;
+		totalsUpdate = null;
+		return changes;
+	}
+
+	/**
+	 * Remembers that the account's totals were deleted together with the
+	 * account, and forgets their changes
+	 */
+	void markTotalsDeleted() {
+		totalsDeleted = true;
+		totalsUpdate = null;
+	}
+
+	/**
+	 * Returns true if the account's totals were deleted together with the
+	 * account, and changes should no longer be applied
+	 *
+	 * @return true if the account's totals were deleted
+	 */
+	boolean isTotalsDeleted() {
+		return totalsDeleted;
 	}
 
 	/*
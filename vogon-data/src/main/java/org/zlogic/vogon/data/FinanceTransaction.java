@@ -7,26 +7,35 @@ package org.zlogic.vogon.data;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.Currency;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.TreeSet;
 import javax.persistence.CascadeType;
-import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
+import javax.persistence.JoinTable;
+import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
 import javax.persistence.OrderBy;
+import javax.persistence.Table;
 import javax.persistence.Temporal;
+import javax.persistence.Transient;
 import javax.persistence.Version;
+import org.hibernate.annotations.BatchSize;
 
 /**
  * Interface for storing a single finance transaction
@@ -34,8 +43,16 @@ import javax.persistence.Version;
  * @author Dmitry Zolotukhin [zlogic@gmail.com]
  */
 @Entity
+@Table(indexes = {
+	@Index(columnList = "owner_id,transactionDate,id")})
 public class FinanceTransaction implements Serializable {
 
+	/**
+	 * The number of transactions whose components or tags are loaded in a
+	 * single query; matches the default transactions page size
+	 */
+	private static final int FETCH_BATCH_SIZE = 100;
+
 	/**
 	 * Localization messages
 	 */
@@ -89,10 +106,14 @@ public class FinanceTransaction implements Serializable {
 	 */
 	protected String description;
 	/**
-	 * Contains the expense tags
+	 * Contains the expense tags; new tags are created when the transaction is
+	 * persisted
 	 */
-	@ElementCollection
-	protected Set<String> tags;
+	@ManyToMany(cascade = CascadeType.PERSIST)
+	@JoinTable(name = "FinanceTransaction_Tag", joinColumns = @JoinColumn(name = "transaction_id"), inverseJoinColumns = @JoinColumn(name = "tag_id"), indexes = {
+		@Index(columnList = "tag_id,transaction_id")})
+	@BatchSize(size = FETCH_BATCH_SIZE)
+	protected Set<Tag> tags;
 	/**
 	 * Contains the related accounts and the transaction's distribution into
 	 * them
@@ -100,12 +121,19 @@ public class FinanceTransaction implements Serializable {
 	@OneToMany(cascade = CascadeType.ALL, orphanRemoval = true)
 	@OrderBy("id ASC")
 	@JoinColumn
+	@BatchSize(size = FETCH_BATCH_SIZE)
 	protected Set<TransactionComponent> components;
 	/**
 	 * Contains the transaction date
 	 */
 	@Temporal(javax.persistence.TemporalType.DATE)
 	protected Date transactionDate;
+	/**
+	 * The amounts this transaction added to the accounts' tag totals; null
+	 * until the transaction is changed for the first time
+	 */
+	@Transient
+	private List<TagTotalContribution> appliedTagTotals;
 
 	/**
 	 * Default constructor
@@ -126,12 +154,12 @@ public class FinanceTransaction implements Serializable {
 	public FinanceTransaction(VogonUser owner, String description, String[] tags, Date date, Type type) {
 		//TODO: consider removing this
 		this();
+		FinanceTransaction.this.setOwner(owner);
 		this.description = description;
 		FinanceTransaction.this.setTags(tags != null ? tags : new String[0]);
 		this.transactionDate = date;
 		this.components = new HashSet<>();
 		this.type = type;
-		FinanceTransaction.this.setOwner(owner);
 	}
 
 	/**
@@ -144,8 +172,8 @@ public class FinanceTransaction implements Serializable {
 	public FinanceTransaction(VogonUser owner, FinanceTransaction transaction) {
 		//TODO: consider removing this
 		this.components = new HashSet<>();
-		FinanceTransaction.this.merge(transaction, false);
 		FinanceTransaction.this.setOwner(owner);
+		FinanceTransaction.this.merge(transaction, false);
 	}
 
 	/**
@@ -168,12 +196,12 @@ public class FinanceTransaction implements Serializable {
 	protected void merge(FinanceTransaction transaction, boolean verifyVersion) {
 		if (verifyVersion && version != transaction.version)
 			throw new ConcurrentModificationException(messages.getString("TRANSACTION_WAS_ALREADY_UPDATED"));
+		prepareTagTotals();
 		this.type = transaction.type;
 		this.description = transaction.description;
-		this.tags = new TreeSet<>();
-		for (String tag : transaction.tags)
-			this.tags.add(tag);
-		this.transactionDate = (Date) transaction.transactionDate.clone();
+		replaceTags(transaction.getTags());
+		FinanceTransaction.this.setDate((Date) transaction.transactionDate.clone());
+		updateTagTotals();
 	}
 
 	/**
@@ -192,8 +220,10 @@ public class FinanceTransaction implements Serializable {
 	 * @param component component to add
 	 */
 	void addComponent(TransactionComponent component) {
+		prepareTagTotals();
 		if (components.add(component))
 			component.setTransaction(this);
+		updateTagTotals();
 	}
 
 	/**
@@ -203,8 +233,103 @@ public class FinanceTransaction implements Serializable {
 	 * @param component component to remove
 	 */
 	void removeComponent(TransactionComponent component) {
+		prepareTagTotals();
 		if (components.remove(component))
 			component.setTransaction(null);
+		updateTagTotals();
+	}
+
+	/**
+	 * Calculates the amounts this transaction adds to the accounts' tag
+	 * totals. Expense/income transactions add their components' amounts,
+	 * using the sign of the total amount in the account currency. Transfer
+	 * transactions add the largest of their incoming and outgoing amounts,
+	 * split between the accounts on that side of the transfer.
+	 *
+	 * @return the amounts to add to the accounts' tag totals
+	 */
+	private List<TagTotalContribution> getTagTotals() {
+		if (components == null || transactionDate == null || (type != Type.EXPENSEINCOME && type != Type.TRANSFER))
+			return Collections.emptyList();
+		//Sum incoming and outgoing amounts for every currency
+		Map<Currency, long[]> currencyAmounts = new HashMap<>();
+		for (TransactionComponent component : components) {
+			if (component.getAccount() == null)
+				continue;
+			if (!currencyAmounts.containsKey(component.getAccount().getCurrency()))
+				currencyAmounts.put(component.getAccount().getCurrency(), new long[2]);
+			long[] amounts = currencyAmounts.get(component.getAccount().getCurrency());
+			if (component.getRawAmount() > 0)
+				amounts[0] += component.getRawAmount();
+			else
+				amounts[1] += component.getRawAmount();
+		}
+		//Sum the amounts for every account
+		List<TagTotalContribution> accountTotals = new ArrayList<>();
+		for (TransactionComponent component : components) {
+			if (component.getAccount() == null)
+				continue;
+			long[] amounts = currencyAmounts.get(component.getAccount().getCurrency());
+			long amount = component.getRawAmount();
+			AccountTagTotal.Sign sign = AccountTagTotal.Sign.TRANSFER;
+			if (type == Type.TRANSFER) {
+				amount = amounts[0] >= -amounts[1] ? Math.max(0, amount) : -Math.min(0, amount);
+			} else {
+				long currencyAmount = amounts[0] + amounts[1];
+				sign = currencyAmount < 0 ? AccountTagTotal.Sign.EXPENSE : (currencyAmount > 0 ? AccountTagTotal.Sign.INCOME : AccountTagTotal.Sign.BALANCED);
+			}
+			TagTotalContribution accountTotal = null;
+			for (TagTotalContribution existingTotal : accountTotals)
+				if (existingTotal.account.equals(component.getAccount()))
+					accountTotal = existingTotal;
+			if (accountTotal == null) {
+				accountTotal = new TagTotalContribution(component.getAccount(), sign);
+				accountTotals.add(accountTotal);
+			}
+			accountTotal.amount += amount;
+		}
+		//Add the amounts to every tag
+		List<TagTotalContribution> tagTotals = new ArrayList<>();
+		for (String tag : (tags == null || tags.isEmpty()) ? Collections.singleton("") : getTagNames()) //NOI18N
+			for (TagTotalContribution accountTotal : accountTotals)
+				tagTotals.add(new TagTotalContribution(accountTotal.account, new AccountTagTotalKey(tag, transactionDate, accountTotal.sign), accountTotal.amount));
+		return tagTotals;
+	}
+
+	/**
+	 * Remembers the amounts this transaction added to the accounts' tag
+	 * totals; should be called before changing the transaction or its
+	 * components
+	 */
+	void prepareTagTotals() {
+		if (appliedTagTotals != null)
+			return;
+		appliedTagTotals = getTagTotals();
+	}
+
+	/**
+	 * Updates the accounts' tag totals with the current state of this
+	 * transaction; should be called after changing the transaction or its
+	 * components
+	 */
+	void updateTagTotals() {
+		if (appliedTagTotals == null)
+			return;
+		List<TagTotalContribution> tagTotals = getTagTotals();
+		for (TagTotalContribution tagTotal : appliedTagTotals)
+			tagTotal.account.updateTagTotal(tagTotal.key, -tagTotal.amount, -1);
+		for (TagTotalContribution tagTotal : tagTotals)
+			tagTotal.account.updateTagTotal(tagTotal.key, tagTotal.amount, 1);
+		appliedTagTotals = tagTotals;
+	}
+
+	/**
+	 * Adds this transaction to the accounts' tag totals, if it was created
+	 * before tag totals were stored
+	 */
+	public void restoreTagTotals() {
+		appliedTagTotals = Collections.emptyList();
+		updateTagTotals();
 	}
 
 	/*
@@ -216,9 +341,65 @@ public class FinanceTransaction implements Serializable {
 	 * @param tag the tag to add
 	 */
 	void addTag(String tag) {
-		if (tags == null)
-			tags = new TreeSet<>();
-		tags.add(tag);
+		prepareTagTotals();
+		Set<String> tagNames = getTagNames();
+		tagNames.add(tag);
+		replaceTags(tagNames.toArray(new String[0]));
+		updateTagTotals();
+	}
+
+	/**
+	 * Returns the names of the transaction's tags
+	 *
+	 * @return the sorted names of the transaction's tags
+	 */
+	private Set<String> getTagNames() {
+		Set<String> tagNames = new TreeSet<>();
+		if (tags != null)
+			for (Tag tag : tags)
+				tagNames.add(tag.getName());
+		return tagNames;
+	}
+
+	/**
+	 * Replaces the transaction's tags, keeping the existing Tag instances and
+	 * creating new Tag instances for the new tags; doesn't update the tag
+	 * totals. The transaction's tags should be readable, so a detached
+	 * transaction should only be changed if its tags were read before.
+	 *
+	 * @param tagNames the names of the new transaction's tags
+	 */
+	private void replaceTags(String... tagNames) {
+		Map<String, Tag> existingTags = new HashMap<>();
+		if (tags != null)
+			for (Tag tag : tags)
+				existingTags.put(tag.getName(), tag);
+		Set<Tag> newTags = new HashSet<>();
+		for (String tagName : tagNames) {
+			Tag tag = existingTags.get(tagName);
+			newTags.add(tag != null ? tag : new Tag(owner, tagName));
+		}
+		tags = newTags;
+	}
+
+	/**
+	 * Replaces a tag with another instance of the same tag, for example a tag
+	 * previously stored in the database
+	 *
+	 * @param tag the new tag instance
+	 */
+	void replaceTag(Tag tag) {
+		if (tags.remove(tag))
+			tags.add(tag);
+	}
+
+	/**
+	 * Returns the Tag instances of the transaction's tags
+	 *
+	 * @return the Tag instances of the transaction's tags
+	 */
+	Set<Tag> getTagEntities() {
+		return tags != null ? Collections.unmodifiableSet(tags) : Collections.emptySet();
 	}
 
 	/**
@@ -245,7 +426,7 @@ public class FinanceTransaction implements Serializable {
 	 * @return the transaction's tags
 	 */
 	public String[] getTags() {
-		return tags.toArray(new String[0]);
+		return getTagNames().toArray(new String[0]);
 	}
 
 	/**
@@ -254,7 +435,9 @@ public class FinanceTransaction implements Serializable {
 	 * @param tags the new transaction's tags
 	 */
 	public void setTags(String... tags) {
-		this.tags = new TreeSet<>(Arrays.asList(tags));
+		prepareTagTotals();
+		replaceTags(tags);
+		updateTagTotals();
 	}
 
 	/**
@@ -272,7 +455,16 @@ public class FinanceTransaction implements Serializable {
 	 * @param date the transaction date
 	 */
 	public void setDate(Date date) {
+		prepareTagTotals();
+		//Move the components' amounts to the new date
+		if (components != null)
+			for (TransactionComponent component : components)
+				if (component.getAccount() != null) {
+					component.getAccount().updateDailyBalance(transactionDate, -component.getRawAmount(), -1);
+					component.getAccount().updateDailyBalance(date, component.getRawAmount(), 1);
+				}
 		this.transactionDate = date;
+		updateTagTotals();
 	}
 
 	/**
@@ -290,7 +482,9 @@ public class FinanceTransaction implements Serializable {
 	 * @param type the transaction type to set
 	 */
 	public void setType(Type type) {
+		prepareTagTotals();
 		this.type = type;
+		updateTagTotals();
 	}
 
 	/**
@@ -309,6 +503,12 @@ public class FinanceTransaction implements Serializable {
 	 */
 	public void setOwner(VogonUser owner) {
 		this.owner = owner;
+		if (tags != null)
+			for (Tag tag : new ArrayList<>(tags))
+				if (!Objects.equals(tag.getOwner(), owner)) {
+					tags.remove(tag);
+					tags.add(new Tag(owner, tag.getName()));
+				}
 	}
 
 	/**
@@ -352,4 +552,53 @@ public class FinanceTransaction implements Serializable {
 		hash = 23 * hash + (int) (this.id ^ (this.id >>> 32));
 		return hash;
 	}
+
+	/**
+	 * Amount added by a transaction to an account's tag total
+	 */
+	private static class TagTotalContribution {
+
+		/**
+		 * The account
+		 */
+		private final FinanceAccount account;
+		/**
+		 * The tag, month and sign
+		 */
+		private final AccountTagTotalKey key;
+		/**
+		 * The sign, used when summing amounts for an account
+		 */
+		private final AccountTagTotal.Sign sign;
+		/**
+		 * The raw amount
+		 */
+		private long amount;
+
+		/**
+		 * Creates an empty account total
+		 *
+		 * @param account the account
+		 * @param sign the sign
+		 */
+		private TagTotalContribution(FinanceAccount account, AccountTagTotal.Sign sign) {
+			this.account = account;
+			this.key = null;
+			this.sign = sign;
+		}
+
+		/**
+		 * Creates an account tag total
+		 *
+		 * @param account the account
+		 * @param key the tag, month and sign
+		 * @param amount the raw amount
+		 */
+		private TagTotalContribution(FinanceAccount account, AccountTagTotalKey key, long amount) {
+			this.account = account;
+			this.key = key;
+			this.sign = key.getSign();
+			this.amount = amount;
+		}
+	}
 }
@@ -0,0 +1,148 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache 2.0 License: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.data;
+
+import java.io.Serializable;
+import java.util.Locale;
+import java.util.Objects;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * Class for storing a tag of a user; transactions refer to tags by their ID,
+ * so that every tag is only stored once. Tags are never changed, and are
+ * created by FinanceTransaction when a transaction gets a new tag.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Entity
+@Table(uniqueConstraints = {
+	@UniqueConstraint(columnNames = {"owner_id", "name"})}, indexes = {
+	@Index(columnList = "owner_id,tagKey")})
+public class Tag implements Serializable {
+
+	/**
+	 * Version UID
+	 */
+	private static final long serialVersionUID = 1L;
+	/**
+	 * The tag ID (only for persistence); uses a separate sequence to keep tag
+	 * IDs small
+	 */
+	@Id
+	@SequenceGenerator(name = "TagSequence", sequenceName = "Tag_SEQ")
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "TagSequence")
+	protected Long id;
+	/**
+	 * The tag owner
+	 */
+	@ManyToOne
+	@JoinColumn
+	protected VogonUser owner;
+	/**
+	 * The tag name
+	 */
+	@Column(nullable = false, updatable = false)
+	protected String name;
+	/**
+	 * The lowercase tag name, used for filtering transactions by tags
+	 * ignoring case
+	 */
+	@Column(nullable = false, updatable = false)
+	protected String tagKey;
+
+	/**
+	 * Default constructor for a tag
+	 */
+	protected Tag() {
+	}
+
+	/**
+	 * Constructor for a tag
+	 *
+	 * @param owner the tag owner
+	 * @param name the tag name
+	 */
+	public Tag(VogonUser owner, String name) {
+		this.owner = owner;
+		this.name = name;
+		this.tagKey = toKey(name);
+	}
+
+	/**
+	 * Returns the key of a tag name, used for filtering transactions by tags
+	 * ignoring case
+	 *
+	 * @param name the tag name
+	 * @return the lowercase tag name
+	 */
+	public static String toKey(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	/*
+	 * Getters/setters
+	 */
+	/**
+	 * Returns the ID for this class instance
+	 *
+	 * @return the ID for this class instance
+	 */
+	public Long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the tag owner
+	 *
+	 * @return the tag owner
+	 */
+	public VogonUser getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Returns the tag name
+	 *
+	 * @return the tag name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the lowercase tag name
+	 *
+	 * @return the lowercase tag name
+	 */
+	public String getTagKey() {
+		return tagKey;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof Tag)
+			return name.equals(((Tag) obj).name) && Objects.equals(owner, ((Tag) obj).owner);
+		else
+			return false;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 5;
+		hash = 59 * hash + name.hashCode();
+		return hash;
+	}
+}
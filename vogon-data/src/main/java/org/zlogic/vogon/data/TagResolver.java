@@ -0,0 +1,144 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache 2.0 License: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceException;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+/**
+ * Class for replacing the new tags of transactions with the tags already
+ * stored in the database, so that every tag is only stored once. Should be
+ * used before persisting a transaction whose tags were changed; a single
+ * instance can be used for multiple transactions persisted in the same
+ * EntityManager transaction.
+ *
+ * Tags which don't exist yet are created and committed in a separate
+ * transaction, so that two transactions adding the same new tag at the same
+ * time don't violate the unique tag name constraint: if the tag was just
+ * created by another transaction, it's used instead. The EntityManager
+ * transaction should use the READ COMMITTED isolation level to see these
+ * tags. If the EntityManager transaction is rolled back, the created tags
+ * stay unused until they're removed by DatabaseMaintenance.cleanup.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public class TagResolver {
+
+	/**
+	 * The EntityManager to be used for finding existing tags
+	 */
+	private final EntityManager entityManager;
+	/**
+	 * The tags already resolved by this instance
+	 */
+	private final Map<Tag, Tag> resolvedTags = new HashMap<>();
+
+	/**
+	 * Creates a TagResolver
+	 *
+	 * @param entityManager the EntityManager to be used for finding existing
+	 * tags
+	 */
+	public TagResolver(EntityManager entityManager) {
+		this.entityManager = entityManager;
+	}
+
+	/**
+	 * Replaces the transaction's new tags with the same tags already stored
+	 * in the database or used by a previously resolved transaction; tags
+	 * which don't exist yet are created. Tags of transactions without an owner
+	 * will be created when the transaction is persisted.
+	 *
+	 * @param transaction the transaction to update
+	 */
+	public void resolveTags(FinanceTransaction transaction) {
+		List<Tag> newTags = new ArrayList<>();
+		for (Tag tag : new ArrayList<>(transaction.getTagEntities())) {
+			if (tag.getId() != null)
+				continue;
+			if (resolvedTags.containsKey(tag))
+				transaction.replaceTag(resolvedTags.get(tag));
+			else
+				newTags.add(tag);
+		}
+		if (newTags.isEmpty())
+			return;
+
+		if (transaction.getOwner() != null) {
+			List<String> tagNames = new ArrayList<>();
+			for (Tag tag : newTags)
+				tagNames.add(tag.getName());
+			for (Tag existingTag : findTags(transaction.getOwner(), tagNames)) {
+				resolvedTags.put(existingTag, existingTag);
+				transaction.replaceTag(existingTag);
+				tagNames.remove(existingTag.getName());
+			}
+			if (!tagNames.isEmpty()) {
+				createTags(transaction.getOwner(), tagNames);
+				for (Tag createdTag : findTags(transaction.getOwner(), tagNames)) {
+					resolvedTags.put(createdTag, createdTag);
+					transaction.replaceTag(createdTag);
+				}
+			}
+		}
+		for (Tag tag : newTags)
+			resolvedTags.putIfAbsent(tag, tag);
+	}
+
+	/**
+	 * Finds the stored tags of a user
+	 *
+	 * @param owner the tags owner
+	 * @param tagNames the tag names
+	 * @return the tags with names from tagNames
+	 */
+	private List<Tag> findTags(VogonUser owner, Collection<String> tagNames) {
+		CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tag> tagsCriteriaQuery = criteriaBuilder.createQuery(Tag.class);
+		Root<Tag> tag = tagsCriteriaQuery.from(Tag.class);
+		tagsCriteriaQuery.where(
+				criteriaBuilder.equal(tag.get(Tag_.owner), owner),
+				tag.get(Tag_.name).in(tagNames));
+		//Flushing would persist the new tags before they're resolved
+		return entityManager.createQuery(tagsCriteriaQuery).setFlushMode(FlushModeType.COMMIT).getResultList();
+	}
+
+	/**
+	 * Creates tags in a separate transaction; tags which were created by
+	 * another transaction in the meantime are skipped
+	 *
+	 * @param owner the tags owner
+	 * @param tagNames the names of the tags to create
+	 */
+	private void createTags(VogonUser owner, Collection<String> tagNames) {
+		EntityManager tagsEntityManager = entityManager.getEntityManagerFactory().createEntityManager();
+		try {
+			for (String tagName : tagNames) {
+				tagsEntityManager.getTransaction().begin();
+				try {
+					tagsEntityManager.persist(new Tag(owner, tagName));
+					tagsEntityManager.getTransaction().commit();
+				} catch (PersistenceException ex) {
+					//The tag was created by another transaction; otherwise persisting the transaction will fail
+					if (tagsEntityManager.getTransaction().isActive())
+						tagsEntityManager.getTransaction().rollback();
+				}
+				tagsEntityManager.clear();
+			}
+		} finally {
+			tagsEntityManager.close();
+		}
+	}
+}
@@ -10,8 +10,10 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.Table;
 import javax.persistence.Version;
 
 /**
@@ -20,6 +22,9 @@ import javax.persistence.Version;
  * @author Dmitry Zolotukhin [zlogic@gmail.com]
  */
 @Entity
+@Table(indexes = {
+	@Index(columnList = "transaction_id,account_id,amount"),
+	@Index(columnList = "account_id,transaction_id")})
 public class TransactionComponent implements Serializable {
 
 	/**
@@ -95,12 +100,16 @@ public class TransactionComponent implements Serializable {
 	public void setAccount(FinanceAccount account) {
 		if ((this.account != null && this.account.equals(account)) || (this.account == null && account == null))
 			return;
+		if (transaction != null)
+			transaction.prepareTagTotals();
 		FinanceAccount savedAccount = this.account;
 		this.account = account;
 		if (savedAccount != null)
 			savedAccount.removeComponent(this);
 		if (account != null)
 			account.addComponent(this);
+		if (transaction != null)
+			transaction.updateTagTotals();
 	}
 
 	/**
@@ -121,11 +130,26 @@ public class TransactionComponent implements Serializable {
 		if ((this.transaction != null && this.transaction.equals(transaction)) || (this.transaction == null && transaction == null))
 			return;
 		FinanceTransaction savedTransaction = this.transaction;
+		if (savedTransaction != null)
+			savedTransaction.prepareTagTotals();
+		if (transaction != null)
+			transaction.prepareTagTotals();
 		this.transaction = transaction;
+		//Move the amount to the new transaction's date
+		if (account != null) {
+			if (savedTransaction != null)
+				account.updateDailyBalance(savedTransaction.getDate(), -amount, -1);
+			if (transaction != null)
+				account.updateDailyBalance(transaction.getDate(), amount, 1);
+		}
 		if (savedTransaction != null)
 			savedTransaction.removeComponent(this);
 		if (transaction != null)
 			transaction.addComponent(this);
+		if (savedTransaction != null)
+			savedTransaction.updateTagTotals();
+		if (transaction != null)
+			transaction.updateTagTotals();
 	}
 
 	/**
@@ -145,12 +169,16 @@ public class TransactionComponent implements Serializable {
 	 * @param amount the new raw amount
 	 */
 	public void setRawAmount(long amount) {
+		if (transaction != null)
+			transaction.prepareTagTotals();
 		FinanceAccount savedAccount = account;
 		if (account != null)
 			account.removeComponent(this);
 		this.amount = amount;
 		if (savedAccount!= null)
 			savedAccount.addComponent(this);
+		if (transaction != null)
+			transaction.updateTagTotals();
 	}
 
 	/**
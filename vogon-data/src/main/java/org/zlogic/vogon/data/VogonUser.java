@@ -63,6 +63,18 @@ public class VogonUser implements Serializable {
 	@OneToMany(cascade = CascadeType.ALL, orphanRemoval = true)
 	@JoinColumn
 	protected Set<FinanceTransaction> transactions;
+	/**
+	 * The user's tags
+	 */
+	@OneToMany(mappedBy = "owner", cascade = CascadeType.REMOVE)
+	protected Set<Tag> tags;
+	/**
+	 * The data version, incremented whenever the user's accounts or
+	 * transactions are changed; only updated with bulk queries, so that it
+	 * doesn't change the JPA version and isn't overwritten by stale instances
+	 */
+	@Column(updatable = false)
+	protected Long dataVersion = 0L;
 
 	/**
 	 * Creates a user
@@ -174,6 +186,16 @@ public class VogonUser implements Serializable {
 		this.version = version;
 	}
 
+	/**
+	 * Returns the data version, incremented whenever the user's accounts or
+	 * transactions are changed
+	 *
+	 * @return the data version
+	 */
+	public long getDataVersion() {
+		return dataVersion != null ? dataVersion : 0L;
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (obj instanceof VogonUser) {
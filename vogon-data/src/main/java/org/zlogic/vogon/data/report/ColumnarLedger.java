@@ -0,0 +1,868 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache 2.0 License: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.data.report;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.TimeZone;
+import javax.persistence.EntityManager;
+import javax.persistence.Tuple;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.Root;
+import org.zlogic.vogon.data.FinanceAccount_;
+import org.zlogic.vogon.data.FinanceTransaction;
+import org.zlogic.vogon.data.FinanceTransaction_;
+import org.zlogic.vogon.data.Tag;
+import org.zlogic.vogon.data.Tag_;
+import org.zlogic.vogon.data.TransactionComponent;
+import org.zlogic.vogon.data.TransactionComponent_;
+import org.zlogic.vogon.data.VogonUser;
+
+/**
+ * In-memory copy of a user's transactions, stored in parallel primitive
+ * arrays so that ReportFactory can build reports without querying the
+ * database. Transactions are sorted by date and ID, the same order as the
+ * database scan; components of a transaction are stored in a contiguous
+ * range of the component arrays, and tags are stored as a bitset for every
+ * transaction. A ledger is never changed; a Delta creates an updated copy by
+ * copying the unchanged ranges of the arrays, so a ledger can be used by
+ * multiple threads at the same time.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public class ColumnarLedger {
+
+	/**
+	 * Localization messages
+	 */
+	private static final ResourceBundle messages = ResourceBundle.getBundle("org/zlogic/vogon/data/messages");
+	/**
+	 * The number of milliseconds in a day
+	 */
+	private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+	/**
+	 * The time zone used to convert dates to days, same as DateBalance
+	 */
+	private final TimeZone timeZone = TimeZone.getDefault();
+	/**
+	 * The owner ID
+	 */
+	private final long ownerId;
+	/**
+	 * The number of transactions
+	 */
+	final int size;
+	/**
+	 * The transaction IDs
+	 */
+	final long[] transactionIds;
+	/**
+	 * The transaction dates, as days since the epoch in ascending order
+	 */
+	final int[] days;
+	/**
+	 * The transaction types, as FinanceTransaction.Type ordinals
+	 */
+	final byte[] types;
+	/**
+	 * The transaction descriptions
+	 */
+	final String[] descriptions;
+	/**
+	 * The index of the first component of every transaction; the last
+	 * element is the number of components
+	 */
+	final int[] componentOffsets;
+	/**
+	 * The account index of every component, referring to accountIds
+	 */
+	final int[] componentAccounts;
+	/**
+	 * The raw amount of every component
+	 */
+	final long[] componentAmounts;
+	/**
+	 * The account IDs used by components
+	 */
+	final long[] accountIds;
+	/**
+	 * The tag names, indexed by their bit in the tag bitsets
+	 */
+	final String[] tagNames;
+	/**
+	 * The number of long words in every transaction's tag bitset
+	 */
+	final int tagWords;
+	/**
+	 * The tag bitsets of all transactions, tagWords for every transaction
+	 */
+	final long[] tagBits;
+
+	/**
+	 * Creates a ledger from a completed Builder
+	 *
+	 * @param builder the builder containing the ledger data
+	 */
+	private ColumnarLedger(Builder builder) {
+		ownerId = builder.ownerId;
+		size = builder.transactionCount;
+		transactionIds = Arrays.copyOf(builder.transactionIds, size);
+		days = Arrays.copyOf(builder.days, size);
+		types = Arrays.copyOf(builder.types, size);
+		descriptions = Arrays.copyOf(builder.descriptions, size);
+		componentOffsets = Arrays.copyOf(builder.componentOffsets, size + 1);
+		componentAccounts = Arrays.copyOf(builder.componentAccounts, builder.componentCount);
+		componentAmounts = Arrays.copyOf(builder.componentAmounts, builder.componentCount);
+		accountIds = new long[builder.accountIds.size()];
+		for (int i = 0; i < accountIds.length; i++)
+			accountIds[i] = builder.accountIds.get(i);
+		tagNames = builder.tagNames.toArray(new String[0]);
+		tagWords = (tagNames.length + Long.SIZE - 1) / Long.SIZE;
+		tagBits = new long[size * tagWords];
+		for (int i = 0; i < size; i++)
+			for (int j = builder.tagOffsets[i]; j < builder.tagOffsets[i + 1]; j++) {
+				int tag = builder.transactionTags[j];
+				tagBits[i * tagWords + tag / Long.SIZE] |= 1L << (tag % Long.SIZE);
+			}
+	}
+
+	/**
+	 * Creates a ledger from complete arrays
+	 *
+	 * @param writer the writer containing the changed ledger data
+	 */
+	private ColumnarLedger(ChangeWriter writer) {
+		ownerId = writer.ledger.ownerId;
+		size = writer.transactionIds.length;
+		transactionIds = writer.transactionIds;
+		days = writer.days;
+		types = writer.types;
+		descriptions = writer.descriptions;
+		componentOffsets = writer.componentOffsets;
+		componentAccounts = writer.componentAccounts;
+		componentAmounts = writer.componentAmounts;
+		accountIds = writer.accountIds;
+		tagNames = writer.tagNames;
+		tagWords = writer.tagWords;
+		tagBits = writer.tagBits;
+	}
+
+	/**
+	 * Reads all transactions of a user from the database, with two queries
+	 *
+	 * @param owner the user
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @return the user's ledger
+	 */
+	public static ColumnarLedger load(VogonUser owner, EntityManager entityManager) throws SecurityException {
+		if (owner == null)
+			throw new SecurityException(messages.getString("NOT_ALLOWED_TO_GET_DATA_FOR_UNKNOWN_USER"));
+		CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+
+		CriteriaQuery<Tuple> tagsCriteriaQuery = criteriaBuilder.createTupleQuery();
+		Root<FinanceTransaction> taggedTr = tagsCriteriaQuery.from(FinanceTransaction.class);
+		Join<FinanceTransaction, Tag> tagsJoin = taggedTr.join(FinanceTransaction_.tags);
+		tagsCriteriaQuery.where(criteriaBuilder.equal(taggedTr.get(FinanceTransaction_.owner), owner));
+		tagsCriteriaQuery.multiselect(taggedTr.get(FinanceTransaction_.id), tagsJoin.get(Tag_.name));
+		Map<Long, List<String>> transactionTags = new HashMap<>();
+		for (Tuple row : entityManager.createQuery(tagsCriteriaQuery).getResultList())
+			transactionTags.computeIfAbsent(row.get(0, Long.class), id -> new ArrayList<>()).add(row.get(1, String.class));
+
+		CriteriaQuery<Tuple> componentsCriteriaQuery = criteriaBuilder.createTupleQuery();
+		Root<FinanceTransaction> tr = componentsCriteriaQuery.from(FinanceTransaction.class);
+		Join<FinanceTransaction, TransactionComponent> componentsJoin = tr.join(FinanceTransaction_.components);
+		componentsCriteriaQuery.where(criteriaBuilder.equal(tr.get(FinanceTransaction_.owner), owner));
+		componentsCriteriaQuery.multiselect(
+				tr.get(FinanceTransaction_.id),
+				tr.get(FinanceTransaction_.transactionDate),
+				tr.get(FinanceTransaction_.type),
+				tr.get(FinanceTransaction_.description),
+				componentsJoin.get(TransactionComponent_.account).get(FinanceAccount_.id),
+				componentsJoin.get(TransactionComponent_.amount));
+		componentsCriteriaQuery.orderBy(
+				criteriaBuilder.asc(tr.get(FinanceTransaction_.transactionDate)),
+				criteriaBuilder.asc(tr.get(FinanceTransaction_.id)));
+
+		//Rows are grouped by transaction, each row is a component
+		Builder builder = new Builder(owner.getId());
+		Long transactionId = null;
+		for (Tuple row : entityManager.createQuery(componentsCriteriaQuery).getResultList()) {
+			if (!row.get(0, Long.class).equals(transactionId)) {
+				transactionId = row.get(0, Long.class);
+				builder.addTransaction(transactionId, builder.toDay(row.get(1, Date.class)), row.get(2, FinanceTransaction.Type.class), row.get(3, String.class));
+				for (String tag : transactionTags.getOrDefault(transactionId, Collections.emptyList()))
+					builder.addTag(tag);
+			}
+			builder.addComponent(row.get(4, Long.class), row.get(5, Long.class));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the owner ID
+	 *
+	 * @return the owner ID
+	 */
+	public long getOwnerId() {
+		return ownerId;
+	}
+
+	/**
+	 * Returns the number of stored rows (transactions and components), used
+	 * to estimate the ledger's memory usage
+	 *
+	 * @return the number of stored transactions and components
+	 */
+	public long getRowCount() {
+		return (long) size + componentAmounts.length;
+	}
+
+	/**
+	 * Converts a date into the day containing it
+	 *
+	 * @param date the date
+	 * @return the day (since the epoch) containing the date
+	 */
+	int toDay(Date date) {
+		return toDay(date, timeZone);
+	}
+
+	/**
+	 * Converts a date into the day containing it
+	 *
+	 * @param date the date
+	 * @param timeZone the time zone of the day
+	 * @return the day (since the epoch) containing the date
+	 */
+	private static int toDay(Date date, TimeZone timeZone) {
+		long time = date.getTime();
+		return (int) Math.floorDiv(time + timeZone.getOffset(time), MILLIS_PER_DAY);
+	}
+
+	/**
+	 * Returns the date of a transaction
+	 *
+	 * @param index the transaction index
+	 * @return the start of the transaction's day
+	 */
+	Date getDate(int index) {
+		return Date.from(LocalDate.ofEpochDay(days[index]).atStartOfDay(timeZone.toZoneId()).toInstant());
+	}
+
+	/**
+	 * Returns the index of an account
+	 *
+	 * @param accountId the account ID
+	 * @return the index of the account, or -1 if it's not used by any
+	 * component
+	 */
+	int getAccountIndex(long accountId) {
+		for (int i = 0; i < accountIds.length; i++)
+			if (accountIds[i] == accountId)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Returns a tag bitset with the bits of the specified tags set
+	 *
+	 * @param tags the tag names
+	 * @return the tag bitset, tagWords long
+	 */
+	long[] getTagMask(Collection<String> tags) {
+		Set<String> tagsSet = new HashSet<>(tags);
+		long[] tagMask = new long[tagWords];
+		for (int i = 0; i < tagNames.length; i++)
+			if (tagsSet.contains(tagNames[i]))
+				tagMask[i / Long.SIZE] |= 1L << (i % Long.SIZE);
+		return tagMask;
+	}
+
+	/**
+	 * Returns true if a transaction matches the tags filter
+	 *
+	 * @param index the transaction index
+	 * @param tagMask the bitset of selected tags
+	 * @param emptyTagSelected true if transactions without tags are selected
+	 * @return true if the transaction has any of the selected tags, or has no
+	 * tags and emptyTagSelected is true
+	 */
+	boolean matchesTags(int index, long[] tagMask, boolean emptyTagSelected) {
+		boolean tagged = false;
+		for (int i = 0, offset = index * tagWords; i < tagWords; i++) {
+			long bits = tagBits[offset + i];
+			if ((bits & tagMask[i]) != 0)
+				return true;
+			tagged |= bits != 0;
+		}
+		return !tagged && emptyTagSelected;
+	}
+
+	/**
+	 * Returns the index of a transaction
+	 *
+	 * @param transactionId the transaction ID
+	 * @return the index of the transaction, or -1 if it's not stored
+	 */
+	private int indexOf(long transactionId) {
+		for (int i = 0; i < size; i++)
+			if (transactionIds[i] == transactionId)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Returns true if a transaction should be stored before another
+	 * transaction
+	 *
+	 * @param day the transaction day
+	 * @param transactionId the transaction ID
+	 * @param index the index of the other transaction
+	 * @return true if the transaction is ordered before the transaction at
+	 * index
+	 */
+	private boolean isBefore(int day, long transactionId, int index) {
+		return day < days[index] || (day == days[index] && transactionId < transactionIds[index]);
+	}
+
+	/**
+	 * Returns the index of the first transaction which should be stored after
+	 * a transaction
+	 *
+	 * @param day the transaction day
+	 * @param transactionId the transaction ID
+	 * @return the index of the first transaction ordered after the
+	 * transaction, or size if there's no such transaction
+	 */
+	private int upperBound(int day, long transactionId) {
+		int low = 0, high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (isBefore(day, transactionId, middle))
+				high = middle;
+			else
+				low = middle + 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Returns a copy of this ledger with a change applied; the unchanged
+	 * transactions are copied as whole array ranges, the database is not used
+	 *
+	 * @param delta the change
+	 * @return the changed ledger
+	 */
+	public ColumnarLedger apply(Delta delta) {
+		int removedIndex = indexOf(delta.transactionId);
+		ColumnarLedger transaction = delta.transaction != null && delta.transaction.size > 0 ? delta.transaction : null;
+		if (removedIndex < 0 && transaction == null)
+			return this;
+		ChangeWriter writer = new ChangeWriter(this, removedIndex, transaction);
+		if (transaction != null) {
+			int insertIndex = upperBound(transaction.days[0], transaction.transactionIds[0]);
+			writer.copyTransactions(0, insertIndex);
+			writer.addTransaction();
+			writer.copyTransactions(insertIndex, size);
+		} else {
+			writer.copyTransactions(0, size);
+		}
+		return new ColumnarLedger(writer);
+	}
+
+	/**
+	 * A change to a single transaction, which can be applied to a ledger
+	 * without reading it again from the database
+	 */
+	public static class Delta {
+
+		/**
+		 * The changed transaction ID
+		 */
+		private final long transactionId;
+		/**
+		 * A ledger containing only the changed transaction, or null if the
+		 * transaction was deleted
+		 */
+		private final ColumnarLedger transaction;
+
+		/**
+		 * Creates a delta
+		 *
+		 * @param transactionId the changed transaction ID
+		 * @param transaction a ledger containing only the changed transaction,
+		 * or null if the transaction was deleted
+		 */
+		private Delta(long transactionId, ColumnarLedger transaction) {
+			this.transactionId = transactionId;
+			this.transaction = transaction;
+		}
+
+		/**
+		 * Creates a delta adding or replacing a transaction; the transaction's
+		 * data is copied immediately
+		 *
+		 * @param transaction the created or updated transaction, should
+		 * already have an ID
+		 * @return the delta
+		 */
+		public static Delta update(FinanceTransaction transaction) {
+			Builder builder = new Builder(transaction.getOwner().getId());
+			builder.addTransaction(transaction.getId(), builder.toDay(transaction.getDate()), transaction.getType(), transaction.getDescription());
+			for (String tag : transaction.getTags())
+				builder.addTag(tag);
+			for (TransactionComponent component : transaction.getComponents())
+				if (component.getAccount() != null)
+					builder.addComponent(component.getAccount().getId(), component.getRawAmount());
+			return new Delta(transaction.getId(), builder.build());
+		}
+
+		/**
+		 * Creates a delta deleting a transaction
+		 *
+		 * @param transactionId the deleted transaction ID
+		 * @return the delta
+		 */
+		public static Delta delete(long transactionId) {
+			return new Delta(transactionId, null);
+		}
+	}
+
+	/**
+	 * Writes the arrays of a changed ledger, copying ranges of transactions
+	 * from the original ledger and adding the changed transaction
+	 */
+	private static class ChangeWriter {
+
+		/**
+		 * The original ledger
+		 */
+		private final ColumnarLedger ledger;
+		/**
+		 * The index of the transaction removed from the original ledger, or -1
+		 * if no transaction is removed
+		 */
+		private final int removedIndex;
+		/**
+		 * A ledger containing only the added transaction, or null if no
+		 * transaction is added
+		 */
+		private final ColumnarLedger transaction;
+		/**
+		 * The account IDs, the original ledger's accounts followed by the new
+		 * accounts of the added transaction
+		 */
+		private long[] accountIds;
+		/**
+		 * The tag names, the original ledger's tags followed by the new tags
+		 * of the added transaction
+		 */
+		private String[] tagNames;
+		/**
+		 * The account indexes of the added transaction's accounts
+		 */
+		private int[] transactionAccounts;
+		/**
+		 * The tag indexes of the added transaction's tags
+		 */
+		private int[] transactionTags;
+		/**
+		 * The number of long words in every transaction's tag bitset
+		 */
+		private final int tagWords;
+		/**
+		 * The transaction IDs
+		 */
+		private final long[] transactionIds;
+		/**
+		 * The transaction days
+		 */
+		private final int[] days;
+		/**
+		 * The transaction type ordinals
+		 */
+		private final byte[] types;
+		/**
+		 * The transaction descriptions
+		 */
+		private final String[] descriptions;
+		/**
+		 * The index of the first component of every transaction
+		 */
+		private final int[] componentOffsets;
+		/**
+		 * The account index of every component
+		 */
+		private final int[] componentAccounts;
+		/**
+		 * The raw amount of every component
+		 */
+		private final long[] componentAmounts;
+		/**
+		 * The tag bitsets of all transactions
+		 */
+		private final long[] tagBits;
+		/**
+		 * The number of written transactions
+		 */
+		private int transactionCount;
+		/**
+		 * The number of written components
+		 */
+		private int componentCount;
+
+		/**
+		 * Creates a writer and allocates the arrays of the changed ledger
+		 *
+		 * @param ledger the original ledger
+		 * @param removedIndex the index of the transaction to remove, or -1
+		 * @param transaction a ledger containing only the transaction to add,
+		 * or null
+		 */
+		private ChangeWriter(ColumnarLedger ledger, int removedIndex, ColumnarLedger transaction) {
+			this.ledger = ledger;
+			this.removedIndex = removedIndex;
+			this.transaction = transaction;
+			accountIds = ledger.accountIds;
+			tagNames = ledger.tagNames;
+			int size = ledger.size;
+			int components = ledger.componentAmounts.length;
+			if (removedIndex >= 0) {
+				size--;
+				components -= ledger.componentOffsets[removedIndex + 1] - ledger.componentOffsets[removedIndex];
+			}
+			if (transaction != null) {
+				size++;
+				components += transaction.componentAmounts.length;
+				transactionAccounts = new int[transaction.accountIds.length];
+				for (int i = 0; i < transactionAccounts.length; i++)
+					transactionAccounts[i] = getAccountIndex(transaction.accountIds[i]);
+				transactionTags = new int[transaction.tagNames.length];
+				for (int i = 0; i < transactionTags.length; i++)
+					transactionTags[i] = getTagIndex(transaction.tagNames[i]);
+			}
+			tagWords = (tagNames.length + Long.SIZE - 1) / Long.SIZE;
+			transactionIds = new long[size];
+			days = new int[size];
+			types = new byte[size];
+			descriptions = new String[size];
+			componentOffsets = new int[size + 1];
+			componentAccounts = new int[components];
+			componentAmounts = new long[components];
+			tagBits = new long[size * tagWords];
+		}
+
+		/**
+		 * Returns the index of an account, adding it if necessary
+		 *
+		 * @param accountId the account ID
+		 * @return the account index
+		 */
+		private int getAccountIndex(long accountId) {
+			for (int i = 0; i < accountIds.length; i++)
+				if (accountIds[i] == accountId)
+					return i;
+			accountIds = Arrays.copyOf(accountIds, accountIds.length + 1);
+			accountIds[accountIds.length - 1] = accountId;
+			return accountIds.length - 1;
+		}
+
+		/**
+		 * Returns the index of a tag, adding it if necessary
+		 *
+		 * @param tag the tag name
+		 * @return the tag index
+		 */
+		private int getTagIndex(String tag) {
+			for (int i = 0; i < tagNames.length; i++)
+				if (tagNames[i].equals(tag))
+					return i;
+			tagNames = Arrays.copyOf(tagNames, tagNames.length + 1);
+			tagNames[tagNames.length - 1] = tag;
+			return tagNames.length - 1;
+		}
+
+		/**
+		 * Copies a range of the original ledger's transactions, skipping the
+		 * removed transaction
+		 *
+		 * @param from the index of the first transaction to copy
+		 * @param to the index after the last transaction to copy
+		 */
+		private void copyTransactions(int from, int to) {
+			if (removedIndex >= from && removedIndex < to) {
+				copyRange(from, removedIndex);
+				copyRange(removedIndex + 1, to);
+			} else {
+				copyRange(from, to);
+			}
+		}
+
+		/**
+		 * Copies a range of the original ledger's transactions
+		 *
+		 * @param from the index of the first transaction to copy
+		 * @param to the index after the last transaction to copy
+		 */
+		private void copyRange(int from, int to) {
+			int count = to - from;
+			if (count <= 0)
+				return;
+			System.arraycopy(ledger.transactionIds, from, transactionIds, transactionCount, count);
+			System.arraycopy(ledger.days, from, days, transactionCount, count);
+			System.arraycopy(ledger.types, from, types, transactionCount, count);
+			System.arraycopy(ledger.descriptions, from, descriptions, transactionCount, count);
+			int componentsFrom = ledger.componentOffsets[from];
+			int components = ledger.componentOffsets[to] - componentsFrom;
+			System.arraycopy(ledger.componentAccounts, componentsFrom, componentAccounts, componentCount, components);
+			System.arraycopy(ledger.componentAmounts, componentsFrom, componentAmounts, componentCount, components);
+			for (int i = 1; i <= count; i++)
+				componentOffsets[transactionCount + i] = ledger.componentOffsets[from + i] - componentsFrom + componentCount;
+			if (tagWords == ledger.tagWords)
+				System.arraycopy(ledger.tagBits, from * tagWords, tagBits, transactionCount * tagWords, count * tagWords);
+			else
+				for (int i = 0; i < count; i++)
+					System.arraycopy(ledger.tagBits, (from + i) * ledger.tagWords, tagBits, (transactionCount + i) * tagWords, ledger.tagWords);
+			transactionCount += count;
+			componentCount += components;
+		}
+
+		/**
+		 * Adds the changed transaction
+		 */
+		private void addTransaction() {
+			transactionIds[transactionCount] = transaction.transactionIds[0];
+			days[transactionCount] = transaction.days[0];
+			types[transactionCount] = transaction.types[0];
+			descriptions[transactionCount] = transaction.descriptions[0];
+			for (int i = transaction.componentOffsets[0]; i < transaction.componentOffsets[1]; i++) {
+				componentAccounts[componentCount] = transactionAccounts[transaction.componentAccounts[i]];
+				componentAmounts[componentCount] = transaction.componentAmounts[i];
+				componentCount++;
+			}
+			for (int i = 0; i < transaction.tagWords; i++)
+				for (long bits = transaction.tagBits[i]; bits != 0; bits &= bits - 1) {
+					int tag = transactionTags[i * Long.SIZE + Long.numberOfTrailingZeros(bits)];
+					tagBits[transactionCount * tagWords + tag / Long.SIZE] |= 1L << (tag % Long.SIZE);
+				}
+			transactionCount++;
+			componentOffsets[transactionCount] = componentCount;
+		}
+	}
+
+	/**
+	 * Collects ledger data into growing arrays
+	 */
+	private static class Builder {
+
+		/**
+		 * The initial capacity of the arrays
+		 */
+		private static final int DEFAULT_CAPACITY = 16;
+		/**
+		 * The time zone used to convert dates to days, same as DateBalance
+		 */
+		private final TimeZone timeZone = TimeZone.getDefault();
+		/**
+		 * The owner ID
+		 */
+		private final long ownerId;
+		/**
+		 * The number of added transactions
+		 */
+		private int transactionCount;
+		/**
+		 * The transaction IDs
+		 */
+		private long[] transactionIds = new long[DEFAULT_CAPACITY];
+		/**
+		 * The transaction days
+		 */
+		private int[] days = new int[DEFAULT_CAPACITY];
+		/**
+		 * The transaction type ordinals
+		 */
+		private byte[] types = new byte[DEFAULT_CAPACITY];
+		/**
+		 * The transaction descriptions
+		 */
+		private String[] descriptions = new String[DEFAULT_CAPACITY];
+		/**
+		 * The index of the first component of every transaction
+		 */
+		private int[] componentOffsets = new int[DEFAULT_CAPACITY + 1];
+		/**
+		 * The index of the first tag of every transaction
+		 */
+		private int[] tagOffsets = new int[DEFAULT_CAPACITY + 1];
+		/**
+		 * The number of added components
+		 */
+		private int componentCount;
+		/**
+		 * The account index of every component
+		 */
+		private int[] componentAccounts = new int[DEFAULT_CAPACITY];
+		/**
+		 * The raw amount of every component
+		 */
+		private long[] componentAmounts = new long[DEFAULT_CAPACITY];
+		/**
+		 * The number of added transaction tags
+		 */
+		private int tagCount;
+		/**
+		 * The tag index of every transaction tag
+		 */
+		private int[] transactionTags = new int[DEFAULT_CAPACITY];
+		/**
+		 * The account IDs, by account index
+		 */
+		private final List<Long> accountIds = new ArrayList<>();
+		/**
+		 * The account indexes, by account ID
+		 */
+		private final Map<Long, Integer> accountIndexes = new HashMap<>();
+		/**
+		 * The tag names, by tag index
+		 */
+		private final List<String> tagNames = new ArrayList<>();
+		/**
+		 * The tag indexes, by tag name
+		 */
+		private final Map<String, Integer> tagIndexes = new HashMap<>();
+
+		/**
+		 * Creates a builder
+		 *
+		 * @param ownerId the owner ID
+		 */
+		private Builder(long ownerId) {
+			this.ownerId = ownerId;
+		}
+
+		/**
+		 * Converts a date into the day containing it
+		 *
+		 * @param date the date
+		 * @return the day (since the epoch) containing the date
+		 */
+		private int toDay(Date date) {
+			return ColumnarLedger.toDay(date, timeZone);
+		}
+
+		/**
+		 * Returns the index of a tag, adding it if necessary
+		 *
+		 * @param tag the tag name
+		 * @return the tag index
+		 */
+		private int getTagIndex(String tag) {
+			Integer index = tagIndexes.get(tag);
+			if (index == null) {
+				index = tagNames.size();
+				tagNames.add(tag);
+				tagIndexes.put(tag, index);
+			}
+			return index;
+		}
+
+		/**
+		 * Returns the index of an account, adding it if necessary
+		 *
+		 * @param accountId the account ID
+		 * @return the account index
+		 */
+		private int getAccountIndex(long accountId) {
+			Integer index = accountIndexes.get(accountId);
+			if (index == null) {
+				index = accountIds.size();
+				accountIds.add(accountId);
+				accountIndexes.put(accountId, index);
+			}
+			return index;
+		}
+
+		/**
+		 * Adds a transaction; transactions should be added in the ledger
+		 * order
+		 *
+		 * @param id the transaction ID
+		 * @param day the transaction day
+		 * @param type the transaction type
+		 * @param description the transaction description
+		 */
+		private void addTransaction(long id, int day, FinanceTransaction.Type type, String description) {
+			if (transactionCount == transactionIds.length) {
+				int capacity = transactionCount * 2;
+				transactionIds = Arrays.copyOf(transactionIds, capacity);
+				days = Arrays.copyOf(days, capacity);
+				types = Arrays.copyOf(types, capacity);
+				descriptions = Arrays.copyOf(descriptions, capacity);
+				componentOffsets = Arrays.copyOf(componentOffsets, capacity + 1);
+				tagOffsets = Arrays.copyOf(tagOffsets, capacity + 1);
+			}
+			transactionIds[transactionCount] = id;
+			days[transactionCount] = day;
+			types[transactionCount] = (byte) type.ordinal();
+			descriptions[transactionCount] = description;
+			transactionCount++;
+			componentOffsets[transactionCount] = componentCount;
+			tagOffsets[transactionCount] = tagCount;
+		}
+
+		/**
+		 * Adds a component to the last added transaction
+		 *
+		 * @param accountId the component's account ID
+		 * @param amount the component's raw amount
+		 */
+		private void addComponent(long accountId, long amount) {
+			if (componentCount == componentAmounts.length) {
+				componentAccounts = Arrays.copyOf(componentAccounts, componentCount * 2);
+				componentAmounts = Arrays.copyOf(componentAmounts, componentCount * 2);
+			}
+			componentAccounts[componentCount] = getAccountIndex(accountId);
+			componentAmounts[componentCount] = amount;
+			componentCount++;
+			componentOffsets[transactionCount] = componentCount;
+		}
+
+		/**
+		 * Adds a tag to the last added transaction
+		 *
+		 * @param tag the tag name
+		 */
+		private void addTag(String tag) {
+			if (tagCount == transactionTags.length)
+				transactionTags = Arrays.copyOf(transactionTags, tagCount * 2);
+			transactionTags[tagCount] = getTagIndex(tag);
+			tagCount++;
+			tagOffsets[transactionCount] = tagCount;
+		}
+
+		/**
+		 * Creates the ledger
+		 *
+		 * @return the ledger
+		 */
+		private ColumnarLedger build() {
+			return new ColumnarLedger(this);
+		}
+	}
+}
@@ -5,81 +5,388 @@
  */
 package org.zlogic.vogon.data.report;
 
-import java.text.MessageFormat;
+import java.time.LocalDate;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.TreeMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.ResourceBundle;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.function.IntUnaryOperator;
+import org.zlogic.vogon.data.Constants;
 
 /**
- * Class for storing a date/balance graph
+ * Class for storing a raw balance for every date, used to generate balance
+ * graphs. Dates are stored as days in the default time zone, in parallel
+ * sorted arrays of days and raw balances; adding dates in ascending order is
+ * the fastest.
  *
  * @author Dmitry Zolotukhin [zlogic@gmail.com]
- * @param <T> balance type
  */
-public class DateBalance<T extends Number> {
+public class DateBalance {
 
 	/**
-	 * Localization messages
+	 * The period represented by a single date after downsampling
 	 */
-	private static final ResourceBundle messages = ResourceBundle.getBundle("org/zlogic/vogon/data/messages");
+	public enum Granularity {
+
+		/**
+		 * Every day is kept
+		 */
+		DAY,
+		/**
+		 * The last day of every week (starting on Monday) is kept
+		 */
+		WEEK,
+		/**
+		 * The last day of every month is kept
+		 */
+		MONTH
+	};
+
 	/**
-	 * Date/balance storage map
+	 * The number of milliseconds in a day
 	 */
-	private Map<Date, T> dateBalance = new TreeMap<>();
-
+	private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+	/**
+	 * The initial capacity of the arrays
+	 */
+	private static final int DEFAULT_CAPACITY = 16;
+	/**
+	 * The time zone used to convert dates to days
+	 */
+	private final TimeZone timeZone = TimeZone.getDefault();
 	/**
-	 * Balance type class
+	 * The days (since the epoch), in ascending order
 	 */
-	private Class<T> balanceType;
+	private int[] days;
+	/**
+	 * The raw balance for every day
+	 */
+	private long[] balances;
+	/**
+	 * The number of used array elements
+	 */
+	private int size;
 
 	/**
 	 * Default constructor
+	 */
+	protected DateBalance() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs a DateBalance with the specified initial capacity
+	 *
+	 * @param capacity the initial capacity
+	 */
+	protected DateBalance(int capacity) {
+		days = new int[Math.max(capacity, 1)];
+		balances = new long[days.length];
+	}
+
+	/**
+	 * Converts a date into the day containing it
 	 *
-	 * @param balanceType the balance type class
+	 * @param date the date
+	 * @return the day (since the epoch) containing the date
 	 */
-	protected DateBalance(Class<T> balanceType) {
-		this.balanceType = balanceType;
+	private int toDay(Date date) {
+		long time = date.getTime();
+		return (int) Math.floorDiv(time + timeZone.getOffset(time), MILLIS_PER_DAY);
 	}
 
 	/**
-	 * Returns the date/balance map
+	 * Converts a day into the date of its start
 	 *
-	 * @return the date/balance map
+	 * @param day the day (since the epoch)
+	 * @return the start of the day
 	 */
-	public Map<Date, T> getData() {
-		return dateBalance;
+	private Date toDate(int day) {
+		return Date.from(LocalDate.ofEpochDay(day).atStartOfDay(timeZone.toZoneId()).toInstant());
 	}
 
 	/**
-	 * Sets the balance for a particular date
+	 * Returns the index of a day
+	 *
+	 * @param day the day
+	 * @return the index of the day, or (-(insertion point) - 1) if the day is
+	 * not stored, same as Arrays.binarySearch
+	 */
+	private int indexOf(int day) {
+		if (size == 0 || days[size - 1] < day)
+			return -size - 1;
+		if (days[size - 1] == day)
+			return size - 1;
+		return Arrays.binarySearch(days, 0, size, day);
+	}
+
+	/**
+	 * Returns the index of a day, adding the day with a zero balance if it's
+	 * not stored
+	 *
+	 * @param day the day
+	 * @return the index of the day
+	 */
+	private int prepareIndex(int day) {
+		int index = indexOf(day);
+		if (index >= 0)
+			return index;
+		index = -index - 1;
+		if (size == days.length) {
+			days = Arrays.copyOf(days, size * 2);
+			balances = Arrays.copyOf(balances, size * 2);
+		}
+		System.arraycopy(days, index, days, index + 1, size - index);
+		System.arraycopy(balances, index, balances, index + 1, size - index);
+		days[index] = day;
+		balances[index] = 0L;
+		size++;
+		return index;
+	}
+
+	/**
+	 * Sets the balance for a date
 	 *
 	 * @param date the date
-	 * @param balance the balance to be set
+	 * @param balance the raw balance
+	 */
+	protected void setBalance(Date date, long balance) {
+		balances[prepareIndex(toDay(date))] = balance;
+	}
+
+	/**
+	 * Sets the balance for a day
+	 *
+	 * @param day the day (since the epoch) in the default time zone
+	 * @param balance the raw balance
 	 */
-	protected void setBalance(Date date, T balance) {
-		dateBalance.put(date, balance);
+	protected void setDayBalance(int day, long balance) {
+		balances[prepareIndex(day)] = balance;
 	}
 
 	/**
-	 * Adds an amount to the balance for a particular date
+	 * Adds an amount to the balance for a date
 	 *
 	 * @param date the date
-	 * @param add the amount to add
-	 */
-	protected void addBalance(Date date, T add) {
-		if (!dateBalance.containsKey(date))
-			dateBalance.put(date, add);
-		else {
-			T value = dateBalance.get(date);
-			if (balanceType == Double.class || balanceType == double.class)
-				dateBalance.put(date, balanceType.cast(value.doubleValue() + add.doubleValue()));
-			else if (balanceType == Long.class || balanceType == long.class)
-				dateBalance.put(date, balanceType.cast(value.longValue() + add.longValue()));
-			else if (balanceType == Integer.class || balanceType == int.class)
-				dateBalance.put(date, balanceType.cast(value.intValue() + add.intValue()));
+	 * @param amount the raw amount to add
+	 */
+	protected void addBalance(Date date, long amount) {
+		balances[prepareIndex(toDay(date))] += amount;
+	}
+
+	/**
+	 * Adds another balance graph to this one. The balance for a date is the
+	 * balance of the latest date not after it, so the result contains the
+	 * dates from both graphs.
+	 *
+	 * @param other the balance graph to add
+	 */
+	protected void merge(DateBalance other) {
+		int[] mergedDays = new int[Math.max(size + other.size, 1)];
+		long[] mergedBalances = new long[mergedDays.length];
+		int mergedSize = 0;
+		long balance = 0L, otherBalance = 0L;
+		for (int i = 0, j = 0; i < size || j < other.size;) {
+			int day;
+			if (j >= other.size || (i < size && days[i] < other.days[j]))
+				day = days[i];
 			else
-				throw new ClassCastException(new MessageFormat(messages.getString("CANNOT_PROCESS_UNSUPPORTED_NUMBER_TYPE")).format(new Object[]{balanceType.getName()}));
+				day = other.days[j];
+			if (i < size && days[i] == day)
+				balance = balances[i++];
+			if (j < other.size && other.days[j] == day)
+				otherBalance = other.balances[j++];
+			mergedDays[mergedSize] = day;
+			mergedBalances[mergedSize] = balance + otherBalance;
+			mergedSize++;
+		}
+		days = mergedDays;
+		balances = mergedBalances;
+		size = mergedSize;
+	}
+
+	/**
+	 * Returns a copy of the balances in a date range
+	 *
+	 * @param fromDate the earliest date, or null for no limit
+	 * @param toDate the latest date, or null for no limit
+	 * @return the balances from fromDate to toDate (inclusive)
+	 */
+	protected DateBalance slice(Date fromDate, Date toDate) {
+		int from = 0, to = size;
+		if (fromDate != null) {
+			from = indexOf(toDay(fromDate));
+			from = from >= 0 ? from : -from - 1;
 		}
+		if (toDate != null) {
+			to = indexOf(toDay(toDate));
+			to = to >= 0 ? to + 1 : -to - 1;
+		}
+		DateBalance slice = new DateBalance(Math.max(to - from, 0));
+		if (to > from) {
+			System.arraycopy(days, from, slice.days, 0, to - from);
+			System.arraycopy(balances, from, slice.balances, 0, to - from);
+			slice.size = to - from;
+		}
+		return slice;
+	}
+
+	/**
+	 * Reduces the number of dates by splitting the date range into equal
+	 * buckets and keeping only the last date of every bucket, with its
+	 * balance at the end of the bucket
+	 *
+	 * @param maxDates the maximum number of dates to keep
+	 */
+	protected void downsample(int maxDates) {
+		if (size <= maxDates)
+			return;
+		if (maxDates <= 0) {
+			size = 0;
+			return;
+		}
+		long firstDay = days[0];
+		long span = (long) days[size - 1] - firstDay + 1;
+		keepLastInBuckets(day -> (int) ((day - firstDay) * maxDates / span));
+	}
+
+	/**
+	 * Reduces the number of dates by keeping only the last date of every
+	 * period, with its balance at the end of the period
+	 *
+	 * @param granularity the period represented by a single date
+	 */
+	protected void downsample(Granularity granularity) {
+		switch (granularity) {
+			case DAY:
+				break;
+			case WEEK:
+				//The epoch started on a Thursday
+				keepLastInBuckets(day -> Math.floorDiv(day + 3, 7));
+				break;
+			case MONTH:
+				keepLastInBuckets(DateBalance::toMonth);
+				break;
+		}
+	}
+
+	/**
+	 * Returns the month containing a day, without creating any objects
+	 *
+	 * @param day the day (since the epoch)
+	 * @return the month (since the start of year 0) containing the day
+	 */
+	private static int toMonth(int day) {
+		//Civil from days algorithm, with years starting on March 1st
+		int shiftedDay = day + 719468;
+		int era = Math.floorDiv(shiftedDay, 146097);
+		int dayOfEra = shiftedDay - era * 146097;
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int shiftedMonth = (5 * dayOfYear + 2) / 153;
+		int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+		int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		return year * 12 + month - 1;
+	}
+
+	/**
+	 * Keeps only the last date of every bucket
+	 *
+	 * @param bucket returns the bucket of a day; must not decrease for later
+	 * days
+	 */
+	private void keepLastInBuckets(IntUnaryOperator bucket) {
+		int keptSize = 0;
+		for (int i = 0; i < size; i++) {
+			if (i == size - 1 || bucket.applyAsInt(days[i]) != bucket.applyAsInt(days[i + 1])) {
+				days[keptSize] = days[i];
+				balances[keptSize] = balances[i];
+				keptSize++;
+			}
+		}
+		size = keptSize;
+	}
+
+	/**
+	 * Returns the number of dates
+	 *
+	 * @return the number of dates
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the date at an index
+	 *
+	 * @param index the index
+	 * @return the date at index
+	 */
+	public Date getDate(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		return toDate(days[index]);
+	}
+
+	/**
+	 * Returns the raw balance at an index (should be divided by
+	 * Constants.RAW_AMOUNT_MULTIPLIER to get the real amount)
+	 *
+	 * @param index the index
+	 * @return the raw balance at index
+	 */
+	public long getRawBalance(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		return balances[index];
+	}
+
+	/**
+	 * Returns a read-only view of the balances as a map, sorted by date;
+	 * dates and amounts are only created while the map is read
+	 *
+	 * @return the balance amount for every date
+	 */
+	public Map<Date, Double> asAmountsMap() {
+		return new AbstractMap<Date, Double>() {
+			@Override
+			public Set<Map.Entry<Date, Double>> entrySet() {
+				return new AbstractSet<Map.Entry<Date, Double>>() {
+					@Override
+					public Iterator<Map.Entry<Date, Double>> iterator() {
+						return new Iterator<Map.Entry<Date, Double>>() {
+							/**
+							 * The next index
+							 */
+							private int index = 0;
+
+							@Override
+							public boolean hasNext() {
+								return index < size;
+							}
+
+							@Override
+							public Map.Entry<Date, Double> next() {
+								if (!hasNext())
+									throw new NoSuchElementException();
+								Map.Entry<Date, Double> entry = new AbstractMap.SimpleImmutableEntry<>(toDate(days[index]), balances[index] / Constants.RAW_AMOUNT_MULTIPLIER);
+								index++;
+								return entry;
+							}
+						};
+					}
+
+					@Override
+					public int size() {
+						return size;
+					}
+				};
+			}
+		};
 	}
 }
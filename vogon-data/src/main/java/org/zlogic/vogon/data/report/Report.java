@@ -27,7 +27,7 @@ public class Report {
 	/**
 	 * Accounts balance chart
 	 */
-	private Map<Date, Double> accountsBalanceGraph;
+	private DateBalance accountsBalanceGraph;
 
 	/**
 	 * Default constructor
@@ -81,7 +81,7 @@ public class Report {
 	 * @return the accounts balance chart
 	 */
 	public Map<Date, Double> getAccountsBalanceGraph() {
-		return accountsBalanceGraph;
+		return accountsBalanceGraph != null ? accountsBalanceGraph.asAmountsMap() : null;
 	}
 
 	/**
@@ -89,7 +89,7 @@ public class Report {
 	 *
 	 * @param accountsBalanceGraph the accounts balance chart to set
 	 */
-	protected void setAccountsBalanceGraph(Map<Date, Double> accountsBalanceGraph) {
+	protected void setAccountsBalanceGraph(DateBalance accountsBalanceGraph) {
 		this.accountsBalanceGraph = accountsBalanceGraph;
 	}
 }
@@ -5,31 +5,51 @@
  */
 package org.zlogic.vogon.data.report;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Currency;
 import java.util.Date;
-import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.stream.Stream;
 import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import javax.persistence.Tuple;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Join;
 import javax.persistence.criteria.JoinType;
-import javax.persistence.criteria.Order;
+import javax.persistence.criteria.MapJoin;
+import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
-import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.criteria.Subquery;
+import org.zlogic.vogon.data.AccountDailyBalance;
+import org.zlogic.vogon.data.AccountDailyBalance_;
+import org.zlogic.vogon.data.AccountTagTotal;
+import org.zlogic.vogon.data.AccountTagTotalKey;
+import org.zlogic.vogon.data.AccountTagTotalKey_;
+import org.zlogic.vogon.data.AccountTagTotal_;
 import org.zlogic.vogon.data.Constants;
 import org.zlogic.vogon.data.FinanceAccount;
+import org.zlogic.vogon.data.FinanceAccount_;
 import org.zlogic.vogon.data.FinanceTransaction;
 import org.zlogic.vogon.data.FinanceTransaction_;
+import org.zlogic.vogon.data.Tag;
+import org.zlogic.vogon.data.Tag_;
 import org.zlogic.vogon.data.TransactionComponent;
 import org.zlogic.vogon.data.TransactionComponent_;
 import org.zlogic.vogon.data.VogonUser;
@@ -50,6 +70,14 @@ public class ReportFactory {
 	 * Empty tag value (no tags assigned to transaction)
 	 */
 	private static final String EMPTY_TAG = "";
+	/**
+	 * The number of rows fetched at once when streaming query results
+	 */
+	private static final int STREAM_FETCH_SIZE = 1000;
+	/**
+	 * Hibernate query hint for the number of rows fetched at once
+	 */
+	private static final String FETCH_SIZE_HINT = "org.hibernate.fetchSize"; //NOI18N
 	/**
 	 * The report owner user
 	 */
@@ -82,34 +110,23 @@ public class ReportFactory {
 	 * Show transfer transactions
 	 */
 	protected boolean enabledTransferTransactions;
-
 	/**
-	 * Filter enablement
+	 * The number of largest transactions to skip
 	 */
-	protected enum FilterType {
-
-		/**
-		 * Filter transaction date (earliestDate+latestDate)
-		 */
-		DATE,
-		/**
-		 * Filter by transaction tags (selectedTags)
-		 */
-		TAGS,
-		/**
-		 * Filter by transaction accounts (selectedAccounts)
-		 */
-		ACCOUNTS,
-		/**
-		 * Filter by transaction type (Expense-Income or Transfer)
-		 */
-		TRANSACTION_TYPE,
-		/**
-		 * Filter by expense transaction type (enabledIncomeTransactions and
-		 * enabledExpenseTransactions)
-		 */
-		EXPENSE_TYPE
-	};
+	protected int transactionsOffset;
+	/**
+	 * The maximum number of transactions to return, or null for no limit
+	 */
+	protected Integer transactionsLimit;
+	/**
+	 * The period represented by a single balance graph date, or null to keep
+	 * every date
+	 */
+	protected DateBalance.Granularity balanceGraphGranularity;
+	/**
+	 * The maximum number of balance graph dates, or null for no limit
+	 */
+	protected Integer balanceGraphPoints;
 
 	/**
 	 * Constructs ReportFactory with no user
@@ -282,6 +299,90 @@ public class ReportFactory {
 		this.enabledTransferTransactions = enabledTransferTransactions;
 	}
 
+	/**
+	 * Returns the number of largest transactions which will be skipped in the
+	 * report's transactions list
+	 *
+	 * @return the number of largest transactions to skip
+	 */
+	public int getTransactionsOffset() {
+		return transactionsOffset;
+	}
+
+	/**
+	 * Sets the number of largest transactions which will be skipped in the
+	 * report's transactions list
+	 *
+	 * @param transactionsOffset the number of largest transactions to skip
+	 */
+	public void setTransactionsOffset(int transactionsOffset) {
+		this.transactionsOffset = transactionsOffset;
+	}
+
+	/**
+	 * Returns the maximum number of transactions in the report's transactions
+	 * list
+	 *
+	 * @return the maximum number of transactions, or null for no limit
+	 */
+	public Integer getTransactionsLimit() {
+		return transactionsLimit;
+	}
+
+	/**
+	 * Sets the maximum number of transactions in the report's transactions
+	 * list; tag expenses and the balance graph always include all
+	 * transactions
+	 *
+	 * @param transactionsLimit the maximum number of transactions, or null
+	 * for no limit
+	 */
+	public void setTransactionsLimit(Integer transactionsLimit) {
+		this.transactionsLimit = transactionsLimit;
+	}
+
+	/**
+	 * Returns the period represented by a single balance graph date
+	 *
+	 * @return the period represented by a single balance graph date, or null
+	 * if every date is kept
+	 */
+	public DateBalance.Granularity getBalanceGraphGranularity() {
+		return balanceGraphGranularity;
+	}
+
+	/**
+	 * Sets the period represented by a single balance graph date; only the
+	 * balance at the end of every period will be returned
+	 *
+	 * @param balanceGraphGranularity the period represented by a single
+	 * balance graph date, or null to keep every date
+	 */
+	public void setBalanceGraphGranularity(DateBalance.Granularity balanceGraphGranularity) {
+		this.balanceGraphGranularity = balanceGraphGranularity;
+	}
+
+	/**
+	 * Returns the maximum number of balance graph dates
+	 *
+	 * @return the maximum number of balance graph dates, or null for no limit
+	 */
+	public Integer getBalanceGraphPoints() {
+		return balanceGraphPoints;
+	}
+
+	/**
+	 * Sets the maximum number of balance graph dates; if the graph has more
+	 * dates, its range is split into this number of equal periods, and only
+	 * the balance at the end of every period will be returned
+	 *
+	 * @param balanceGraphPoints the maximum number of balance graph dates, or
+	 * null for no limit
+	 */
+	public void setBalanceGraphPoints(Integer balanceGraphPoints) {
+		this.balanceGraphPoints = balanceGraphPoints;
+	}
+
 	/**
 	 * Prepares the report
 	 *
@@ -291,237 +392,1233 @@ public class ReportFactory {
 	 * @return the report
 	 */
 	public Map<String, Report> buildReport(EntityManager entityManager) throws SecurityException {
+		return buildReport(entityManager, new ReportTimings());
+	}
+
+	/**
+	 * Prepares the report, measuring the time spent in every phase
+	 *
+	 * @param entityManager the EntityManager to be used for making queries;
+	 * should be opened/closed outside of this function before calling this
+	 * function
+	 * @param timings the timings to add the time of every phase to
+	 * @return the report
+	 */
+	public Map<String, Report> buildReport(EntityManager entityManager, ReportTimings timings) throws SecurityException {
 		if (owner == null)
 			throw new SecurityException(messages.getString("NOT_ALLOWED_TO_GET_DATA_FOR_UNKNOWN_USER"));
-		
-		Collection<Currency> currencies = new HashSet<>();
-		if(selectedAccounts != null)
+
+		Map<Long, Currency> accountCurrencies = new HashMap<>();
+		Map<Currency, CurrencyReport> currencyReports = new HashMap<>();
+		if (selectedAccounts != null)
 			for (FinanceAccount account : selectedAccounts) {
-				currencies.add(account.getCurrency());
+				accountCurrencies.put(account.getId(), account.getCurrency());
+				if (!currencyReports.containsKey(account.getCurrency()))
+					currencyReports.put(account.getCurrency(), new CurrencyReport());
 			}
 
+		if (!currencyReports.isEmpty() && selectedTags != null) {
+			long startNanos = System.nanoTime();
+			boolean allTagsSelected = selectedTags.containsAll(getAllTags(entityManager));
+			timings.addTime(ReportTimings.Phase.QUERY, startNanos);
+			scanComponents(entityManager, accountCurrencies, currencyReports, timings);
+			startNanos = System.nanoTime();
+			addBalanceGraphs(entityManager, currencyReports, allTagsSelected);
+			startNanos = timings.addTime(ReportTimings.Phase.BALANCE_GRAPH, startNanos);
+			addAllTagExpenses(entityManager, currencyReports, allTagsSelected);
+			timings.addTime(ReportTimings.Phase.AGGREGATE, startNanos);
+		}
+
 		Map<String, Report> reportsByCurrency = new TreeMap<>();
+		for (Map.Entry<Currency, CurrencyReport> currencyReport : currencyReports.entrySet())
+			reportsByCurrency.put(currencyReport.getKey().getCurrencyCode(), currencyReport.getValue().toReport(timings));
+		return reportsByCurrency;
+	}
 
-		for (Currency currency : currencies) {
-			Collection<FinanceAccount> currencyAccounts = new HashSet<>();
-			for (FinanceAccount account : selectedAccounts)
-				if (account.getCurrency() == currency)
-					currencyAccounts.add(account);
-
-			Map<String, TagExpense> tagExpenses = new TreeMap<>();
-			
-			List<ReportTransaction> reportTransactions = new ArrayList<>();
-			for (FinanceTransaction transaction : getTransactions(entityManager, currencyAccounts)){
-				ReportTransaction reportTransaction = new ReportTransaction(transaction, currencyAccounts);
-				reportTransactions.add(reportTransaction);
-				for (String tag : transaction.getTags())
-					addTagExpense(tag, reportTransaction.getRawAmount(), tagExpenses);
-				if (transaction.getTags().length == 0)
-					addTagExpense(EMPTY_TAG, reportTransaction.getRawAmount(), tagExpenses);
-			}
-			reportTransactions.sort((tr1, tr2) -> -Double.compare(Math.abs(tr1.getAmount()), Math.abs(tr2.getAmount())));
+	/**
+	 * Prepares the report from an in-memory copy of the owner's transactions,
+	 * with the same contents as buildReport; all filters are evaluated in a
+	 * single pass over the ledger, without any queries
+	 *
+	 * @param ledger the owner's transactions
+	 * @return the report
+	 */
+	public Map<String, Report> buildReport(ColumnarLedger ledger) throws SecurityException {
+		return buildReport(ledger, new ReportTimings());
+	}
 
-			List<TagExpense> tagExpenseList = new ArrayList<>(tagExpenses.values());
-			tagExpenseList.sort((tag1, tag2) -> -Double.compare(Math.abs(tag1.getAmount()), Math.abs(tag2.getAmount())));
+	/**
+	 * Prepares the report from an in-memory copy of the owner's transactions,
+	 * measuring the time spent in every phase; the single pass over the
+	 * ledger (including the balance graph) is measured as aggregation
+	 *
+	 * @param ledger the owner's transactions
+	 * @param timings the timings to add the time of every phase to
+	 * @return the report
+	 */
+	public Map<String, Report> buildReport(ColumnarLedger ledger, ReportTimings timings) throws SecurityException {
+		if (owner == null)
+			throw new SecurityException(messages.getString("NOT_ALLOWED_TO_GET_DATA_FOR_UNKNOWN_USER"));
+		if (ledger.getOwnerId() != owner.getId())
+			throw new SecurityException(messages.getString("LEDGER_BELONGS_TO_ANOTHER_USER"));
 
-			Report report = new Report();
-			report.setTransactions(reportTransactions);
-			report.setTagExpenses(tagExpenseList);
-			report.setAccountsBalanceGraph(getAccountsBalanceGraph(entityManager, currencyAccounts));
+		Map<Currency, CurrencyReport> currencyReports = new HashMap<>();
+		List<CurrencyReport> reportSlots = new ArrayList<>();
+		int[] accountSlots = new int[ledger.accountIds.length];
+		Arrays.fill(accountSlots, -1);
+		if (selectedAccounts != null)
+			for (FinanceAccount account : selectedAccounts) {
+				if (!currencyReports.containsKey(account.getCurrency())) {
+					currencyReports.put(account.getCurrency(), new CurrencyReport());
+					reportSlots.add(currencyReports.get(account.getCurrency()));
+				}
+				int accountIndex = ledger.getAccountIndex(account.getId());
+				if (accountIndex >= 0)
+					accountSlots[accountIndex] = reportSlots.indexOf(currencyReports.get(account.getCurrency()));
+			}
 
-			reportsByCurrency.put(currency.getCurrencyCode(), report);
+		if (!currencyReports.isEmpty() && selectedTags != null) {
+			long startNanos = System.nanoTime();
+			scanLedger(ledger, accountSlots, reportSlots);
+			timings.addTime(ReportTimings.Phase.AGGREGATE, startNanos);
+			timings.addRows(ledger.getRowCount());
 		}
+
+		Map<String, Report> reportsByCurrency = new TreeMap<>();
+		for (Map.Entry<Currency, CurrencyReport> currencyReport : currencyReports.entrySet())
+			reportsByCurrency.put(currencyReport.getKey().getCurrencyCode(), currencyReport.getValue().toReport(timings));
 		return reportsByCurrency;
 	}
 
 	/**
-	 * Returns all transactions matching the set filters, ordered by date
-	 * descending
+	 * Scans the ledger in date order and adds every matching transaction to
+	 * the reports of its accounts' currencies, together with its tag expenses
+	 * and balance graph point; transactions before the report date range only
+	 * contribute to the opening balance
+	 *
+	 * @param ledger the owner's transactions
+	 * @param accountSlots the report index of every ledger account, or -1 if
+	 * the account is not selected
+	 * @param reportSlots the reports being built, by report index
+	 */
+	private void scanLedger(ColumnarLedger ledger, int[] accountSlots, List<CurrencyReport> reportSlots) {
+		int fromDay = earliestDate != null ? ledger.toDay(earliestDate) : Integer.MIN_VALUE;
+		int toDay = latestDate != null ? ledger.toDay(latestDate) : Integer.MAX_VALUE;
+		long[] tagMask = ledger.getTagMask(selectedTags);
+		boolean emptyTagSelected = selectedTags.contains(EMPTY_TAG);
+		byte expenseIncomeType = (byte) FinanceTransaction.Type.EXPENSEINCOME.ordinal();
+		byte transferType = (byte) FinanceTransaction.Type.TRANSFER.ordinal();
+		boolean enabledExpenseIncome = enabledExpenseTransactions || enabledIncomeTransactions;
+
+		//Positive and negative sums of components in selected accounts, by report index
+		long[] positiveAmounts = new long[reportSlots.size()];
+		long[] negativeAmounts = new long[reportSlots.size()];
+		boolean[] usedSlots = new boolean[reportSlots.size()];
+		long[] balances = new long[reportSlots.size()];
+		for (int i = 0; i < ledger.size && ledger.days[i] <= toDay; i++) {
+			byte type = ledger.types[i];
+			//Transaction type filter
+			if (!((type == expenseIncomeType && enabledExpenseIncome) || (type == transferType && enabledTransferTransactions)))
+				continue;
+			if (!ledger.matchesTags(i, tagMask, emptyTagSelected))
+				continue;
+			for (int j = ledger.componentOffsets[i]; j < ledger.componentOffsets[i + 1]; j++) {
+				int slot = accountSlots[ledger.componentAccounts[j]];
+				if (slot < 0)
+					continue;
+				long amount = ledger.componentAmounts[j];
+				if (amount >= 0)
+					positiveAmounts[slot] += amount;
+				else
+					negativeAmounts[slot] += amount;
+				usedSlots[slot] = true;
+			}
+			for (int slot = 0; slot < usedSlots.length; slot++) {
+				if (!usedSlots[slot])
+					continue;
+				long positiveAmount = positiveAmounts[slot], negativeAmount = negativeAmounts[slot];
+				usedSlots[slot] = false;
+				positiveAmounts[slot] = 0L;
+				negativeAmounts[slot] = 0L;
+				long sum = positiveAmount + negativeAmount;
+				//Additional expense/income filter
+				if (type == expenseIncomeType && !((enabledIncomeTransactions && sum >= 0) || (enabledExpenseTransactions && sum <= 0)))
+					continue;
+				balances[slot] += sum;
+				if (ledger.days[i] < fromDay)
+					continue;
+
+				CurrencyReport currencyReport = reportSlots.get(slot);
+				currencyReport.balanceGraph.setDayBalance(ledger.days[i], balances[slot]);
+				long amount = type == transferType ? Math.max(positiveAmount, -negativeAmount) : sum;
+				currencyReport.addTransaction(ledger.descriptions[i], ledger.getDate(i), FinanceTransaction.Type.values()[type], amount);
+				boolean tagged = false;
+				for (int word = 0; word < ledger.tagWords; word++)
+					for (long bits = ledger.tagBits[i * ledger.tagWords + word]; bits != 0; bits &= bits - 1) {
+						addTagExpense(ledger.tagNames[word * Long.SIZE + Long.numberOfTrailingZeros(bits)], amount, currencyReport.tagExpenses);
+						tagged = true;
+					}
+				if (!tagged)
+					addTagExpense(EMPTY_TAG, amount, currencyReport.tagExpenses);
+			}
+		}
+	}
+
+	/**
+	 * Writes the report, with the same contents as buildReport. Transactions
+	 * and balance graph points are passed to the writer as they're read from
+	 * the database, so the report is never kept in memory.
+	 *
+	 * @param entityManager the EntityManager to be used for making queries;
+	 * should be opened/closed outside of this function before calling this
+	 * function
+	 * @param writer the writer receiving the report
+	 * @throws IOException if the writer fails to write the report
+	 */
+	public void writeReport(EntityManager entityManager, ReportWriter writer) throws IOException, SecurityException {
+		if (owner == null)
+			throw new SecurityException(messages.getString("NOT_ALLOWED_TO_GET_DATA_FOR_UNKNOWN_USER"));
+
+		Map<String, ReportFactory> currencyReportFactories = new TreeMap<>();
+		if (selectedAccounts != null)
+			for (ReportFactory currencyReportFactory : splitByCurrency())
+				currencyReportFactories.put(currencyReportFactory.selectedAccounts.get(0).getCurrency().getCurrencyCode(), currencyReportFactory);
+		boolean allTagsSelected = !currencyReportFactories.isEmpty() && selectedTags != null && selectedTags.containsAll(getAllTags(entityManager));
+		try {
+			for (Map.Entry<String, ReportFactory> currencyReportFactory : currencyReportFactories.entrySet()) {
+				writer.startCurrency(currencyReportFactory.getKey());
+				currencyReportFactory.getValue().writeCurrencyReport(entityManager, writer, allTagsSelected);
+				writer.endCurrency();
+			}
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	/**
+	 * Writes the report sections for a ReportFactory selecting accounts in a
+	 * single currency
 	 *
 	 * @param entityManager the EntityManager to be used for making queries
-	 * @param accounts the accounts for which transaction components should be included
-	 * @return list of all transactions matching the set filters, ordered by
-	 * amount descending
+	 * @param writer the writer receiving the report
+	 * @param allTagsSelected true if all tags are selected
+	 * @throws IOException if the writer fails to write the report
 	 */
-	private List<FinanceTransaction> getTransactions(EntityManager entityManager, Collection<FinanceAccount> accounts) {
-		return getTransactions(entityManager, accounts, FinanceTransaction_.transactionDate, true, true, EnumSet.allOf(FilterType.class));
+	private void writeCurrencyReport(EntityManager entityManager, ReportWriter writer, boolean allTagsSelected) throws IOException {
+		Currency currency = selectedAccounts.get(0).getCurrency();
+		CurrencyReport tagsReport = new CurrencyReport();
+		if (selectedTags != null)
+			addAllTagExpenses(entityManager, Collections.singletonMap(currency, tagsReport), allTagsSelected);
+		writer.writeTagExpenses(tagsReport.getSortedTagExpenses());
+
+		writer.startTransactions();
+		if (selectedTags != null)
+			writeTransactions(entityManager, writer);
+		writer.endTransactions();
+
+		writer.startAccountsBalanceGraph();
+		if (selectedTags != null) {
+			StreamedCurrencyReport balanceReport = new StreamedCurrencyReport(writer);
+			addBalanceGraphs(entityManager, Collections.singletonMap(currency, balanceReport), allTagsSelected);
+			balanceReport.writeDownsampledBalanceGraph();
+		}
+		writer.endAccountsBalanceGraph();
 	}
 
 	/**
-	 * Class for storing a generated predicate and joins (should be used in
-	 * groupBy to avoid duplicate results)
+	 * Returns copies of this ReportFactory, each selecting only the accounts
+	 * in one currency. Reports for different currencies don't depend on each
+	 * other, so the copies can be built independently and their results
+	 * combined into the same result as buildReport.
+	 *
+	 * @return copies of this ReportFactory for every selected currency
+	 */
+	public List<ReportFactory> splitByCurrency() {
+		Map<Currency, List<FinanceAccount>> currencyAccounts = new HashMap<>();
+		for (FinanceAccount account : getSelectedAccounts()) {
+			if (!currencyAccounts.containsKey(account.getCurrency()))
+				currencyAccounts.put(account.getCurrency(), new ArrayList<>());
+			currencyAccounts.get(account.getCurrency()).add(account);
+		}
+		List<ReportFactory> currencyReportFactories = new ArrayList<>();
+		for (List<FinanceAccount> accounts : currencyAccounts.values()) {
+			ReportFactory currencyReportFactory = new ReportFactory(owner);
+			currencyReportFactory.earliestDate = earliestDate;
+			currencyReportFactory.latestDate = latestDate;
+			currencyReportFactory.selectedTags = selectedTags;
+			currencyReportFactory.selectedAccounts = accounts;
+			currencyReportFactory.enabledExpenseTransactions = enabledExpenseTransactions;
+			currencyReportFactory.enabledIncomeTransactions = enabledIncomeTransactions;
+			currencyReportFactory.enabledTransferTransactions = enabledTransferTransactions;
+			currencyReportFactory.transactionsOffset = transactionsOffset;
+			currencyReportFactory.transactionsLimit = transactionsLimit;
+			currencyReportFactory.balanceGraphGranularity = balanceGraphGranularity;
+			currencyReportFactory.balanceGraphPoints = balanceGraphPoints;
+			currencyReportFactories.add(currencyReportFactory);
+		}
+		return currencyReportFactories;
+	}
+
+	/**
+	 * Returns a predicate for filtering transactions by tags, without joining
+	 * the tags into the query results
+	 *
+	 * @param criteriaBuilder the CriteriaBuilder
+	 * @param query the query which will use the predicate
+	 * @param tr the FinanceTransaction Root
+	 * @return the predicate for filtering transactions by tags
+	 */
+	private Predicate getTagsPredicate(CriteriaBuilder criteriaBuilder, CriteriaQuery<?> query, Root<FinanceTransaction> tr) {
+		Subquery<Long> tagsSubquery = query.subquery(Long.class);
+		Root<FinanceTransaction> taggedTr = tagsSubquery.from(FinanceTransaction.class);
+		Join<FinanceTransaction, Tag> tagsJoin = taggedTr.join(FinanceTransaction_.tags);
+		tagsSubquery.select(taggedTr.get(FinanceTransaction_.id)).where(criteriaBuilder.and(
+				criteriaBuilder.equal(taggedTr, tr),
+				tagsJoin.get(Tag_.name).in(criteriaBuilder.literal(selectedTags))));
+		Predicate tagsPredicate = criteriaBuilder.exists(tagsSubquery);
+		if (selectedTags.contains(EMPTY_TAG))
+			tagsPredicate = criteriaBuilder.or(tagsPredicate, criteriaBuilder.isEmpty(tr.get(FinanceTransaction_.tags)));
+		return tagsPredicate;
+	}
+
+	/**
+	 * Returns a predicate for filtering expense/income transactions by the
+	 * sign of their total amount in the selected accounts having the same
+	 * currency as the component's account. The totals are computed by an
+	 * uncorrelated GROUP BY/HAVING subquery for every currency, which the
+	 * database runs once instead of once for every component.
+	 *
+	 * @param criteriaBuilder the CriteriaBuilder
+	 * @param query the query which will use the predicate
+	 * @param tr the FinanceTransaction Root
+	 * @param accountJoin the component account join
+	 * @param fromDate the earliest transaction date, or null for no limit
+	 * @param toDate the latest transaction date, or null for no limit
+	 * @return the predicate for filtering expense/income transactions
 	 */
-	private class ConstructedPredicate {
+	private Predicate getExpenseTypePredicate(CriteriaBuilder criteriaBuilder, CriteriaQuery<?> query, Root<FinanceTransaction> tr, Join<TransactionComponent, FinanceAccount> accountJoin, Date fromDate, Date toDate) {
+		if (enabledExpenseTransactions == enabledIncomeTransactions)
+			return enabledExpenseTransactions ? criteriaBuilder.conjunction() : criteriaBuilder.disjunction();
+
+		Map<Currency, List<FinanceAccount>> currencyAccounts = new HashMap<>();
+		for (FinanceAccount account : selectedAccounts) {
+			if (!currencyAccounts.containsKey(account.getCurrency()))
+				currencyAccounts.put(account.getCurrency(), new ArrayList<>());
+			currencyAccounts.get(account.getCurrency()).add(account);
+		}
+
+		Predicate expenseTypePredicate = criteriaBuilder.disjunction();
+		for (Map.Entry<Currency, List<FinanceAccount>> accounts : currencyAccounts.entrySet()) {
+			Subquery<Long> transactionsSubquery = query.subquery(Long.class);
+			Root<TransactionComponent> currencyComponent = transactionsSubquery.from(TransactionComponent.class);
+			Join<TransactionComponent, FinanceTransaction> currencyTransaction = currencyComponent.join(TransactionComponent_.transaction);
+			Predicate currencyComponentsPredicate = criteriaBuilder.and(
+					currencyComponent.get(TransactionComponent_.account).in(criteriaBuilder.literal(accounts.getValue())),
+					criteriaBuilder.equal(currencyTransaction.get(FinanceTransaction_.type), FinanceTransaction.Type.EXPENSEINCOME));
+			if (toDate != null)
+				currencyComponentsPredicate = criteriaBuilder.and(currencyComponentsPredicate, criteriaBuilder.lessThanOrEqualTo(currencyTransaction.<Date>get(FinanceTransaction_.transactionDate), toDate));
+			if (fromDate != null)
+				currencyComponentsPredicate = criteriaBuilder.and(currencyComponentsPredicate, criteriaBuilder.greaterThanOrEqualTo(currencyTransaction.<Date>get(FinanceTransaction_.transactionDate), fromDate));
+			Expression<Long> amountSum = criteriaBuilder.sum(currencyComponent.get(TransactionComponent_.amount));
+			transactionsSubquery.select(currencyTransaction.get(FinanceTransaction_.id))
+					.where(currencyComponentsPredicate)
+					.groupBy(currencyTransaction.get(FinanceTransaction_.id))
+					.having(enabledIncomeTransactions ? criteriaBuilder.greaterThanOrEqualTo(amountSum, 0L) : criteriaBuilder.lessThanOrEqualTo(amountSum, 0L));
+
+			expenseTypePredicate = criteriaBuilder.or(expenseTypePredicate, criteriaBuilder.and(
+					criteriaBuilder.equal(accountJoin.get(FinanceAccount_.currency), accounts.getKey().getCurrencyCode()),
+					tr.get(FinanceTransaction_.id).in(transactionsSubquery)));
+		}
+		return expenseTypePredicate;
+	}
+
+	/**
+	 * Returns a predicate for filtering transactions by owner, selected
+	 * accounts, tags and date range
+	 *
+	 * @param criteriaBuilder the CriteriaBuilder
+	 * @param query the query which will use the predicate
+	 * @param tr the FinanceTransaction Root
+	 * @param componentsJoin the transaction components join
+	 * @param fromDate the earliest transaction date, or null for no limit
+	 * @param toDate the latest transaction date, or null for no limit
+	 * @return the predicate for filtering transactions
+	 */
+	private Predicate getFilteredComponentsPredicate(CriteriaBuilder criteriaBuilder, CriteriaQuery<?> query, Root<FinanceTransaction> tr, Join<FinanceTransaction, TransactionComponent> componentsJoin, Date fromDate, Date toDate) {
+		//User filter
+		Predicate userPredicate = criteriaBuilder.equal(tr.get(FinanceTransaction_.owner), owner.getId());
+
+		//Accounts filter
+		Predicate accountsPredicate = componentsJoin.get(TransactionComponent_.account).in(criteriaBuilder.literal(selectedAccounts));
+
+		//Date filter
+		Predicate datePredicate = criteriaBuilder.conjunction();
+		if (toDate != null)
+			datePredicate = criteriaBuilder.and(datePredicate, criteriaBuilder.lessThanOrEqualTo(tr.<Date>get(FinanceTransaction_.transactionDate), toDate));
+		if (fromDate != null)
+			datePredicate = criteriaBuilder.and(datePredicate, criteriaBuilder.greaterThanOrEqualTo(tr.<Date>get(FinanceTransaction_.transactionDate), fromDate));
+
+		return criteriaBuilder.and(userPredicate, accountsPredicate, datePredicate, getTagsPredicate(criteriaBuilder, query, tr));
+	}
+
+	/**
+	 * Scans all components of the selected accounts in a single query, ordered
+	 * by transaction date, and adds every matching transaction in the report
+	 * date range to the reports of its accounts' currencies
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @param accountCurrencies the currency of every selected account, by
+	 * account id
+	 * @param currencyReports the reports being built, by currency
+	 * @param timings the timings to add the query and hydration time to
+	 */
+	private void scanComponents(EntityManager entityManager, Map<Long, Currency> accountCurrencies, Map<Currency, CurrencyReport> currencyReports, ReportTimings timings) {
+		long startNanos = System.nanoTime();
+		CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> componentsCriteriaQuery = criteriaBuilder.createTupleQuery();
+		Root<FinanceTransaction> tr = componentsCriteriaQuery.from(FinanceTransaction.class);
+		Join<FinanceTransaction, TransactionComponent> componentsJoin = tr.join(FinanceTransaction_.components);
+		Join<TransactionComponent, FinanceAccount> accountJoin = componentsJoin.join(TransactionComponent_.account);
+
+		//Transaction type filter
+		Predicate transactionTypePredicate = criteriaBuilder.disjunction();
+		if (enabledExpenseTransactions || enabledIncomeTransactions) {
+			Predicate expenseIncomePredicate = criteriaBuilder.equal(tr.get(FinanceTransaction_.type), FinanceTransaction.Type.EXPENSEINCOME);
+			//Expense/income filter
+			expenseIncomePredicate = criteriaBuilder.and(expenseIncomePredicate, getExpenseTypePredicate(criteriaBuilder, componentsCriteriaQuery, tr, accountJoin, earliestDate, latestDate));
+			transactionTypePredicate = criteriaBuilder.or(transactionTypePredicate, expenseIncomePredicate);
+		}
+		if (enabledTransferTransactions)
+			transactionTypePredicate = criteriaBuilder.or(transactionTypePredicate, criteriaBuilder.equal(tr.get(FinanceTransaction_.type), FinanceTransaction.Type.TRANSFER));
+
+		componentsCriteriaQuery.where(criteriaBuilder.and(
+				getFilteredComponentsPredicate(criteriaBuilder, componentsCriteriaQuery, tr, componentsJoin, earliestDate, latestDate),
+				transactionTypePredicate));
+		componentsCriteriaQuery.multiselect(
+				tr.get(FinanceTransaction_.id),
+				tr.get(FinanceTransaction_.transactionDate),
+				tr.get(FinanceTransaction_.type),
+				tr.get(FinanceTransaction_.description),
+				accountJoin.get(FinanceAccount_.id),
+				componentsJoin.get(TransactionComponent_.amount));
+		componentsCriteriaQuery.orderBy(
+				criteriaBuilder.asc(tr.get(FinanceTransaction_.transactionDate)),
+				criteriaBuilder.asc(tr.get(FinanceTransaction_.id)));
+
+		List<Tuple> rows = entityManager.createQuery(componentsCriteriaQuery).getResultList();
+		startNanos = timings.addTime(ReportTimings.Phase.QUERY, startNanos);
+		timings.addRows(rows.size());
+
+		//Rows are grouped by transaction, each row is a component
+		ScannedTransaction transaction = null;
+		for (Tuple row : rows) {
+			Long transactionId = row.get(0, Long.class);
+			if (transaction == null || !transaction.id.equals(transactionId)) {
+				if (transaction != null)
+					addScannedTransaction(transaction, currencyReports);
+				transaction = new ScannedTransaction(transactionId, row.get(1, Date.class), row.get(2, FinanceTransaction.Type.class), row.get(3, String.class));
+			}
+			transaction.addComponent(accountCurrencies.get(row.get(4, Long.class)), row.get(5, Long.class));
+		}
+		if (transaction != null)
+			addScannedTransaction(transaction, currencyReports);
+		timings.addTime(ReportTimings.Phase.HYDRATE, startNanos);
+	}
+
+	/**
+	 * Adds a scanned transaction to the reports of its accounts' currencies;
+	 * the expense/income filter is already applied by the query
+	 *
+	 * @param transaction the scanned transaction
+	 * @param currencyReports the reports being built, by currency
+	 */
+	private void addScannedTransaction(ScannedTransaction transaction, Map<Currency, CurrencyReport> currencyReports) {
+		for (Map.Entry<Currency, long[]> currencyAmount : transaction.amounts.entrySet()) {
+			long[] amounts = currencyAmount.getValue();
+			long sum = amounts[0] + amounts[1];
+			CurrencyReport currencyReport = currencyReports.get(currencyAmount.getKey());
+			long amount = transaction.type == FinanceTransaction.Type.TRANSFER ? Math.max(amounts[0], -amounts[1]) : sum;
+			currencyReport.addTransaction(transaction.description, transaction.date, transaction.type, amount);
+		}
+	}
+
+	/**
+	 * Returns native SQL selecting the total amount of every matching
+	 * transaction in the selected accounts, by currency. Uses only SQL
+	 * supported by both H2 and PostgreSQL.
+	 *
+	 * @param dateCondition the SQL condition for filtering transaction dates
+	 * @return the SQL for the filtered transaction amounts, with the
+	 * transactionDate, currency and amount columns
+	 */
+	private String getFilteredAmountsSql(String dateCondition) {
+		return getFilteredTransactionsSql(
+				"t.id as id, a.currency as currency, t.transactionDate as transactionDate, sum(c.amount) as amount", //NOI18N
+				"t.id, a.currency, t.transactionDate, t.type", //NOI18N
+				dateCondition);
+	}
+
+	/**
+	 * Returns native SQL selecting every matching transaction in the selected
+	 * accounts, by currency. Uses only SQL supported by both H2 and
+	 * PostgreSQL.
+	 *
+	 * @param columns the selected columns
+	 * @param groupColumns the columns to group by, should include t.id,
+	 * a.currency and t.type
+	 * @param dateCondition the SQL condition for filtering transaction dates
+	 * @return the SQL for the filtered transactions
+	 */
+	private String getFilteredTransactionsSql(String columns, String groupColumns, String dateCondition) {
+		StringBuilder sql = new StringBuilder();
+		sql.append("select ").append(columns); //NOI18N
+		sql.append(" from FinanceTransaction t"); //NOI18N
+		sql.append(" join TransactionComponent c on c.components_id = t.id"); //NOI18N
+		sql.append(" join FinanceAccount a on a.id = c.account_id"); //NOI18N
+		sql.append(" where t.owner_id = :owner and c.account_id in (:accounts) and t.type in (:types) and ").append(dateCondition); //NOI18N
+		sql.append(" and (exists (select g.transaction_id from FinanceTransaction_Tag g join Tag tg on tg.id = g.tag_id where g.transaction_id = t.id and tg.name in (:tags))"); //NOI18N
+		if (selectedTags.contains(EMPTY_TAG))
+			sql.append(" or not exists (select g.transaction_id from FinanceTransaction_Tag g where g.transaction_id = t.id)"); //NOI18N
+		sql.append(")"); //NOI18N
+		sql.append(" group by ").append(groupColumns); //NOI18N
+		//Additional expense/income filter
+		sql.append(" having t.type = :transferType"); //NOI18N
+		if (enabledIncomeTransactions)
+			sql.append(" or sum(c.amount) >= 0"); //NOI18N
+		if (enabledExpenseTransactions)
+			sql.append(" or sum(c.amount) <= 0"); //NOI18N
+		return sql.toString();
+	}
+
+	/**
+	 * Sets the parameters used in the SQL from getFilteredAmountsSql
+	 *
+	 * @param query the query to configure
+	 * @return the query
+	 */
+	private Query setFilteredAmountsParameters(Query query) {
+		List<Long> accountIds = new ArrayList<>(selectedAccounts.size());
+		for (FinanceAccount account : selectedAccounts)
+			accountIds.add(account.getId());
+		List<Integer> types = new ArrayList<>();
+		if (enabledExpenseTransactions || enabledIncomeTransactions)
+			types.add(FinanceTransaction.Type.EXPENSEINCOME.ordinal());
+		if (enabledTransferTransactions)
+			types.add(FinanceTransaction.Type.TRANSFER.ordinal());
+		if (types.isEmpty())
+			types.add(FinanceTransaction.Type.UNDEFINED.ordinal());
+		return query.setParameter("owner", owner.getId()) //NOI18N
+				.setParameter("accounts", accountIds) //NOI18N
+				.setParameter("types", types) //NOI18N
+				.setParameter("tags", selectedTags) //NOI18N
+				.setParameter("transferType", FinanceTransaction.Type.TRANSFER.ordinal()); //NOI18N
+	}
+
+	/**
+	 * Returns the SQL condition for filtering transactions by the report date
+	 * range
+	 *
+	 * @return the SQL condition, using the earliestDate and latestDate
+	 * parameters
+	 */
+	private String getDateRangeSql() {
+		String dateCondition = "1=1"; //NOI18N
+		if (earliestDate != null)
+			dateCondition += " and t.transactionDate >= :earliestDate"; //NOI18N
+		if (latestDate != null)
+			dateCondition += " and t.transactionDate <= :latestDate"; //NOI18N
+		return dateCondition;
+	}
+
+	/**
+	 * Sets the parameters used in the SQL from getDateRangeSql
+	 *
+	 * @param query the query to configure
+	 * @return the query
+	 */
+	private Query setDateRangeParameters(Query query) {
+		if (earliestDate != null)
+			query.setParameter("earliestDate", earliestDate, TemporalType.DATE); //NOI18N
+		if (latestDate != null)
+			query.setParameter("latestDate", latestDate, TemporalType.DATE); //NOI18N
+		return query;
+	}
+
+	/**
+	 * Writes the transactions matching the report filter, ordered by their
+	 * absolute amount as in buildReport; the database sorts the transactions
+	 * so that they can be streamed to the writer. Should only be used when
+	 * all selected accounts use the same currency.
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @param writer the writer receiving the transactions
+	 * @throws IOException if the writer fails to write a transaction
+	 */
+	private void writeTransactions(EntityManager entityManager, ReportWriter writer) throws IOException {
+		String transactionsSql = getFilteredTransactionsSql(
+				"t.id as id, t.transactionDate as transactionDate, t.type as type, t.description as description," //NOI18N
+				+ " sum(c.amount) as amount," //NOI18N
+				+ " sum(case when c.amount > 0 then c.amount else 0 end) as positiveAmount," //NOI18N
+				+ " sum(case when c.amount < 0 then c.amount else 0 end) as negativeAmount", //NOI18N
+				"t.id, a.currency, t.transactionDate, t.type, t.description", //NOI18N
+				getDateRangeSql());
+		Query transactionsQuery = entityManager.createNativeQuery(
+				"select tx.transactionDate, tx.type, tx.description, tx.amount, tx.positiveAmount, tx.negativeAmount from (" + transactionsSql + ") tx" //NOI18N
+				+ " order by case when tx.type = :transferType" //NOI18N
+				+ " then (case when tx.positiveAmount > -tx.negativeAmount then tx.positiveAmount else -tx.negativeAmount end)" //NOI18N
+				+ " else abs(tx.amount) end desc, tx.transactionDate, tx.id"); //NOI18N
+		setDateRangeParameters(setFilteredAmountsParameters(transactionsQuery)).setHint(FETCH_SIZE_HINT, STREAM_FETCH_SIZE);
+		transactionsQuery.setFirstResult(Math.max(transactionsOffset, 0));
+		if (transactionsLimit != null)
+			transactionsQuery.setMaxResults(Math.max(transactionsLimit, 0));
+		try (Stream<Object[]> rows = transactionsQuery.getResultStream()) {
+			for (Object[] row : (Iterable<Object[]>) rows::iterator) {
+				FinanceTransaction.Type type = FinanceTransaction.Type.values()[((Number) row[1]).intValue()];
+				long amount = ((Number) row[3]).longValue();
+				if (type == FinanceTransaction.Type.TRANSFER)
+					amount = Math.max(((Number) row[4]).longValue(), -((Number) row[5]).longValue());
+				writer.writeTransaction(new ReportTransaction((String) row[2], (Date) row[0], type, amount));
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the balance graph should be downsampled
+	 *
+	 * @return true if the balance graph should be downsampled
+	 */
+	private boolean isBalanceGraphDownsampled() {
+		return balanceGraphGranularity != null || balanceGraphPoints != null;
+	}
 
+	/**
+	 * Downsamples a balance graph as requested by balanceGraphGranularity and
+	 * balanceGraphPoints
+	 *
+	 * @param balanceGraph the balance graph to downsample
+	 */
+	private void downsampleBalanceGraph(DateBalance balanceGraph) {
+		if (balanceGraphGranularity != null)
+			balanceGraph.downsample(balanceGraphGranularity);
+		if (balanceGraphPoints != null)
+			balanceGraph.downsample(balanceGraphPoints);
+	}
+
+	/**
+	 * Adds the balance graphs, using the account daily balances if the graphs
+	 * are not affected by the report filter
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @param currencyReports the reports being built, by currency
+	 * @param allTagsSelected true if all tags are selected
+	 */
+	private void addBalanceGraphs(EntityManager entityManager, Map<Currency, ? extends CurrencyReport> currencyReports, boolean allTagsSelected) {
+		if (allTagsSelected && isBalanceUnfiltered(entityManager))
+			addAccountsDailyBalanceGraphs(entityManager, currencyReports);
+		else
+			addAccountsBalanceGraphs(entityManager, currencyReports);
+	}
+
+	/**
+	 * Computes the balance graphs in the database: one query for the opening
+	 * balance before the earliest date, and one query returning a running
+	 * balance for every date in the report range
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @param currencyReports the reports being built, by currency
+	 */
+	private void addAccountsBalanceGraphs(EntityManager entityManager, Map<Currency, ? extends CurrencyReport> currencyReports) {
+		Map<String, Long> openingBalances = new HashMap<>();
+		if (earliestDate != null) {
+			Query openingBalanceQuery = entityManager.createNativeQuery(
+					"select tx.currency, sum(tx.amount) from (" + getFilteredAmountsSql("t.transactionDate < :earliestDate") + ") tx group by tx.currency"); //NOI18N
+			setFilteredAmountsParameters(openingBalanceQuery).setParameter("earliestDate", earliestDate, TemporalType.DATE); //NOI18N
+			for (Object[] row : (List<Object[]>) openingBalanceQuery.getResultList())
+				openingBalances.put((String) row[0], ((Number) row[1]).longValue());
+		}
+
+		Query balanceQuery = entityManager.createNativeQuery(
+				"select tx.currency, tx.transactionDate, sum(sum(tx.amount)) over (partition by tx.currency order by tx.transactionDate)" //NOI18N
+				+ " from (" + getFilteredAmountsSql(getDateRangeSql()) + ") tx" //NOI18N
+				+ " group by tx.currency, tx.transactionDate order by tx.currency, tx.transactionDate"); //NOI18N
+		setDateRangeParameters(setFilteredAmountsParameters(balanceQuery)).setHint(FETCH_SIZE_HINT, STREAM_FETCH_SIZE);
+		try (Stream<Object[]> rows = balanceQuery.getResultStream()) {
+			for (Object[] row : (Iterable<Object[]>) rows::iterator) {
+				String currency = (String) row[0];
+				long openingBalance = openingBalances.containsKey(currency) ? openingBalances.get(currency) : 0L;
+				currencyReports.get(Currency.getInstance(currency)).setBalance((Date) row[1], openingBalance + ((Number) row[2]).longValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the report filter includes all transactions of the
+	 * selected accounts, and the balance graphs can be built from the account
+	 * daily balances; should only be called if all tags are selected
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @return true if the balance graphs are not affected by the report filter
+	 */
+	private boolean isBalanceUnfiltered(EntityManager entityManager) {
+		if (!enabledExpenseTransactions || !enabledIncomeTransactions || !enabledTransferTransactions)
+			return false;
+		//Transactions with an undefined type are never included in reports
+		CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> undefinedCriteriaQuery = criteriaBuilder.createQuery(Long.class);
+		Root<FinanceTransaction> tr = undefinedCriteriaQuery.from(FinanceTransaction.class);
+		undefinedCriteriaQuery.select(criteriaBuilder.count(tr)).where(
+				criteriaBuilder.equal(tr.get(FinanceTransaction_.owner), owner),
+				criteriaBuilder.equal(tr.get(FinanceTransaction_.type), FinanceTransaction.Type.UNDEFINED));
+		return entityManager.createQuery(undefinedCriteriaQuery).getSingleResult() == 0L;
+	}
+
+	/**
+	 * Builds the balance graphs from the account daily balances: one query for
+	 * the opening balance before the earliest date, and one query returning
+	 * the balance change for every day in the report range; like the
+	 * transaction-based graphs, there's a point for every day with
+	 * transactions, even if the balance didn't change
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @param currencyReports the reports being built, by currency
+	 */
+	private void addAccountsDailyBalanceGraphs(EntityManager entityManager, Map<Currency, ? extends CurrencyReport> currencyReports) {
+		CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+		Map<String, Long> balances = new HashMap<>();
+		if (earliestDate != null) {
+			CriteriaQuery<Tuple> openingBalanceCriteriaQuery = criteriaBuilder.createTupleQuery();
+			Root<AccountDailyBalance> dailyBalance = openingBalanceCriteriaQuery.from(AccountDailyBalance.class);
+			Join<AccountDailyBalance, FinanceAccount> accountJoin = dailyBalance.join(AccountDailyBalance_.account);
+			openingBalanceCriteriaQuery.where(
+					accountJoin.in(criteriaBuilder.literal(selectedAccounts)),
+					criteriaBuilder.lessThan(dailyBalance.<Date>get(AccountDailyBalance_.balanceDate), earliestDate));
+			openingBalanceCriteriaQuery.multiselect(
+					accountJoin.get(FinanceAccount_.currency),
+					criteriaBuilder.sum(dailyBalance.get(AccountDailyBalance_.amount)));
+			openingBalanceCriteriaQuery.groupBy(accountJoin.get(FinanceAccount_.currency));
+			for (Tuple row : entityManager.createQuery(openingBalanceCriteriaQuery).getResultList())
+				balances.put(row.get(0, String.class), row.get(1, Long.class));
+		}
+
+		CriteriaQuery<Tuple> balanceCriteriaQuery = criteriaBuilder.createTupleQuery();
+		Root<AccountDailyBalance> dailyBalance = balanceCriteriaQuery.from(AccountDailyBalance.class);
+		Join<AccountDailyBalance, FinanceAccount> accountJoin = dailyBalance.join(AccountDailyBalance_.account);
+		Predicate datePredicate = criteriaBuilder.conjunction();
+		if (latestDate != null)
+			datePredicate = criteriaBuilder.and(datePredicate, criteriaBuilder.lessThanOrEqualTo(dailyBalance.<Date>get(AccountDailyBalance_.balanceDate), latestDate));
+		if (earliestDate != null)
+			datePredicate = criteriaBuilder.and(datePredicate, criteriaBuilder.greaterThanOrEqualTo(dailyBalance.<Date>get(AccountDailyBalance_.balanceDate), earliestDate));
+		balanceCriteriaQuery.where(
+				accountJoin.in(criteriaBuilder.literal(selectedAccounts)),
+				criteriaBuilder.greaterThan(dailyBalance.get(AccountDailyBalance_.componentCount), 0L),
+				datePredicate);
+		balanceCriteriaQuery.multiselect(
+				accountJoin.get(FinanceAccount_.currency),
+				dailyBalance.get(AccountDailyBalance_.balanceDate),
+				criteriaBuilder.sum(dailyBalance.get(AccountDailyBalance_.amount)));
+		balanceCriteriaQuery.groupBy(accountJoin.get(FinanceAccount_.currency), dailyBalance.get(AccountDailyBalance_.balanceDate));
+		balanceCriteriaQuery.orderBy(criteriaBuilder.asc(dailyBalance.get(AccountDailyBalance_.balanceDate)));
+		try (Stream<Tuple> rows = entityManager.createQuery(balanceCriteriaQuery).setHint(FETCH_SIZE_HINT, STREAM_FETCH_SIZE).getResultStream()) {
+			for (Tuple row : (Iterable<Tuple>) rows::iterator) {
+				String currency = row.get(0, String.class);
+				long balance = (balances.containsKey(currency) ? balances.get(currency) : 0L) + row.get(2, Long.class);
+				balances.put(currency, balance);
+				currencyReports.get(Currency.getInstance(currency)).setBalance(row.get(1, Date.class), balance);
+			}
+		}
+	}
+
+	/**
+	 * Adds tag expenses, using the account tag totals if the totals are not
+	 * affected by the report filter
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @param currencyReports the reports being built, by currency
+	 * @param allTagsSelected true if all tags are selected
+	 */
+	private void addAllTagExpenses(EntityManager entityManager, Map<Currency, CurrencyReport> currencyReports, boolean allTagsSelected) {
+		if (allTagsSelected && isAllCurrencyAccountsSelected(entityManager))
+			addTagExpensesFromTotals(entityManager, currencyReports);
+		else
+			addTagExpenses(entityManager, currencyReports, earliestDate, latestDate);
+	}
+
+	/**
+	 * Returns true if the selected accounts include all accounts in their
+	 * currencies. Expense/income and transfer amounts are calculated from all
+	 * accounts in a currency, and can only be taken from the account tag
+	 * totals if all those accounts are selected.
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @return true if all accounts in the selected currencies are selected
+	 */
+	private boolean isAllCurrencyAccountsSelected(EntityManager entityManager) {
+		Set<String> currencies = new HashSet<>();
+		for (FinanceAccount account : selectedAccounts)
+			currencies.add(account.getCurrency().getCurrencyCode());
+		CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> accountsCriteriaQuery = criteriaBuilder.createQuery(Long.class);
+		Root<FinanceAccount> account = accountsCriteriaQuery.from(FinanceAccount.class);
+		accountsCriteriaQuery.select(criteriaBuilder.count(account)).where(
+				criteriaBuilder.equal(account.get(FinanceAccount_.owner), owner),
+				account.get(FinanceAccount_.currency).in(currencies),
+				criteriaBuilder.not(account.in(criteriaBuilder.literal(selectedAccounts))));
+		return entityManager.createQuery(accountsCriteriaQuery).getSingleResult() == 0L;
+	}
+
+	/**
+	 * Adds tag expenses, using the account tag totals for whole months in the
+	 * report range, and transactions for the partial months at the start and
+	 * end of the range
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @param currencyReports the reports being built, by currency
+	 */
+	private void addTagExpensesFromTotals(EntityManager entityManager, Map<Currency, CurrencyReport> currencyReports) {
+		Calendar calendar = Calendar.getInstance();
+		//First day of the first whole month
+		Date totalsStart = null;
+		if (earliestDate != null) {
+			totalsStart = AccountTagTotal.getMonthStart(earliestDate);
+			if (totalsStart.before(AccountDailyBalance.getDay(earliestDate))) {
+				calendar.setTime(totalsStart);
+				calendar.add(Calendar.MONTH, 1);
+				totalsStart = calendar.getTime();
+			}
+		}
+		//First day after the last whole month
+		Date totalsEnd = null;
+		if (latestDate != null) {
+			calendar.setTime(AccountDailyBalance.getDay(latestDate));
+			calendar.add(Calendar.DAY_OF_MONTH, 1);
+			totalsEnd = AccountTagTotal.getMonthStart(latestDate);
+			if (calendar.get(Calendar.DAY_OF_MONTH) == 1)
+				totalsEnd = calendar.getTime();
+		}
+
+		if (totalsStart != null && totalsEnd != null && !totalsStart.before(totalsEnd)) {
+			addTagExpenses(entityManager, currencyReports, earliestDate, latestDate);
+			return;
+		}
+		addTagTotals(entityManager, currencyReports, totalsStart, totalsEnd);
+		if (earliestDate != null && earliestDate.before(totalsStart)) {
+			calendar.setTime(totalsStart);
+			calendar.add(Calendar.DAY_OF_MONTH, -1);
+			addTagExpenses(entityManager, currencyReports, earliestDate, calendar.getTime());
+		}
+		if (latestDate != null && !latestDate.before(totalsEnd))
+			addTagExpenses(entityManager, currencyReports, totalsEnd, latestDate);
+	}
+
+	/**
+	 * Adds tag expenses from the account tag totals, summed by the database
+	 * for every currency and tag
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @param currencyReports the reports being built, by currency
+	 * @param totalsStart the first day of the first month, or null for no
+	 * limit
+	 * @param totalsEnd the first day after the last month, or null for no
+	 * limit
+	 */
+	private void addTagTotals(EntityManager entityManager, Map<Currency, CurrencyReport> currencyReports, Date totalsStart, Date totalsEnd) {
+		List<AccountTagTotal.Sign> signs = new ArrayList<>();
+		if (enabledExpenseTransactions)
+			signs.add(AccountTagTotal.Sign.EXPENSE);
+		if (enabledIncomeTransactions)
+			signs.add(AccountTagTotal.Sign.INCOME);
+		if (enabledExpenseTransactions || enabledIncomeTransactions)
+			signs.add(AccountTagTotal.Sign.BALANCED);
+		if (enabledTransferTransactions)
+			signs.add(AccountTagTotal.Sign.TRANSFER);
+		if (signs.isEmpty())
+			return;
+
+		CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> tagsCriteriaQuery = criteriaBuilder.createTupleQuery();
+		Root<AccountTagTotal> tagTotal = tagsCriteriaQuery.from(AccountTagTotal.class);
+		Join<AccountTagTotal, FinanceAccount> accountJoin = tagTotal.join(AccountTagTotal_.account);
+		Path<AccountTagTotalKey> key = tagTotal.get(AccountTagTotal_.key);
+
+		Predicate datePredicate = criteriaBuilder.conjunction();
+		if (totalsEnd != null)
+			datePredicate = criteriaBuilder.and(datePredicate, criteriaBuilder.lessThan(key.<Date>get(AccountTagTotalKey_.monthStart), totalsEnd));
+		if (totalsStart != null)
+			datePredicate = criteriaBuilder.and(datePredicate, criteriaBuilder.greaterThanOrEqualTo(key.<Date>get(AccountTagTotalKey_.monthStart), totalsStart));
+		tagsCriteriaQuery.where(
+				accountJoin.in(criteriaBuilder.literal(selectedAccounts)),
+				key.get(AccountTagTotalKey_.sign).in(signs),
+				criteriaBuilder.greaterThan(tagTotal.get(AccountTagTotal_.transactionCount), 0L),
+				datePredicate);
+		tagsCriteriaQuery.multiselect(
+				accountJoin.get(FinanceAccount_.currency),
+				key.get(AccountTagTotalKey_.tag),
+				criteriaBuilder.sum(tagTotal.get(AccountTagTotal_.amount)));
+		tagsCriteriaQuery.groupBy(accountJoin.get(FinanceAccount_.currency), key.get(AccountTagTotalKey_.tag));
+
+		for (Tuple row : entityManager.createQuery(tagsCriteriaQuery).getResultList()) {
+			CurrencyReport currencyReport = currencyReports.get(Currency.getInstance(row.get(0, String.class)));
+			addTagExpense(row.get(1, String.class), row.get(2, Long.class), currencyReport.tagExpenses);
+		}
+	}
+
+	/**
+	 * Adds tag expenses for transactions in a date range
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @param currencyReports the reports being built, by currency
+	 * @param fromDate the earliest transaction date, or null for no limit
+	 * @param toDate the latest transaction date, or null for no limit
+	 */
+	private void addTagExpenses(EntityManager entityManager, Map<Currency, CurrencyReport> currencyReports, Date fromDate, Date toDate) {
+		if (enabledExpenseTransactions || enabledIncomeTransactions)
+			addExpenseIncomeTagExpenses(entityManager, currencyReports, fromDate, toDate);
+		if (enabledTransferTransactions)
+			addTransferTagExpenses(entityManager, currencyReports, fromDate, toDate);
+	}
+
+	/**
+	 * Adds tag expenses for expense/income transactions, summed by the
+	 * database for every currency and tag
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @param currencyReports the reports being built, by currency
+	 * @param fromDate the earliest transaction date, or null for no limit
+	 * @param toDate the latest transaction date, or null for no limit
+	 */
+	private void addExpenseIncomeTagExpenses(EntityManager entityManager, Map<Currency, CurrencyReport> currencyReports, Date fromDate, Date toDate) {
+		CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> tagsCriteriaQuery = criteriaBuilder.createTupleQuery();
+		Root<FinanceTransaction> tr = tagsCriteriaQuery.from(FinanceTransaction.class);
+		Join<FinanceTransaction, TransactionComponent> componentsJoin = tr.join(FinanceTransaction_.components);
+		Join<TransactionComponent, FinanceAccount> accountJoin = componentsJoin.join(TransactionComponent_.account);
+		Join<FinanceTransaction, Tag> tagsJoin = tr.join(FinanceTransaction_.tags, JoinType.LEFT);
+
+		tagsCriteriaQuery.where(criteriaBuilder.and(
+				getFilteredComponentsPredicate(criteriaBuilder, tagsCriteriaQuery, tr, componentsJoin, fromDate, toDate),
+				criteriaBuilder.equal(tr.get(FinanceTransaction_.type), FinanceTransaction.Type.EXPENSEINCOME),
+				getExpenseTypePredicate(criteriaBuilder, tagsCriteriaQuery, tr, accountJoin, fromDate, toDate)));
+		tagsCriteriaQuery.multiselect(
+				accountJoin.get(FinanceAccount_.currency),
+				tagsJoin.get(Tag_.name),
+				criteriaBuilder.sum(componentsJoin.get(TransactionComponent_.amount)));
+		tagsCriteriaQuery.groupBy(accountJoin.get(FinanceAccount_.currency), tagsJoin.get(Tag_.id), tagsJoin.get(Tag_.name));
+
+		for (Tuple row : entityManager.createQuery(tagsCriteriaQuery).getResultList()) {
+			String tag = row.get(1, String.class);
+			CurrencyReport currencyReport = currencyReports.get(Currency.getInstance(row.get(0, String.class)));
+			addTagExpense(tag != null ? tag : EMPTY_TAG, row.get(2, Long.class), currencyReport.tagExpenses);
+		}
+	}
+
+	/**
+	 * Adds tag expenses for transfer transactions. A transfer's amount is the
+	 * largest of its incoming and outgoing sums, so the database sums
+	 * components for every transaction and the Java side only picks the
+	 * largest sum.
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @param currencyReports the reports being built, by currency
+	 * @param fromDate the earliest transaction date, or null for no limit
+	 * @param toDate the latest transaction date, or null for no limit
+	 */
+	private void addTransferTagExpenses(EntityManager entityManager, Map<Currency, CurrencyReport> currencyReports, Date fromDate, Date toDate) {
+		CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> tagsCriteriaQuery = criteriaBuilder.createTupleQuery();
+		Root<FinanceTransaction> tr = tagsCriteriaQuery.from(FinanceTransaction.class);
+		Join<FinanceTransaction, TransactionComponent> componentsJoin = tr.join(FinanceTransaction_.components);
+		Join<TransactionComponent, FinanceAccount> accountJoin = componentsJoin.join(TransactionComponent_.account);
+		Join<FinanceTransaction, Tag> tagsJoin = tr.join(FinanceTransaction_.tags, JoinType.LEFT);
+
+		Expression<Long> amount = componentsJoin.get(TransactionComponent_.amount);
+		Expression<Long> positiveAmount = criteriaBuilder.<Long>selectCase().when(criteriaBuilder.greaterThan(amount, 0L), amount).otherwise(0L);
+		Expression<Long> negativeAmount = criteriaBuilder.<Long>selectCase().when(criteriaBuilder.lessThan(amount, 0L), amount).otherwise(0L);
+
+		tagsCriteriaQuery.where(criteriaBuilder.and(
+				getFilteredComponentsPredicate(criteriaBuilder, tagsCriteriaQuery, tr, componentsJoin, fromDate, toDate),
+				criteriaBuilder.equal(tr.get(FinanceTransaction_.type), FinanceTransaction.Type.TRANSFER)));
+		tagsCriteriaQuery.multiselect(
+				accountJoin.get(FinanceAccount_.currency),
+				tagsJoin.get(Tag_.name),
+				criteriaBuilder.sum(positiveAmount),
+				criteriaBuilder.sum(negativeAmount));
+		tagsCriteriaQuery.groupBy(accountJoin.get(FinanceAccount_.currency), tagsJoin.get(Tag_.id), tagsJoin.get(Tag_.name), tr.get(FinanceTransaction_.id));
+
+		for (Tuple row : entityManager.createQuery(tagsCriteriaQuery).getResultList()) {
+			String tag = row.get(1, String.class);
+			CurrencyReport currencyReport = currencyReports.get(Currency.getInstance(row.get(0, String.class)));
+			addTagExpense(tag != null ? tag : EMPTY_TAG, Math.max(row.get(2, Long.class), -row.get(3, Long.class)), currencyReport.tagExpenses);
+		}
+	}
+
+	/**
+	 * Transaction data collected from component rows while scanning
+	 */
+	private class ScannedTransaction {
+
+		/**
+		 * The transaction id
+		 */
+		private final Long id;
 		/**
-		 * The generated predicate
+		 * The transaction date
 		 */
-		private final Predicate predicate;
+		private final Date date;
 		/**
-		 * The components join
+		 * The transaction type
 		 */
-		private final Join<FinanceTransaction, TransactionComponent> componentsJoin;
+		private final FinanceTransaction.Type type;
 		/**
-		 * The tags join
+		 * The transaction description
 		 */
-		private final Join<FinanceTransaction, String> tagsJoin;
+		private final String description;
+		/**
+		 * Positive and negative sums of components in selected accounts, by
+		 * currency
+		 */
+		private final Map<Currency, long[]> amounts = new HashMap<>();
 
 		/**
 		 * Default constructor
 		 *
-		 * @param predicate the generated predicate
-		 * @param componentsJoin the transaction components join
-		 * @param tagsJoin the transaction tags join
+		 * @param id the transaction id
+		 * @param date the transaction date
+		 * @param type the transaction type
+		 * @param description the transaction description
 		 */
-		public ConstructedPredicate(Predicate predicate, Join<FinanceTransaction, TransactionComponent> componentsJoin, Join<FinanceTransaction, String> tagsJoin) {
-			this.predicate = predicate;
-			this.componentsJoin = componentsJoin;
-			this.tagsJoin = tagsJoin;
+		public ScannedTransaction(Long id, Date date, FinanceTransaction.Type type, String description) {
+			this.id = id;
+			this.date = date;
+			this.type = type;
+			this.description = description;
 		}
 
 		/**
-		 * Returns the generated predicate
+		 * Adds a component amount
 		 *
-		 * @return the predicate
+		 * @param currency the component account's currency
+		 * @param amount the component raw amount
 		 */
-		public Predicate getPredicate() {
-			return predicate;
+		private void addComponent(Currency currency, long amount) {
+			if (!amounts.containsKey(currency))
+				amounts.put(currency, new long[2]);
+			amounts.get(currency)[amount >= 0 ? 0 : 1] += amount;
 		}
+	}
+
+	/**
+	 * A transaction kept by CurrencyReport, with its position in the scan
+	 * order
+	 */
+	private static class RankedTransaction {
+
+		/**
+		 * The transaction
+		 */
+		private final ReportTransaction transaction;
+		/**
+		 * The position of the transaction in the scan order
+		 */
+		private final long sequence;
 
 		/**
-		 * Returns the transaction components join
+		 * Default constructor
 		 *
-		 * @return the transaction components join
+		 * @param transaction the transaction
+		 * @param sequence the position of the transaction in the scan order
 		 */
-		public Join<FinanceTransaction, TransactionComponent> getComponentsJoin() {
-			return componentsJoin;
+		private RankedTransaction(ReportTransaction transaction, long sequence) {
+			this.transaction = transaction;
+			this.sequence = sequence;
 		}
 
 		/**
-		 * Returns the transaction tags join
+		 * Returns the absolute raw amount of the transaction
 		 *
-		 * @return the transaction tags join
+		 * @return the absolute raw amount of the transaction
 		 */
-		public Join<FinanceTransaction, String> getTagsJoin() {
-			return tagsJoin;
+		private long getAbsoluteAmount() {
+			return Math.abs(transaction.getRawAmount());
 		}
 	}
 
 	/**
-	 * Returns a predicate for filtering transactions
-	 *
-	 * @param criteriaBuilder the CriteriaBuilder
-	 * @param tr the FinanceTransaction Root
-	 * @param accounts the accounts for which transaction components should be included
-	 * @param appliedFilters the filters which should be applied
-	 * @return the predicate for filtering transactions and joins which should
-	 * be used in groupBy if result of selection is not a unique FinanceAccount
+	 * Report data for a single currency, collected while scanning
 	 */
-	private ConstructedPredicate getFilteredTransactionsPredicate(CriteriaBuilder criteriaBuilder, Root<FinanceTransaction> tr, Collection<FinanceAccount> accounts , EnumSet<FilterType> appliedFilters) {
-		//User filter
-		Predicate userPredicate = criteriaBuilder.equal(tr.get(FinanceTransaction_.owner), owner.getId());
+	private class CurrencyReport {
 
-		//Date filter
-		Predicate datePredicate = criteriaBuilder.and(criteriaBuilder.greaterThanOrEqualTo(tr.<Date>get(FinanceTransaction_.transactionDate), earliestDate),
-				criteriaBuilder.lessThanOrEqualTo(tr.<Date>get(FinanceTransaction_.transactionDate), latestDate));
+		/**
+		 * Orders transactions from the smallest to the largest absolute amount;
+		 * transactions with the same amount are ordered from the last scanned
+		 * to the first scanned
+		 */
+		private final Comparator<RankedTransaction> rankComparator = Comparator.comparingLong(RankedTransaction::getAbsoluteAmount)
+				.thenComparing(Comparator.comparingLong((RankedTransaction ranked) -> ranked.sequence).reversed());
+		/**
+		 * The largest transactions in the report date range, with the smallest
+		 * at the head of the queue; only transactionsOffset+transactionsLimit
+		 * transactions are kept
+		 */
+		private final PriorityQueue<RankedTransaction> transactions = new PriorityQueue<>(rankComparator);
+		/**
+		 * The number of scanned transactions
+		 */
+		private long scannedTransactions;
+		/**
+		 * Expenses grouped by tag
+		 */
+		private final Map<String, TagExpense> tagExpenses = new TreeMap<>();
+		/**
+		 * Balance after each transaction date
+		 */
+		protected final DateBalance balanceGraph = new DateBalance();
 
-		//Transaction type filter
-		Predicate transactionTypePredicate = criteriaBuilder.disjunction();
-		if (enabledExpenseTransactions || enabledIncomeTransactions)
-			transactionTypePredicate = criteriaBuilder.or(transactionTypePredicate, criteriaBuilder.equal(tr.get(FinanceTransaction_.type), FinanceTransaction.Type.EXPENSEINCOME));
-		if (enabledTransferTransactions)
-			transactionTypePredicate = criteriaBuilder.or(transactionTypePredicate, criteriaBuilder.equal(tr.get(FinanceTransaction_.type), FinanceTransaction.Type.TRANSFER));
+		/**
+		 * Returns the maximum number of transactions to keep
+		 *
+		 * @return the maximum number of transactions to keep
+		 */
+		private long getTransactionsCapacity() {
+			if (transactionsLimit == null)
+				return Long.MAX_VALUE;
+			return (long) Math.max(transactionsOffset, 0) + Math.max(transactionsLimit, 0);
+		}
+
+		/**
+		 * Adds a scanned transaction; the transaction is only kept if it's one
+		 * of the largest transactions in the requested page
+		 *
+		 * @param description the transaction description
+		 * @param date the transaction date
+		 * @param type the transaction type
+		 * @param amount the transaction raw amount
+		 */
+		private void addTransaction(String description, Date date, FinanceTransaction.Type type, long amount) {
+			long sequence = scannedTransactions++;
+			long capacity = getTransactionsCapacity();
+			if (capacity == 0)
+				return;
+			if (transactions.size() >= capacity) {
+				//Transactions are scanned in the report order, so a transaction with the same amount ranks lower
+				if (Math.abs(amount) <= transactions.peek().getAbsoluteAmount())
+					return;
+				transactions.poll();
+			}
+			transactions.add(new RankedTransaction(new ReportTransaction(description, date, type, amount), sequence));
+		}
 
-		//Tags join
-		Join<FinanceTransaction, String> tagsJoin = tr.join(FinanceTransaction_.tags, JoinType.LEFT);
-		Predicate tagsPredicate = (selectedTags != null && !selectedTags.isEmpty()) ? tagsJoin.in(criteriaBuilder.literal(selectedTags)) : criteriaBuilder.disjunction();
-		tagsPredicate = (selectedTags != null && selectedTags.contains("")) ? criteriaBuilder.or(tagsPredicate, criteriaBuilder.isNull(tagsJoin)) : tagsPredicate;
+		/**
+		 * Returns the requested page of the largest transactions, ordered by
+		 * their absolute amount
+		 *
+		 * @return the requested page of transactions
+		 */
+		private List<ReportTransaction> getSortedTransactions() {
+			List<RankedTransaction> rankedTransactions = new ArrayList<>(transactions);
+			rankedTransactions.sort(rankComparator.reversed());
+			List<ReportTransaction> transactionsList = new ArrayList<>();
+			for (int i = Math.max(transactionsOffset, 0); i < rankedTransactions.size(); i++)
+				transactionsList.add(rankedTransactions.get(i).transaction);
+			return transactionsList;
+		}
 
-		//Transaction components join
-		Join<FinanceTransaction, TransactionComponent> componentsJoin = tr.join(FinanceTransaction_.components);
-		Predicate accountsPredicate = componentsJoin.get(TransactionComponent_.account).in(criteriaBuilder.literal(accounts));
+		/**
+		 * Sets the balance after a transaction date
+		 *
+		 * @param date the transaction date
+		 * @param balance the raw balance
+		 */
+		protected void setBalance(Date date, long balance) {
+			balanceGraph.setBalance(date, balance);
+		}
 
-		//Combine all filters
-		Predicate rootPredicate = criteriaBuilder.conjunction();
-		rootPredicate = criteriaBuilder.and(rootPredicate, userPredicate);
-		if (appliedFilters.contains(FilterType.DATE))
-			rootPredicate = criteriaBuilder.and(rootPredicate, datePredicate);
-		if (appliedFilters.contains(FilterType.ACCOUNTS))
-			rootPredicate = criteriaBuilder.and(rootPredicate, accountsPredicate);
-		if (appliedFilters.contains(FilterType.TAGS))
-			rootPredicate = criteriaBuilder.and(rootPredicate, tagsPredicate);
-		if (appliedFilters.contains(FilterType.TRANSACTION_TYPE))
-			rootPredicate = criteriaBuilder.and(rootPredicate, transactionTypePredicate);
-		return new ConstructedPredicate(rootPredicate, componentsJoin, tagsJoin);
+		/**
+		 * Returns the expenses grouped by tag, ordered by their absolute amount
+		 *
+		 * @return the expenses grouped by tag
+		 */
+		private List<TagExpense> getSortedTagExpenses() {
+			List<TagExpense> tagExpenseList = new ArrayList<>(tagExpenses.values());
+			tagExpenseList.sort((tag1, tag2) -> -Double.compare(Math.abs(tag1.getAmount()), Math.abs(tag2.getAmount())));
+			return tagExpenseList;
+		}
+
+		/**
+		 * Converts the collected data into a Report
+		 *
+		 * @param timings the timings to add the sorting and balance graph
+		 * downsampling time to
+		 * @return the Report
+		 */
+		private Report toReport(ReportTimings timings) {
+			long startNanos = System.nanoTime();
+			List<TagExpense> tagExpenseList = getSortedTagExpenses();
+			List<ReportTransaction> transactionsList = getSortedTransactions();
+			startNanos = timings.addTime(ReportTimings.Phase.SORT, startNanos);
+			downsampleBalanceGraph(balanceGraph);
+			timings.addTime(ReportTimings.Phase.BALANCE_GRAPH, startNanos);
+
+			Report report = new Report();
+			report.setTransactions(transactionsList);
+			report.setTagExpenses(tagExpenseList);
+			report.setAccountsBalanceGraph(balanceGraph);
+			return report;
+		}
 	}
 
 	/**
-	 * Returns all transactions matching the set filters
-	 *
-	 * @param <OrderByClass> type of ordering field
-	 * @param entityManager the EntityManager to be used for making queries
-	 * @param accounts the accounts for which transaction components should be included
-	 * @param orderBy field for ordering the result
-	 * @param orderAsc true if results should be ordered ascending, false if
-	 * descending
-	 * @param orderAbsolute true if order should be for absolute value (e.g.
-	 * ABS(orderBy))
-	 * @param appliedFilters the filters which should be applied
-	 * @return list of all transactions matching the set filters
-	 */
-	private <OrderByClass> List<FinanceTransaction> getTransactions(EntityManager entityManager, Collection<FinanceAccount> accounts, SingularAttribute<FinanceTransaction, OrderByClass> orderBy, boolean orderAsc, boolean orderAbsolute, EnumSet<FilterType> appliedFilters) {
-		CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
-		CriteriaQuery<FinanceTransaction> transactionsCriteriaQuery = criteriaBuilder.createQuery(FinanceTransaction.class);
-		Root<FinanceTransaction> tr = transactionsCriteriaQuery.from(FinanceTransaction.class);
-
-		//Build general filter
-		ConstructedPredicate predicate = getFilteredTransactionsPredicate(criteriaBuilder, tr, accounts, appliedFilters);
-		transactionsCriteriaQuery.where(predicate.getPredicate());
-
-		//Configure the query
-		Expression<?> userOrderBy = tr.get(orderBy);
-
-		if (orderAbsolute) {
-			if (orderBy.getType().getJavaType().isInstance(Number.class))
-				userOrderBy = criteriaBuilder.abs(userOrderBy.as(Number.class));
-			else if (orderBy.getType().getJavaType() == Short.TYPE)
-				userOrderBy = criteriaBuilder.abs(userOrderBy.as(Short.TYPE));
-			else if (orderBy.getType().getJavaType() == Integer.TYPE)
-				userOrderBy = criteriaBuilder.abs(userOrderBy.as(Integer.TYPE));
-			else if (orderBy.getType().getJavaType() == Long.TYPE)
-				userOrderBy = criteriaBuilder.abs(userOrderBy.as(Long.TYPE));
-			else if (orderBy.getType().getJavaType() == Float.TYPE)
-				userOrderBy = criteriaBuilder.abs(userOrderBy.as(Float.TYPE));
-			else if (orderBy.getType().getJavaType() == Double.TYPE)
-				userOrderBy = criteriaBuilder.abs(userOrderBy.as(Double.TYPE));
-		}
-		Order userOrder = orderAsc ? criteriaBuilder.asc(userOrderBy) : criteriaBuilder.desc(userOrderBy);
-		Order idOrder = orderAsc ? criteriaBuilder.asc(tr.get(FinanceTransaction_.id)) : criteriaBuilder.desc(tr.get(FinanceTransaction_.id));
-
-		transactionsCriteriaQuery.select(tr).distinct(true);
-		transactionsCriteriaQuery.orderBy(userOrder, idOrder);
-		transactionsCriteriaQuery.groupBy(tr, userOrderBy, predicate.getComponentsJoin(), predicate.getTagsJoin());
-
-		List<FinanceTransaction> transactions = new ArrayList<>();
-		for (FinanceTransaction transaction : entityManager.createQuery(transactionsCriteriaQuery).getResultList()) {
-			if (!appliedFilters.contains(FilterType.TRANSACTION_TYPE)) {
-				transactions.add(transaction);
-				continue;
+	 * Report data for a single currency, passing the balance graph to a
+	 * ReportWriter instead of collecting it; a downsampled balance graph is
+	 * collected and written by writeDownsampledBalanceGraph
+	 */
+	private class StreamedCurrencyReport extends CurrencyReport {
+
+		/**
+		 * The writer receiving the balance graph
+		 */
+		private final ReportWriter writer;
+
+		/**
+		 * Default constructor
+		 *
+		 * @param writer the writer receiving the balance graph
+		 */
+		private StreamedCurrencyReport(ReportWriter writer) {
+			this.writer = writer;
+		}
+
+		/**
+		 * Writes the balance after a transaction date
+		 *
+		 * @param date the transaction date
+		 * @param balance the raw balance
+		 */
+		@Override
+		protected void setBalance(Date date, long balance) {
+			if (isBalanceGraphDownsampled()) {
+				super.setBalance(date, balance);
+				return;
 			}
-			//Additional expense/income filter
-			if (transaction.getType() == FinanceTransaction.Type.EXPENSEINCOME) {
-				long amount = 0;
-				for (TransactionComponent component : transaction.getComponents()) {
-					amount += accounts.contains(component.getAccount()) ? component.getRawAmount() : 0;
-				}
-				if ((enabledIncomeTransactions && amount >= 0) || (enabledExpenseTransactions && amount <= 0)) {
-					transactions.add(transaction);
-				}
-			} else {
-				transactions.add(transaction);
+			try {
+				writer.writeAccountsBalance(date, balance / Constants.RAW_AMOUNT_MULTIPLIER);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
 			}
 		}
-		return transactions;
+
+		/**
+		 * Downsamples and writes the collected balance graph, if the balance
+		 * graph should be downsampled
+		 *
+		 * @throws IOException if the writer fails to write the balance graph
+		 */
+		private void writeDownsampledBalanceGraph() throws IOException {
+			if (!isBalanceGraphDownsampled())
+				return;
+			downsampleBalanceGraph(balanceGraph);
+			for (int i = 0; i < balanceGraph.size(); i++)
+				writer.writeAccountsBalance(balanceGraph.getDate(i), balanceGraph.getRawBalance(i) / Constants.RAW_AMOUNT_MULTIPLIER);
+		}
 	}
 
 	/**
@@ -539,50 +1636,63 @@ public class ReportFactory {
 		Predicate userPredicate = entityManager.getCriteriaBuilder().equal(tr.get(FinanceTransaction_.owner), owner);
 		tagsCriteriaQuery.where(userPredicate);
 
-		tagsCriteriaQuery.select(tr.join(FinanceTransaction_.tags)).distinct(true);
+		tagsCriteriaQuery.select(tr.join(FinanceTransaction_.tags).get(Tag_.name)).distinct(true);
 		HashSet<String> result = new HashSet<>(entityManager.createQuery(tagsCriteriaQuery).getResultList());
 		result.add(EMPTY_TAG);
 		return result;
 	}
 
+	/**
+	 * Returns the number of transactions using every tag
+	 *
+	 * @param entityManager the EntityManager to be used for making queries
+	 * @return the number of transactions using every tag, by tag
+	 */
+	public Map<String, Long> getTagCounts(EntityManager entityManager) throws SecurityException {
+		if (owner == null)
+			throw new SecurityException(messages.getString("NOT_ALLOWED_TO_GET_DATA_FOR_UNKNOWN_USER"));
+		CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> tagsCriteriaQuery = criteriaBuilder.createTupleQuery();
+		Root<FinanceTransaction> tr = tagsCriteriaQuery.from(FinanceTransaction.class);
+		Join<FinanceTransaction, Tag> tagsJoin = tr.join(FinanceTransaction_.tags);
+		tagsCriteriaQuery.where(criteriaBuilder.equal(tr.get(FinanceTransaction_.owner), owner));
+		tagsCriteriaQuery.multiselect(tagsJoin.get(Tag_.name), criteriaBuilder.count(tr));
+		tagsCriteriaQuery.groupBy(tagsJoin.get(Tag_.id), tagsJoin.get(Tag_.name));
+
+		Map<String, Long> tagCounts = new HashMap<>();
+		for (Tuple row : entityManager.createQuery(tagsCriteriaQuery).getResultList())
+			tagCounts.put(row.get(0, String.class), row.get(1, Long.class));
+		return tagCounts;
+	}
 
 	/**
-	 * Returns a graph for the total balance of accounts, sorted by date
+	 * Returns the balance of all accounts at the end of a specific date, read
+	 * from the account daily balances
 	 *
 	 * @param entityManager the EntityManager to be used for making queries
-	 * @param accounts the accounts for which the balance graph should be calculated
-	 * @return a graph for the total balance of accounts, sorted by date
-	 */
-	private Map<Date, Double> getAccountsBalanceGraph(EntityManager entityManager, Collection<FinanceAccount> accounts) {
-		//Process transactions
-		List<FinanceTransaction> transactions = getTransactions(
-				entityManager,
-				accounts,
-				FinanceTransaction_.transactionDate, true, false,
-				EnumSet.of(FilterType.ACCOUNTS, FilterType.TRANSACTION_TYPE, FilterType.TAGS));
-
-		//Calculate sum for accounts/currencies for each transaction
-		long sumBalance = 0;
-		DateBalance<Long> currentBalance = new DateBalance<>(Long.class);
-		for (FinanceTransaction transaction : transactions) {
-			//Compute balance change for transaction
-			for (TransactionComponent component : transaction.getComponents())
-				if (accounts.contains(component.getAccount()))
-					sumBalance += component.getRawAmount();
-
-			//Update balance map
-			currentBalance.setBalance(transaction.getDate(), sumBalance);
-		}
-
-		//Convert from long to double
-		Map<Date, Double> result = new TreeMap<>();
-		for (Map.Entry<Date, Long> dateBalance : currentBalance.getData().entrySet())
-			if ((dateBalance.getKey().after(earliestDate) || dateBalance.getKey().equals(earliestDate))
-					&& (dateBalance.getKey().before(latestDate) || dateBalance.getKey().equals(latestDate)))
-				result.put(dateBalance.getKey(), dateBalance.getValue() / Constants.RAW_AMOUNT_MULTIPLIER);
-		return result;
+	 * @param date the date
+	 * @return the balance of every account, by account id
+	 */
+	public Map<Long, Double> getAccountBalances(EntityManager entityManager, Date date) throws SecurityException {
+		if (owner == null)
+			throw new SecurityException(messages.getString("NOT_ALLOWED_TO_GET_DATA_FOR_UNKNOWN_USER"));
+		CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> balanceCriteriaQuery = criteriaBuilder.createTupleQuery();
+		Root<FinanceAccount> account = balanceCriteriaQuery.from(FinanceAccount.class);
+		MapJoin<FinanceAccount, Date, AccountDailyBalance> dailyBalanceJoin = account.join(FinanceAccount_.dailyBalances, JoinType.LEFT);
+		dailyBalanceJoin.on(criteriaBuilder.lessThanOrEqualTo(dailyBalanceJoin.<Date>get(AccountDailyBalance_.balanceDate), date));
+		balanceCriteriaQuery.where(criteriaBuilder.equal(account.get(FinanceAccount_.owner), owner));
+		balanceCriteriaQuery.multiselect(
+				account.get(FinanceAccount_.id),
+				criteriaBuilder.coalesce(criteriaBuilder.sum(dailyBalanceJoin.get(AccountDailyBalance_.amount)), 0L));
+		balanceCriteriaQuery.groupBy(account.get(FinanceAccount_.id));
+
+		Map<Long, Double> balances = new TreeMap<>();
+		for (Tuple row : entityManager.createQuery(balanceCriteriaQuery).getResultList())
+			balances.put(row.get(0, Long.class), row.get(1, Long.class) / Constants.RAW_AMOUNT_MULTIPLIER);
+		return balances;
 	}
-	
+
 	/**
 	 * Adds an amount to the appropriate TagExpense
 	 *
@@ -0,0 +1,125 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache 2.0 License: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.data.report;
+
+/**
+ * Time spent in every phase of building a report. Can be shared by reports
+ * built in parallel, the times of every phase are added up.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public class ReportTimings {
+
+	/**
+	 * A phase of building a report
+	 */
+	public enum Phase {
+
+		/**
+		 * Running queries and fetching their rows
+		 */
+		QUERY,
+		/**
+		 * Converting fetched rows into transactions
+		 */
+		HYDRATE,
+		/**
+		 * Filtering transactions and adding up their amounts and tag
+		 * expenses
+		 */
+		AGGREGATE,
+		/**
+		 * Sorting transactions and tag expenses
+		 */
+		SORT,
+		/**
+		 * Building balance graphs
+		 */
+		BALANCE_GRAPH,
+		/**
+		 * Converting the report into JSON
+		 */
+		SERIALIZE
+	};
+
+	/**
+	 * The time (in nanoseconds) spent in every phase, by phase ordinal
+	 */
+	private final long[] phaseNanos = new long[Phase.values().length];
+	/**
+	 * True for phases which were measured, by phase ordinal
+	 */
+	private final boolean[] measuredPhases = new boolean[Phase.values().length];
+	/**
+	 * The number of scanned rows
+	 */
+	private long rows;
+
+	/**
+	 * Adds the time since a phase was started
+	 *
+	 * @param phase the phase
+	 * @param startNanos the System.nanoTime() value when the phase was
+	 * started
+	 * @return the current System.nanoTime() value, to be used as the start of
+	 * the next phase
+	 */
+	public long addTime(Phase phase, long startNanos) {
+		long endNanos = System.nanoTime();
+		addNanos(phase, endNanos - startNanos);
+		return endNanos;
+	}
+
+	/**
+	 * Adds time to a phase
+	 *
+	 * @param phase the phase
+	 * @param nanos the time (in nanoseconds) to add
+	 */
+	public synchronized void addNanos(Phase phase, long nanos) {
+		phaseNanos[phase.ordinal()] += nanos;
+		measuredPhases[phase.ordinal()] = true;
+	}
+
+	/**
+	 * Adds to the number of scanned rows
+	 *
+	 * @param rows the number of rows to add
+	 */
+	public synchronized void addRows(long rows) {
+		this.rows += rows;
+	}
+
+	/**
+	 * Returns true if a phase was measured
+	 *
+	 * @param phase the phase
+	 * @return true if a phase was measured
+	 */
+	public synchronized boolean isMeasured(Phase phase) {
+		return measuredPhases[phase.ordinal()];
+	}
+
+	/**
+	 * Returns the time spent in a phase
+	 *
+	 * @param phase the phase
+	 * @return the time (in nanoseconds) spent in the phase
+	 */
+	public synchronized long getNanos(Phase phase) {
+		return phaseNanos[phase.ordinal()];
+	}
+
+	/**
+	 * Returns the number of scanned rows (components read from the database,
+	 * or transactions and components scanned in a ledger)
+	 *
+	 * @return the number of scanned rows
+	 */
+	public synchronized long getRows() {
+		return rows;
+	}
+}
@@ -54,6 +54,21 @@ public class ReportTransaction {
 		calculateAmount(transaction, selectedAccounts);
 	}
 
+	/**
+	 * Creates a ReportTransactions instance from already calculated values
+	 *
+	 * @param description the transaction description
+	 * @param transactionDate the transaction date
+	 * @param type the transaction type
+	 * @param amount the transaction raw amount for the selected accounts
+	 */
+	protected ReportTransaction(String description, Date transactionDate, Type type, long amount) {
+		this.description = description;
+		this.transactionDate = transactionDate;
+		this.type = type;
+		this.amount = amount;
+	}
+
 	/**
 	 * Calculates the value of the amount field
 	 *
@@ -0,0 +1,89 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache 2.0 License: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.data.report;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Receives report data as it's read from the database, without keeping the
+ * whole report in memory. Currencies are written in the order of their
+ * currency codes; every currency's sections are written in the order of the
+ * methods in this interface.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public interface ReportWriter {
+
+	/**
+	 * Starts the report for a currency
+	 *
+	 * @param currencyCode the currency code
+	 * @throws IOException if the data cannot be written
+	 */
+	void startCurrency(String currencyCode) throws IOException;
+
+	/**
+	 * Writes the currency's expenses grouped by tag
+	 *
+	 * @param tagExpenses the expenses grouped by tag
+	 * @throws IOException if the data cannot be written
+	 */
+	void writeTagExpenses(List<TagExpense> tagExpenses) throws IOException;
+
+	/**
+	 * Starts the list of transactions matching the report filter
+	 *
+	 * @throws IOException if the data cannot be written
+	 */
+	void startTransactions() throws IOException;
+
+	/**
+	 * Writes a transaction matching the report filter
+	 *
+	 * @param transaction the transaction
+	 * @throws IOException if the data cannot be written
+	 */
+	void writeTransaction(ReportTransaction transaction) throws IOException;
+
+	/**
+	 * Ends the list of transactions matching the report filter
+	 *
+	 * @throws IOException if the data cannot be written
+	 */
+	void endTransactions() throws IOException;
+
+	/**
+	 * Starts the accounts balance chart
+	 *
+	 * @throws IOException if the data cannot be written
+	 */
+	void startAccountsBalanceGraph() throws IOException;
+
+	/**
+	 * Writes a point of the accounts balance chart
+	 *
+	 * @param date the date
+	 * @param balance the balance at the end of date
+	 * @throws IOException if the data cannot be written
+	 */
+	void writeAccountsBalance(Date date, double balance) throws IOException;
+
+	/**
+	 * Ends the accounts balance chart
+	 *
+	 * @throws IOException if the data cannot be written
+	 */
+	void endAccountsBalanceGraph() throws IOException;
+
+	/**
+	 * Ends the report for a currency
+	 *
+	 * @throws IOException if the data cannot be written
+	 */
+	void endCurrency() throws IOException;
+}
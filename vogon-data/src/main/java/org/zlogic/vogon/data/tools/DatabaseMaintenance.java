@@ -5,19 +5,29 @@
  */
 package org.zlogic.vogon.data.tools;
 
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Subquery;
+import org.hibernate.Session;
+import org.zlogic.vogon.data.AccountDailyBalance;
+import org.zlogic.vogon.data.AccountDailyBalance_;
+import org.zlogic.vogon.data.AccountTagTotal;
 import org.zlogic.vogon.data.FinanceAccount;
 import org.zlogic.vogon.data.FinanceAccount_;
 import org.zlogic.vogon.data.FinanceTransaction;
 import org.zlogic.vogon.data.FinanceTransaction_;
+import org.zlogic.vogon.data.Tag;
 import org.zlogic.vogon.data.TransactionComponent;
 import org.zlogic.vogon.data.TransactionComponent_;
+import org.zlogic.vogon.data.VogonUser;
 
 /**
  * Class for performing database maintenance operations
@@ -27,7 +37,12 @@ import org.zlogic.vogon.data.TransactionComponent_;
 public class DatabaseMaintenance {
 
 	/**
-	 * Deletes all orphaned transaction components.
+	 * The table used by previous versions to store transaction tags
+	 */
+	private static final String LEGACY_TAGS_TABLE = "FinanceTransaction_tags"; //NOI18N
+
+	/**
+	 * Deletes all orphaned transaction components and unused tags.
 	 *
 	 * @param entityManager the EntityManager to be used for making queries;
 	 * should be opened/closed outside of this function before calling this
@@ -67,6 +82,65 @@ public class DatabaseMaintenance {
 				orphanedComponent.setAccount(null);
 			entityManager.remove(orphanedComponent);
 		}
+
+		CriteriaQuery<Tag> tagsCriteriaQuery = cb.createQuery(Tag.class);
+		Root<Tag> tag = tagsCriteriaQuery.from(Tag.class);
+		Subquery<Long> taggedTransactionsQuery = tagsCriteriaQuery.subquery(Long.class);
+		Root<FinanceTransaction> taggedTransaction = taggedTransactionsQuery.from(FinanceTransaction.class);
+		taggedTransactionsQuery.select(taggedTransaction.get(FinanceTransaction_.id)).where(cb.equal(taggedTransaction.join(FinanceTransaction_.tags), tag));
+		tagsCriteriaQuery.where(cb.not(cb.exists(taggedTransactionsQuery)));
+		for(Tag unusedTag : entityManager.createQuery(tagsCriteriaQuery).getResultList())
+			entityManager.remove(unusedTag);
+	}
+
+	/**
+	 * Moves tags from the table used by previous versions, where every
+	 * transaction stored the full name of its tags, into Tag entities.
+	 * Creates a Tag for every distinct tag of every user, links transactions
+	 * to them and drops the old table.
+	 *
+	 * @param entityManager the EntityManager to use for the update
+	 */
+	public void migrateLegacyTags(EntityManager entityManager) {
+		if (!isTableExists(entityManager, LEGACY_TAGS_TABLE))
+			return;
+
+		List<?> legacyTags = entityManager.createNativeQuery("select distinct t.owner_id, g.tags from " + LEGACY_TAGS_TABLE + " g join FinanceTransaction t on t.id = g.FinanceTransaction_id where t.owner_id is not null") //NOI18N
+				.getResultList();
+		for (Object legacyTag : legacyTags) {
+			Object[] row = (Object[]) legacyTag;
+			VogonUser owner = entityManager.getReference(VogonUser.class, ((Number) row[0]).longValue());
+			entityManager.persist(new Tag(owner, (String) row[1]));
+		}
+		entityManager.flush();
+
+		entityManager.createNativeQuery("insert into FinanceTransaction_Tag (transaction_id, tag_id)" //NOI18N
+				+ " select g.FinanceTransaction_id, tg.id from " + LEGACY_TAGS_TABLE + " g" //NOI18N
+				+ " join FinanceTransaction t on t.id = g.FinanceTransaction_id" //NOI18N
+				+ " join Tag tg on tg.owner_id = t.owner_id and tg.name = g.tags") //NOI18N
+				.executeUpdate();
+		entityManager.createNativeQuery("drop table " + LEGACY_TAGS_TABLE).executeUpdate(); //NOI18N
+	}
+
+	/**
+	 * Returns true if a table exists in the database
+	 *
+	 * @param entityManager the EntityManager to use for checking the table
+	 * @param tableName the table name, as used in SQL queries
+	 * @return true if the table exists
+	 */
+	private boolean isTableExists(EntityManager entityManager, String tableName) {
+		return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+			DatabaseMetaData metaData = connection.getMetaData();
+			String escapedTableName = tableName.replace("_", metaData.getSearchStringEscape() + "_"); //NOI18N
+			//Unquoted names can be stored in any case
+			for (String name : new String[]{escapedTableName, escapedTableName.toUpperCase(Locale.ROOT), escapedTableName.toLowerCase(Locale.ROOT)})
+				try (ResultSet tables = metaData.getTables(null, null, name, new String[]{"TABLE"})) { //NOI18N
+					if (tables.next())
+						return true;
+				}
+			return false;
+		});
 	}
 
 	/**
@@ -87,4 +161,55 @@ public class DatabaseMaintenance {
 		for (TransactionComponent component : accountComponents)
 			component.setAccount(tempAccount);
 	}
+
+	/**
+	 * Recalculates the balance of accounts which have transaction components,
+	 * but no daily balances (e.g. accounts created before daily balances were
+	 * tracked), or daily balances without a component count.
+	 *
+	 * @param entityManager the EntityManager to be used for making queries;
+	 * should be opened/closed outside of this function before calling this
+	 * function
+	 */
+	public void refreshMissingDailyBalances(EntityManager entityManager) {
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+
+		CriteriaQuery<FinanceAccount> accountsCriteriaQuery = cb.createQuery(FinanceAccount.class);
+		Root<FinanceAccount> account = accountsCriteriaQuery.from(FinanceAccount.class);
+		Subquery<AccountDailyBalance> dailyBalanceQuery = accountsCriteriaQuery.subquery(AccountDailyBalance.class);
+		Root<AccountDailyBalance> dailyBalance = dailyBalanceQuery.from(AccountDailyBalance.class);
+		dailyBalanceQuery.select(dailyBalance).where(cb.equal(dailyBalance.get(AccountDailyBalance_.account), account));
+		Subquery<AccountDailyBalance> uncountedDailyBalanceQuery = accountsCriteriaQuery.subquery(AccountDailyBalance.class);
+		Root<AccountDailyBalance> uncountedDailyBalance = uncountedDailyBalanceQuery.from(AccountDailyBalance.class);
+		uncountedDailyBalanceQuery.select(uncountedDailyBalance).where(
+				cb.equal(uncountedDailyBalance.get(AccountDailyBalance_.account), account),
+				cb.isNull(uncountedDailyBalance.get(AccountDailyBalance_.componentCount)));
+		accountsCriteriaQuery.where(
+				cb.isNotEmpty(account.get(FinanceAccount_.transactionComponents)),
+				cb.or(cb.not(cb.exists(dailyBalanceQuery)), cb.exists(uncountedDailyBalanceQuery))
+		);
+		for (FinanceAccount outdatedAccount : entityManager.createQuery(accountsCriteriaQuery).getResultList())
+			refreshAccountBalance(outdatedAccount, entityManager);
+	}
+
+	/**
+	 * Calculates the account tag totals if none exist, for example if the
+	 * database was created by a previous version
+	 *
+	 * @param entityManager the EntityManager to use for the update
+	 */
+	public void refreshMissingTagTotals(EntityManager entityManager) {
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+
+		CriteriaQuery<Long> tagTotalsCriteriaQuery = cb.createQuery(Long.class);
+		tagTotalsCriteriaQuery.select(cb.count(tagTotalsCriteriaQuery.from(AccountTagTotal.class)));
+		if (entityManager.createQuery(tagTotalsCriteriaQuery).getSingleResult() > 0)
+			return;
+
+		CriteriaQuery<FinanceTransaction> transactionsCriteriaQuery = cb.createQuery(FinanceTransaction.class);
+		Root<FinanceTransaction> transaction = transactionsCriteriaQuery.from(FinanceTransaction.class);
+		transactionsCriteriaQuery.where(cb.isNotEmpty(transaction.get(FinanceTransaction_.components)));
+		for (FinanceTransaction outdatedTransaction : entityManager.createQuery(transactionsCriteriaQuery).getResultList())
+			outdatedTransaction.restoreTagTotals();
+	}
 }
@@ -17,6 +17,7 @@ import org.junit.After;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
+import org.zlogic.vogon.data.report.ReportFactory;
 import org.zlogic.vogon.data.tools.DatabaseMaintenance;
 
 /**
@@ -165,4 +166,132 @@ public class MaintenanceTest {
 
 		assertEquals(42 + 160, foundAccount.getRawBalance());
 	}
+
+	/**
+	 * Test that maintenance recalculates missing account daily balances
+	 */
+	@Test
+	public void recalculateDailyBalancesTest() {
+		Date date1 = TestUtils.parseJSONDate("2016-01-02"); //NOI18N
+		Date date2 = TestUtils.parseJSONDate("2016-01-05"); //NOI18N
+		VogonUser user = new VogonUser("user01", "password"); //NOI18N
+		FinanceAccount account = new FinanceAccount(user, "test account 1", Currency.getInstance("RUB")); //NOI18N
+		FinanceTransaction transaction1 = new FinanceTransaction(user, "test transaction 1", null, date1, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		FinanceTransaction transaction2 = new FinanceTransaction(user, "test transaction 2", null, date2, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		TransactionComponent component1 = new TransactionComponent(account, transaction1, 42);
+		TransactionComponent component2 = new TransactionComponent(account, transaction2, 160);
+
+		entityManager.getTransaction().begin();
+		entityManager.persist(user);
+		entityManager.persist(account);
+		entityManager.persist(component1);
+		entityManager.persist(component2);
+		entityManager.persist(transaction1);
+		entityManager.persist(transaction2);
+		entityManager.getTransaction().commit();
+
+		entityManager.getTransaction().begin();
+		entityManager.createQuery("delete from AccountDailyBalance").executeUpdate(); //NOI18N
+		entityManager.getTransaction().commit();
+		entityManager.clear();
+
+		ReportFactory reportFactory = new ReportFactory(user);
+		assertEquals(0, reportFactory.getAccountBalances(entityManager, date2).get(account.getId()), 0);
+
+		entityManager.getTransaction().begin();
+		new DatabaseMaintenance().refreshMissingDailyBalances(entityManager);
+		entityManager.getTransaction().commit();
+
+		assertEquals(0.42, reportFactory.getAccountBalances(entityManager, date1).get(account.getId()), 0);
+		assertEquals(2.02, reportFactory.getAccountBalances(entityManager, date2).get(account.getId()), 0);
+	}
+
+	/**
+	 * Test that maintenance recalculates missing account tag totals
+	 */
+	@Test
+	public void recalculateTagTotalsTest() {
+		Date date1 = TestUtils.parseJSONDate("2016-01-02"); //NOI18N
+		Date date2 = TestUtils.parseJSONDate("2016-01-05"); //NOI18N
+		VogonUser user = new VogonUser("user01", "password"); //NOI18N
+		FinanceAccount account = new FinanceAccount(user, "test account 1", Currency.getInstance("RUB")); //NOI18N
+		FinanceTransaction transaction1 = new FinanceTransaction(user, "test transaction 1", new String[]{"hello"}, date1, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		FinanceTransaction transaction2 = new FinanceTransaction(user, "test transaction 2", new String[]{"hello"}, date2, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		TransactionComponent component1 = new TransactionComponent(account, transaction1, 42);
+		TransactionComponent component2 = new TransactionComponent(account, transaction2, 160);
+
+		entityManager.getTransaction().begin();
+		entityManager.persist(user);
+		TagResolver tagResolver = new TagResolver(entityManager);
+		tagResolver.resolveTags(transaction1);
+		tagResolver.resolveTags(transaction2);
+		entityManager.persist(account);
+		entityManager.persist(component1);
+		entityManager.persist(component2);
+		entityManager.persist(transaction1);
+		entityManager.persist(transaction2);
+		entityManager.getTransaction().commit();
+
+		entityManager.getTransaction().begin();
+		entityManager.createQuery("delete from AccountTagTotal").executeUpdate(); //NOI18N
+		entityManager.getTransaction().commit();
+		entityManager.clear();
+
+		entityManager.getTransaction().begin();
+		new DatabaseMaintenance().refreshMissingTagTotals(entityManager);
+		entityManager.getTransaction().commit();
+
+		List<AccountTagTotal> tagTotals = entityManager.createQuery("select t from AccountTagTotal t", AccountTagTotal.class).getResultList(); //NOI18N
+		assertEquals(1, tagTotals.size());
+		assertEquals("hello", tagTotals.get(0).getKey().getTag()); //NOI18N
+		assertEquals(AccountTagTotal.Sign.INCOME, tagTotals.get(0).getKey().getSign());
+		assertEquals(202, tagTotals.get(0).getRawAmount());
+		assertEquals(2, tagTotals.get(0).getTransactionCount());
+
+		entityManager.getTransaction().begin();
+		new DatabaseMaintenance().refreshMissingTagTotals(entityManager);
+		entityManager.getTransaction().commit();
+		assertEquals(202, entityManager.createQuery("select t from AccountTagTotal t", AccountTagTotal.class).getSingleResult().getRawAmount()); //NOI18N
+	}
+
+	/**
+	 * Test that maintenance moves tags from the table used by previous
+	 * versions into Tag entities
+	 */
+	@Test
+	public void migrateLegacyTagsTest() {
+		Date date = TestUtils.parseJSONDate("2016-01-02"); //NOI18N
+		VogonUser user = new VogonUser("user01", "password"); //NOI18N
+		FinanceTransaction transaction1 = new FinanceTransaction(user, "test transaction 1", null, date, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		FinanceTransaction transaction2 = new FinanceTransaction(user, "test transaction 2", null, date, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+
+		entityManager.getTransaction().begin();
+		entityManager.persist(user);
+		entityManager.persist(transaction1);
+		entityManager.persist(transaction2);
+		entityManager.getTransaction().commit();
+
+		entityManager.getTransaction().begin();
+		entityManager.createNativeQuery("create table FinanceTransaction_tags (FinanceTransaction_id bigint not null, tags varchar(255))").executeUpdate(); //NOI18N
+		entityManager.createNativeQuery("insert into FinanceTransaction_tags values (?1, 'hello'), (?1, 'world'), (?2, 'hello')") //NOI18N
+				.setParameter(1, transaction1.getId())
+				.setParameter(2, transaction2.getId())
+				.executeUpdate();
+		entityManager.getTransaction().commit();
+		entityManager.clear();
+
+		entityManager.getTransaction().begin();
+		new DatabaseMaintenance().migrateLegacyTags(entityManager);
+		entityManager.getTransaction().commit();
+		entityManager.clear();
+
+		assertArrayEquals(new String[]{"hello", "world"}, entityManager.find(FinanceTransaction.class, transaction1.getId()).getTags()); //NOI18N
+		assertArrayEquals(new String[]{"hello"}, entityManager.find(FinanceTransaction.class, transaction2.getId()).getTags()); //NOI18N
+		assertEquals(2, entityManager.createQuery("select t from Tag t", Tag.class).getResultList().size()); //NOI18N
+
+		entityManager.getTransaction().begin();
+		new DatabaseMaintenance().migrateLegacyTags(entityManager);
+		entityManager.getTransaction().commit();
+		assertEquals(2, entityManager.createQuery("select t from Tag t", Tag.class).getResultList().size()); //NOI18N
+	}
 }
@@ -8,10 +8,14 @@ package org.zlogic.vogon.data;
 import java.util.Arrays;
 import java.util.Currency;
 import java.util.Date;
+import java.util.Map;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import org.hibernate.Hibernate;
 import org.junit.After;
+import org.zlogic.vogon.data.report.Report;
+import org.zlogic.vogon.data.report.ReportFactory;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
@@ -590,4 +594,278 @@ public class ModelBasicOperationsTest {
 		assertEquals(Long.valueOf(7), foundTransaction2.getComponents().get(0).getRawAmount());
 		assertNull(foundAccount2);
 	}
+
+	/**
+	 * Update transactions and check that the account daily balances are
+	 * updated
+	 */
+	@Test
+	public void updateAccountDailyBalances() {
+		Date date1 = TestUtils.parseJSONDate("2016-01-02"); //NOI18N
+		Date date2 = TestUtils.parseJSONDate("2016-01-05"); //NOI18N
+		VogonUser user = new VogonUser("user01", "password"); //NOI18N
+		FinanceAccount account1 = new FinanceAccount(user, "test account 1", Currency.getInstance("RUB")); //NOI18N
+		FinanceAccount account2 = new FinanceAccount(user, "test account 2", Currency.getInstance("RUB")); //NOI18N
+		FinanceTransaction transaction1 = new FinanceTransaction(user, "test transaction 1", null, date1, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		FinanceTransaction transaction2 = new FinanceTransaction(user, "test transaction 2", null, date2, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		TransactionComponent component11 = new TransactionComponent(account1, transaction1, 42);
+		TransactionComponent component12 = new TransactionComponent(account2, transaction1, 160);
+		TransactionComponent component21 = new TransactionComponent(account1, transaction2, 7);
+
+		entityManager.getTransaction().begin();
+		entityManager.persist(user);
+		entityManager.persist(account1);
+		entityManager.persist(account2);
+		entityManager.persist(component11);
+		entityManager.persist(component12);
+		entityManager.persist(component21);
+		entityManager.persist(transaction1);
+		entityManager.persist(transaction2);
+		entityManager.getTransaction().commit();
+
+		ReportFactory reportFactory = new ReportFactory(user);
+		assertEquals(0, reportFactory.getAccountBalances(entityManager, TestUtils.parseJSONDate("2016-01-01")).get(account1.getId()), 0); //NOI18N
+		assertEquals(0, reportFactory.getAccountBalances(entityManager, TestUtils.parseJSONDate("2016-01-01")).get(account2.getId()), 0); //NOI18N
+		assertEquals(0.42, reportFactory.getAccountBalances(entityManager, date1).get(account1.getId()), 0);
+		assertEquals(1.6, reportFactory.getAccountBalances(entityManager, date1).get(account2.getId()), 0);
+		assertEquals(0.49, reportFactory.getAccountBalances(entityManager, date2).get(account1.getId()), 0);
+		assertEquals(1.6, reportFactory.getAccountBalances(entityManager, date2).get(account2.getId()), 0);
+
+		entityManager.refresh(account1);//This is a trick to update the components hashSet hashcode
+		entityManager.refresh(account2);//This is a trick to update the components hashSet hashcode
+		entityManager.refresh(transaction1);//This is a trick to update the components hashSet hashcode
+		entityManager.refresh(transaction2);//This is a trick to update the components hashSet hashcode
+
+		entityManager.getTransaction().begin();
+		component11.setRawAmount(13);
+		component12.setAccount(account1);
+		transaction2.setDate(date1);
+		entityManager.getTransaction().commit();
+
+		//Daily balances are updated without loading all of them
+		assertFalse(Hibernate.isInitialized(account1.dailyBalances));
+		assertEquals(0, reportFactory.getAccountBalances(entityManager, TestUtils.parseJSONDate("2016-01-01")).get(account1.getId()), 0); //NOI18N
+		assertEquals(1.8, reportFactory.getAccountBalances(entityManager, date1).get(account1.getId()), 0);
+		assertEquals(0, reportFactory.getAccountBalances(entityManager, date1).get(account2.getId()), 0);
+		assertEquals(1.8, reportFactory.getAccountBalances(entityManager, date2).get(account1.getId()), 0);
+		assertEquals(0, reportFactory.getAccountBalances(entityManager, date2).get(account2.getId()), 0);
+
+		entityManager.getTransaction().begin();
+		component21.setAccount(null);
+		component21.setTransaction(null);
+		entityManager.remove(component21);
+		entityManager.getTransaction().commit();
+
+		assertEquals(1.73, reportFactory.getAccountBalances(entityManager, date2).get(account1.getId()), 0);
+		assertEquals(173, account1.getRawBalance());
+	}
+
+	/**
+	 * Check that the balance graph built from account daily balances has a
+	 * point for days when the balance didn't change, and no point for days
+	 * with no transactions left
+	 */
+	@Test
+	public void dailyBalanceGraphUnchangedDays() {
+		Date date1 = TestUtils.parseJSONDate("2016-01-02"); //NOI18N
+		Date date2 = TestUtils.parseJSONDate("2016-01-05"); //NOI18N
+		Date date3 = TestUtils.parseJSONDate("2016-01-07"); //NOI18N
+		VogonUser user = new VogonUser("user01", "password"); //NOI18N
+		FinanceAccount account1 = new FinanceAccount(user, "test account 1", Currency.getInstance("RUB")); //NOI18N
+		FinanceAccount account2 = new FinanceAccount(user, "test account 2", Currency.getInstance("RUB")); //NOI18N
+		FinanceTransaction transaction1 = new FinanceTransaction(user, "test transaction 1", null, date1, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		FinanceTransaction transaction2 = new FinanceTransaction(user, "test transaction 2", null, date2, FinanceTransaction.Type.TRANSFER); //NOI18N
+		FinanceTransaction transaction3 = new FinanceTransaction(user, "test transaction 3", null, date3, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		TransactionComponent component11 = new TransactionComponent(account1, transaction1, 42);
+		TransactionComponent component21 = new TransactionComponent(account1, transaction2, -10);
+		TransactionComponent component22 = new TransactionComponent(account2, transaction2, 10);
+		TransactionComponent component31 = new TransactionComponent(account1, transaction3, 7);
+
+		entityManager.getTransaction().begin();
+		entityManager.persist(user);
+		entityManager.persist(account1);
+		entityManager.persist(account2);
+		entityManager.persist(component11);
+		entityManager.persist(component21);
+		entityManager.persist(component22);
+		entityManager.persist(component31);
+		entityManager.persist(transaction1);
+		entityManager.persist(transaction2);
+		entityManager.persist(transaction3);
+		entityManager.getTransaction().commit();
+
+		entityManager.refresh(account1);//This is a trick to update the components hashSet hashcode
+		entityManager.refresh(transaction3);//This is a trick to update the components hashSet hashcode
+
+		entityManager.getTransaction().begin();
+		component31.setAccount(null);
+		component31.setTransaction(null);
+		entityManager.remove(component31);
+		entityManager.getTransaction().commit();
+
+		ReportFactory reportFactory = new ReportFactory(user);
+		reportFactory.setEarliestDate(date1);
+		reportFactory.setLatestDate(date3);
+		reportFactory.setSelectedAccounts(Arrays.asList(account1, account2));
+		reportFactory.setSelectedTags(Arrays.asList("")); //NOI18N
+		reportFactory.setEnabledExpenseTransactions(true);
+		reportFactory.setEnabledIncomeTransactions(true);
+		reportFactory.setEnabledTransferTransactions(true);
+		Map<Date, Double> balanceGraph = reportFactory.buildReport(entityManager).get("RUB").getAccountsBalanceGraph(); //NOI18N
+		assertEquals(2, balanceGraph.size());
+		assertEquals(0.42, balanceGraph.get(date1), 0);
+		assertEquals(0.42, balanceGraph.get(date2), 0);
+	}
+
+	/**
+	 * Check that expense/income transactions are filtered by the sign of their
+	 * amount in every currency's selected accounts, and that transactions
+	 * outside the date range don't affect the filter
+	 */
+	@Test
+	public void expenseIncomeReportFilter() {
+		Date date1 = TestUtils.parseJSONDate("2016-01-02"); //NOI18N
+		Date date2 = TestUtils.parseJSONDate("2016-01-05"); //NOI18N
+		Date date3 = TestUtils.parseJSONDate("2016-01-07"); //NOI18N
+		VogonUser user = new VogonUser("user01", "password"); //NOI18N
+		FinanceAccount account1 = new FinanceAccount(user, "test account 1", Currency.getInstance("RUB")); //NOI18N
+		FinanceAccount account2 = new FinanceAccount(user, "test account 2", Currency.getInstance("RUB")); //NOI18N
+		FinanceAccount account3 = new FinanceAccount(user, "test account 3", Currency.getInstance("USD")); //NOI18N
+		FinanceTransaction transaction1 = new FinanceTransaction(user, "test transaction 1", new String[]{"hello"}, date2, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		FinanceTransaction transaction2 = new FinanceTransaction(user, "test transaction 2", new String[]{"world"}, date2, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		FinanceTransaction transaction3 = new FinanceTransaction(user, "test transaction 3", null, date1, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		TransactionComponent component11 = new TransactionComponent(account1, transaction1, 10);
+		TransactionComponent component12 = new TransactionComponent(account3, transaction1, -5);
+		TransactionComponent component21 = new TransactionComponent(account1, transaction2, -7);
+		TransactionComponent component22 = new TransactionComponent(account2, transaction2, 4);
+		TransactionComponent component31 = new TransactionComponent(account2, transaction3, -100);
+
+		entityManager.getTransaction().begin();
+		entityManager.persist(user);
+		entityManager.persist(account1);
+		entityManager.persist(account2);
+		entityManager.persist(account3);
+		entityManager.persist(component11);
+		entityManager.persist(component12);
+		entityManager.persist(component21);
+		entityManager.persist(component22);
+		entityManager.persist(component31);
+		entityManager.persist(transaction1);
+		entityManager.persist(transaction2);
+		entityManager.persist(transaction3);
+		entityManager.getTransaction().commit();
+
+		ReportFactory reportFactory = new ReportFactory(user);
+		reportFactory.setEarliestDate(date2);
+		reportFactory.setLatestDate(date3);
+		reportFactory.setSelectedAccounts(Arrays.asList(account1, account2, account3));
+		reportFactory.setSelectedTags(Arrays.asList("hello", "world", "")); //NOI18N
+		reportFactory.setEnabledExpenseTransactions(true);
+		reportFactory.setEnabledIncomeTransactions(false);
+		reportFactory.setEnabledTransferTransactions(false);
+		Map<String, Report> report = reportFactory.buildReport(entityManager);
+		assertEquals(1, report.get("RUB").getTransactions().size()); //NOI18N
+		assertEquals("test transaction 2", report.get("RUB").getTransactions().get(0).getDescription()); //NOI18N
+		assertEquals(1, report.get("RUB").getTagExpenses().size()); //NOI18N
+		assertEquals(-0.03, report.get("RUB").getTagExpenses().get(0).getAmount(), 0); //NOI18N
+		assertEquals(1, report.get("USD").getTransactions().size()); //NOI18N
+		assertEquals("test transaction 1", report.get("USD").getTransactions().get(0).getDescription()); //NOI18N
+		assertEquals(1, report.get("USD").getTagExpenses().size()); //NOI18N
+		assertEquals(-0.05, report.get("USD").getTagExpenses().get(0).getAmount(), 0); //NOI18N
+
+		reportFactory.setEnabledExpenseTransactions(false);
+		reportFactory.setEnabledIncomeTransactions(true);
+		report = reportFactory.buildReport(entityManager);
+		assertEquals(1, report.get("RUB").getTransactions().size()); //NOI18N
+		assertEquals("test transaction 1", report.get("RUB").getTransactions().get(0).getDescription()); //NOI18N
+		assertEquals(1, report.get("RUB").getTagExpenses().size()); //NOI18N
+		assertEquals(0.1, report.get("RUB").getTagExpenses().get(0).getAmount(), 0); //NOI18N
+		assertTrue(report.get("USD").getTransactions().isEmpty()); //NOI18N
+	}
+
+	/**
+	 * Returns the raw amount of an account tag total
+	 *
+	 * @param account the account
+	 * @param tag the tag
+	 * @param date the date in the total's month
+	 * @param sign the sign
+	 * @return the raw amount, or null if the total doesn't include any
+	 * transactions
+	 */
+	private Long getTagTotal(FinanceAccount account, String tag, Date date, AccountTagTotal.Sign sign) {
+		AccountTagTotalKey key = new AccountTagTotalKey(tag, date, sign);
+		Object[] tagTotal = entityManager.createQuery("select sum(t.amount), sum(t.transactionCount) from AccountTagTotal t where t.account = :account and t.key.tag = :tag and t.key.monthStart = :monthStart and t.key.sign = :sign", Object[].class) //NOI18N
+				.setParameter("account", account) //NOI18N
+				.setParameter("tag", key.getTag()) //NOI18N
+				.setParameter("monthStart", key.getMonthStart()) //NOI18N
+				.setParameter("sign", key.getSign()) //NOI18N
+				.getSingleResult();
+		return tagTotal[1] != null && ((Long) tagTotal[1]) > 0 ? (Long) tagTotal[0] : null;
+	}
+
+	/**
+	 * Update transactions and check that the account tag totals are updated
+	 */
+	@Test
+	public void updateAccountTagTotals() {
+		Date date1 = TestUtils.parseJSONDate("2016-01-02"); //NOI18N
+		Date date2 = TestUtils.parseJSONDate("2016-02-05"); //NOI18N
+		VogonUser user = new VogonUser("user01", "password"); //NOI18N
+		FinanceAccount account1 = new FinanceAccount(user, "test account 1", Currency.getInstance("RUB")); //NOI18N
+		FinanceAccount account2 = new FinanceAccount(user, "test account 2", Currency.getInstance("RUB")); //NOI18N
+		FinanceTransaction transaction1 = new FinanceTransaction(user, "test transaction 1", new String[]{"hello", "world"}, date1, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		FinanceTransaction transaction2 = new FinanceTransaction(user, "test transaction 2", null, date2, FinanceTransaction.Type.TRANSFER); //NOI18N
+		TransactionComponent component11 = new TransactionComponent(account1, transaction1, -42);
+		TransactionComponent component12 = new TransactionComponent(account2, transaction1, 10);
+		TransactionComponent component21 = new TransactionComponent(account1, transaction2, -160);
+		TransactionComponent component22 = new TransactionComponent(account2, transaction2, 160);
+
+		entityManager.getTransaction().begin();
+		entityManager.persist(user);
+		entityManager.persist(account1);
+		entityManager.persist(account2);
+		entityManager.persist(component11);
+		entityManager.persist(component12);
+		entityManager.persist(component21);
+		entityManager.persist(component22);
+		entityManager.persist(transaction1);
+		entityManager.persist(transaction2);
+		entityManager.getTransaction().commit();
+
+		assertEquals(Long.valueOf(-42), getTagTotal(account1, "hello", date1, AccountTagTotal.Sign.EXPENSE)); //NOI18N
+		assertEquals(Long.valueOf(-42), getTagTotal(account1, "world", date1, AccountTagTotal.Sign.EXPENSE)); //NOI18N
+		assertEquals(Long.valueOf(10), getTagTotal(account2, "hello", date1, AccountTagTotal.Sign.EXPENSE)); //NOI18N
+		assertEquals(Long.valueOf(0), getTagTotal(account1, "", date2, AccountTagTotal.Sign.TRANSFER)); //NOI18N
+		assertEquals(Long.valueOf(160), getTagTotal(account2, "", date2, AccountTagTotal.Sign.TRANSFER)); //NOI18N
+
+		entityManager.refresh(account1);//This is a trick to update the components hashSet hashcode
+		entityManager.refresh(account2);//This is a trick to update the components hashSet hashcode
+		entityManager.refresh(transaction1);//This is a trick to update the components hashSet hashcode
+		entityManager.refresh(transaction2);//This is a trick to update the components hashSet hashcode
+
+		entityManager.getTransaction().begin();
+		component11.setRawAmount(5);
+		transaction1.setTags("hello"); //NOI18N
+		transaction2.setDate(date1);
+		transaction2.setTags("transfer"); //NOI18N
+		entityManager.getTransaction().commit();
+		assertFalse(Hibernate.isInitialized(account1.tagTotals));
+
+		assertEquals(Long.valueOf(5), getTagTotal(account1, "hello", date1, AccountTagTotal.Sign.INCOME)); //NOI18N
+		assertEquals(Long.valueOf(10), getTagTotal(account2, "hello", date1, AccountTagTotal.Sign.INCOME)); //NOI18N
+		assertNull(getTagTotal(account1, "hello", date1, AccountTagTotal.Sign.EXPENSE)); //NOI18N
+		assertNull(getTagTotal(account1, "world", date1, AccountTagTotal.Sign.INCOME)); //NOI18N
+		assertNull(getTagTotal(account2, "", date2, AccountTagTotal.Sign.TRANSFER)); //NOI18N
+		assertEquals(Long.valueOf(160), getTagTotal(account2, "transfer", date1, AccountTagTotal.Sign.TRANSFER)); //NOI18N
+
+		entityManager.getTransaction().begin();
+		component11.setAccount(null);
+		component11.setTransaction(null);
+		entityManager.remove(component11);
+		entityManager.getTransaction().commit();
+
+		assertNull(getTagTotal(account1, "hello", date1, AccountTagTotal.Sign.INCOME)); //NOI18N
+		assertEquals(Long.valueOf(10), getTagTotal(account2, "hello", date1, AccountTagTotal.Sign.INCOME)); //NOI18N
+	}
 }
@@ -138,4 +138,40 @@ public class ModelConstraintsTest {
 		entityManager.getTransaction().commit();
 	}
 
+	/**
+	 * Test that the same new tag can be added by two transactions at the same
+	 * time
+	 */
+	@Test
+	public void createSameTagConstraint() {
+		Date date = TestUtils.parseJSONDate("2016-01-02"); //NOI18N
+		VogonUser user = new VogonUser("user01", "password"); //NOI18N
+
+		entityManager.getTransaction().begin();
+		entityManager.persist(user);
+		entityManager.getTransaction().commit();
+
+		EntityManager entityManagerOther = emf.createEntityManager();
+		VogonUser userOther = entityManagerOther.find(VogonUser.class, user.getId());
+		FinanceTransaction transaction = new FinanceTransaction(user, "test transaction 1", new String[]{"hello"}, date, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+		FinanceTransaction transactionOther = new FinanceTransaction(userOther, "test transaction 2", new String[]{"hello", "world"}, date, FinanceTransaction.Type.EXPENSEINCOME); //NOI18N
+
+		entityManager.getTransaction().begin();
+		entityManagerOther.getTransaction().begin();
+		new TagResolver(entityManager).resolveTags(transaction);
+		entityManager.persist(transaction);
+		entityManager.flush();
+		new TagResolver(entityManagerOther).resolveTags(transactionOther);
+		entityManagerOther.persist(transactionOther);
+		entityManagerOther.getTransaction().commit();
+		entityManager.getTransaction().commit();
+		entityManagerOther.close();
+
+		assertEquals(Long.valueOf(2), entityManager.createQuery("select count(t) from Tag t", Long.class).getSingleResult()); //NOI18N
+		entityManager.refresh(transaction);
+		assertArrayEquals(new String[]{"hello"}, transaction.getTags()); //NOI18N
+		FinanceTransaction foundTransactionOther = entityManager.find(FinanceTransaction.class, transactionOther.getId());
+		assertArrayEquals(new String[]{"hello", "world"}, foundTransactionOther.getTags()); //NOI18N
+	}
+
 }
@@ -0,0 +1,66 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web;
+
+import java.text.MessageFormat;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.zlogic.vogon.web.data.UserRepository;
+import org.zlogic.vogon.web.security.VogonSecurityUser;
+
+/**
+ * Interceptor which uses the user's data version as a weak ETag for GET
+ * requests. Every write bumps the data version, so if the client already has
+ * the response for the current data version, the request is answered with 304
+ * Not Modified without calling the controller (only the user's data version is
+ * read from the database).
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Component
+public class DataVersionETagInterceptor implements HandlerInterceptor {
+
+	/**
+	 * The users repository
+	 */
+	@Autowired
+	private UserRepository userRepository;
+
+	/**
+	 * Answers the request with 304 Not Modified if the client's ETag matches
+	 * the user's data version, or sets the ETag header otherwise
+	 *
+	 * @param request the HTTP request
+	 * @param response the HTTP response
+	 * @param handler the handler
+	 * @return true if the controller should be called, false if the request
+	 * was answered with 304 Not Modified
+	 */
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		if (!"GET".equals(request.getMethod())) //NOI18N
+			return true;
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		if (authentication == null || !(authentication.getPrincipal() instanceof VogonSecurityUser))
+			return true;
+		long userId = ((VogonSecurityUser) authentication.getPrincipal()).getUser().getId();
+		//Read before the controller reads data, so that the ETag is never newer than the response
+		long dataVersion = userRepository.findDataVersionById(userId);
+		//Responses of different users can be cached by the same browser
+		String etag = MessageFormat.format("W/\"{0}-{1}\"", Long.toString(userId), Long.toString(dataVersion)); //NOI18N
+		//Allow browsers to cache responses, but always revalidate them
+		response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().cachePrivate().getHeaderValue());
+		return !new ServletWebRequest(request, response).checkNotModified(etag);
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.sql.DataSource;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zlogic.vogon.web.security.VogonSecurityUser;
+
+/**
+ * DataSource which sends read-only transactions to database replicas (in
+ * round-robin order) and everything else to the primary database. After a
+ * user's write is committed, the user's read-only transactions use the primary
+ * database for a while, so that users always see their own changes even if
+ * replicas are lagging.
+ *
+ * The user is taken from the current thread's SecurityContext. Threads
+ * without a SecurityContext (such as report worker threads) should set the
+ * user with executeForUser, or use executeOnPrimary if their results should
+ * match data read by another transaction.
+ *
+ * The transaction's read-only flag is only known after the transaction has
+ * started, so this DataSource should be wrapped into a
+ * LazyConnectionDataSourceProxy.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+	/**
+	 * The lookup key of the primary database; replicas use their indexes as
+	 * lookup keys
+	 */
+	private static final String PRIMARY_KEY = "primary"; //NOI18N
+	/**
+	 * The routing hint set for the current thread by executeForUser or
+	 * executeOnPrimary
+	 */
+	private static final ThreadLocal<RoutingHint> routingHint = new ThreadLocal<>();
+	/**
+	 * The number of replicas
+	 */
+	private final int replicasCount;
+	/**
+	 * The index of the next replica to be used
+	 */
+	private final AtomicInteger nextReplica = new AtomicInteger();
+	/**
+	 * The time (in nanoseconds) to use the primary database after a user's
+	 * write
+	 */
+	private final long stickyNanos;
+	/**
+	 * The time (from System.nanoTime()) of each user's last committed write,
+	 * by user ID
+	 */
+	private final Map<Long, Long> lastWrites = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates the routing DataSource
+	 *
+	 * @param primary the primary database DataSource
+	 * @param replicas the replica DataSources
+	 * @param stickySeconds the time (in seconds) to use the primary database
+	 * for a user's read-only transactions after the user's write
+	 */
+	public ReplicaRoutingDataSource(DataSource primary, List<DataSource> replicas, long stickySeconds) {
+		Map<Object, Object> targetDataSources = new HashMap<>();
+		targetDataSources.put(PRIMARY_KEY, primary);
+		for (int i = 0; i < replicas.size(); i++)
+			targetDataSources.put(i, replicas.get(i));
+		setTargetDataSources(targetDataSources);
+		setDefaultTargetDataSource(primary);
+		setLenientFallback(false);
+		this.replicasCount = replicas.size();
+		this.stickyNanos = TimeUnit.SECONDS.toNanos(stickySeconds);
+	}
+
+	/**
+	 * Runs an action in the current thread, routing its transactions as if
+	 * they were started by a user; the user's writes are tracked, and the
+	 * user's read-only transactions use the primary database after the user's
+	 * write
+	 *
+	 * @param <T> the action result type
+	 * @param userId the ID of the user who should be used for routing
+	 * @param action the action to run
+	 * @return the action result
+	 */
+	public static <T> T executeForUser(long userId, Supplier<T> action) {
+		return execute(new RoutingHint(userId, false), action);
+	}
+
+	/**
+	 * Runs an action in the current thread, sending all of its transactions to
+	 * the primary database
+	 *
+	 * @param <T> the action result type
+	 * @param userId the ID of the user who should be used for routing
+	 * @param action the action to run
+	 * @return the action result
+	 */
+	public static <T> T executeOnPrimary(long userId, Supplier<T> action) {
+		return execute(new RoutingHint(userId, true), action);
+	}
+
+	/**
+	 * Runs an action with a routing hint, restoring the previous hint
+	 * afterwards
+	 *
+	 * @param <T> the action result type
+	 * @param hint the routing hint
+	 * @param action the action to run
+	 * @return the action result
+	 */
+	private static <T> T execute(RoutingHint hint, Supplier<T> action) {
+		RoutingHint previousHint = routingHint.get();
+		routingHint.set(hint);
+		try {
+			return action.get();
+		} finally {
+			if (previousHint != null)
+				routingHint.set(previousHint);
+			else
+				routingHint.remove();
+		}
+	}
+
+	/**
+	 * Returns the lookup key of the database to be used by the current
+	 * transaction
+	 *
+	 * @return the lookup key of the database to be used by the current
+	 * transaction
+	 */
+	@Override
+	protected Object determineCurrentLookupKey() {
+		RoutingHint hint = routingHint.get();
+		Long userId = hint != null ? Long.valueOf(hint.userId) : getCurrentUserId();
+		if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+			if (userId != null && TransactionSynchronizationManager.isSynchronizationActive())
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+					@Override
+					public void afterCommit() {
+						lastWrites.put(userId, System.nanoTime());
+					}
+				});
+			return PRIMARY_KEY;
+		}
+		if (hint != null && hint.primary)
+			return PRIMARY_KEY;
+		if (userId != null && isSticky(userId))
+			return PRIMARY_KEY;
+		if (replicasCount == 0)
+			return PRIMARY_KEY;
+		return Math.floorMod(nextReplica.getAndIncrement(), replicasCount);
+	}
+
+	/**
+	 * Returns true if the user has recently written data and should use the
+	 * primary database
+	 *
+	 * @param userId the user ID
+	 * @return true if the user should use the primary database
+	 */
+	private boolean isSticky(long userId) {
+		Long lastWrite = lastWrites.get(userId);
+		if (lastWrite == null)
+			return false;
+		if (System.nanoTime() - lastWrite < stickyNanos)
+			return true;
+		lastWrites.remove(userId, lastWrite);
+		return false;
+	}
+
+	/**
+	 * Returns the ID of the authenticated user
+	 *
+	 * @return the ID of the authenticated user, or null if the current thread
+	 * is not authenticated
+	 */
+	private Long getCurrentUserId() {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		if (authentication == null || !(authentication.getPrincipal() instanceof VogonSecurityUser))
+			return null;
+		return ((VogonSecurityUser) authentication.getPrincipal()).getUser().getId();
+	}
+
+	/**
+	 * Routing set explicitly for a thread
+	 */
+	private static class RoutingHint {
+
+		/**
+		 * The ID of the user who should be used for routing
+		 */
+		private final long userId;
+		/**
+		 * True if all transactions should use the primary database
+		 */
+		private final boolean primary;
+
+		/**
+		 * Creates the routing hint
+		 *
+		 * @param userId the ID of the user who should be used for routing
+		 * @param primary true if all transactions should use the primary
+		 * database
+		 */
+		private RoutingHint(long userId, boolean primary) {
+			this.userId = userId;
+			this.primary = primary;
+		}
+	}
+}
@@ -16,6 +16,7 @@ import org.springframework.security.web.method.annotation.AuthenticationPrincipa
 import org.springframework.web.method.support.HandlerMethodArgumentResolver;
 import org.springframework.web.servlet.ViewResolver;
 import org.springframework.web.servlet.config.annotation.DefaultServletHandlerConfigurer;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.ViewControllerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.springframework.web.servlet.view.InternalResourceViewResolver;
@@ -34,6 +35,12 @@ public class WebConfig implements WebMvcConfigurer {
 	@Autowired
 	private MappingJackson2HttpMessageConverter jacksonMessageConverter;
 
+	/**
+	 * The DataVersionETagInterceptor instance
+	 */
+	@Autowired
+	private DataVersionETagInterceptor dataVersionETagInterceptor;
+
 	/**
 	 * Adds view controllers to the registry
 	 *
@@ -79,6 +86,20 @@ public class WebConfig implements WebMvcConfigurer {
 		argumentResolvers.add(new AuthenticationPrincipalArgumentResolver());
 	}
 
+	/**
+	 * Adds the DataVersionETagInterceptor to services which only depend on the
+	 * user's data; report jobs, user details and exports change without
+	 * changing the data version
+	 *
+	 * @param registry the registry
+	 */
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(dataVersionETagInterceptor)
+				.addPathPatterns("/service/**") //NOI18N
+				.excludePathPatterns("/service/analytics/jobs/**", "/service/user", "/service/export"); //NOI18N
+	}
+
 	/**
 	 * Enable default servlet handler
 	 *
@@ -5,6 +5,8 @@
  */
 package org.zlogic.vogon.web.configuration;
 
+import java.util.ArrayList;
+import java.util.List;
 import org.springframework.stereotype.Service;
 
 /**
@@ -30,6 +32,85 @@ public class VogonConfiguration {
 	 */
 	private final static String TOKEN_EXPIRES_DAYS = "VOGON_TOKEN_EXPIRES_DAYS"; //NOI18N
 
+	/**
+	 * The maximum number of cached reports
+	 */
+	private static final String REPORT_CACHE_SIZE = "VOGON_REPORT_CACHE_SIZE"; //NOI18N
+
+	/**
+	 * Build reports for every currency in parallel
+	 */
+	private static final String PARALLEL_REPORTS = "VOGON_PARALLEL_REPORTS"; //NOI18N
+
+	/**
+	 * The number of threads for building reports
+	 */
+	private static final String REPORT_THREADS = "VOGON_REPORT_THREADS"; //NOI18N
+
+	/**
+	 * The number of threads a single user can use for building reports
+	 */
+	private static final String REPORT_USER_THREADS = "VOGON_REPORT_USER_THREADS"; //NOI18N
+
+	/**
+	 * The maximum number of users with cached tag dictionaries
+	 */
+	private static final String TAG_DICTIONARY_SIZE = "VOGON_TAG_DICTIONARY_SIZE"; //NOI18N
+
+	/**
+	 * Build reports from in-memory columnar ledgers
+	 */
+	private static final String COLUMNAR_REPORTS = "VOGON_COLUMNAR_REPORTS"; //NOI18N
+
+	/**
+	 * The maximum number of transactions and components in cached columnar
+	 * ledgers
+	 */
+	private static final String COLUMNAR_LEDGER_ROWS = "VOGON_COLUMNAR_LEDGER_ROWS"; //NOI18N
+
+	/**
+	 * The number of threads for building reports asynchronously
+	 */
+	private static final String REPORT_JOB_THREADS = "VOGON_REPORT_JOB_THREADS"; //NOI18N
+
+	/**
+	 * The maximum number of unfinished asynchronous report jobs for a single
+	 * user
+	 */
+	private static final String REPORT_USER_JOBS = "VOGON_REPORT_USER_JOBS"; //NOI18N
+
+	/**
+	 * The maximum number of finished asynchronous report jobs kept for a
+	 * single user
+	 */
+	private static final String REPORT_USER_RETAINED_JOBS = "VOGON_REPORT_USER_RETAINED_JOBS"; //NOI18N
+
+	/**
+	 * The time (in seconds) to keep the results of finished report jobs
+	 */
+	private static final String REPORT_JOB_TTL = "VOGON_REPORT_JOB_TTL"; //NOI18N
+
+	/**
+	 * The maximum number of users with cached transaction counts
+	 */
+	private static final String TRANSACTION_COUNT_CACHE_SIZE = "VOGON_TRANSACTION_COUNT_CACHE_SIZE"; //NOI18N
+
+	/**
+	 * The maximum number of transactions in cached description indexes
+	 */
+	private static final String DESCRIPTION_INDEX_ROWS = "VOGON_DESCRIPTION_INDEX_ROWS"; //NOI18N
+
+	/**
+	 * Comma-separated URLs of database replicas for read-only transactions
+	 */
+	private static final String DATABASE_REPLICA_URLS = "VOGON_DATABASE_REPLICA_URLS"; //NOI18N
+
+	/**
+	 * The time (in seconds) to use the primary database for a user's
+	 * read-only transactions after the user's write
+	 */
+	private static final String DATABASE_REPLICA_STICKY_SECONDS = "VOGON_DATABASE_REPLICA_STICKY_SECONDS"; //NOI18N
+
 	/**
 	 * Returns true if registration is allowed
 	 *
@@ -65,4 +146,204 @@ public class VogonConfiguration {
 			tokenExpiresDays = "14"; //NOI18N
 		return 60 * 60 * 24 * Integer.parseInt(tokenExpiresDays);
 	}
+
+	/**
+	 * Returns the maximum number of cached reports
+	 *
+	 * @return the maximum number of cached reports
+	 */
+	public int getReportCacheSize() {
+		String reportCacheSize = System.getenv(REPORT_CACHE_SIZE);
+		if (reportCacheSize == null)
+			reportCacheSize = "100"; //NOI18N
+		return Integer.parseInt(reportCacheSize);
+	}
+
+	/**
+	 * Returns true if reports for every currency should be built in parallel
+	 *
+	 * @return true if reports for every currency should be built in parallel
+	 */
+	public boolean isParallelReports() {
+		String parallelReports = System.getenv(PARALLEL_REPORTS);
+		if (parallelReports == null)
+			return false;
+		return Boolean.parseBoolean(parallelReports);
+	}
+
+	/**
+	 * Returns the number of threads for building reports
+	 *
+	 * @return the number of threads for building reports
+	 */
+	public int getReportThreads() {
+		String reportThreads = System.getenv(REPORT_THREADS);
+		if (reportThreads == null)
+			return Runtime.getRuntime().availableProcessors();
+		return Integer.parseInt(reportThreads);
+	}
+
+	/**
+	 * Returns the number of threads a single user can use for building
+	 * reports
+	 *
+	 * @return the number of threads a single user can use for building
+	 * reports
+	 */
+	public int getReportUserThreads() {
+		String reportUserThreads = System.getenv(REPORT_USER_THREADS);
+		if (reportUserThreads == null)
+			reportUserThreads = "2"; //NOI18N
+		return Integer.parseInt(reportUserThreads);
+	}
+
+	/**
+	 * Returns the maximum number of users with cached tag dictionaries
+	 *
+	 * @return the maximum number of users with cached tag dictionaries
+	 */
+	public int getTagDictionarySize() {
+		String tagDictionarySize = System.getenv(TAG_DICTIONARY_SIZE);
+		if (tagDictionarySize == null)
+			tagDictionarySize = "1000"; //NOI18N
+		return Integer.parseInt(tagDictionarySize);
+	}
+
+	/**
+	 * Returns true if reports should be built from in-memory columnar ledgers
+	 *
+	 * @return true if reports should be built from in-memory columnar ledgers
+	 */
+	public boolean isColumnarReports() {
+		String columnarReports = System.getenv(COLUMNAR_REPORTS);
+		if (columnarReports == null)
+			return false;
+		return Boolean.parseBoolean(columnarReports);
+	}
+
+	/**
+	 * Returns the maximum number of transactions and components in cached
+	 * columnar ledgers
+	 *
+	 * @return the maximum number of transactions and components in cached
+	 * columnar ledgers
+	 */
+	public long getColumnarLedgerRows() {
+		String columnarLedgerRows = System.getenv(COLUMNAR_LEDGER_ROWS);
+		if (columnarLedgerRows == null)
+			columnarLedgerRows = "1000000"; //NOI18N
+		return Long.parseLong(columnarLedgerRows);
+	}
+
+	/**
+	 * Returns the number of threads for building reports asynchronously
+	 *
+	 * @return the number of threads for building reports asynchronously
+	 */
+	public int getReportJobThreads() {
+		String reportJobThreads = System.getenv(REPORT_JOB_THREADS);
+		if (reportJobThreads == null)
+			reportJobThreads = "2"; //NOI18N
+		return Integer.parseInt(reportJobThreads);
+	}
+
+	/**
+	 * Returns the maximum number of unfinished asynchronous report jobs for a
+	 * single user
+	 *
+	 * @return the maximum number of unfinished report jobs for a single user
+	 */
+	public int getReportUserJobs() {
+		String reportUserJobs = System.getenv(REPORT_USER_JOBS);
+		if (reportUserJobs == null)
+			reportUserJobs = "2"; //NOI18N
+		return Integer.parseInt(reportUserJobs);
+	}
+
+	/**
+	 * Returns the maximum number of finished asynchronous report jobs kept
+	 * for a single user
+	 *
+	 * @return the maximum number of finished report jobs kept for a single
+	 * user
+	 */
+	public int getReportUserRetainedJobs() {
+		String reportUserRetainedJobs = System.getenv(REPORT_USER_RETAINED_JOBS);
+		if (reportUserRetainedJobs == null)
+			reportUserRetainedJobs = "10"; //NOI18N
+		return Integer.parseInt(reportUserRetainedJobs);
+	}
+
+	/**
+	 * Returns the time (in seconds) to keep the results of finished report
+	 * jobs
+	 *
+	 * @return the time (in seconds) to keep the results of finished report
+	 * jobs
+	 */
+	public long getReportJobTtl() {
+		String reportJobTtl = System.getenv(REPORT_JOB_TTL);
+		if (reportJobTtl == null)
+			reportJobTtl = "600"; //NOI18N
+		return Long.parseLong(reportJobTtl);
+	}
+
+	/**
+	 * Returns the maximum number of users with cached transaction counts
+	 *
+	 * @return the maximum number of users with cached transaction counts
+	 */
+	public int getTransactionCountCacheSize() {
+		String transactionCountCacheSize = System.getenv(TRANSACTION_COUNT_CACHE_SIZE);
+		if (transactionCountCacheSize == null)
+			transactionCountCacheSize = "1000"; //NOI18N
+		return Integer.parseInt(transactionCountCacheSize);
+	}
+
+	/**
+	 * Returns the maximum number of transactions in cached description
+	 * indexes
+	 *
+	 * @return the maximum number of transactions in cached description
+	 * indexes
+	 */
+	public long getDescriptionIndexRows() {
+		String descriptionIndexRows = System.getenv(DESCRIPTION_INDEX_ROWS);
+		if (descriptionIndexRows == null)
+			descriptionIndexRows = "1000000"; //NOI18N
+		return Long.parseLong(descriptionIndexRows);
+	}
+
+	/**
+	 * Returns the URLs of database replicas for read-only transactions, in the
+	 * same format as the primary database URL (or JDBC URLs)
+	 *
+	 * @return the URLs of database replicas, or an empty list if replicas are
+	 * not used
+	 */
+	public List<String> getDatabaseReplicaURLs() {
+		String databaseReplicaURLs = System.getenv(DATABASE_REPLICA_URLS);
+		List<String> urls = new ArrayList<>();
+		if (databaseReplicaURLs == null)
+			return urls;
+		for (String url : databaseReplicaURLs.split(",")) //NOI18N
+			if (!url.trim().isEmpty())
+				urls.add(url.trim());
+		return urls;
+	}
+
+	/**
+	 * Returns the time (in seconds) to use the primary database for a user's
+	 * read-only transactions after the user's write, so that users always
+	 * see their own changes even if replicas are lagging
+	 *
+	 * @return the time (in seconds) to use the primary database after a
+	 * user's write
+	 */
+	public long getDatabaseReplicaStickySeconds() {
+		String databaseReplicaStickySeconds = System.getenv(DATABASE_REPLICA_STICKY_SECONDS);
+		if (databaseReplicaStickySeconds == null)
+			databaseReplicaStickySeconds = "10"; //NOI18N
+		return Long.parseLong(databaseReplicaStickySeconds);
+	}
 }
@@ -7,11 +7,16 @@ package org.zlogic.vogon.web.controller;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.stereotype.Controller;
 import org.springframework.transaction.annotation.Propagation;
@@ -19,12 +24,15 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.zlogic.vogon.data.FinanceAccount;
 import org.zlogic.vogon.data.FinanceTransaction;
 import org.zlogic.vogon.data.TransactionComponent;
+import org.zlogic.vogon.data.report.ReportFactory;
 import org.zlogic.vogon.web.data.AccountRepository;
 import org.zlogic.vogon.web.data.TransactionRepository;
+import org.zlogic.vogon.web.data.UserRepository;
 import org.zlogic.vogon.web.security.VogonSecurityUser;
 
 /**
@@ -37,6 +45,11 @@ import org.zlogic.vogon.web.security.VogonSecurityUser;
 @Transactional(propagation = Propagation.REQUIRED)
 public class AccountsController {
 
+	/**
+	 * The EntityManager instance
+	 */
+	@PersistenceContext
+	private EntityManager em;
 	/**
 	 * The transactions repository
 	 */
@@ -47,6 +60,11 @@ public class AccountsController {
 	 */
 	@Autowired
 	private AccountRepository accountRepository;
+	/**
+	 * The users repository
+	 */
+	@Autowired
+	private UserRepository userRepository;
 
 	/**
 	 * Returns all accounts
@@ -55,11 +73,27 @@ public class AccountsController {
 	 * @return the accounts
 	 */
 	@RequestMapping(method = RequestMethod.GET, produces = "application/json")
+	@Transactional(propagation = Propagation.REQUIRED, readOnly = true)
 	public @ResponseBody
 	Collection<FinanceAccount> getAllAccounts(@AuthenticationPrincipal VogonSecurityUser user) {
 		return accountRepository.findByOwner(user.getUser());
 	}
 
+	/**
+	 * Returns the balance of all accounts at the end of a specific date
+	 *
+	 * @param date the date
+	 * @param user the authenticated user
+	 * @return the account balances, by account id
+	 */
+	@RequestMapping(value = "/balance", method = RequestMethod.GET, produces = "application/json")
+	@Transactional(propagation = Propagation.REQUIRED, readOnly = true)
+	public @ResponseBody
+	Map<Long, Double> getAccountBalances(@RequestParam("date") @DateTimeFormat(pattern = "yyyy-MM-dd") Date date, @AuthenticationPrincipal VogonSecurityUser user) {
+		ReportFactory reportFactory = new ReportFactory(user.getUser());
+		return reportFactory.getAccountBalances(em, date);
+	}
+
 	/**
 	 * Updates account list
 	 *
@@ -97,6 +131,7 @@ public class AccountsController {
 		}
 		accountRepository.flush();
 		transactionRepository.flush();
+		userRepository.incrementDataVersion(user.getUser().getId());
 		return accountRepository.findByOwner(user.getUser());
 	}
 }
@@ -5,23 +5,42 @@
  */
 package org.zlogic.vogon.web.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.ResourceBundle;
 import java.util.Set;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
 import javax.persistence.PersistenceContext;
+import javax.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.stereotype.Controller;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.zlogic.vogon.data.FinanceAccount;
 import org.zlogic.vogon.data.report.Report;
 import org.zlogic.vogon.data.report.ReportFactory;
+import org.zlogic.vogon.data.report.ReportTimings;
+import org.zlogic.vogon.web.controller.serialization.JSONMapper;
+import org.zlogic.vogon.web.controller.serialization.JsonReportWriter;
 import org.zlogic.vogon.web.data.AccountRepository;
+import org.zlogic.vogon.web.data.ReportCache;
+import org.zlogic.vogon.web.data.ReportJobs;
+import org.zlogic.vogon.web.data.ReportMetrics;
+import org.zlogic.vogon.web.data.TagDictionary;
+import org.zlogic.vogon.web.data.UserRepository;
+import org.zlogic.vogon.web.data.model.ReportJobJson;
 import org.zlogic.vogon.web.security.VogonSecurityUser;
 
 /**
@@ -33,6 +52,15 @@ import org.zlogic.vogon.web.security.VogonSecurityUser;
 @RequestMapping(value = "/service/analytics")
 public class AnalyticsController {
 
+	/**
+	 * Localization messages
+	 */
+	private static final ResourceBundle messages = ResourceBundle.getBundle("org/zlogic/vogon/web/messages");
+	/**
+	 * The maximum number of tag suggestions returned by one request
+	 */
+	private static final int MAX_TAG_SUGGESTIONS = 100;
+
 	/**
 	 * The EntityManager instance
 	 */
@@ -45,6 +73,42 @@ public class AnalyticsController {
 	@Autowired
 	private AccountRepository accountRepository;
 
+	/**
+	 * The users repository
+	 */
+	@Autowired
+	private UserRepository userRepository;
+
+	/**
+	 * The report cache
+	 */
+	@Autowired
+	private ReportCache reportCache;
+
+	/**
+	 * The asynchronous report jobs
+	 */
+	@Autowired
+	private ReportJobs reportJobs;
+
+	/**
+	 * The report metrics
+	 */
+	@Autowired
+	private ReportMetrics reportMetrics;
+
+	/**
+	 * The tag dictionary
+	 */
+	@Autowired
+	private TagDictionary tagDictionary;
+
+	/**
+	 * JSONMapper instance
+	 */
+	@Autowired
+	private JSONMapper jsonMapper;
+
 	/**
 	 * Returns all tags
 	 *
@@ -52,22 +116,136 @@ public class AnalyticsController {
 	 * @return the set of all tags
 	 */
 	@RequestMapping(value = "/tags", method = RequestMethod.GET, produces = "application/json")
+	@Transactional(readOnly = true)
 	public @ResponseBody
 	Set<String> getAllTags(@AuthenticationPrincipal VogonSecurityUser user) {
-		ReportFactory reportFactory = new ReportFactory(user.getUser());
-		return reportFactory.getAllTags(em);
+		long dataVersion = userRepository.findDataVersionById(user.getUser().getId());
+		return tagDictionary.getAllTags(user.getUser(), dataVersion, em);
 	}
 
 	/**
-	 * Returns the report results
+	 * Returns the most used tags starting with a prefix (ignoring case)
+	 *
+	 * @param prefix the tag prefix
+	 * @param limit the maximum number of tags to return, limited to 1 to
+	 * MAX_TAG_SUGGESTIONS
+	 * @param user the authenticated user
+	 * @return the most used tags starting with prefix, ordered by the number
+	 * of transactions using them
+	 */
+	@RequestMapping(value = "/tags", params = "prefix", method = RequestMethod.GET, produces = "application/json")
+	@Transactional(readOnly = true)
+	public @ResponseBody
+	List<String> getTagSuggestions(@RequestParam(value = "prefix") String prefix, @RequestParam(value = "limit", defaultValue = "10") int limit, @AuthenticationPrincipal VogonSecurityUser user) {
+		long dataVersion = userRepository.findDataVersionById(user.getUser().getId());
+		return tagDictionary.getSuggestions(user.getUser(), dataVersion, prefix, Math.max(1, Math.min(limit, MAX_TAG_SUGGESTIONS)), em);
+	}
+
+	/**
+	 * Writes the report results to the response; the report is serialized here
+	 * to measure the serialization time
 	 *
 	 * @param reportFactory the requested report parameters
 	 * @param user the authenticated user
-	 * @return the report
+	 * @param response the response to write the report to
+	 * @throws IOException if the report cannot be written
 	 */
 	@RequestMapping(method = RequestMethod.POST, produces = "application/json")
+	@Transactional(readOnly = true)
+	public void getReport(@RequestBody ReportFactory reportFactory, @AuthenticationPrincipal VogonSecurityUser user, HttpServletResponse response) throws IOException {
+		prepareReportFactory(reportFactory, user);
+		//Build report or use a cached one if the data hasn't changed
+		long dataVersion = userRepository.findDataVersionById(user.getUser().getId());
+		ReportTimings timings = new ReportTimings();
+		Map<String, Report> report = reportCache.getReport(reportFactory, dataVersion, em, timings);
+		response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+		try (JsonGenerator generator = jsonMapper.getFactory().createGenerator(response.getOutputStream())) {
+			long startNanos = System.nanoTime();
+			jsonMapper.writeValue(generator, report);
+			timings.addTime(ReportTimings.Phase.SERIALIZE, startNanos);
+			//Record before the response is completed
+			reportMetrics.record(timings, report);
+		}
+	}
+
+	/**
+	 * Starts building a report asynchronously, to avoid keeping the request
+	 * open while a large report is built
+	 *
+	 * @param reportFactory the requested report parameters
+	 * @param user the authenticated user
+	 * @return the created job
+	 */
+	@RequestMapping(value = "/jobs", method = RequestMethod.POST, produces = "application/json")
+	public @ResponseBody
+	ReportJobJson submitReportJob(@RequestBody ReportFactory reportFactory, @AuthenticationPrincipal VogonSecurityUser user) {
+		prepareReportFactory(reportFactory, user);
+		return reportJobs.submit(reportFactory);
+	}
+
+	/**
+	 * Returns the status of a report job, and the report if the job is done
+	 *
+	 * @param id the job ID
+	 * @param user the authenticated user
+	 * @return the job
+	 */
+	@RequestMapping(value = "/jobs/{id}", method = RequestMethod.GET, produces = "application/json")
+	public @ResponseBody
+	ReportJobJson getReportJob(@PathVariable String id, @AuthenticationPrincipal VogonSecurityUser user) {
+		ReportJobJson job = reportJobs.getJob(id, user.getUser().getId());
+		if (job == null)
+			throw new EntityNotFoundException(MessageFormat.format(messages.getString("REPORT_JOB_DOES_NOT_EXIST"), id));
+		return job;
+	}
+
+	/**
+	 * Cancels a report job if it's not finished, and removes it
+	 *
+	 * @param id the job ID
+	 * @param user the authenticated user
+	 * @return the removed job
+	 */
+	@RequestMapping(value = "/jobs/{id}", method = RequestMethod.DELETE, produces = "application/json")
 	public @ResponseBody
-	Map<String, Report> getReport(@RequestBody ReportFactory reportFactory, @AuthenticationPrincipal VogonSecurityUser user) {
+	ReportJobJson cancelReportJob(@PathVariable String id, @AuthenticationPrincipal VogonSecurityUser user) {
+		ReportJobJson job = reportJobs.cancelJob(id, user.getUser().getId());
+		if (job == null)
+			throw new EntityNotFoundException(MessageFormat.format(messages.getString("REPORT_JOB_DOES_NOT_EXIST"), id));
+		return job;
+	}
+
+	/**
+	 * Writes the report results directly to the response, as they're read
+	 * from the database; returns the same JSON as getReport without keeping
+	 * the report in memory
+	 *
+	 * @param reportFactory the requested report parameters
+	 * @param user the authenticated user
+	 * @param response the response to write the report to
+	 * @throws IOException if the report cannot be written
+	 */
+	@RequestMapping(value = "/stream", method = RequestMethod.POST, produces = "application/json")
+	@Transactional(readOnly = true)
+	public void streamReport(@RequestBody ReportFactory reportFactory, @AuthenticationPrincipal VogonSecurityUser user, HttpServletResponse response) throws IOException {
+		prepareReportFactory(reportFactory, user);
+		response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+		try (JsonGenerator generator = jsonMapper.getFactory().createGenerator(response.getOutputStream())) {
+			JsonReportWriter writer = new JsonReportWriter(generator, jsonMapper);
+			writer.startReports();
+			reportFactory.writeReport(em, writer);
+			writer.endReports();
+		}
+	}
+
+	/**
+	 * Sets the report owner and replaces the selected accounts with the
+	 * user's persisted accounts
+	 *
+	 * @param reportFactory the requested report parameters
+	 * @param user the authenticated user
+	 */
+	private void prepareReportFactory(ReportFactory reportFactory, VogonSecurityUser user) {
 		reportFactory.setOwner(user.getUser());
 		//Update accounts (needed to properly handle users)
 		List<FinanceAccount> accounts = new ArrayList<>(reportFactory.getSelectedAccounts().size());
@@ -77,7 +255,5 @@ public class AnalyticsController {
 				accounts.add(account);
 		}
 		reportFactory.setSelectedAccounts(accounts);
-		//Build report
-		return reportFactory.buildReport(em);
 	}
 }
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.text.MessageFormat;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.Date;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -26,6 +27,8 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.multipart.MultipartFile;
+import org.zlogic.vogon.data.FinanceAccount;
+import org.zlogic.vogon.data.FinanceTransaction;
 import org.zlogic.vogon.data.VogonUser;
 import org.zlogic.vogon.web.controller.serialization.JSONMapper;
 import org.zlogic.vogon.web.data.AccountRepository;
@@ -89,6 +92,7 @@ public class DataController {
 		}
 		
 		importData.persist(user, em);
+		userRepository.incrementDataVersion(user.getId());
 
 		return true;
 	}
@@ -100,13 +104,18 @@ public class DataController {
 	 * @return the HTTPEntity for the file download
 	 */
 	@RequestMapping(value = "/export", method = {RequestMethod.GET, RequestMethod.POST})
+	@Transactional(readOnly = true)
 	public HttpEntity<byte[]> exportDataJSON(@AuthenticationPrincipal VogonSecurityUser userPrincipal) throws RuntimeException {
 		VogonUser user = userRepository.findByUsernameIgnoreCase(userPrincipal.getUsername());
 
 		Sort accountSort = new Sort(Sort.Direction.ASC, "id");//NOI18N
 		Sort transactionSort = new Sort(Sort.Direction.ASC, "id");//NOI18N
 
-		ImportExportData data = new ImportExportData(accountRepository.findByOwner(user, accountSort), transactionRepository.findByOwner(user, transactionSort));
+		Collection<FinanceAccount> accounts = accountRepository.findByOwner(user, accountSort);
+		Collection<FinanceTransaction> transactions = transactionRepository.findWithComponentsByOwner(user, transactionSort);
+		//Tags are fetched by a separate query, so that they aren't joined with components
+		transactionRepository.fetchTagsByOwner(user);
+		ImportExportData data = new ImportExportData(accounts, transactions);
 		byte[] output = null;
 		try {
 			//Convert to JSON
@@ -6,7 +6,9 @@
 package org.zlogic.vogon.web.controller;
 
 import java.text.MessageFormat;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
 import java.util.HashSet;
@@ -16,11 +18,9 @@ import java.util.ResourceBundle;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityNotFoundException;
 import javax.persistence.PersistenceContext;
-import javax.persistence.metamodel.Attribute;
+import javax.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
-import org.springframework.data.jpa.domain.JpaSort;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.stereotype.Controller;
@@ -35,14 +35,23 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import org.zlogic.vogon.data.FinanceAccount;
 import org.zlogic.vogon.data.FinanceTransaction;
 import org.zlogic.vogon.data.FinanceTransaction_;
+import org.zlogic.vogon.data.TagResolver;
 import org.zlogic.vogon.data.TransactionComponent;
 import org.zlogic.vogon.web.configuration.VogonConfiguration;
 import org.zlogic.vogon.web.data.AccountRepository;
+import org.zlogic.vogon.web.data.ColumnarLedgerCache;
+import org.zlogic.vogon.web.data.DescriptionIndex;
 import org.zlogic.vogon.web.data.InitializationHelper;
+import org.zlogic.vogon.web.data.TagDictionary;
+import org.zlogic.vogon.web.data.TransactionCountCache;
+import org.zlogic.vogon.web.data.TransactionCursor;
 import org.zlogic.vogon.web.data.TransactionFilterSpecification;
 import org.zlogic.vogon.web.data.TransactionRepository;
+import org.zlogic.vogon.web.data.TransactionViewReader;
+import org.zlogic.vogon.web.data.UserRepository;
 import org.zlogic.vogon.web.data.model.FinanceTransactionJson;
 import org.zlogic.vogon.web.data.model.TransactionComponentJson;
+import org.zlogic.vogon.web.data.model.TransactionViewJson;
 import org.zlogic.vogon.web.security.VogonSecurityUser;
 
 /**
@@ -59,6 +68,10 @@ public class TransactionsController {
 	 * Localization messages
 	 */
 	private static final ResourceBundle messages = ResourceBundle.getBundle("org/zlogic/vogon/web/messages");
+	/**
+	 * Header containing the cursor of the next page
+	 */
+	private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor"; //NOI18N
 	/**
 	 * The EntityManager instance
 	 */
@@ -74,6 +87,11 @@ public class TransactionsController {
 	 */
 	@Autowired
 	private AccountRepository accountRepository;
+	/**
+	 * The users repository
+	 */
+	@Autowired
+	private UserRepository userRepository;
 	/**
 	 * InitializationHelper instance
 	 */
@@ -84,6 +102,31 @@ public class TransactionsController {
 	 */
 	@Autowired
 	private VogonConfiguration configuration;
+	/**
+	 * The tag dictionary
+	 */
+	@Autowired
+	private TagDictionary tagDictionary;
+	/**
+	 * The columnar ledger cache
+	 */
+	@Autowired
+	private ColumnarLedgerCache columnarLedgerCache;
+	/**
+	 * The transaction count cache
+	 */
+	@Autowired
+	private TransactionCountCache transactionCountCache;
+	/**
+	 * The description index
+	 */
+	@Autowired
+	private DescriptionIndex descriptionIndex;
+	/**
+	 * The transaction view reader
+	 */
+	@Autowired
+	private TransactionViewReader transactionViewReader;
 
 	/**
 	 * Sort column options
@@ -102,63 +145,168 @@ public class TransactionsController {
 
 	/**
 	 * Returns all transactions in a specific range, or all transactions if page
-	 * parameter is missing
+	 * and cursor parameters are missing. If the cursor parameter is present
+	 * (an empty cursor requests the first page), returns the page after the
+	 * cursor and sets the X-Next-Cursor header if there could be more pages.
 	 *
 	 * @param page the page number
+	 * @param cursor the cursor returned with the previous page
 	 * @param sortColumn the column used for sorting
 	 * @param sortDirection the sort direction
 	 * @param filterDescription
 	 * @param filterTags the tags to be filtered
 	 * @param filterDate the date to be filtered
+	 * @param filterDateFrom the earliest date to be filtered
+	 * @param filterDateTo the latest date to be filtered
+	 * @param filterAccounts the account IDs to be filtered
+	 * @param filterAmountMin the minimum component amount to be filtered
+	 * @param filterAmountMax the maximum component amount to be filtered
 	 * @param user the authenticated user
+	 * @param response the HTTP response, used to return the next cursor
 	 * @return the transactions
 	 */
 	@RequestMapping(method = RequestMethod.GET, produces = "application/json")
+	@Transactional(propagation = Propagation.REQUIRED, readOnly = true)
 	public @ResponseBody
-	Collection<FinanceTransactionJson> getTransactions(
+	Collection<TransactionViewJson> getTransactions(
 			@RequestParam(value = "page", required = false) Integer page,
+			@RequestParam(value = "cursor", required = false) String cursor,
 			@RequestParam(value = "sortColumn", required = false) SortColumn sortColumn,
 			@RequestParam(value = "sortDirection", required = false) Sort.Direction sortDirection,
 			@RequestParam(value = "filterDescription", required = false) String filterDescription,
 			@RequestParam(value = "filterDate", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date filterDate,
+			@RequestParam(value = "filterDateFrom", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date filterDateFrom,
+			@RequestParam(value = "filterDateTo", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date filterDateTo,
 			@RequestParam(value = "filterTags", required = false) Collection<String> filterTags,
-			@AuthenticationPrincipal VogonSecurityUser user) {
-		Attribute sortAttribute = FinanceTransaction_.transactionDate;
-		if (sortColumn != null)
-			switch (sortColumn) {
-				case DATE:
-					sortAttribute = FinanceTransaction_.transactionDate;
-					break;
-				case DESCRIPTION:
-					sortAttribute = FinanceTransaction_.description;
-					break;
-			}
+			@RequestParam(value = "filterAccounts", required = false) Collection<Long> filterAccounts,
+			@RequestParam(value = "filterAmountMin", required = false) Double filterAmountMin,
+			@RequestParam(value = "filterAmountMax", required = false) Double filterAmountMax,
+			@AuthenticationPrincipal VogonSecurityUser user,
+			HttpServletResponse response) {
+		boolean sortByDescription = sortColumn == SortColumn.DESCRIPTION;
 		if (sortDirection == null)
-			sortDirection = Sort.Direction.fromOptionalString(null).orElse(null);
-		Sort sort = new JpaSort(sortDirection, sortAttribute, FinanceTransaction_.id);
-		//TODO: Optimize if https://jira.spring.io/browse/DATAJPA-209 gets implemented?
+			sortDirection = Sort.DEFAULT_DIRECTION;
+		TransactionFilterSpecification filter = createFilter(filterDescription, filterDate, filterDateFrom, filterDateTo, filterTags, filterAccounts, filterAmountMin, filterAmountMax, user);
+		if (filterDescription != null)
+			useDescriptionIndex(filter, userRepository.findDataVersionById(user.getUser().getId()));
+		int pageSize = configuration.getTransactionsPageSize();
+		if (cursor != null) {
+			TransactionCursor afterCursor = !cursor.isEmpty() ? TransactionCursor.decode(cursor, sortByDescription) : null;
+			List<TransactionViewJson> transactions = transactionViewReader.findTransactions(filter, sortByDescription, sortDirection, afterCursor, 0, pageSize, em);
+			if (transactions.size() >= pageSize)
+				response.setHeader(NEXT_CURSOR_HEADER, TransactionCursor.after(transactions.get(transactions.size() - 1), sortByDescription).encode());
+			return transactions;
+		}
+		if (page == null)
+			return transactionViewReader.findTransactions(filter, sortByDescription, sortDirection, null, 0, null, em);
+		return transactionViewReader.findTransactions(filter, sortByDescription, sortDirection, null, page * pageSize, pageSize, em);
+	}
+
+	/**
+	 * Creates the transactions filter from request parameters
+	 *
+	 * @param filterDescription the description substring filter
+	 * @param filterDate the date to be filtered
+	 * @param filterDateFrom the earliest date to be filtered
+	 * @param filterDateTo the latest date to be filtered
+	 * @param filterTags the tags to be filtered
+	 * @param filterAccounts the account IDs to be filtered
+	 * @param filterAmountMin the minimum component amount to be filtered
+	 * @param filterAmountMax the maximum component amount to be filtered
+	 * @param user the authenticated user
+	 * @return the transactions filter
+	 */
+	private TransactionFilterSpecification createFilter(String filterDescription, Date filterDate, Date filterDateFrom, Date filterDateTo,
+			Collection<String> filterTags, Collection<Long> filterAccounts, Double filterAmountMin, Double filterAmountMax, VogonSecurityUser user) {
 		TransactionFilterSpecification filter = new TransactionFilterSpecification(user.getUser());
 		filter.setFilterDescription(filterDescription);
 		filter.setFilterDate(filterDate);
+		filter.setFilterDateFrom(filterDateFrom);
+		filter.setFilterDateTo(filterDateTo);
 		if (filterTags != null)
 			filter.setFilterTags(new HashSet<>(filterTags));
-		if (page == null)
-			return initializationHelper.initializeTransactions(transactionRepository.findAll(filter, sort));
-		PageRequest pageRequest = PageRequest.of(page, configuration.getTransactionsPageSize(), sort);
-		return initializationHelper.initializeTransactions(transactionRepository.findAll(filter, pageRequest).getContent());
+		if (filterAccounts != null)
+			filter.setFilterAccounts(new HashSet<>(filterAccounts));
+		filter.setFilterAmountMin(filterAmountMin);
+		filter.setFilterAmountMax(filterAmountMax);
+		return filter;
+	}
+
+	/**
+	 * Finds transactions matching the description filter in the description
+	 * index, so that the database doesn't have to scan all transactions
+	 *
+	 * @param filter the transactions filter
+	 * @param dataVersion the owner's data version
+	 */
+	private void useDescriptionIndex(TransactionFilterSpecification filter, long dataVersion) {
+		filter.setFilterDescriptionIds(descriptionIndex.findTransactions(filter.getOwner(), dataVersion, filter.getFilterDescription(), em));
 	}
 
 	/**
-	 * Returns the number of transactions
+	 * Returns the number of transactions matching the filters
 	 *
+	 * @param filterDescription the description substring filter
+	 * @param filterDate the date to be filtered
+	 * @param filterDateFrom the earliest date to be filtered
+	 * @param filterDateTo the latest date to be filtered
+	 * @param filterTags the tags to be filtered
+	 * @param filterAccounts the account IDs to be filtered
+	 * @param filterAmountMin the minimum component amount to be filtered
+	 * @param filterAmountMax the maximum component amount to be filtered
 	 * @param user the authenticated user
 	 * @return the number of transactions
 	 */
+	@RequestMapping(value = "/count", method = RequestMethod.GET, produces = "application/json")
+	@Transactional(propagation = Propagation.REQUIRED, readOnly = true)
+	public @ResponseBody
+	long getTransactionsCount(
+			@RequestParam(value = "filterDescription", required = false) String filterDescription,
+			@RequestParam(value = "filterDate", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date filterDate,
+			@RequestParam(value = "filterDateFrom", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date filterDateFrom,
+			@RequestParam(value = "filterDateTo", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date filterDateTo,
+			@RequestParam(value = "filterTags", required = false) Collection<String> filterTags,
+			@RequestParam(value = "filterAccounts", required = false) Collection<Long> filterAccounts,
+			@RequestParam(value = "filterAmountMin", required = false) Double filterAmountMin,
+			@RequestParam(value = "filterAmountMax", required = false) Double filterAmountMax,
+			@AuthenticationPrincipal VogonSecurityUser user) {
+		long dataVersion = userRepository.findDataVersionById(user.getUser().getId());
+		TransactionFilterSpecification filter = createFilter(filterDescription, filterDate, filterDateFrom, filterDateTo, filterTags, filterAccounts, filterAmountMin, filterAmountMax, user);
+		if (filterDescription != null)
+			useDescriptionIndex(filter, dataVersion);
+		return transactionCountCache.countTransactions(filter, dataVersion, em);
+	}
+
+	/**
+	 * Returns the number of pages of transactions matching the filters
+	 *
+	 * @param filterDescription the description substring filter
+	 * @param filterDate the date to be filtered
+	 * @param filterDateFrom the earliest date to be filtered
+	 * @param filterDateTo the latest date to be filtered
+	 * @param filterTags the tags to be filtered
+	 * @param filterAccounts the account IDs to be filtered
+	 * @param filterAmountMin the minimum component amount to be filtered
+	 * @param filterAmountMax the maximum component amount to be filtered
+	 * @param user the authenticated user
+	 * @return the number of pages
+	 */
 	@RequestMapping(value = "/pages", method = RequestMethod.GET, produces = "application/json")
+	@Transactional(propagation = Propagation.REQUIRED, readOnly = true)
 	public @ResponseBody
-	long getTransactionsCount(@AuthenticationPrincipal VogonSecurityUser user) {
-		PageRequest pageRequest = PageRequest.of(0, configuration.getTransactionsPageSize());
-		return transactionRepository.findByOwner(user.getUser(), pageRequest).getTotalPages();
+	long getTransactionsPages(
+			@RequestParam(value = "filterDescription", required = false) String filterDescription,
+			@RequestParam(value = "filterDate", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date filterDate,
+			@RequestParam(value = "filterDateFrom", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date filterDateFrom,
+			@RequestParam(value = "filterDateTo", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date filterDateTo,
+			@RequestParam(value = "filterTags", required = false) Collection<String> filterTags,
+			@RequestParam(value = "filterAccounts", required = false) Collection<Long> filterAccounts,
+			@RequestParam(value = "filterAmountMin", required = false) Double filterAmountMin,
+			@RequestParam(value = "filterAmountMax", required = false) Double filterAmountMax,
+			@AuthenticationPrincipal VogonSecurityUser user) {
+		int pageSize = configuration.getTransactionsPageSize();
+		long count = getTransactionsCount(filterDescription, filterDate, filterDateFrom, filterDateTo, filterTags, filterAccounts, filterAmountMin, filterAmountMax, user);
+		return (count + pageSize - 1) / pageSize;
 	}
 
 	/**
@@ -169,6 +317,7 @@ public class TransactionsController {
 	 * @return the number of transactions
 	 */
 	@RequestMapping(value = "/transaction/{id}", method = RequestMethod.GET, produces = "application/json")
+	@Transactional(propagation = Propagation.REQUIRED, readOnly = true)
 	public @ResponseBody
 	FinanceTransactionJson getTransaction(@PathVariable long id, @AuthenticationPrincipal VogonSecurityUser user) {
 		FinanceTransaction transaction = transactionRepository.findByOwnerAndId(user.getUser(), id);
@@ -188,11 +337,13 @@ public class TransactionsController {
 	public @ResponseBody
 	FinanceTransactionJson submitTransaction(@RequestBody FinanceTransactionJson transaction, @AuthenticationPrincipal VogonSecurityUser user) {
 		FinanceTransaction existingTransaction = transactionRepository.findByOwnerAndId(user.getUser(), transaction.getId());
+		List<String> previousTags = existingTransaction != null ? Arrays.asList(existingTransaction.getTags()) : Collections.emptyList();
 		//Merge with database
 		if (existingTransaction == null)
 			existingTransaction = new FinanceTransaction(user.getUser(), transaction);
 		else
 			existingTransaction.merge(transaction);
+		new TagResolver(em).resolveTags(existingTransaction);
 		List<TransactionComponent> removedComponents = new LinkedList<>(existingTransaction.getComponents());
 		for (TransactionComponentJson newComponent : transaction.getComponentsJson()) {
 			FinanceAccount existingAccount = accountRepository.findByOwnerAndId(user.getUser(), newComponent.getAccountId());
@@ -219,6 +370,11 @@ public class TransactionsController {
 		}
 		existingTransaction = transactionRepository.saveAndFlush(existingTransaction);
 		accountRepository.flush();
+		userRepository.incrementDataVersion(user.getUser().getId());
+		long dataVersion = userRepository.findDataVersionById(user.getUser().getId());
+		tagDictionary.updateTags(user.getUser().getId(), dataVersion, previousTags, Arrays.asList(existingTransaction.getTags()));
+		columnarLedgerCache.updateTransaction(user.getUser().getId(), dataVersion, existingTransaction);
+		descriptionIndex.updateTransaction(user.getUser().getId(), dataVersion, existingTransaction);
 		return initializationHelper.initializeTransaction(existingTransaction);
 	}
 
@@ -237,12 +393,18 @@ public class TransactionsController {
 			throw new EntityNotFoundException(MessageFormat.format(messages.getString("CANNOT_DELETE_A_NON_EXISTING_TRANSACTION"), id));
 		}
 		FinanceTransactionJson deletedTransactionJson = initializationHelper.initializeTransaction(existingTransaction);
+		List<String> previousTags = Arrays.asList(existingTransaction.getTags());
 		for (TransactionComponent component : existingTransaction.getComponents()) {
 			component.setAccount(null);
 			component.setTransaction(null);
 		}
 		transactionRepository.save(existingTransaction);
 		transactionRepository.delete(existingTransaction);
+		userRepository.incrementDataVersion(user.getUser().getId());
+		long dataVersion = userRepository.findDataVersionById(user.getUser().getId());
+		tagDictionary.updateTags(user.getUser().getId(), dataVersion, previousTags, Collections.emptyList());
+		columnarLedgerCache.deleteTransaction(user.getUser().getId(), dataVersion, id);
+		descriptionIndex.deleteTransaction(user.getUser().getId(), dataVersion, id);
 		return deletedTransactionJson;
 	}
 }
@@ -110,6 +110,12 @@ public class JSONMapper extends ObjectMapper implements InitializingBean {
 		@JsonIgnore
 		public void getPassword();
 
+		/**
+		 * Disables getting of data version
+		 */
+		@JsonIgnore
+		public void getDataVersion();
+
 		/**
 		 * Allows setting of password
 		 *
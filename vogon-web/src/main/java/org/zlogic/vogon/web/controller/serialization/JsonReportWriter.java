@@ -0,0 +1,110 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.controller.serialization;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import org.zlogic.vogon.data.report.ReportTransaction;
+import org.zlogic.vogon.data.report.ReportWriter;
+import org.zlogic.vogon.data.report.TagExpense;
+
+/**
+ * ReportWriter which writes the report with a JsonGenerator, producing the
+ * same JSON as serializing the reports returned by ReportFactory.buildReport
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public class JsonReportWriter implements ReportWriter {
+
+	/**
+	 * The JSON generator
+	 */
+	private final JsonGenerator generator;
+	/**
+	 * The serializer provider, used to format dates as JSON keys
+	 */
+	private final SerializerProvider serializerProvider;
+
+	/**
+	 * Creates the writer
+	 *
+	 * @param generator the JSON generator, should use objectMapper as its codec
+	 * @param objectMapper the ObjectMapper configuration to use
+	 */
+	public JsonReportWriter(JsonGenerator generator, ObjectMapper objectMapper) {
+		this.generator = generator;
+		this.serializerProvider = objectMapper.getSerializerProviderInstance();
+	}
+
+	/**
+	 * Starts the reports object
+	 *
+	 * @throws IOException if the data cannot be written
+	 */
+	public void startReports() throws IOException {
+		generator.writeStartObject();
+	}
+
+	/**
+	 * Ends the reports object and flushes the generator
+	 *
+	 * @throws IOException if the data cannot be written
+	 */
+	public void endReports() throws IOException {
+		generator.writeEndObject();
+		generator.flush();
+	}
+
+	@Override
+	public void startCurrency(String currencyCode) throws IOException {
+		generator.writeObjectFieldStart(currencyCode);
+	}
+
+	@Override
+	public void writeTagExpenses(List<TagExpense> tagExpenses) throws IOException {
+		generator.writeObjectField("tagExpenses", tagExpenses); //NOI18N
+	}
+
+	@Override
+	public void startTransactions() throws IOException {
+		generator.writeArrayFieldStart("transactions"); //NOI18N
+	}
+
+	@Override
+	public void writeTransaction(ReportTransaction transaction) throws IOException {
+		generator.writeObject(transaction);
+	}
+
+	@Override
+	public void endTransactions() throws IOException {
+		generator.writeEndArray();
+	}
+
+	@Override
+	public void startAccountsBalanceGraph() throws IOException {
+		generator.writeObjectFieldStart("accountsBalanceGraph"); //NOI18N
+	}
+
+	@Override
+	public void writeAccountsBalance(Date date, double balance) throws IOException {
+		serializerProvider.findKeySerializer(Date.class, null).serialize(date, generator, serializerProvider);
+		generator.writeNumber(balance);
+	}
+
+	@Override
+	public void endAccountsBalanceGraph() throws IOException {
+		generator.writeEndObject();
+	}
+
+	@Override
+	public void endCurrency() throws IOException {
+		generator.writeEndObject();
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zlogic.vogon.data.FinanceTransaction;
+import org.zlogic.vogon.data.VogonUser;
+import org.zlogic.vogon.data.report.ColumnarLedger;
+import org.zlogic.vogon.data.report.Report;
+import org.zlogic.vogon.data.report.ReportFactory;
+import org.zlogic.vogon.data.report.ReportTimings;
+import org.zlogic.vogon.web.configuration.VogonConfiguration;
+
+/**
+ * Bean to keep the columnar ledgers of recently active users in memory. A
+ * user's ledger is read from the database when it's first used or when the
+ * user's data version doesn't match, and changed transactions are applied to
+ * it as deltas. The total size of all ledgers is limited, and the least
+ * recently used ledgers are removed to free space.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Component
+public class ColumnarLedgerCache implements InitializingBean {
+
+	/**
+	 * The configuration handler
+	 */
+	@Autowired
+	private VogonConfiguration configuration;
+	/**
+	 * The ledgers by user ID, in access order
+	 */
+	private final Map<Long, CachedLedger> ledgers = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * The maximum number of rows in all cached ledgers
+	 */
+	private long maxRows;
+	/**
+	 * The number of rows in all cached ledgers
+	 */
+	private long cachedRows;
+
+	/**
+	 * Reads the cache size limit
+	 *
+	 * @throws Exception if the cache cannot be configured
+	 */
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		maxRows = configuration.getColumnarLedgerRows();
+	}
+
+	/**
+	 * Builds a report from the owner's ledger, reading the ledger from the
+	 * database if it's missing or outdated
+	 *
+	 * @param reportFactory the report parameters, including the owner
+	 * @param dataVersion the owner's data version, should be read before
+	 * calling this method
+	 * @param entityManager the EntityManager to be used if the ledger needs to
+	 * be read
+	 * @param timings the timings to add the time of every phase to; reading
+	 * the ledger is measured as a query
+	 * @return the report
+	 */
+	public Map<String, Report> buildReport(ReportFactory reportFactory, long dataVersion, EntityManager entityManager, ReportTimings timings) {
+		return reportFactory.buildReport(getLedger(reportFactory.getOwner(), dataVersion, entityManager, timings), timings);
+	}
+
+	/**
+	 * Returns the user's ledger, reading it from the database if it's missing
+	 * or outdated
+	 *
+	 * @param owner the user
+	 * @param dataVersion the owner's data version, should be read before
+	 * calling this method
+	 * @param entityManager the EntityManager to be used for reading the
+	 * ledger
+	 * @param timings the timings to add the ledger reading time to
+	 * @return the user's ledger
+	 */
+	private ColumnarLedger getLedger(VogonUser owner, long dataVersion, EntityManager entityManager, ReportTimings timings) {
+		synchronized (this) {
+			CachedLedger cachedLedger = ledgers.get(owner.getId());
+			if (cachedLedger != null && cachedLedger.dataVersion == dataVersion)
+				return cachedLedger.ledger;
+		}
+		long startNanos = System.nanoTime();
+		ColumnarLedger ledger = ColumnarLedger.load(owner, entityManager);
+		timings.addTime(ReportTimings.Phase.QUERY, startNanos);
+		synchronized (this) {
+			CachedLedger existingLedger = ledgers.get(owner.getId());
+			if (existingLedger == null || existingLedger.dataVersion < dataVersion)
+				putLedger(owner.getId(), new CachedLedger(ledger, dataVersion));
+		}
+		return ledger;
+	}
+
+	/**
+	 * Stores a ledger, removing the least recently used ledgers if the cache
+	 * is full; a ledger larger than the whole cache is not stored
+	 *
+	 * @param ownerId the user ID
+	 * @param cachedLedger the ledger to store
+	 */
+	private synchronized void putLedger(long ownerId, CachedLedger cachedLedger) {
+		removeLedger(ownerId);
+		if (cachedLedger.ledger.getRowCount() > maxRows)
+			return;
+		ledgers.put(ownerId, cachedLedger);
+		cachedRows += cachedLedger.ledger.getRowCount();
+		for (Iterator<CachedLedger> it = ledgers.values().iterator(); cachedRows > maxRows && it.hasNext();) {
+			cachedRows -= it.next().ledger.getRowCount();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Removes a user's ledger
+	 *
+	 * @param ownerId the user ID
+	 */
+	private synchronized void removeLedger(long ownerId) {
+		CachedLedger cachedLedger = ledgers.remove(ownerId);
+		if (cachedLedger != null)
+			cachedRows -= cachedLedger.ledger.getRowCount();
+	}
+
+	/**
+	 * Updates the user's ledger after a transaction was created or changed.
+	 * If called inside a transaction, the ledger is updated after the
+	 * transaction is committed.
+	 *
+	 * @param ownerId the user ID
+	 * @param dataVersion the owner's data version after the change
+	 * @param transaction the created or changed transaction
+	 */
+	public void updateTransaction(long ownerId, long dataVersion, FinanceTransaction transaction) {
+		synchronized (this) {
+			if (!ledgers.containsKey(ownerId))
+				return;
+		}
+		applyAfterCommit(ownerId, dataVersion, ColumnarLedger.Delta.update(transaction));
+	}
+
+	/**
+	 * Updates the user's ledger after a transaction was deleted. If called
+	 * inside a transaction, the ledger is updated after the transaction is
+	 * committed.
+	 *
+	 * @param ownerId the user ID
+	 * @param dataVersion the owner's data version after the change
+	 * @param transactionId the deleted transaction ID
+	 */
+	public void deleteTransaction(long ownerId, long dataVersion, long transactionId) {
+		synchronized (this) {
+			if (!ledgers.containsKey(ownerId))
+				return;
+		}
+		applyAfterCommit(ownerId, dataVersion, ColumnarLedger.Delta.delete(transactionId));
+	}
+
+	/**
+	 * Applies a delta to the user's ledger after the current transaction is
+	 * committed, or immediately if there's no transaction
+	 *
+	 * @param ownerId the user ID
+	 * @param dataVersion the owner's data version after the change
+	 * @param delta the change
+	 */
+	private void applyAfterCommit(long ownerId, long dataVersion, ColumnarLedger.Delta delta) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			applyDelta(ownerId, dataVersion, delta);
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				applyDelta(ownerId, dataVersion, delta);
+			}
+		});
+	}
+
+	/**
+	 * Applies a change to a user's ledger, if the ledger is based on the data
+	 * version immediately preceding the change; otherwise, the ledger will be
+	 * read again from the database when it's used. The changed ledger is
+	 * created without holding the lock, and is only stored if the cached
+	 * ledger wasn't replaced in the meantime.
+	 *
+	 * @param ownerId the user ID
+	 * @param dataVersion the owner's data version after the change
+	 * @param delta the change
+	 */
+	private void applyDelta(long ownerId, long dataVersion, ColumnarLedger.Delta delta) {
+		CachedLedger cachedLedger;
+		synchronized (this) {
+			cachedLedger = ledgers.get(ownerId);
+		}
+		if (cachedLedger == null || cachedLedger.dataVersion != dataVersion - 1)
+			return;
+		ColumnarLedger ledger = cachedLedger.ledger.apply(delta);
+		synchronized (this) {
+			if (ledgers.get(ownerId) == cachedLedger)
+				putLedger(ownerId, new CachedLedger(ledger, dataVersion));
+		}
+	}
+
+	/**
+	 * A ledger with the data version used to build it
+	 */
+	private static class CachedLedger {
+
+		/**
+		 * The ledger
+		 */
+		private final ColumnarLedger ledger;
+		/**
+		 * The data version used to build the ledger
+		 */
+		private final long dataVersion;
+
+		/**
+		 * Creates a cached ledger
+		 *
+		 * @param ledger the ledger
+		 * @param dataVersion the data version used to build the ledger
+		 */
+		private CachedLedger(ColumnarLedger ledger, long dataVersion) {
+			this.ledger = ledger;
+			this.dataVersion = dataVersion;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.zlogic.vogon.data.tools.DatabaseMaintenance;
+
+/**
+ * Bean to update data created by previous versions when the application is
+ * started. The data is updated when this bean is created, before the web
+ * server starts accepting requests.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Component
+public class DatabaseMaintenanceHelper implements InitializingBean {
+
+	/**
+	 * The EntityManager instance
+	 */
+	@PersistenceContext
+	private EntityManager em;
+	/**
+	 * The transaction manager
+	 */
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	/**
+	 * Updates the data when the bean is created
+	 *
+	 * @throws Exception if the data cannot be updated
+	 */
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		new TransactionTemplate(transactionManager).execute(status -> {
+			refreshPrecalculatedData();
+			return null;
+		});
+	}
+
+	/**
+	 * Moves tags from the previous versions' table and calculates the missing
+	 * account daily balances and tag totals
+	 */
+	private void refreshPrecalculatedData() {
+		DatabaseMaintenance maintenance = new DatabaseMaintenance();
+		maintenance.migrateLegacyTags(em);
+		maintenance.refreshMissingDailyBalances(em);
+		maintenance.refreshMissingTagTotals(em);
+	}
+}
@@ -0,0 +1,560 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import javax.persistence.EntityManager;
+import javax.persistence.Tuple;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zlogic.vogon.data.FinanceTransaction;
+import org.zlogic.vogon.data.FinanceTransaction_;
+import org.zlogic.vogon.data.VogonUser;
+import org.zlogic.vogon.web.configuration.VogonConfiguration;
+
+/**
+ * Bean to keep a trigram index of transaction descriptions for recently
+ * active users in memory, to find transactions matching a description filter
+ * without scanning all of the user's transactions. A user's index is read
+ * from the database when it's first used or when the user's data version
+ * doesn't match, and changed transactions are applied to it as deltas. The
+ * total size of all indexes is limited, and the least recently used indexes
+ * are removed to free space.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Component
+public class DescriptionIndex implements InitializingBean {
+
+	/**
+	 * The maximum number of matching transactions which can be returned; if
+	 * more transactions match a filter, it's faster to filter them in the
+	 * database
+	 */
+	private static final int MAX_MATCHES = 1000;
+	/**
+	 * The escape character in LIKE patterns
+	 */
+	private static final char ESCAPE = '\\';
+	/**
+	 * The configuration handler
+	 */
+	@Autowired
+	private VogonConfiguration configuration;
+	/**
+	 * The indexes by user ID, in access order
+	 */
+	private final Map<Long, CachedIndex> indexes = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * The maximum number of rows in all cached indexes
+	 */
+	private long maxRows;
+	/**
+	 * The number of rows in all cached indexes
+	 */
+	private long cachedRows;
+
+	/**
+	 * Reads the cache size limit
+	 *
+	 * @throws Exception if the cache cannot be configured
+	 */
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		maxRows = configuration.getDescriptionIndexRows();
+	}
+
+	/**
+	 * Finds transactions whose description matches a filter (ignoring case)
+	 *
+	 * @param owner the user
+	 * @param dataVersion the owner's data version, should be read before
+	 * calling this method
+	 * @param filterDescription the description filter, a LIKE pattern
+	 * @param entityManager the EntityManager to be used if the index needs to
+	 * be read
+	 * @return the IDs of matching transactions, or null if the filter has no
+	 * substrings long enough to be indexed, or if too many transactions match
+	 * the filter
+	 */
+	public Set<Long> findTransactions(VogonUser owner, long dataVersion, String filterDescription, EntityManager entityManager) {
+		DescriptionFilter filter = new DescriptionFilter(filterDescription);
+		if (filter.trigrams.isEmpty())
+			return null;
+		return getIndex(owner, dataVersion, entityManager).find(filter);
+	}
+
+	/**
+	 * Returns the user's index, reading it from the database if it's missing
+	 * or outdated
+	 *
+	 * @param owner the user
+	 * @param dataVersion the owner's data version, should be read before
+	 * calling this method
+	 * @param entityManager the EntityManager to be used for reading the index
+	 * @return the user's index
+	 */
+	private UserIndex getIndex(VogonUser owner, long dataVersion, EntityManager entityManager) {
+		synchronized (this) {
+			CachedIndex cachedIndex = indexes.get(owner.getId());
+			if (cachedIndex != null && cachedIndex.dataVersion == dataVersion)
+				return cachedIndex.index;
+		}
+		UserIndex index = UserIndex.load(owner, entityManager);
+		synchronized (this) {
+			CachedIndex existingIndex = indexes.get(owner.getId());
+			if (existingIndex == null || existingIndex.dataVersion < dataVersion)
+				putIndex(owner.getId(), new CachedIndex(index, dataVersion));
+		}
+		return index;
+	}
+
+	/**
+	 * Stores an index, removing the least recently used indexes if the cache
+	 * is full; an index larger than the whole cache is not stored
+	 *
+	 * @param ownerId the user ID
+	 * @param cachedIndex the index to store
+	 */
+	private synchronized void putIndex(long ownerId, CachedIndex cachedIndex) {
+		removeIndex(ownerId);
+		if (cachedIndex.rows > maxRows)
+			return;
+		indexes.put(ownerId, cachedIndex);
+		cachedRows += cachedIndex.rows;
+		for (Iterator<CachedIndex> it = indexes.values().iterator(); cachedRows > maxRows && it.hasNext();) {
+			cachedRows -= it.next().rows;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Removes a user's index
+	 *
+	 * @param ownerId the user ID
+	 */
+	private synchronized void removeIndex(long ownerId) {
+		CachedIndex cachedIndex = indexes.remove(ownerId);
+		if (cachedIndex != null)
+			cachedRows -= cachedIndex.rows;
+	}
+
+	/**
+	 * Updates the user's index after a transaction was created or changed. If
+	 * called inside a transaction, the index is updated after the transaction
+	 * is committed.
+	 *
+	 * @param ownerId the user ID
+	 * @param dataVersion the owner's data version after the change
+	 * @param transaction the created or changed transaction
+	 */
+	public void updateTransaction(long ownerId, long dataVersion, FinanceTransaction transaction) {
+		synchronized (this) {
+			if (!indexes.containsKey(ownerId))
+				return;
+		}
+		long transactionId = transaction.getId();
+		String description = transaction.getDescription();
+		applyAfterCommit(ownerId, dataVersion, index -> index.update(transactionId, description));
+	}
+
+	/**
+	 * Updates the user's index after a transaction was deleted. If called
+	 * inside a transaction, the index is updated after the transaction is
+	 * committed.
+	 *
+	 * @param ownerId the user ID
+	 * @param dataVersion the owner's data version after the change
+	 * @param transactionId the deleted transaction ID
+	 */
+	public void deleteTransaction(long ownerId, long dataVersion, long transactionId) {
+		synchronized (this) {
+			if (!indexes.containsKey(ownerId))
+				return;
+		}
+		applyAfterCommit(ownerId, dataVersion, index -> index.delete(transactionId));
+	}
+
+	/**
+	 * Applies a change to the user's index after the current transaction is
+	 * committed, or immediately if there's no transaction
+	 *
+	 * @param ownerId the user ID
+	 * @param dataVersion the owner's data version after the change
+	 * @param delta the change
+	 */
+	private void applyAfterCommit(long ownerId, long dataVersion, Delta delta) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			applyDelta(ownerId, dataVersion, delta);
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				applyDelta(ownerId, dataVersion, delta);
+			}
+		});
+	}
+
+	/**
+	 * Applies a change to a user's index, if the index is based on the data
+	 * version immediately preceding the change; otherwise, the index will be
+	 * read again from the database when it's used
+	 *
+	 * @param ownerId the user ID
+	 * @param dataVersion the owner's data version after the change
+	 * @param delta the change
+	 */
+	private synchronized void applyDelta(long ownerId, long dataVersion, Delta delta) {
+		CachedIndex cachedIndex = indexes.get(ownerId);
+		if (cachedIndex == null || cachedIndex.dataVersion != dataVersion - 1)
+			return;
+		delta.apply(cachedIndex.index);
+		putIndex(ownerId, new CachedIndex(cachedIndex.index, dataVersion));
+	}
+
+	/**
+	 * Returns the key of a trigram
+	 *
+	 * @param text the text containing the trigram
+	 * @param start the start index of the trigram in text
+	 * @return the trigram key
+	 */
+	private static long getTrigram(String text, int start) {
+		return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+	}
+
+	/**
+	 * Normalizes a description (or filter) to be case-insensitive
+	 *
+	 * @param text the description
+	 * @return the normalized description
+	 */
+	private static String normalize(String text) {
+		return text.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * A change to an index
+	 */
+	private interface Delta {
+
+		/**
+		 * Applies the change to an index
+		 *
+		 * @param index the index to change
+		 */
+		void apply(UserIndex index);
+	}
+
+	/**
+	 * A parsed description filter
+	 */
+	private static class DescriptionFilter {
+
+		/**
+		 * The trigrams which should be present in a matching description
+		 */
+		private final Set<Long> trigrams = new HashSet<>();
+		/**
+		 * The regular expression matching the same descriptions as the filter
+		 */
+		private final Pattern pattern;
+
+		/**
+		 * Parses a LIKE pattern, extracting trigrams from its literal
+		 * substrings
+		 *
+		 * @param filterDescription the LIKE pattern
+		 */
+		private DescriptionFilter(String filterDescription) {
+			String filter = normalize(filterDescription);
+			StringBuilder regex = new StringBuilder();
+			StringBuilder literal = new StringBuilder();
+			for (int i = 0; i < filter.length(); i++) {
+				char c = filter.charAt(i);
+				if (c == '%' || c == '_') {
+					addTrigrams(literal.toString());
+					regex.append(Pattern.quote(literal.toString())).append(c == '%' ? ".*" : "."); //NOI18N
+					literal.setLength(0);
+				} else {
+					if (c == ESCAPE && i + 1 < filter.length())
+						c = filter.charAt(++i);
+					literal.append(c);
+				}
+			}
+			addTrigrams(literal.toString());
+			regex.append(Pattern.quote(literal.toString()));
+			pattern = Pattern.compile(regex.toString(), Pattern.DOTALL);
+		}
+
+		/**
+		 * Adds the trigrams of a literal substring
+		 *
+		 * @param literal the literal substring
+		 */
+		private void addTrigrams(String literal) {
+			for (int i = 0; i + 3 <= literal.length(); i++)
+				trigrams.add(getTrigram(literal, i));
+		}
+	}
+
+	/**
+	 * Growable list of positions in an index
+	 */
+	private static class Postings {
+
+		/**
+		 * The positions, in ascending order
+		 */
+		private int[] positions = new int[4];
+		/**
+		 * The number of positions
+		 */
+		private int size;
+
+		/**
+		 * Adds a position, which should be larger than all existing positions
+		 *
+		 * @param position the position to add
+		 */
+		private void add(int position) {
+			if (size == positions.length)
+				positions = Arrays.copyOf(positions, size * 2);
+			positions[size++] = position;
+		}
+	}
+
+	/**
+	 * The index of a single user's descriptions. Changed and deleted
+	 * descriptions are marked as deleted, and changed descriptions are added
+	 * to the end of the index; the index is rebuilt when most of its
+	 * descriptions are deleted.
+	 */
+	private static class UserIndex {
+
+		/**
+		 * The transaction IDs by position
+		 */
+		private long[] transactionIds = new long[16];
+		/**
+		 * The normalized descriptions by position, null for deleted
+		 * descriptions
+		 */
+		private String[] descriptions = new String[16];
+		/**
+		 * The number of positions, including deleted descriptions
+		 */
+		private int size;
+		/**
+		 * The number of deleted descriptions
+		 */
+		private int deleted;
+		/**
+		 * The positions of descriptions containing every trigram
+		 */
+		private final Map<Long, Postings> trigrams = new HashMap<>();
+
+		/**
+		 * Reads the descriptions of a user's transactions
+		 *
+		 * @param owner the user
+		 * @param entityManager the EntityManager to be used for reading
+		 * @return the user's index
+		 */
+		private static UserIndex load(VogonUser owner, EntityManager entityManager) {
+			CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+			CriteriaQuery<Tuple> descriptionsCriteriaQuery = cb.createTupleQuery();
+			Root<FinanceTransaction> tr = descriptionsCriteriaQuery.from(FinanceTransaction.class);
+			descriptionsCriteriaQuery.where(cb.equal(tr.get(FinanceTransaction_.owner), owner));
+			descriptionsCriteriaQuery.multiselect(tr.get(FinanceTransaction_.id), tr.get(FinanceTransaction_.description));
+			UserIndex index = new UserIndex();
+			for (Tuple row : entityManager.createQuery(descriptionsCriteriaQuery).getResultList())
+				index.add(row.get(0, Long.class), row.get(1, String.class));
+			return index;
+		}
+
+		/**
+		 * Adds a description to the end of the index
+		 *
+		 * @param transactionId the transaction ID
+		 * @param description the description
+		 */
+		private synchronized void add(long transactionId, String description) {
+			String normalizedDescription = normalize(description != null ? description : ""); //NOI18N
+			if (size == transactionIds.length) {
+				transactionIds = Arrays.copyOf(transactionIds, size * 2);
+				descriptions = Arrays.copyOf(descriptions, size * 2);
+			}
+			int position = size++;
+			transactionIds[position] = transactionId;
+			descriptions[position] = normalizedDescription;
+			Set<Long> descriptionTrigrams = new HashSet<>();
+			for (int i = 0; i + 3 <= normalizedDescription.length(); i++)
+				descriptionTrigrams.add(getTrigram(normalizedDescription, i));
+			for (long trigram : descriptionTrigrams)
+				trigrams.computeIfAbsent(trigram, key -> new Postings()).add(position);
+		}
+
+		/**
+		 * Marks a transaction's description as deleted
+		 *
+		 * @param transactionId the transaction ID
+		 */
+		private synchronized void delete(long transactionId) {
+			for (int i = 0; i < size; i++)
+				if (transactionIds[i] == transactionId && descriptions[i] != null) {
+					descriptions[i] = null;
+					deleted++;
+				}
+			if (deleted > size / 2)
+				compact();
+		}
+
+		/**
+		 * Rebuilds the index without deleted descriptions
+		 */
+		private synchronized void compact() {
+			long[] existingTransactionIds = transactionIds;
+			String[] existingDescriptions = descriptions;
+			int existingSize = size;
+			transactionIds = new long[16];
+			descriptions = new String[16];
+			size = 0;
+			deleted = 0;
+			trigrams.clear();
+			for (int i = 0; i < existingSize; i++)
+				if (existingDescriptions[i] != null)
+					add(existingTransactionIds[i], existingDescriptions[i]);
+		}
+
+		/**
+		 * Replaces a transaction's description, or adds a new transaction
+		 *
+		 * @param transactionId the transaction ID
+		 * @param description the new description
+		 */
+		private synchronized void update(long transactionId, String description) {
+			delete(transactionId);
+			add(transactionId, description);
+		}
+
+		/**
+		 * Finds transactions matching a filter
+		 *
+		 * @param filter the filter
+		 * @return the IDs of matching transactions, or null if too many
+		 * transactions match the filter
+		 */
+		private synchronized Set<Long> find(DescriptionFilter filter) {
+			List<Postings> postings = new ArrayList<>();
+			for (long trigram : filter.trigrams) {
+				Postings trigramPostings = trigrams.get(trigram);
+				if (trigramPostings == null)
+					return new HashSet<>();
+				postings.add(trigramPostings);
+			}
+			//Intersect starting with the shortest list
+			postings.sort(Comparator.comparingInt(trigramPostings -> trigramPostings.size));
+			int[] candidates = Arrays.copyOf(postings.get(0).positions, postings.get(0).size);
+			int candidatesCount = candidates.length;
+			for (int i = 1; i < postings.size() && candidatesCount > 0; i++)
+				candidatesCount = intersect(candidates, candidatesCount, postings.get(i));
+			Set<Long> matches = new HashSet<>();
+			for (int i = 0; i < candidatesCount; i++) {
+				String description = descriptions[candidates[i]];
+				if (description == null || !filter.pattern.matcher(description).matches())
+					continue;
+				if (matches.size() >= MAX_MATCHES)
+					return null;
+				matches.add(transactionIds[candidates[i]]);
+			}
+			return matches;
+		}
+
+		/**
+		 * Keeps only candidates which are also present in a postings list
+		 *
+		 * @param candidates the candidate positions, in ascending order;
+		 * updated in place
+		 * @param candidatesCount the number of candidates
+		 * @param postings the postings list
+		 * @return the number of remaining candidates
+		 */
+		private static int intersect(int[] candidates, int candidatesCount, Postings postings) {
+			int remaining = 0;
+			for (int i = 0, j = 0; i < candidatesCount && j < postings.size;) {
+				if (candidates[i] < postings.positions[j]) {
+					i++;
+				} else if (candidates[i] > postings.positions[j]) {
+					j++;
+				} else {
+					candidates[remaining++] = candidates[i];
+					i++;
+					j++;
+				}
+			}
+			return remaining;
+		}
+
+		/**
+		 * Returns the number of rows in this index
+		 *
+		 * @return the number of rows (including deleted descriptions)
+		 */
+		private synchronized int getRowCount() {
+			return size;
+		}
+	}
+
+	/**
+	 * An index with the data version used to build it
+	 */
+	private static class CachedIndex {
+
+		/**
+		 * The index
+		 */
+		private final UserIndex index;
+		/**
+		 * The data version used to build the index
+		 */
+		private final long dataVersion;
+		/**
+		 * The number of rows in the index when it was stored
+		 */
+		private final long rows;
+
+		/**
+		 * Creates a cached index
+		 *
+		 * @param index the index
+		 * @param dataVersion the data version used to build the index
+		 */
+		private CachedIndex(UserIndex index, long dataVersion) {
+			this.index = index;
+			this.dataVersion = dataVersion;
+			this.rows = index.getRowCount();
+		}
+	}
+}
@@ -5,9 +5,6 @@
  */
 package org.zlogic.vogon.web.data;
 
-import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
 import org.springframework.stereotype.Component;
 import org.zlogic.vogon.data.FinanceTransaction;
 import org.zlogic.vogon.web.data.model.FinanceTransactionJson;
@@ -29,17 +26,4 @@ public class InitializationHelper {
 	public FinanceTransactionJson initializeTransaction(FinanceTransaction transaction) {
 		return new FinanceTransactionJson(transaction);
 	}
-
-	/**
-	 * Initialize transactions
-	 *
-	 * @param transactions transactions to initialize
-	 * @return the transactions list
-	 */
-	public List<FinanceTransactionJson> initializeTransactions(Collection<FinanceTransaction> transactions) {
-		List<FinanceTransactionJson> newTransactions = new LinkedList<>();
-		for (FinanceTransaction transaction : transactions)
-			newTransactions.add(initializeTransaction(transaction));
-		return newTransactions;
-	}
 }
@@ -0,0 +1,255 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.zlogic.vogon.data.FinanceAccount;
+import org.zlogic.vogon.data.report.DateBalance;
+import org.zlogic.vogon.data.report.Report;
+import org.zlogic.vogon.data.report.ReportFactory;
+import org.zlogic.vogon.data.report.ReportTimings;
+import org.zlogic.vogon.web.configuration.VogonConfiguration;
+
+/**
+ * Bean to cache built reports. Reports are cached by the owner's data version,
+ * so a report is never returned after the owner's data has been changed.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Component
+public class ReportCache implements InitializingBean {
+
+	/**
+	 * The cache name used in metrics
+	 */
+	private static final String CACHE_NAME = "reports"; //NOI18N
+	/**
+	 * The configuration handler
+	 */
+	@Autowired
+	private VogonConfiguration configuration;
+	/**
+	 * The metrics registry
+	 */
+	@Autowired
+	private MeterRegistry meterRegistry;
+	/**
+	 * The report executor
+	 */
+	@Autowired
+	private ReportExecutor reportExecutor;
+	/**
+	 * The columnar ledger cache
+	 */
+	@Autowired
+	private ColumnarLedgerCache columnarLedgerCache;
+	/**
+	 * The cached reports, in access order
+	 */
+	private Map<ReportKey, Map<String, Report>> reports;
+	/**
+	 * The number of reports returned from the cache
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	/**
+	 * The number of reports which had to be built
+	 */
+	private final AtomicLong misses = new AtomicLong();
+	/**
+	 * The number of reports removed from the cache to free space
+	 */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates the cache and registers its metrics
+	 *
+	 * @throws Exception if the cache cannot be created
+	 */
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		int maxSize = configuration.getReportCacheSize();
+		reports = new LinkedHashMap<ReportKey, Map<String, Report>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ReportKey, Map<String, Report>> eldest) {
+				if (size() <= maxSize)
+					return false;
+				evictions.incrementAndGet();
+				return true;
+			}
+		};
+		FunctionCounter.builder("cache.gets", hits, AtomicLong::doubleValue).tag("cache", CACHE_NAME).tag("result", "hit") //NOI18N
+				.description("The number of times cache lookup methods have returned a cached value.").register(meterRegistry); //NOI18N
+		FunctionCounter.builder("cache.gets", misses, AtomicLong::doubleValue).tag("cache", CACHE_NAME).tag("result", "miss") //NOI18N
+				.description("The number of times cache lookup methods have returned an uncached (newly loaded) value.").register(meterRegistry); //NOI18N
+		FunctionCounter.builder("cache.evictions", evictions, AtomicLong::doubleValue).tag("cache", CACHE_NAME) //NOI18N
+				.description("The number of times the cache was evicted.").register(meterRegistry); //NOI18N
+		Gauge.builder("cache.size", this, ReportCache::size).tag("cache", CACHE_NAME) //NOI18N
+				.description("The number of entries in this cache.").register(meterRegistry); //NOI18N
+	}
+
+	/**
+	 * Returns the number of cached reports
+	 *
+	 * @return the number of cached reports
+	 */
+	private synchronized double size() {
+		return reports.size();
+	}
+
+	/**
+	 * Returns the cached report, or builds and caches the report if it's not
+	 * in the cache
+	 *
+	 * @param reportFactory the report parameters, including the owner
+	 * @param dataVersion the owner's data version, should be read before
+	 * building the report
+	 * @param entityManager the EntityManager to be used for building the
+	 * report
+	 * @param timings the timings to add the time of every phase to, if the
+	 * report is built
+	 * @return the report
+	 */
+	public Map<String, Report> getReport(ReportFactory reportFactory, long dataVersion, EntityManager entityManager, ReportTimings timings) {
+		ReportKey key = new ReportKey(reportFactory, dataVersion);
+		synchronized (this) {
+			Map<String, Report> report = reports.get(key);
+			if (report != null) {
+				hits.incrementAndGet();
+				return report;
+			}
+		}
+		misses.incrementAndGet();
+		Map<String, Report> report = configuration.isColumnarReports()
+				? columnarLedgerCache.buildReport(reportFactory, dataVersion, entityManager, timings)
+				: reportExecutor.buildReport(reportFactory, entityManager, timings);
+		synchronized (this) {
+			reports.put(key, report);
+		}
+		return report;
+	}
+
+	/**
+	 * Canonical form of the report parameters
+	 */
+	private static class ReportKey {
+
+		/**
+		 * The owner ID
+		 */
+		private final long ownerId;
+		/**
+		 * The owner's data version
+		 */
+		private final long dataVersion;
+		/**
+		 * The earliest date
+		 */
+		private final Date earliestDate;
+		/**
+		 * The latest date
+		 */
+		private final Date latestDate;
+		/**
+		 * The selected tags
+		 */
+		private final Set<String> selectedTags;
+		/**
+		 * The selected account IDs
+		 */
+		private final Set<Long> selectedAccounts;
+		/**
+		 * Include expense transactions
+		 */
+		private final boolean enabledExpenseTransactions;
+		/**
+		 * Include income transactions
+		 */
+		private final boolean enabledIncomeTransactions;
+		/**
+		 * Include transfer transactions
+		 */
+		private final boolean enabledTransferTransactions;
+		/**
+		 * The number of largest transactions to skip
+		 */
+		private final int transactionsOffset;
+		/**
+		 * The maximum number of transactions
+		 */
+		private final Integer transactionsLimit;
+		/**
+		 * The period represented by a single balance graph date
+		 */
+		private final DateBalance.Granularity balanceGraphGranularity;
+		/**
+		 * The maximum number of balance graph dates
+		 */
+		private final Integer balanceGraphPoints;
+
+		/**
+		 * Creates the canonical form of report parameters
+		 *
+		 * @param reportFactory the report parameters
+		 * @param dataVersion the owner's data version
+		 */
+		private ReportKey(ReportFactory reportFactory, long dataVersion) {
+			this.ownerId = reportFactory.getOwner().getId();
+			this.dataVersion = dataVersion;
+			this.earliestDate = reportFactory.getEarliestDate() != null ? new Date(reportFactory.getEarliestDate().getTime()) : null;
+			this.latestDate = reportFactory.getLatestDate() != null ? new Date(reportFactory.getLatestDate().getTime()) : null;
+			this.selectedTags = reportFactory.getSelectedTags() != null ? new TreeSet<>(reportFactory.getSelectedTags()) : null;
+			if (reportFactory.getSelectedAccounts() != null) {
+				this.selectedAccounts = new TreeSet<>();
+				for (FinanceAccount account : reportFactory.getSelectedAccounts())
+					this.selectedAccounts.add(account.getId());
+			} else {
+				this.selectedAccounts = null;
+			}
+			this.enabledExpenseTransactions = reportFactory.isEnabledExpenseTransactions();
+			this.enabledIncomeTransactions = reportFactory.isEnabledIncomeTransactions();
+			this.enabledTransferTransactions = reportFactory.isEnabledTransferTransactions();
+			this.transactionsOffset = reportFactory.getTransactionsOffset();
+			this.transactionsLimit = reportFactory.getTransactionsLimit();
+			this.balanceGraphGranularity = reportFactory.getBalanceGraphGranularity();
+			this.balanceGraphPoints = reportFactory.getBalanceGraphPoints();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ReportKey))
+				return false;
+			ReportKey key = (ReportKey) obj;
+			return ownerId == key.ownerId && dataVersion == key.dataVersion
+					&& Objects.equals(earliestDate, key.earliestDate) && Objects.equals(latestDate, key.latestDate)
+					&& Objects.equals(selectedTags, key.selectedTags) && Objects.equals(selectedAccounts, key.selectedAccounts)
+					&& enabledExpenseTransactions == key.enabledExpenseTransactions
+					&& enabledIncomeTransactions == key.enabledIncomeTransactions
+					&& enabledTransferTransactions == key.enabledTransferTransactions
+					&& transactionsOffset == key.transactionsOffset && Objects.equals(transactionsLimit, key.transactionsLimit)
+					&& balanceGraphGranularity == key.balanceGraphGranularity && Objects.equals(balanceGraphPoints, key.balanceGraphPoints);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(ownerId, dataVersion, earliestDate, latestDate, selectedTags, selectedAccounts,
+					enabledExpenseTransactions, enabledIncomeTransactions, enabledTransferTransactions, transactionsOffset, transactionsLimit,
+					balanceGraphGranularity, balanceGraphPoints);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.zlogic.vogon.data.report.Report;
+import org.zlogic.vogon.data.report.ReportFactory;
+import org.zlogic.vogon.data.report.ReportTimings;
+import org.zlogic.vogon.web.ReplicaRoutingDataSource;
+import org.zlogic.vogon.web.configuration.VogonConfiguration;
+
+/**
+ * Bean to build reports, optionally building the report for every currency in
+ * parallel. Parallel reports use a bounded thread pool shared by all users,
+ * and every user can only use a limited number of its threads at the same
+ * time. The requesting thread never waits for a free thread: if the user has
+ * no threads left or the pool is busy, the currency is built by the
+ * requesting thread, as if parallel reports were disabled.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Component
+public class ReportExecutor implements InitializingBean, DisposableBean {
+
+	/**
+	 * The configuration handler
+	 */
+	@Autowired
+	private VogonConfiguration configuration;
+	/**
+	 * The EntityManager instance, bound to the current thread's transaction
+	 */
+	@PersistenceContext
+	private EntityManager em;
+	/**
+	 * The transaction manager
+	 */
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	/**
+	 * Template for running every currency's report in a separate read-only
+	 * transaction
+	 */
+	private TransactionTemplate transactionTemplate;
+	/**
+	 * The executor for building currency reports
+	 */
+	private ThreadPoolExecutor executor;
+	/**
+	 * The number of threads used by every user, by user ID; users who aren't
+	 * using any threads are removed
+	 */
+	private final ConcurrentMap<Long, Integer> userThreads = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates the executor
+	 *
+	 * @throws Exception if the executor cannot be created
+	 */
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		transactionTemplate = new TransactionTemplate(transactionManager);
+		transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		transactionTemplate.setReadOnly(true);
+		int threads = Math.max(1, configuration.getReportThreads());
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("vogon-report-"); //NOI18N
+		threadFactory.setDaemon(true);
+		//Tasks are never queued: if all threads are busy, new tasks are rejected and built by the requesting thread
+		executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new SynchronousQueue<>(), threadFactory);
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Stops the executor
+	 *
+	 * @throws Exception if the executor cannot be stopped
+	 */
+	@Override
+	public void destroy() throws Exception {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Builds a report; if parallel reports are enabled, every currency is
+	 * built in a separate thread and transaction
+	 *
+	 * @param reportFactory the report parameters, including the owner
+	 * @param entityManager the EntityManager to be used if the report is
+	 * built in the current thread
+	 * @param timings the timings to add the time of every phase to; the
+	 * phases of currencies built in parallel are added up
+	 * @return the report
+	 */
+	public Map<String, Report> buildReport(ReportFactory reportFactory, EntityManager entityManager, ReportTimings timings) {
+		if (!configuration.isParallelReports())
+			return reportFactory.buildReport(entityManager, timings);
+		List<ReportFactory> currencyReportFactories = reportFactory.splitByCurrency();
+		if (currencyReportFactories.size() <= 1)
+			return reportFactory.buildReport(entityManager, timings);
+
+		long ownerId = reportFactory.getOwner().getId();
+		List<Future<Map<String, Report>>> currencyReports = new ArrayList<>();
+		List<ReportFactory> localReportFactories = new ArrayList<>();
+		for (ReportFactory currencyReportFactory : currencyReportFactories) {
+			if (!acquireThread(ownerId)) {
+				localReportFactories.add(currencyReportFactory);
+				continue;
+			}
+			try {
+				currencyReports.add(executor.submit(() -> {
+					try {
+						//The report is cached with the data version read by the requesting thread, a lagging replica could return older data
+						return ReplicaRoutingDataSource.executeOnPrimary(ownerId, () -> transactionTemplate.execute(status -> currencyReportFactory.buildReport(em, timings)));
+					} finally {
+						releaseThread(ownerId);
+					}
+				}));
+			} catch (RejectedExecutionException ex) {
+				releaseThread(ownerId);
+				localReportFactories.add(currencyReportFactory);
+			}
+		}
+		Map<String, Report> reports = new TreeMap<>();
+		for (ReportFactory localReportFactory : localReportFactories)
+			reports.putAll(localReportFactory.buildReport(entityManager, timings));
+		try {
+			for (Future<Map<String, Report>> currencyReport : currencyReports)
+				reports.putAll(currencyReport.get());
+			return reports;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ex.getCause();
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Takes one of a user's threads if the user has any threads left
+	 *
+	 * @param ownerId the user ID
+	 * @return true if a thread was taken and should be released with
+	 * releaseThread
+	 */
+	private boolean acquireThread(long ownerId) {
+		int maxThreads = Math.max(1, configuration.getReportUserThreads());
+		boolean[] acquired = new boolean[1];
+		userThreads.compute(ownerId, (id, usedThreads) -> {
+			int threads = usedThreads != null ? usedThreads : 0;
+			if (threads >= maxThreads)
+				return usedThreads;
+			acquired[0] = true;
+			return threads + 1;
+		});
+		return acquired[0];
+	}
+
+	/**
+	 * Returns a thread taken by acquireThread, removing the user if it has no
+	 * more threads in use
+	 *
+	 * @param ownerId the user ID
+	 */
+	private void releaseThread(long ownerId) {
+		userThreads.computeIfPresent(ownerId, (id, usedThreads) -> usedThreads > 1 ? usedThreads - 1 : null);
+	}
+}
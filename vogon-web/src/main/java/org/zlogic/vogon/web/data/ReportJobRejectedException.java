@@ -0,0 +1,29 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data;
+
+import java.util.concurrent.RejectedExecutionException;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Exception thrown when a report job cannot be started because the user or the
+ * server has too many unfinished jobs; the client should try again later
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+public class ReportJobRejectedException extends RejectedExecutionException {
+
+	/**
+	 * Creates the ReportJobRejectedException
+	 *
+	 * @param message the reason why the job was rejected
+	 */
+	public ReportJobRejectedException(String message) {
+		super(message);
+	}
+}
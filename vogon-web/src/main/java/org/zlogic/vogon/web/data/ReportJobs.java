@@ -0,0 +1,402 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.zlogic.vogon.data.report.Report;
+import org.zlogic.vogon.data.report.ReportFactory;
+import org.zlogic.vogon.data.report.ReportTimings;
+import org.zlogic.vogon.web.ReplicaRoutingDataSource;
+import org.zlogic.vogon.web.configuration.VogonConfiguration;
+import org.zlogic.vogon.web.data.model.ReportJobJson;
+
+/**
+ * Bean to build reports asynchronously. Jobs run in a bounded thread pool
+ * shared by all users, and every user can only have a limited number of
+ * unfinished jobs; a cancelled job is unfinished until its task exits. Finished
+ * jobs are kept until they expire, so that their results can be polled; expired
+ * jobs are removed periodically. Every user can only have a limited number of
+ * finished jobs; when a job finishes, the owner's oldest finished jobs are
+ * removed.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Component
+public class ReportJobs implements InitializingBean, DisposableBean {
+
+	/**
+	 * Localization messages
+	 */
+	private static final ResourceBundle messages = ResourceBundle.getBundle("org/zlogic/vogon/web/messages");
+	/**
+	 * The configuration handler
+	 */
+	@Autowired
+	private VogonConfiguration configuration;
+	/**
+	 * The EntityManager instance, bound to the current thread's transaction
+	 */
+	@PersistenceContext
+	private EntityManager em;
+	/**
+	 * The transaction manager
+	 */
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	/**
+	 * The users repository
+	 */
+	@Autowired
+	private UserRepository userRepository;
+	/**
+	 * The report cache
+	 */
+	@Autowired
+	private ReportCache reportCache;
+	/**
+	 * The report metrics
+	 */
+	@Autowired
+	private ReportMetrics reportMetrics;
+	/**
+	 * Template for running every job in a separate read-only transaction
+	 */
+	private TransactionTemplate transactionTemplate;
+	/**
+	 * The executor for running jobs
+	 */
+	private ThreadPoolExecutor executor;
+	/**
+	 * The executor for removing expired jobs
+	 */
+	private ScheduledExecutorService cleanupExecutor;
+	/**
+	 * The jobs by job ID
+	 */
+	private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<>();
+	/**
+	 * The number of jobs whose task hasn't exited yet, by owner ID, including
+	 * cancelled jobs; users without such jobs are removed
+	 */
+	private final Map<Long, Integer> unfinishedJobs = new HashMap<>();
+
+	/**
+	 * Creates the executors
+	 *
+	 * @throws Exception if the executors cannot be created
+	 */
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		transactionTemplate = new TransactionTemplate(transactionManager);
+		transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		transactionTemplate.setReadOnly(true);
+		int threads = Math.max(1, configuration.getReportJobThreads());
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("vogon-report-job-"); //NOI18N
+		threadFactory.setDaemon(true);
+		//If the queue is full, new jobs are rejected
+		executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(threads * 16), threadFactory);
+		executor.allowCoreThreadTimeOut(true);
+		//Expired jobs are removed even if there are no requests
+		long cleanupPeriod = Math.max(1, Math.min(configuration.getReportJobTtl(), 60));
+		CustomizableThreadFactory cleanupThreadFactory = new CustomizableThreadFactory("vogon-report-job-cleanup-"); //NOI18N
+		cleanupThreadFactory.setDaemon(true);
+		cleanupExecutor = Executors.newSingleThreadScheduledExecutor(cleanupThreadFactory);
+		cleanupExecutor.scheduleWithFixedDelay(this::removeExpiredJobs, cleanupPeriod, cleanupPeriod, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the executors
+	 *
+	 * @throws Exception if the executors cannot be stopped
+	 */
+	@Override
+	public void destroy() throws Exception {
+		executor.shutdownNow();
+		cleanupExecutor.shutdownNow();
+	}
+
+	/**
+	 * Starts building a report
+	 *
+	 * @param reportFactory the report parameters, including the owner
+	 * @return the created job
+	 * @throws ReportJobRejectedException if the owner has too many unfinished
+	 * jobs, or if the job queue is full
+	 */
+	public ReportJobJson submit(ReportFactory reportFactory) throws ReportJobRejectedException {
+		removeExpiredJobs();
+		long ownerId = reportFactory.getOwner().getId();
+		Job job = new Job(UUID.randomUUID().toString(), ownerId);
+		job.task = new FutureTask<>(() -> {
+			try {
+				runJob(job, reportFactory);
+			} finally {
+				jobExited(job);
+			}
+		}, null);
+		synchronized (this) {
+			if (unfinishedJobs.getOrDefault(ownerId, 0) >= Math.max(1, configuration.getReportUserJobs()))
+				throw new ReportJobRejectedException(messages.getString("TOO_MANY_REPORT_JOBS"));
+			unfinishedJobs.merge(ownerId, 1, Integer::sum);
+			jobs.put(job.id, job);
+		}
+		try {
+			executor.execute(job.task);
+		} catch (RejectedExecutionException ex) {
+			jobs.remove(job.id);
+			jobExited(job);
+			throw new ReportJobRejectedException(messages.getString("REPORT_JOB_QUEUE_IS_FULL"));
+		}
+		return job.toJson();
+	}
+
+	/**
+	 * Removes a job from the owner's unfinished jobs, after its task exited or
+	 * if it will never run
+	 *
+	 * @param job the job
+	 */
+	private synchronized void jobExited(Job job) {
+		unfinishedJobs.computeIfPresent(job.ownerId, (ownerId, count) -> count > 1 ? count - 1 : null);
+	}
+
+	/**
+	 * Builds the report of a job, unless the job was cancelled
+	 *
+	 * @param job the job
+	 * @param reportFactory the report parameters
+	 */
+	private void runJob(Job job, ReportFactory reportFactory) {
+		if (!job.start())
+			return;
+		try {
+			ReportTimings timings = new ReportTimings();
+			//The job thread has no SecurityContext, so the owner is used for routing explicitly
+			Map<String, Report> result = ReplicaRoutingDataSource.executeForUser(job.ownerId, () -> transactionTemplate.execute(status -> {
+				//Build report or use a cached one if the data hasn't changed
+				long dataVersion = userRepository.findDataVersionById(job.ownerId);
+				return reportCache.getReport(reportFactory, dataVersion, em, timings);
+			}));
+			reportMetrics.record(timings, result);
+			finishJob(job, result, null);
+		} catch (RuntimeException ex) {
+			finishJob(job, null, ex.getMessage() != null ? ex.getMessage() : ex.getClass().getName());
+		}
+	}
+
+	/**
+	 * Stores the result of a job, first removing the owner's oldest finished
+	 * jobs so that the owner doesn't have more finished jobs than allowed
+	 *
+	 * @param job the job
+	 * @param result the report, or null if the job failed
+	 * @param error the error message, or null if the job succeeded
+	 */
+	private synchronized void finishJob(Job job, Map<String, Report> result, String error) {
+		if (job.isFinished())
+			return;
+		int maxJobs = Math.max(1, configuration.getReportUserRetainedJobs());
+		List<Job> finishedJobs = new ArrayList<>();
+		for (Job finishedJob : jobs.values())
+			if (finishedJob.ownerId == job.ownerId && finishedJob.isFinished())
+				finishedJobs.add(finishedJob);
+		finishedJobs.sort(Comparator.comparingLong(Job::getFinishedTime));
+		for (int i = 0; i <= finishedJobs.size() - maxJobs; i++)
+			jobs.remove(finishedJobs.get(i).id, finishedJobs.get(i));
+		job.finish(result, error);
+	}
+
+	/**
+	 * Returns a job
+	 *
+	 * @param id the job ID
+	 * @param ownerId the ID of the user requesting the job
+	 * @return the job, or null if the job doesn't exist, has expired or
+	 * belongs to another user
+	 */
+	public ReportJobJson getJob(String id, long ownerId) {
+		removeExpiredJobs();
+		Job job = jobs.get(id);
+		if (job == null || job.ownerId != ownerId)
+			return null;
+		return job.toJson();
+	}
+
+	/**
+	 * Cancels a job if it's not finished, and removes it. A running job is not
+	 * interrupted while it's using the database; its result is discarded
+	 * when it's finished, and until then it's counted as an unfinished job.
+	 *
+	 * @param id the job ID
+	 * @param ownerId the ID of the user requesting the cancellation
+	 * @return the removed job, or null if the job doesn't exist, has expired
+	 * or belongs to another user
+	 */
+	public ReportJobJson cancelJob(String id, long ownerId) {
+		removeExpiredJobs();
+		Job job = jobs.get(id);
+		if (job == null || job.ownerId != ownerId || !jobs.remove(id, job))
+			return null;
+		job.cancel();
+		if (executor.remove(job.task))
+			jobExited(job);
+		return job.toJson();
+	}
+
+	/**
+	 * Removes finished jobs whose results have expired
+	 */
+	private void removeExpiredJobs() {
+		long expiredTime = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(configuration.getReportJobTtl());
+		jobs.values().removeIf(job -> job.isExpired(expiredTime));
+	}
+
+	/**
+	 * The state of a single job
+	 */
+	private static class Job {
+
+		/**
+		 * The job ID
+		 */
+		private final String id;
+		/**
+		 * The owner ID
+		 */
+		private final long ownerId;
+		/**
+		 * The task building the report
+		 */
+		private FutureTask<Void> task;
+		/**
+		 * The job status
+		 */
+		private ReportJobJson.Status status = ReportJobJson.Status.QUEUED;
+		/**
+		 * The report, if the job is done
+		 */
+		private Map<String, Report> result;
+		/**
+		 * The error message, if the job failed
+		 */
+		private String error;
+		/**
+		 * The time when the job was finished
+		 */
+		private long finishedTime;
+
+		/**
+		 * Creates a queued job
+		 *
+		 * @param id the job ID
+		 * @param ownerId the owner ID
+		 */
+		private Job(String id, long ownerId) {
+			this.id = id;
+			this.ownerId = ownerId;
+		}
+
+		/**
+		 * Marks the job as running
+		 *
+		 * @return true if the job should run, false if it was cancelled
+		 */
+		private synchronized boolean start() {
+			if (status != ReportJobJson.Status.QUEUED)
+				return false;
+			status = ReportJobJson.Status.RUNNING;
+			return true;
+		}
+
+		/**
+		 * Stores the job result, unless the job was cancelled
+		 *
+		 * @param result the report, or null if the job failed
+		 * @param error the error message, or null if the job succeeded
+		 */
+		private synchronized void finish(Map<String, Report> result, String error) {
+			if (status == ReportJobJson.Status.CANCELLED)
+				return;
+			this.status = error == null ? ReportJobJson.Status.DONE : ReportJobJson.Status.FAILED;
+			this.result = result;
+			this.error = error;
+			this.finishedTime = System.currentTimeMillis();
+		}
+
+		/**
+		 * Cancels the job if it's not finished
+		 */
+		private synchronized void cancel() {
+			if (isFinished())
+				return;
+			status = ReportJobJson.Status.CANCELLED;
+			finishedTime = System.currentTimeMillis();
+		}
+
+		/**
+		 * Returns true if the job is finished
+		 *
+		 * @return true if the job is done, failed or cancelled
+		 */
+		private synchronized boolean isFinished() {
+			return status != ReportJobJson.Status.QUEUED && status != ReportJobJson.Status.RUNNING;
+		}
+
+		/**
+		 * Returns the time when the job was finished
+		 *
+		 * @return the time when the job was finished
+		 */
+		private synchronized long getFinishedTime() {
+			return finishedTime;
+		}
+
+		/**
+		 * Returns true if the job was finished before a specific time
+		 *
+		 * @param expiredTime the time before which finished jobs are expired
+		 * @return true if the job is finished and expired
+		 */
+		private synchronized boolean isExpired(long expiredTime) {
+			return isFinished() && finishedTime <= expiredTime;
+		}
+
+		/**
+		 * Returns the JSON view of the job
+		 *
+		 * @return the JSON view of the job
+		 */
+		private synchronized ReportJobJson toJson() {
+			return new ReportJobJson(id, status, result, error);
+		}
+	}
+}
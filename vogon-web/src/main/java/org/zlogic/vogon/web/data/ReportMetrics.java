@@ -0,0 +1,81 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.zlogic.vogon.data.report.Report;
+import org.zlogic.vogon.data.report.ReportTimings;
+
+/**
+ * Bean to publish the time spent in every phase of building reports. Every
+ * phase has a separate timer, tagged with the number of currencies in the
+ * report and the number of scanned rows rounded up to a power of 10 (0 if the
+ * report was returned from the cache).
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Component
+public class ReportMetrics {
+
+	/**
+	 * The timer name
+	 */
+	private static final String PHASE_TIMER = "vogon.report.phase"; //NOI18N
+	/**
+	 * The smallest row count bucket (except for 0)
+	 */
+	private static final long MIN_ROWS_BUCKET = 100L;
+	/**
+	 * The metrics registry
+	 */
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	/**
+	 * Records the time of every measured phase
+	 *
+	 * @param timings the measured timings
+	 * @param report the report, used to count currencies
+	 */
+	public void record(ReportTimings timings, Map<String, Report> report) {
+		String currencies = Integer.toString(report.size());
+		String rows = Long.toString(getRowsBucket(timings.getRows()));
+		for (ReportTimings.Phase phase : ReportTimings.Phase.values()) {
+			if (!timings.isMeasured(phase))
+				continue;
+			Timer.builder(PHASE_TIMER)
+					.tag("phase", phase.name().toLowerCase(Locale.ROOT)) //NOI18N
+					.tag("currencies", currencies) //NOI18N
+					.tag("rows", rows) //NOI18N
+					.description("The time spent in a phase of building a report.") //NOI18N
+					.register(meterRegistry)
+					.record(timings.getNanos(phase), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Returns the bucket for a row count, to keep the number of tag values
+	 * small
+	 *
+	 * @param rows the number of rows
+	 * @return the smallest power of 10 (but at least MIN_ROWS_BUCKET) not
+	 * less than rows, or 0 if rows is 0
+	 */
+	private long getRowsBucket(long rows) {
+		if (rows <= 0)
+			return 0L;
+		long bucket = MIN_ROWS_BUCKET;
+		while (bucket < rows && bucket <= Long.MAX_VALUE / 10)
+			bucket *= 10;
+		return bucket;
+	}
+}
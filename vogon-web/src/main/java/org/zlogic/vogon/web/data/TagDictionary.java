@@ -0,0 +1,286 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zlogic.vogon.data.VogonUser;
+import org.zlogic.vogon.data.report.ReportFactory;
+import org.zlogic.vogon.web.configuration.VogonConfiguration;
+
+/**
+ * Bean to keep the tags of every user in memory, with the number of
+ * transactions using every tag. A user's dictionary is read from the
+ * database when it's first used or when the user's data version doesn't
+ * match, and is updated when a transaction is changed.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Component
+public class TagDictionary implements InitializingBean {
+
+	/**
+	 * The tag used for transactions without tags
+	 */
+	private static final String EMPTY_TAG = ""; //NOI18N
+	/**
+	 * The configuration handler
+	 */
+	@Autowired
+	private VogonConfiguration configuration;
+	/**
+	 * The dictionaries by user ID, in access order
+	 */
+	private Map<Long, UserTags> dictionaries;
+
+	/**
+	 * Creates the dictionaries map
+	 *
+	 * @throws Exception if the map cannot be created
+	 */
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		int maxSize = configuration.getTagDictionarySize();
+		dictionaries = new LinkedHashMap<Long, UserTags>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, UserTags> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the user's dictionary, reading it from the database if it's
+	 * missing or outdated
+	 *
+	 * @param owner the user
+	 * @param dataVersion the owner's data version, should be read before
+	 * calling this method
+	 * @param entityManager the EntityManager to be used for reading the
+	 * dictionary
+	 * @return the user's dictionary
+	 */
+	private UserTags getUserTags(VogonUser owner, long dataVersion, EntityManager entityManager) {
+		synchronized (this) {
+			UserTags userTags = dictionaries.get(owner.getId());
+			if (userTags != null && userTags.dataVersion == dataVersion)
+				return userTags;
+		}
+		UserTags userTags = new UserTags(new ReportFactory(owner).getTagCounts(entityManager), dataVersion);
+		synchronized (this) {
+			UserTags existingUserTags = dictionaries.get(owner.getId());
+			if (existingUserTags == null || existingUserTags.dataVersion < dataVersion)
+				dictionaries.put(owner.getId(), userTags);
+		}
+		return userTags;
+	}
+
+	/**
+	 * Returns all tags of a user, including the empty tag
+	 *
+	 * @param owner the user
+	 * @param dataVersion the owner's data version, should be read before
+	 * calling this method
+	 * @param entityManager the EntityManager to be used if the dictionary
+	 * needs to be read
+	 * @return all tags of the user
+	 */
+	public Set<String> getAllTags(VogonUser owner, long dataVersion, EntityManager entityManager) {
+		Set<String> tags = new HashSet<>(Arrays.asList(getUserTags(owner, dataVersion, entityManager).tags));
+		tags.add(EMPTY_TAG);
+		return tags;
+	}
+
+	/**
+	 * Returns the most used tags starting with a prefix (ignoring case),
+	 * ordered by the number of transactions using them
+	 *
+	 * @param owner the user
+	 * @param dataVersion the owner's data version, should be read before
+	 * calling this method
+	 * @param prefix the tag prefix
+	 * @param limit the maximum number of tags to return
+	 * @param entityManager the EntityManager to be used if the dictionary
+	 * needs to be read
+	 * @return the most used tags starting with prefix
+	 */
+	public List<String> getSuggestions(VogonUser owner, long dataVersion, String prefix, int limit, EntityManager entityManager) {
+		return getUserTags(owner, dataVersion, entityManager).getSuggestions(prefix, limit);
+	}
+
+	/**
+	 * Updates the user's dictionary after a transaction's tags were changed.
+	 * If called inside a transaction, the dictionary is updated after the
+	 * transaction is committed.
+	 *
+	 * @param ownerId the user ID
+	 * @param dataVersion the owner's data version after the change
+	 * @param previousTags the transaction's tags before the change
+	 * @param tags the transaction's tags after the change
+	 */
+	public void updateTags(long ownerId, long dataVersion, Collection<String> previousTags, Collection<String> tags) {
+		Map<String, Long> countChanges = new HashMap<>();
+		for (String tag : new HashSet<>(previousTags))
+			countChanges.merge(tag, -1L, Long::sum);
+		for (String tag : new HashSet<>(tags))
+			countChanges.merge(tag, 1L, Long::sum);
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			applyUpdate(ownerId, dataVersion, countChanges);
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				applyUpdate(ownerId, dataVersion, countChanges);
+			}
+		});
+	}
+
+	/**
+	 * Applies a change to a user's dictionary, if the dictionary is based on
+	 * the data version immediately preceding the change; otherwise, the
+	 * dictionary will be read again from the database when it's used
+	 *
+	 * @param ownerId the user ID
+	 * @param dataVersion the owner's data version after the change
+	 * @param countChanges the change in the number of transactions, by tag
+	 */
+	private synchronized void applyUpdate(long ownerId, long dataVersion, Map<String, Long> countChanges) {
+		UserTags userTags = dictionaries.get(ownerId);
+		if (userTags == null || userTags.dataVersion != dataVersion - 1)
+			return;
+		Map<String, Long> tagCounts = userTags.getTagCounts();
+		for (Map.Entry<String, Long> countChange : countChanges.entrySet())
+			tagCounts.merge(countChange.getKey(), countChange.getValue(), Long::sum);
+		tagCounts.values().removeIf(count -> count <= 0);
+		dictionaries.put(ownerId, new UserTags(tagCounts, dataVersion));
+	}
+
+	/**
+	 * Immutable tag dictionary of a single user, sorted for prefix searches
+	 */
+	private static class UserTags {
+
+		/**
+		 * The data version used to build the dictionary
+		 */
+		private final long dataVersion;
+		/**
+		 * The tags, ordered by their lowercase form
+		 */
+		private final String[] tags;
+		/**
+		 * The lowercase form of every tag
+		 */
+		private final String[] keys;
+		/**
+		 * The number of transactions using every tag
+		 */
+		private final long[] counts;
+		/**
+		 * Orders tag indexes from the most used tag; tags with the same usage
+		 * are ordered by name
+		 */
+		private final Comparator<Integer> ranking;
+
+		/**
+		 * Creates the dictionary
+		 *
+		 * @param tagCounts the number of transactions using every tag
+		 * @param dataVersion the data version used to build the dictionary
+		 */
+		private UserTags(Map<String, Long> tagCounts, long dataVersion) {
+			this.dataVersion = dataVersion;
+			List<String> sortedTags = new ArrayList<>(tagCounts.keySet());
+			sortedTags.sort(Comparator.comparing((String tag) -> tag.toLowerCase(Locale.ROOT)).thenComparing(Comparator.naturalOrder()));
+			tags = sortedTags.toArray(new String[0]);
+			keys = new String[tags.length];
+			counts = new long[tags.length];
+			for (int i = 0; i < tags.length; i++) {
+				keys[i] = tags[i].toLowerCase(Locale.ROOT);
+				counts[i] = tagCounts.get(tags[i]);
+			}
+			ranking = (index1, index2) -> counts[index1] != counts[index2] ? Long.compare(counts[index2], counts[index1]) : Integer.compare(index1, index2);
+		}
+
+		/**
+		 * Returns a copy of the number of transactions using every tag
+		 *
+		 * @return the number of transactions using every tag, by tag
+		 */
+		private Map<String, Long> getTagCounts() {
+			Map<String, Long> tagCounts = new HashMap<>();
+			for (int i = 0; i < tags.length; i++)
+				tagCounts.put(tags[i], counts[i]);
+			return tagCounts;
+		}
+
+		/**
+		 * Returns the index of the first key not less than a prefix
+		 *
+		 * @param prefix the lowercase prefix
+		 * @return the index of the first key not less than prefix
+		 */
+		private int lowerBound(String prefix) {
+			int low = 0, high = keys.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (keys[middle].compareTo(prefix) < 0)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+
+		/**
+		 * Returns the most used tags starting with a prefix (ignoring case)
+		 *
+		 * @param prefix the tag prefix
+		 * @param limit the maximum number of tags to return
+		 * @return the most used tags starting with prefix
+		 */
+		private List<String> getSuggestions(String prefix, int limit) {
+			if (limit <= 0)
+				return new ArrayList<>();
+			String key = prefix.toLowerCase(Locale.ROOT);
+			//Keeps the best matches, with the worst match at the head of the queue
+			PriorityQueue<Integer> matches = new PriorityQueue<>(Math.min(limit, tags.length) + 1, ranking.reversed());
+			for (int i = lowerBound(key); i < keys.length && keys[i].startsWith(key); i++) {
+				if (tags[i].isEmpty())
+					continue;
+				if (matches.size() < limit) {
+					matches.add(i);
+				} else if (ranking.compare(i, matches.peek()) < 0) {
+					matches.poll();
+					matches.add(i);
+				}
+			}
+			List<Integer> sortedMatches = new ArrayList<>(matches);
+			sortedMatches.sort(ranking);
+			List<String> suggestions = new ArrayList<>(sortedMatches.size());
+			for (int index : sortedMatches)
+				suggestions.add(tags[index]);
+			return suggestions;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.zlogic.vogon.data.FinanceTransaction;
+import org.zlogic.vogon.web.configuration.VogonConfiguration;
+
+/**
+ * Bean to count transactions. The number of all transactions of a user is
+ * cached by the user's data version, so that it's only counted again after
+ * the user's data has been changed; filtered transactions are always counted
+ * in the database.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Component
+public class TransactionCountCache implements InitializingBean {
+
+	/**
+	 * The configuration handler
+	 */
+	@Autowired
+	private VogonConfiguration configuration;
+	/**
+	 * The transaction counts by user ID, in access order
+	 */
+	private Map<Long, UserCount> counts;
+
+	/**
+	 * Creates the counts map
+	 *
+	 * @throws Exception if the map cannot be created
+	 */
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		int maxSize = configuration.getTransactionCountCacheSize();
+		counts = new LinkedHashMap<Long, UserCount>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, UserCount> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of transactions matching a filter
+	 *
+	 * @param filter the transactions filter, including the owner
+	 * @param dataVersion the owner's data version, should be read before
+	 * calling this method
+	 * @param entityManager the EntityManager to be used if the transactions
+	 * need to be counted
+	 * @return the number of transactions matching filter
+	 */
+	public long countTransactions(TransactionFilterSpecification filter, long dataVersion, EntityManager entityManager) {
+		if (filter.isFiltered())
+			return count(filter, entityManager);
+		long ownerId = filter.getOwner().getId();
+		synchronized (this) {
+			UserCount userCount = counts.get(ownerId);
+			if (userCount != null && userCount.dataVersion == dataVersion)
+				return userCount.count;
+		}
+		long count = count(filter, entityManager);
+		synchronized (this) {
+			UserCount existingUserCount = counts.get(ownerId);
+			if (existingUserCount == null || existingUserCount.dataVersion < dataVersion)
+				counts.put(ownerId, new UserCount(count, dataVersion));
+		}
+		return count;
+	}
+
+	/**
+	 * Counts transactions matching a filter in the database
+	 *
+	 * @param filter the transactions filter, including the owner
+	 * @param entityManager the EntityManager to be used for counting
+	 * @return the number of transactions matching filter
+	 */
+	private long count(TransactionFilterSpecification filter, EntityManager entityManager) {
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> countCriteriaQuery = cb.createQuery(Long.class);
+		Root<FinanceTransaction> tr = countCriteriaQuery.from(FinanceTransaction.class);
+		countCriteriaQuery.where(filter.toPredicate(tr, countCriteriaQuery, cb));
+		//Nothing is joined, so transactions are not counted twice
+		countCriteriaQuery.distinct(false);
+		countCriteriaQuery.select(cb.count(tr));
+		return entityManager.createQuery(countCriteriaQuery).getSingleResult();
+	}
+
+	/**
+	 * A transaction count with the data version used to count it
+	 */
+	private static class UserCount {
+
+		/**
+		 * The number of transactions
+		 */
+		private final long count;
+		/**
+		 * The data version used to count transactions
+		 */
+		private final long dataVersion;
+
+		/**
+		 * Creates a cached count
+		 *
+		 * @param count the number of transactions
+		 * @param dataVersion the data version used to count transactions
+		 */
+		private UserCount(long count, long dataVersion) {
+			this.count = count;
+			this.dataVersion = dataVersion;
+		}
+	}
+}
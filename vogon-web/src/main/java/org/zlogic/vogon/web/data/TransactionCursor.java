@@ -0,0 +1,183 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.ResourceBundle;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import org.springframework.data.domain.Sort;
+import org.zlogic.vogon.data.FinanceTransaction;
+import org.zlogic.vogon.data.FinanceTransaction_;
+import org.zlogic.vogon.web.data.model.TransactionViewJson;
+
+/**
+ * Position in a sorted transactions list, used for keyset pagination. Contains
+ * the sort key and ID of the last transaction on a page; the next page starts
+ * right after it, so every page costs the same regardless of its depth, and
+ * inserted transactions don't shift pages. Transactions are sorted by date or
+ * description (missing descriptions are sorted as empty strings), then by ID.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public class TransactionCursor {
+
+	/**
+	 * Localization messages
+	 */
+	private static final ResourceBundle messages = ResourceBundle.getBundle("org/zlogic/vogon/web/messages");
+	/**
+	 * The prefix of an encoded date cursor
+	 */
+	private static final char DATE_PREFIX = 'D';
+	/**
+	 * The prefix of an encoded description cursor
+	 */
+	private static final char DESCRIPTION_PREFIX = 'S';
+	/**
+	 * The separator of encoded fields
+	 */
+	private static final char SEPARATOR = ':';
+	/**
+	 * The date of the last transaction, or null if transactions are sorted by
+	 * description
+	 */
+	private final Date transactionDate;
+	/**
+	 * The description of the last transaction, or null if transactions are
+	 * sorted by date
+	 */
+	private final String description;
+	/**
+	 * The ID of the last transaction
+	 */
+	private final long id;
+
+	/**
+	 * Creates a cursor
+	 *
+	 * @param transactionDate the date of the last transaction, or null if
+	 * transactions are sorted by description
+	 * @param description the description of the last transaction, or null if
+	 * transactions are sorted by date
+	 * @param id the ID of the last transaction
+	 */
+	private TransactionCursor(Date transactionDate, String description, long id) {
+		this.transactionDate = transactionDate;
+		this.description = description;
+		this.id = id;
+	}
+
+	/**
+	 * Creates a cursor pointing to a transaction
+	 *
+	 * @param transaction the last transaction on a page
+	 * @param sortByDescription true if transactions are sorted by description,
+	 * false if transactions are sorted by date
+	 * @return the cursor pointing to transaction
+	 */
+	public static TransactionCursor after(TransactionViewJson transaction, boolean sortByDescription) {
+		if (sortByDescription)
+			return new TransactionCursor(null, transaction.getDescription() != null ? transaction.getDescription() : "", transaction.getId()); //NOI18N
+		return new TransactionCursor(transaction.getDate(), null, transaction.getId());
+	}
+
+	/**
+	 * Decodes a cursor
+	 *
+	 * @param cursor the encoded cursor
+	 * @param sortByDescription true if transactions are sorted by description,
+	 * false if transactions are sorted by date
+	 * @return the decoded cursor
+	 * @throws IllegalArgumentException if the cursor is invalid or was created
+	 * for another sort column
+	 */
+	public static TransactionCursor decode(String cursor, boolean sortByDescription) throws IllegalArgumentException {
+		try {
+			String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+			if (!decoded.isEmpty() && decoded.charAt(0) == DATE_PREFIX && !sortByDescription) {
+				int separator = decoded.indexOf(SEPARATOR);
+				Date transactionDate = new Date(Long.parseLong(decoded.substring(1, separator)));
+				return new TransactionCursor(transactionDate, null, Long.parseLong(decoded.substring(separator + 1)));
+			} else if (!decoded.isEmpty() && decoded.charAt(0) == DESCRIPTION_PREFIX && sortByDescription) {
+				int separator = decoded.indexOf(SEPARATOR);
+				long id = Long.parseLong(decoded.substring(1, separator));
+				return new TransactionCursor(null, decoded.substring(separator + 1), id);
+			}
+		} catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+			throw new IllegalArgumentException(messages.getString("INVALID_TRANSACTIONS_CURSOR"), ex);
+		}
+		throw new IllegalArgumentException(messages.getString("INVALID_TRANSACTIONS_CURSOR"));
+	}
+
+	/**
+	 * Encodes this cursor into an opaque URL-safe string
+	 *
+	 * @return the encoded cursor
+	 */
+	public String encode() {
+		//The description goes last, so that it can contain separators
+		String decoded = transactionDate != null
+				? DATE_PREFIX + Long.toString(transactionDate.getTime()) + SEPARATOR + Long.toString(id)
+				: DESCRIPTION_PREFIX + Long.toString(id) + SEPARATOR + description;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(decoded.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Returns the sort key expression, to be used for ordering transactions
+	 * consistently with cursors
+	 *
+	 * @param root the FinanceTransaction query root
+	 * @param cb the CriteriaBuilder instance
+	 * @param sortByDescription true if transactions are sorted by description,
+	 * false if transactions are sorted by date
+	 * @return the sort key expression
+	 */
+	public static Expression<?> getSortKey(Root<FinanceTransaction> root, CriteriaBuilder cb, boolean sortByDescription) {
+		if (sortByDescription)
+			return cb.coalesce(root.get(FinanceTransaction_.description), ""); //NOI18N
+		return root.get(FinanceTransaction_.transactionDate);
+	}
+
+	/**
+	 * Builds the Predicate matching transactions after this cursor, the
+	 * equivalent of (sortKey, id) &gt; (?, ?) for ascending order and
+	 * (sortKey, id) &lt; (?, ?) for descending order
+	 *
+	 * @param root the FinanceTransaction query root
+	 * @param cb the CriteriaBuilder instance
+	 * @param direction the sort direction
+	 * @return the Predicate matching transactions after this cursor
+	 */
+	public Predicate toPredicate(Root<FinanceTransaction> root, CriteriaBuilder cb, Sort.Direction direction) {
+		Path<Long> idPath = root.get(FinanceTransaction_.id);
+		if (transactionDate != null)
+			return seek(cb, root.get(FinanceTransaction_.transactionDate), new java.sql.Date(transactionDate.getTime()), idPath, direction);
+		return seek(cb, cb.coalesce(root.get(FinanceTransaction_.description), ""), description, idPath, direction); //NOI18N
+	}
+
+	/**
+	 * Builds the Predicate matching rows after a specific sort key and ID
+	 *
+	 * @param <T> the sort key type
+	 * @param cb the CriteriaBuilder instance
+	 * @param sortKey the sort key expression
+	 * @param value the sort key of the last transaction
+	 * @param idPath the ID path
+	 * @param direction the sort direction
+	 * @return the Predicate matching rows after value and id
+	 */
+	private <T extends Comparable<? super T>> Predicate seek(CriteriaBuilder cb, Expression<? extends T> sortKey, T value, Path<Long> idPath, Sort.Direction direction) {
+		if (direction.isDescending())
+			return cb.or(cb.lessThan(sortKey, value), cb.and(cb.equal(sortKey, value), cb.lessThan(idPath, id)));
+		return cb.or(cb.greaterThan(sortKey, value), cb.and(cb.equal(sortKey, value), cb.greaterThan(idPath, id)));
+	}
+}
@@ -6,6 +6,7 @@
 package org.zlogic.vogon.web.data;
 
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
@@ -13,11 +14,20 @@ import java.util.Set;
 import java.util.TimeZone;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Subquery;
 import org.springframework.data.jpa.domain.Specification;
+import org.zlogic.vogon.data.Constants;
+import org.zlogic.vogon.data.FinanceAccount_;
 import org.zlogic.vogon.data.FinanceTransaction;
 import org.zlogic.vogon.data.FinanceTransaction_;
+import org.zlogic.vogon.data.Tag;
+import org.zlogic.vogon.data.Tag_;
+import org.zlogic.vogon.data.TransactionComponent;
+import org.zlogic.vogon.data.TransactionComponent_;
 import org.zlogic.vogon.data.VogonUser;
 
 /**
@@ -35,14 +45,39 @@ public class TransactionFilterSpecification implements Specification<FinanceTran
 	 * The description substring filter
 	 */
 	private String filterDescription;
+	/**
+	 * The IDs of transactions matching the description filter, if they're
+	 * known
+	 */
+	private Collection<Long> filterDescriptionIds;
 	/**
 	 * The date filter
 	 */
 	private Date filterDate;
+	/**
+	 * The earliest date filter
+	 */
+	private Date filterDateFrom;
+	/**
+	 * The latest date filter
+	 */
+	private Date filterDateTo;
 	/**
 	 * The tags filter
 	 */
 	private Set<String> filterTags;
+	/**
+	 * The account IDs filter
+	 */
+	private Set<Long> filterAccounts;
+	/**
+	 * The minimum (absolute) component amount filter
+	 */
+	private Double filterAmountMin;
+	/**
+	 * The maximum (absolute) component amount filter
+	 */
+	private Double filterAmountMax;
 
 	/**
 	 * Constructs a default TransactionFilterSpecification for a user
@@ -68,17 +103,103 @@ public class TransactionFilterSpecification implements Specification<FinanceTran
 		Predicate descriptionPredicate = filterDescription != null
 				? cb.like(cb.lower(root.get(FinanceTransaction_.description)), filterDescription.toLowerCase())
 				: cb.conjunction();
+		if (filterDescription != null && filterDescriptionIds != null)
+			descriptionPredicate = !filterDescriptionIds.isEmpty()
+					? cb.and(root.get(FinanceTransaction_.id).in(filterDescriptionIds), descriptionPredicate)
+					: cb.disjunction();
 		Predicate tagsPredicate = cb.conjunction();
 		if (filterTags != null && !filterTags.isEmpty()) {
-			Set<String> filterTagsLowercase = new HashSet<>();
+			Set<String> filterTagKeys = new HashSet<>();
 			for (String tag : filterTags)
-				filterTagsLowercase.add(tag.toLowerCase());
-			tagsPredicate = cb.lower(root.join(FinanceTransaction_.tags)).in(cb.literal(filterTagsLowercase));
+				filterTagKeys.add(Tag.toKey(tag));
+			//Filter in a subquery, so that joined tags are not mistaken for fetched tags
+			Subquery<Long> tagsSubquery = cq.subquery(Long.class);
+			Root<FinanceTransaction> taggedTransaction = tagsSubquery.from(FinanceTransaction.class);
+			Join<FinanceTransaction, Tag> tagsJoin = taggedTransaction.join(FinanceTransaction_.tags);
+			tagsSubquery.select(taggedTransaction.get(FinanceTransaction_.id)).where(cb.and(
+					cb.equal(taggedTransaction, root),
+					cb.equal(tagsJoin.get(Tag_.owner), owner),
+					tagsJoin.get(Tag_.tagKey).in(cb.literal(filterTagKeys))));
+			tagsPredicate = cb.exists(tagsSubquery);
 		}
+		Path<Date> transactionDate = root.get(FinanceTransaction_.transactionDate);
 		Predicate datePredicate = filterDate != null
-				? cb.equal(root.get(FinanceTransaction_.transactionDate), new java.sql.Date(filterDate.getTime()))
+				? cb.equal(transactionDate, new java.sql.Date(filterDate.getTime()))
 				: cb.conjunction();
-		return cb.and(ownerPredicate, descriptionPredicate, datePredicate, tagsPredicate);
+		if (filterDateFrom != null)
+			datePredicate = cb.and(datePredicate, cb.greaterThanOrEqualTo(transactionDate, new java.sql.Date(filterDateFrom.getTime())));
+		if (filterDateTo != null)
+			datePredicate = cb.and(datePredicate, cb.lessThanOrEqualTo(transactionDate, new java.sql.Date(filterDateTo.getTime())));
+		Predicate componentsPredicate = cb.conjunction();
+		if ((filterAccounts != null && !filterAccounts.isEmpty()) || filterAmountMin != null || filterAmountMax != null) {
+			//Filter in a subquery, so that transactions are not repeated for every matching component
+			Subquery<Long> componentsSubquery = cq.subquery(Long.class);
+			Root<TransactionComponent> component = componentsSubquery.from(TransactionComponent.class);
+			Predicate componentPredicate = cb.equal(component.get(TransactionComponent_.transaction), root);
+			if (filterAccounts != null && !filterAccounts.isEmpty())
+				componentPredicate = cb.and(componentPredicate, component.get(TransactionComponent_.account).get(FinanceAccount_.id).in(filterAccounts));
+			if (filterAmountMin != null || filterAmountMax != null) {
+				//Check the positive and negative ranges separately, so that the amount index can be used
+				long rawAmountMin = filterAmountMin != null ? toRawAmount(filterAmountMin) : 0;
+				long rawAmountMax = filterAmountMax != null ? toRawAmount(filterAmountMax) : Long.MAX_VALUE;
+				Path<Long> amount = component.get(TransactionComponent_.amount);
+				componentPredicate = cb.and(componentPredicate, cb.or(
+						cb.between(amount, rawAmountMin, rawAmountMax),
+						cb.between(amount, -rawAmountMax, -rawAmountMin)));
+			}
+			componentsSubquery.select(component.get(TransactionComponent_.id)).where(componentPredicate);
+			componentsPredicate = cb.exists(componentsSubquery);
+		}
+		return cb.and(ownerPredicate, descriptionPredicate, datePredicate, tagsPredicate, componentsPredicate);
+	}
+
+	/**
+	 * Converts a date to local time (OpenShift and other non-UTC servers
+	 * workaround)
+	 *
+	 * @param date the date in UTC
+	 * @return the same date in local time, or null if date is null
+	 */
+	private static Date toLocalDate(Date date) {
+		if (date == null)
+			return null;
+		Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC")); //NOI18N
+		calendar.setTime(date);
+		Calendar newCalendar = new GregorianCalendar();
+		newCalendar.set(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH), calendar.get(Calendar.DATE), 0, 0, 0);
+		newCalendar.set(Calendar.MILLISECOND, 0);
+		return newCalendar.getTime();
+	}
+
+	/**
+	 * Converts an absolute amount to a raw amount
+	 *
+	 * @param amount the absolute amount
+	 * @return the raw amount
+	 */
+	private static long toRawAmount(double amount) {
+		return Math.round(amount * Constants.RAW_AMOUNT_MULTIPLIER);
+	}
+
+	/**
+	 * Converts an amount to an absolute amount
+	 *
+	 * @param amount the amount
+	 * @return the absolute amount, or null if amount is null
+	 */
+	private static Double toAbsoluteAmount(Double amount) {
+		return amount != null ? Math.abs(amount) : null;
+	}
+
+	/**
+	 * Returns true if any filter (except the owner) is set
+	 *
+	 * @return true if any filter (except the owner) is set
+	 */
+	public boolean isFiltered() {
+		return filterDescription != null || filterDate != null || filterDateFrom != null || filterDateTo != null
+				|| (filterTags != null && !filterTags.isEmpty()) || (filterAccounts != null && !filterAccounts.isEmpty())
+				|| filterAmountMin != null || filterAmountMax != null;
 	}
 
 	/*
@@ -111,6 +232,28 @@ public class TransactionFilterSpecification implements Specification<FinanceTran
 		this.filterDescription = filterDescription;
 	}
 
+	/**
+	 * Returns the IDs of transactions matching the description filter
+	 *
+	 * @return the IDs of transactions matching the description filter, or
+	 * null if they're unknown
+	 */
+	public Collection<Long> getFilterDescriptionIds() {
+		return filterDescriptionIds;
+	}
+
+	/**
+	 * Sets the IDs of transactions matching the description filter, found by
+	 * a description index; the database only needs to check these
+	 * transactions
+	 *
+	 * @param filterDescriptionIds the IDs of transactions matching the
+	 * description filter, or null if they're unknown
+	 */
+	public void setFilterDescriptionIds(Collection<Long> filterDescriptionIds) {
+		this.filterDescriptionIds = filterDescriptionIds;
+	}
+
 	/**
 	 * Returns the date filter
 	 *
@@ -126,16 +269,43 @@ public class TransactionFilterSpecification implements Specification<FinanceTran
 	 * @param filterDate the date to be filtered
 	 */
 	public void setFilterDate(Date filterDate) {
-		//Convert to local time (OpenShift and other non-UTC servers workaround)
-		if (filterDate != null) {
-			Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC")); //NOI18N
-			calendar.setTime(filterDate);
-			Calendar newCalendar = new GregorianCalendar();
-			newCalendar.set(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH), calendar.get(Calendar.DATE), 0, 0, 0);
-			newCalendar.set(Calendar.MILLISECOND, 0);
-			filterDate = newCalendar.getTime();
-		}
-		this.filterDate = filterDate;
+		this.filterDate = toLocalDate(filterDate);
+	}
+
+	/**
+	 * Returns the earliest date filter
+	 *
+	 * @return the earliest date filter
+	 */
+	public Date getFilterDateFrom() {
+		return filterDateFrom;
+	}
+
+	/**
+	 * Sets the earliest date filter
+	 *
+	 * @param filterDateFrom the earliest date to be filtered (inclusive)
+	 */
+	public void setFilterDateFrom(Date filterDateFrom) {
+		this.filterDateFrom = toLocalDate(filterDateFrom);
+	}
+
+	/**
+	 * Returns the latest date filter
+	 *
+	 * @return the latest date filter
+	 */
+	public Date getFilterDateTo() {
+		return filterDateTo;
+	}
+
+	/**
+	 * Sets the latest date filter
+	 *
+	 * @param filterDateTo the latest date to be filtered (inclusive)
+	 */
+	public void setFilterDateTo(Date filterDateTo) {
+		this.filterDateTo = toLocalDate(filterDateTo);
 	}
 
 	/**
@@ -155,4 +325,63 @@ public class TransactionFilterSpecification implements Specification<FinanceTran
 	public void setFilterTags(Set<String> filterTags) {
 		this.filterTags = filterTags;
 	}
+
+	/**
+	 * Returns the account IDs to filter
+	 *
+	 * @return the account IDs to filter
+	 */
+	public Set<Long> getFilterAccounts() {
+		return filterAccounts;
+	}
+
+	/**
+	 * Sets the account IDs to filter; transactions should have a component
+	 * in one of these accounts
+	 *
+	 * @param filterAccounts the account IDs to filter
+	 */
+	public void setFilterAccounts(Set<Long> filterAccounts) {
+		this.filterAccounts = filterAccounts;
+	}
+
+	/**
+	 * Returns the minimum (absolute) component amount filter
+	 *
+	 * @return the minimum component amount filter
+	 */
+	public Double getFilterAmountMin() {
+		return filterAmountMin;
+	}
+
+	/**
+	 * Sets the minimum amount filter; transactions should have a component
+	 * (in one of the filtered accounts) with an absolute amount not less than
+	 * this amount
+	 *
+	 * @param filterAmountMin the minimum amount (inclusive)
+	 */
+	public void setFilterAmountMin(Double filterAmountMin) {
+		this.filterAmountMin = toAbsoluteAmount(filterAmountMin);
+	}
+
+	/**
+	 * Returns the maximum (absolute) component amount filter
+	 *
+	 * @return the maximum component amount filter
+	 */
+	public Double getFilterAmountMax() {
+		return filterAmountMax;
+	}
+
+	/**
+	 * Sets the maximum amount filter; transactions should have a component
+	 * (in one of the filtered accounts) with an absolute amount not greater
+	 * than this amount
+	 *
+	 * @param filterAmountMax the maximum amount (inclusive)
+	 */
+	public void setFilterAmountMax(Double filterAmountMax) {
+		this.filterAmountMax = toAbsoluteAmount(filterAmountMax);
+	}
 }
@@ -6,11 +6,16 @@
 package org.zlogic.vogon.web.data;
 
 import java.util.Collection;
+import java.util.List;
+import javax.persistence.QueryHint;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import org.zlogic.vogon.data.FinanceTransaction;
 import org.zlogic.vogon.data.VogonUser;
@@ -50,6 +55,32 @@ public interface TransactionRepository extends JpaRepository<FinanceTransaction,
 	 */
 	public Collection<FinanceTransaction> findByOwner(VogonUser owner, Sort sort);
 
+	/**
+	 * Finds transactions by their VogonUser owner, fetching their components
+	 * in the same query; together with fetchTagsByOwner loads complete
+	 * transactions in a fixed number of queries
+	 *
+	 * @param owner the VogonUser owner
+	 * @param sort the Sort object
+	 * @return transactions for owner
+	 */
+	@Query("select distinct t from FinanceTransaction t left join fetch t.components where t.owner = :owner") //NOI18N
+	@QueryHints(@QueryHint(name = "hibernate.query.passDistinctThrough", value = "false")) //NOI18N
+	public List<FinanceTransaction> findWithComponentsByOwner(@Param("owner") VogonUser owner, Sort sort);
+
+	/**
+	 * Fetches the tags of all transactions of a VogonUser owner into the
+	 * current persistence context; tags are fetched separately from
+	 * components, since fetching both in one query returns a row for every
+	 * component and tag combination
+	 *
+	 * @param owner the VogonUser owner
+	 * @return transactions for owner
+	 */
+	@Query("select distinct t from FinanceTransaction t left join fetch t.tags where t.owner = :owner") //NOI18N
+	@QueryHints(@QueryHint(name = "hibernate.query.passDistinctThrough", value = "false")) //NOI18N
+	public List<FinanceTransaction> fetchTagsByOwner(@Param("owner") VogonUser owner);
+
 	/**
 	 * Finds transactions by their VogonUser owner
 	 *
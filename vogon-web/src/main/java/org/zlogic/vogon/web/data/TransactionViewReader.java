@@ -0,0 +1,150 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.Root;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.zlogic.vogon.data.FinanceAccount_;
+import org.zlogic.vogon.data.FinanceTransaction;
+import org.zlogic.vogon.data.FinanceTransaction_;
+import org.zlogic.vogon.data.Tag;
+import org.zlogic.vogon.data.Tag_;
+import org.zlogic.vogon.data.TransactionComponent;
+import org.zlogic.vogon.data.TransactionComponent_;
+import org.zlogic.vogon.web.data.model.TransactionComponentViewJson;
+import org.zlogic.vogon.web.data.model.TransactionViewJson;
+
+/**
+ * Bean to read transaction lists as read-only views. Transactions, their
+ * components and tags are read with tuple queries and copied directly into
+ * views, without creating (and dirty-checking) entities.
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+@Component
+public class TransactionViewReader {
+
+	/**
+	 * The maximum number of transactions whose components or tags are read
+	 * in a single query
+	 */
+	private static final int IDS_BATCH_SIZE = 500;
+
+	/**
+	 * Returns the views of transactions matching a filter
+	 *
+	 * @param filter the transactions filter
+	 * @param sortByDescription true if transactions are sorted by description,
+	 * false if transactions are sorted by date
+	 * @param sortDirection the sort direction
+	 * @param cursor the cursor returned with the previous page, or null to
+	 * start from the first transaction
+	 * @param firstResult the number of transactions to skip
+	 * @param maxResults the maximum number of transactions to return, or null
+	 * to return all transactions
+	 * @param entityManager the EntityManager to be used for reading
+	 * @return the transactions views
+	 */
+	public List<TransactionViewJson> findTransactions(TransactionFilterSpecification filter, boolean sortByDescription, Sort.Direction sortDirection,
+			TransactionCursor cursor, int firstResult, Integer maxResults, EntityManager entityManager) {
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> transactionsCriteriaQuery = cb.createTupleQuery();
+		Root<FinanceTransaction> tr = transactionsCriteriaQuery.from(FinanceTransaction.class);
+		transactionsCriteriaQuery.where(
+				filter.toPredicate(tr, transactionsCriteriaQuery, cb),
+				cursor != null ? cursor.toPredicate(tr, cb, sortDirection) : cb.conjunction());
+		//Nothing is joined, so rows are not duplicated
+		transactionsCriteriaQuery.distinct(false);
+		Expression<?> sortKey = TransactionCursor.getSortKey(tr, cb, sortByDescription);
+		if (sortDirection.isDescending())
+			transactionsCriteriaQuery.orderBy(cb.desc(sortKey), cb.desc(tr.get(FinanceTransaction_.id)));
+		else
+			transactionsCriteriaQuery.orderBy(cb.asc(sortKey), cb.asc(tr.get(FinanceTransaction_.id)));
+		transactionsCriteriaQuery.multiselect(
+				tr.get(FinanceTransaction_.id),
+				tr.get(FinanceTransaction_.version),
+				tr.get(FinanceTransaction_.type),
+				tr.get(FinanceTransaction_.description),
+				tr.get(FinanceTransaction_.transactionDate));
+		TypedQuery<Tuple> transactionsQuery = entityManager.createQuery(transactionsCriteriaQuery).setFirstResult(firstResult);
+		if (maxResults != null)
+			transactionsQuery.setMaxResults(maxResults);
+
+		List<TransactionViewJson> transactions = new ArrayList<>();
+		Map<Long, TransactionViewJson> transactionsById = new HashMap<>();
+		for (Tuple row : transactionsQuery.getResultList()) {
+			TransactionViewJson transaction = new TransactionViewJson(row.get(0, Long.class), row.get(1, Long.class),
+					row.get(2, FinanceTransaction.Type.class), row.get(3, String.class), row.get(4, Date.class));
+			transactions.add(transaction);
+			transactionsById.put(transaction.getId(), transaction);
+		}
+		List<Long> ids = new ArrayList<>(transactionsById.keySet());
+		for (int i = 0; i < ids.size(); i += IDS_BATCH_SIZE) {
+			List<Long> batchIds = ids.subList(i, Math.min(i + IDS_BATCH_SIZE, ids.size()));
+			addComponents(transactionsById, batchIds, entityManager);
+			addTags(transactionsById, batchIds, entityManager);
+		}
+		for (TransactionViewJson transaction : transactions)
+			Collections.sort(transaction.getTags());
+		return transactions;
+	}
+
+	/**
+	 * Reads the components of transactions
+	 *
+	 * @param transactionsById the transactions views by ID
+	 * @param ids the IDs of transactions whose components should be read
+	 * @param entityManager the EntityManager to be used for reading
+	 */
+	private void addComponents(Map<Long, TransactionViewJson> transactionsById, List<Long> ids, EntityManager entityManager) {
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> componentsCriteriaQuery = cb.createTupleQuery();
+		Root<TransactionComponent> component = componentsCriteriaQuery.from(TransactionComponent.class);
+		componentsCriteriaQuery.where(component.get(TransactionComponent_.transaction).get(FinanceTransaction_.id).in(ids));
+		componentsCriteriaQuery.orderBy(cb.asc(component.get(TransactionComponent_.id)));
+		componentsCriteriaQuery.multiselect(
+				component.get(TransactionComponent_.transaction).get(FinanceTransaction_.id),
+				component.get(TransactionComponent_.id),
+				component.get(TransactionComponent_.version),
+				component.get(TransactionComponent_.account).get(FinanceAccount_.id),
+				component.get(TransactionComponent_.amount));
+		for (Tuple row : entityManager.createQuery(componentsCriteriaQuery).getResultList())
+			transactionsById.get(row.get(0, Long.class)).getComponents().add(new TransactionComponentViewJson(
+					row.get(1, Long.class), row.get(2, Long.class), row.get(3, Long.class), row.get(4, Long.class)));
+	}
+
+	/**
+	 * Reads the tags of transactions
+	 *
+	 * @param transactionsById the transactions views by ID
+	 * @param ids the IDs of transactions whose tags should be read
+	 * @param entityManager the EntityManager to be used for reading
+	 */
+	private void addTags(Map<Long, TransactionViewJson> transactionsById, List<Long> ids, EntityManager entityManager) {
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> tagsCriteriaQuery = cb.createTupleQuery();
+		Root<FinanceTransaction> taggedTr = tagsCriteriaQuery.from(FinanceTransaction.class);
+		Join<FinanceTransaction, Tag> tagsJoin = taggedTr.join(FinanceTransaction_.tags);
+		tagsCriteriaQuery.where(taggedTr.get(FinanceTransaction_.id).in(ids));
+		tagsCriteriaQuery.multiselect(taggedTr.get(FinanceTransaction_.id), tagsJoin.get(Tag_.name));
+		for (Tuple row : entityManager.createQuery(tagsCriteriaQuery).getResultList())
+			transactionsById.get(row.get(0, Long.class)).getTags().add(row.get(1, String.class));
+	}
+}
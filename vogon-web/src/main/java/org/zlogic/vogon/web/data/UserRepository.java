@@ -6,6 +6,9 @@
 package org.zlogic.vogon.web.data;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import org.zlogic.vogon.data.VogonUser;
 
@@ -24,4 +27,24 @@ public interface UserRepository extends JpaRepository<VogonUser, Long> {
 	 * @return the found user
 	 */
 	public VogonUser findByUsernameIgnoreCase(String name);
+
+	/**
+	 * Returns the data version of a user
+	 *
+	 * @param id the user ID
+	 * @return the user's data version
+	 */
+	@Query("select coalesce(u.dataVersion, 0) from VogonUser u where u.id = :id") //NOI18N
+	public Long findDataVersionById(@Param("id") long id);
+
+	/**
+	 * Increments the data version of a user; should be called whenever the
+	 * user's accounts or transactions are changed
+	 *
+	 * @param id the user ID
+	 * @return the number of updated users
+	 */
+	@Modifying
+	@Query("update VogonUser u set u.dataVersion = coalesce(u.dataVersion, 0) + 1 where u.id = :id") //NOI18N
+	public int incrementDataVersion(@Param("id") long id);
 }
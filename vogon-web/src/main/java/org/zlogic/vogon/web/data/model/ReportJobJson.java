@@ -0,0 +1,112 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data.model;
+
+import java.util.Map;
+import org.zlogic.vogon.data.report.Report;
+
+/**
+ * JSON view of an asynchronous report job
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public class ReportJobJson {
+
+	/**
+	 * The job status
+	 */
+	public enum Status {
+
+		/**
+		 * The job is waiting for a free thread
+		 */
+		QUEUED,
+		/**
+		 * The report is being built
+		 */
+		RUNNING,
+		/**
+		 * The report is built and available as the job result
+		 */
+		DONE,
+		/**
+		 * The report could not be built
+		 */
+		FAILED,
+		/**
+		 * The job was cancelled
+		 */
+		CANCELLED
+	};
+
+	/**
+	 * The job ID
+	 */
+	private final String id;
+	/**
+	 * The job status
+	 */
+	private final Status status;
+	/**
+	 * The report, if the job is done
+	 */
+	private final Map<String, Report> result;
+	/**
+	 * The error message, if the job failed
+	 */
+	private final String error;
+
+	/**
+	 * Creates a ReportJobJson
+	 *
+	 * @param id the job ID
+	 * @param status the job status
+	 * @param result the report, if the job is done
+	 * @param error the error message, if the job failed
+	 */
+	public ReportJobJson(String id, Status status, Map<String, Report> result, String error) {
+		this.id = id;
+		this.status = status;
+		this.result = result;
+		this.error = error;
+	}
+
+	/**
+	 * Returns the job ID
+	 *
+	 * @return the job ID
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the job status
+	 *
+	 * @return the job status
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the report
+	 *
+	 * @return the report, or null if the job is not done
+	 */
+	public Map<String, Report> getResult() {
+		return result;
+	}
+
+	/**
+	 * Returns the error message
+	 *
+	 * @return the error message, or null if the job didn't fail
+	 */
+	public String getError() {
+		return error;
+	}
+}
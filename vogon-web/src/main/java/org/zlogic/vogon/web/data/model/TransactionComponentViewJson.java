@@ -0,0 +1,85 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data.model;
+
+import org.zlogic.vogon.data.Constants;
+
+/**
+ * Read-only JSON view of a transaction component, filled directly from query
+ * results
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public class TransactionComponentViewJson {
+
+	/**
+	 * The component ID
+	 */
+	private final long id;
+	/**
+	 * The component version
+	 */
+	private final long version;
+	/**
+	 * The account ID
+	 */
+	private final Long accountId;
+	/**
+	 * The raw amount
+	 */
+	private final long rawAmount;
+
+	/**
+	 * Creates a TransactionComponentViewJson
+	 *
+	 * @param id the component ID
+	 * @param version the component version
+	 * @param accountId the account ID
+	 * @param rawAmount the raw amount
+	 */
+	public TransactionComponentViewJson(long id, long version, Long accountId, long rawAmount) {
+		this.id = id;
+		this.version = version;
+		this.accountId = accountId;
+		this.rawAmount = rawAmount;
+	}
+
+	/**
+	 * Returns the component ID
+	 *
+	 * @return the component ID
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the component version
+	 *
+	 * @return the component version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the account ID
+	 *
+	 * @return the account ID
+	 */
+	public Long getAccountId() {
+		return accountId;
+	}
+
+	/**
+	 * Returns the real amount
+	 *
+	 * @return the real amount
+	 */
+	public double getAmount() {
+		return rawAmount / Constants.RAW_AMOUNT_MULTIPLIER;
+	}
+}
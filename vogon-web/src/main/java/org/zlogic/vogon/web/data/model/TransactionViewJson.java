@@ -0,0 +1,129 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache license: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web.data.model;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.zlogic.vogon.data.FinanceTransaction;
+
+/**
+ * Read-only JSON view of a transaction, filled directly from query results;
+ * serialized the same way as FinanceTransactionJson
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public class TransactionViewJson {
+
+	/**
+	 * The transaction ID
+	 */
+	private final long id;
+	/**
+	 * The transaction version
+	 */
+	private final long version;
+	/**
+	 * The transaction type
+	 */
+	private final FinanceTransaction.Type type;
+	/**
+	 * The transaction description
+	 */
+	private final String description;
+	/**
+	 * The transaction date
+	 */
+	private final Date date;
+	/**
+	 * The transaction tags, sorted by name
+	 */
+	private final List<String> tags = new ArrayList<>();
+	/**
+	 * The transaction components, sorted by ID
+	 */
+	private final List<TransactionComponentViewJson> components = new ArrayList<>();
+
+	/**
+	 * Creates a TransactionViewJson without tags and components
+	 *
+	 * @param id the transaction ID
+	 * @param version the transaction version
+	 * @param type the transaction type
+	 * @param description the transaction description
+	 * @param date the transaction date
+	 */
+	public TransactionViewJson(long id, long version, FinanceTransaction.Type type, String description, Date date) {
+		this.id = id;
+		this.version = version;
+		this.type = type;
+		this.description = description;
+		this.date = date != null ? new Date(date.getTime()) : null;
+	}
+
+	/**
+	 * Returns the transaction ID
+	 *
+	 * @return the transaction ID
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the transaction version
+	 *
+	 * @return the transaction version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the transaction type
+	 *
+	 * @return the transaction type
+	 */
+	public FinanceTransaction.Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the transaction description
+	 *
+	 * @return the transaction description
+	 */
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * Returns the transaction date
+	 *
+	 * @return the transaction date
+	 */
+	public Date getDate() {
+		return date;
+	}
+
+	/**
+	 * Returns the transaction tags
+	 *
+	 * @return the transaction tags, sorted by name
+	 */
+	public List<String> getTags() {
+		return tags;
+	}
+
+	/**
+	 * Returns the transaction components
+	 *
+	 * @return the transaction components, sorted by ID
+	 */
+	public List<TransactionComponentViewJson> getComponents() {
+		return components;
+	}
+}
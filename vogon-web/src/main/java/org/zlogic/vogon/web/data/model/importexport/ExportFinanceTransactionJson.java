@@ -6,8 +6,6 @@
 package org.zlogic.vogon.web.data.model.importexport;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import java.util.Arrays;
-import java.util.TreeSet;
 import org.zlogic.vogon.data.FinanceTransaction;
 import org.zlogic.vogon.web.data.model.FinanceTransactionJson;
 
@@ -35,7 +33,7 @@ public class ExportFinanceTransactionJson extends FinanceTransactionJson {
 	 */
 	public ExportFinanceTransactionJson(FinanceTransaction transaction) {
 		this.description = transaction.getDescription();
-		this.tags = new TreeSet<>(Arrays.asList(transaction.getTags()));
+		ExportFinanceTransactionJson.this.setTags(transaction.getTags());
 		this.transactionDate = transaction.getDate();
 		this.type = transaction.getType();
 	}
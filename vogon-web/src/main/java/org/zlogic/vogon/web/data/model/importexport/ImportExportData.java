@@ -13,6 +13,7 @@ import java.util.Map;
 import javax.persistence.EntityManager;
 import org.zlogic.vogon.data.FinanceAccount;
 import org.zlogic.vogon.data.FinanceTransaction;
+import org.zlogic.vogon.data.TagResolver;
 import org.zlogic.vogon.data.TransactionComponent;
 import org.zlogic.vogon.data.VogonUser;
 import org.zlogic.vogon.web.data.model.TransactionComponentJson;
@@ -96,8 +97,10 @@ public class ImportExportData {
 			em.persist(convertedAccount);
 		}
 
+		TagResolver tagResolver = new TagResolver(em);
 		for (ExportFinanceTransactionJson transaction : transactions) {
 			FinanceTransaction convertedTransaction = new FinanceTransaction(user, transaction);
+			tagResolver.resolveTags(convertedTransaction);
 			em.persist(convertedTransaction);
 
 			for (TransactionComponent component : transaction.getComponentsJson()) {
@@ -115,7 +115,8 @@ app.controller("AnalyticsController", function ($scope, AccountsService, Transac
 			latestDate: dateToJson($scope.dateRange.end),
 			enabledTransferTransactions: $scope.transactionTypeEnabled.transfer,
 			enabledIncomeTransactions: $scope.transactionTypeEnabled.income,
-			enabledExpenseTransactions: $scope.transactionTypeEnabled.expense
+			enabledExpenseTransactions: $scope.transactionTypeEnabled.expense,
+			balanceGraphPoints: 1000
 		};
 		reportConfiguration.selectedTags = [];
 		for (var tag in $scope.tags)
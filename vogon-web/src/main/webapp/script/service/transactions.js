@@ -3,7 +3,7 @@ app.service("TransactionsService", function ($q, HTTPService, AuthorizationServi
 	this.transactions = [];
 	this.transactionTypes = [{name: messages.EXPENSEINCOME, value: "EXPENSEINCOME"}, {name: messages.TRANSFER, value: "TRANSFER"}];
 	this.defaultTransactionType = this.transactionTypes[0];
-	this.currentPage = 0;
+	this.nextCursor = "";
 	this.loadingNextPage = false;
 	this.lastPage = false;
 	this.sortColumn = "date";
@@ -12,7 +12,7 @@ app.service("TransactionsService", function ($q, HTTPService, AuthorizationServi
 	this.filterDate = undefined;
 	this.filterTags = undefined;
 	var reset = function () {
-		that.currentPage = 0;
+		that.nextCursor = "";
 		that.transactions = [];
 		that.lastPage = false;
 		that.loadingNextPage = doUpdate.inProgress();
@@ -32,7 +32,7 @@ app.service("TransactionsService", function ($q, HTTPService, AuthorizationServi
 		}
 		that.loadingNextPage = true;
 		var params = {
-			page: that.currentPage,
+			cursor: that.nextCursor,
 			sortColumn: that.sortColumn.toUpperCase(),
 			sortDirection: that.sortAsc ? "ASC" : "DESC"
 		};
@@ -50,9 +50,9 @@ app.service("TransactionsService", function ($q, HTTPService, AuthorizationServi
 					that.loadingNextPage = false;
 					if (data.data.length !== 0)
 						that.transactions = that.transactions.concat(data.data.map(processReceivedTransaction));
-					else
+					that.nextCursor = data.headers("X-Next-Cursor");
+					if (that.nextCursor === null)
 						that.lastPage = true;
-					that.currentPage++;
 				}, function () {
 					reset();
 					that.lastPage = true;
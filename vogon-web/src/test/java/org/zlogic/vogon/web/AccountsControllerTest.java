@@ -123,6 +123,32 @@ public class AccountsControllerTest {
 		validateDefaultAccounts();
 	}
 
+	/**
+	 * Test that an authenticated user can get their accounts balance on a
+	 * specific date
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetAccountBalances() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/accounts/balance?date=2014-01-01", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("{\"3\":0,\"4\":0}", responseEntity.getBody(), true);
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/accounts/balance?date=2014-06-07", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("{\"3\":-102,\"4\":304}", responseEntity.getBody(), true);
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/accounts/balance?date=2015-01-07", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("{\"3\":-99.28,\"4\":300.86}", responseEntity.getBody(), true);
+	}
+
 	/**
 	 * Test that an authenticated user can change their accounts
 	 *
@@ -5,14 +5,25 @@
  */
 package org.zlogic.vogon.web;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.text.MessageFormat;
+import java.util.ResourceBundle;
+import java.util.concurrent.CountDownLatch;
 import org.junit.After;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.mock.mockito.SpyBean;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -22,6 +33,8 @@ import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.util.JsonExpectationsHelper;
 import org.springframework.web.client.HttpStatusCodeException;
+import org.zlogic.vogon.web.configuration.VogonConfiguration;
+import org.zlogic.vogon.web.data.ReportCache;
 
 /**
  * Tests for Analytics Controller
@@ -34,6 +47,8 @@ import org.springframework.web.client.HttpStatusCodeException;
 @DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
 public class AnalyticsControllerTest {
 
+	private static final ResourceBundle messages = ResourceBundle.getBundle("org/zlogic/vogon/web/messages");
+
 	private JsonExpectationsHelper jsonExpectationhelper = new JsonExpectationsHelper();
 
 	@Autowired
@@ -42,6 +57,15 @@ public class AnalyticsControllerTest {
 	@Autowired
 	private Prepopupate prepopulate;
 
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@SpyBean
+	private VogonConfiguration vogonConfiguration;
+
+	@SpyBean
+	private ReportCache reportCache;
+
 	@Before
 	public void before() {
 		prepopulate.clear();
@@ -90,6 +114,76 @@ public class AnalyticsControllerTest {
 		jsonExpectationhelper.assertJsonEqual("[\"\"]", responseEntity.getBody());
 	}
 
+	/**
+	 * Test that the most used tags starting with a prefix are returned
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetTagSuggestions() throws Exception {
+		prepopulate.prepopulate();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/tags?prefix=", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("[\"hello\",\"magic\",\"world\"]", responseEntity.getBody(), true);
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/tags?prefix=&limit=2", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("[\"hello\",\"magic\"]", responseEntity.getBody(), true);
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/tags?prefix=&limit=-1", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("[\"hello\"]", responseEntity.getBody(), true);
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/tags?prefix=&limit=2147483647", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("[\"hello\",\"magic\",\"world\"]", responseEntity.getBody(), true);
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/tags?prefix=WO", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("[\"world\"]", responseEntity.getBody(), true);
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/tags?prefix=x", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("[]", responseEntity.getBody(), true);
+	}
+
+	/**
+	 * Test that tag suggestions are updated when a transaction is changed
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetTagSuggestionsUpdated() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/tags?prefix=w", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("[\"world\"]", responseEntity.getBody(), true);
+
+		String changeRequest = "{\"tags\":[\"magic\",\"wonder\"],\"id\":6,\"type\":\"EXPENSEINCOME\",\"description\":\"test transaction 1\",\"date\":\"2014-02-17\",\"version\":0,\"components\":[{\"accountId\":3,\"amount\":42,\"id\":7,\"version\":0},{\"accountId\":4,\"amount\":160,\"id\":8,\"version\":0}]}";
+		responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/transactions", new HttpEntity<>(changeRequest, headers), String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/tags?prefix=w", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("[\"wonder\"]", responseEntity.getBody(), true);
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/tags?prefix=", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("[\"magic\",\"hello\",\"wonder\"]", responseEntity.getBody(), true);
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/tags", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("[\"\",\"hello\",\"magic\",\"wonder\"]", responseEntity.getBody());
+	}
+
 	/**
 	 * Test that an authenticated user is allowed to get analytics data for all
 	 * of their transactions
@@ -120,6 +214,595 @@ public class AnalyticsControllerTest {
 				+ "}", responseEntity.getBody(), true);
 	}
 
+	/**
+	 * Test that an authenticated user is allowed to get analytics data for all
+	 * of their transactions, with every currency built in parallel
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetAnalyticsAllTranctionsParallel() throws Exception {
+		given(vogonConfiguration.isParallelReports()).willReturn(true);
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		jsonExpectationhelper.assertJsonEqual("{"
+				+ "RUB:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:42},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:2.72}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:44.72},{tag:\"world\",amount:42},{tag:\"magic\",amount:2.72}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":42,\"2014-06-07\":-102,\"2015-01-07\":-99.28}"
+				+ "},EUR:{"
+				+ "transactions:[{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:160},{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:-3.14}],"
+				+ "tagExpenses:[{tag:\"world\",amount:160},{tag:\"hello\",amount:156.86},{tag:\"\",amount:144},{tag:\"magic\",amount:-3.14}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":160,\"2014-06-07\":304,\"2015-01-07\":300.86}"
+				+ "}"
+				+ "}", responseEntity.getBody(), true);
+	}
+
+	/**
+	 * Test that an authenticated user is allowed to get analytics data for all
+	 * of their transactions, built from the columnar ledger
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetAnalyticsAllTranctionsColumnar() throws Exception {
+		given(vogonConfiguration.isColumnarReports()).willReturn(true);
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		jsonExpectationhelper.assertJsonEqual("{"
+				+ "RUB:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:42},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:2.72}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:44.72},{tag:\"world\",amount:42},{tag:\"magic\",amount:2.72}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":42,\"2014-06-07\":-102,\"2015-01-07\":-99.28}"
+				+ "},EUR:{"
+				+ "transactions:[{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:160},{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:-3.14}],"
+				+ "tagExpenses:[{tag:\"world\",amount:160},{tag:\"hello\",amount:156.86},{tag:\"\",amount:144},{tag:\"magic\",amount:-3.14}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":160,\"2014-06-07\":304,\"2015-01-07\":300.86}"
+				+ "}"
+				+ "}", responseEntity.getBody(), true);
+	}
+
+	/**
+	 * Test that the columnar ledger applies the date range and tags filters,
+	 * and that the balance graph only includes the filtered transactions
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetAnalyticsDateRangeTagTranctionsColumnar() throws Exception {
+		given(vogonConfiguration.isColumnarReports()).willReturn(true);
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2014-06-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		jsonExpectationhelper.assertJsonEqual("{"
+				+ "RUB:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:2.72}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:2.72},{tag:\"magic\",amount:2.72}],"
+				+ "accountsBalanceGraph:{\"2014-06-07\":-144,\"2015-01-07\":-141.28}"
+				+ "},EUR:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:-3.14}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:-3.14},{tag:\"magic\",amount:-3.14}],"
+				+ "accountsBalanceGraph:{\"2014-06-07\":144,\"2015-01-07\":140.86}"
+				+ "}"
+				+ "}", responseEntity.getBody(), true);
+	}
+
+	/**
+	 * Test that changing and deleting transactions updates the columnar
+	 * ledger
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetAnalyticsColumnarUpdated() throws Exception {
+		given(vogonConfiguration.isColumnarReports()).willReturn(true);
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", new HttpEntity<>(request, headers), String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		String report = responseEntity.getBody();
+
+		String changeRequest = "{\"tags\":[\"hello\",\"world\"],\"id\":6,\"type\":\"EXPENSEINCOME\",\"description\":\"test transaction 1a\",\"date\":\"2014-02-17\",\"version\":0,\"components\":[{\"accountId\":3,\"amount\":42,\"id\":7,\"version\":0},{\"accountId\":4,\"amount\":160,\"id\":8,\"version\":0}]}";
+		responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/transactions", new HttpEntity<>(changeRequest, headers), String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", new HttpEntity<>(request, headers), String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual(report.replace("test transaction 1\"", "test transaction 1a\""), responseEntity.getBody(), true);
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions/transaction/10", HttpMethod.DELETE, new HttpEntity<>(headers), String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", new HttpEntity<>(request, headers), String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual("{"
+				+ "RUB:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 1a\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:42}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:42},{tag:\"world\",amount:42}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":42,\"2014-06-07\":-102}"
+				+ "},EUR:{"
+				+ "transactions:[{description:\"test transaction 1a\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:160},{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144}],"
+				+ "tagExpenses:[{tag:\"hello\",amount:160},{tag:\"world\",amount:160},{tag:\"\",amount:144}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":160,\"2014-06-07\":304}"
+				+ "}"
+				+ "}", responseEntity.getBody(), true);
+	}
+
+	/**
+	 * Test that a report can be built asynchronously, and that the job is
+	 * removed when it's deleted
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReportJob() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics/jobs", entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		ObjectMapper mapper = new ObjectMapper();
+		String id = mapper.readTree(responseEntity.getBody()).get("id").asText();
+
+		entity = new HttpEntity<>(headers);
+		JsonNode job = null;
+		for (int i = 0; i < 100; i++) {
+			responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/jobs/" + id, HttpMethod.GET, entity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+			job = mapper.readTree(responseEntity.getBody());
+			if (!job.get("status").asText().equals("QUEUED") && !job.get("status").asText().equals("RUNNING"))
+				break;
+			Thread.sleep(100);
+		}
+		assertEquals(id, job.get("id").asText());
+		assertEquals("DONE", job.get("status").asText());
+		jsonExpectationhelper.assertJsonEqual("{"
+				+ "RUB:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:42},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:2.72}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:44.72},{tag:\"world\",amount:42},{tag:\"magic\",amount:2.72}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":42,\"2014-06-07\":-102,\"2015-01-07\":-99.28}"
+				+ "},EUR:{"
+				+ "transactions:[{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:160},{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:-3.14}],"
+				+ "tagExpenses:[{tag:\"world\",amount:160},{tag:\"hello\",amount:156.86},{tag:\"\",amount:144},{tag:\"magic\",amount:-3.14}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":160,\"2014-06-07\":304,\"2015-01-07\":300.86}"
+				+ "}"
+				+ "}", job.get("result").toString(), true);
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/jobs/" + id, HttpMethod.DELETE, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		assertEquals("DONE", mapper.readTree(responseEntity.getBody()).get("status").asText());
+
+		try {
+			restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/jobs/" + id, HttpMethod.GET, entity, String.class);
+			fail("Expected an HttpServerErrorException to be thrown");
+		} catch (HttpStatusCodeException ex) {
+			assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, ex.getStatusCode());
+			jsonExpectationhelper.assertJsonEqual("{message:\"" + MessageFormat.format(messages.getString("REPORT_JOB_DOES_NOT_EXIST"), id) + "\"}", ex.getResponseBodyAsString());
+		}
+	}
+
+	/**
+	 * Test that a user cannot have more unfinished report jobs than allowed,
+	 * and that a cancelled job is unfinished until its report is built
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReportJobLimit() throws Exception {
+		prepopulate.prepopulateExtra();
+		given(vogonConfiguration.getReportUserJobs()).willReturn(2);
+		CountDownLatch reportsBlocked = new CountDownLatch(1);
+		willAnswer(invocation -> {
+			reportsBlocked.await();
+			return invocation.callRealMethod();
+		}).given(reportCache).getReport(any(), anyLong(), any(), any());
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ObjectMapper mapper = new ObjectMapper();
+		ResponseEntity<String> responseEntity;
+		try {
+			responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics/jobs", entity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+			String id = mapper.readTree(responseEntity.getBody()).get("id").asText();
+			responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics/jobs", entity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+			try {
+				restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics/jobs", entity, String.class);
+				fail("Expected an HttpClientErrorException to be thrown");
+			} catch (HttpStatusCodeException ex) {
+				assertEquals(HttpStatus.TOO_MANY_REQUESTS, ex.getStatusCode());
+				jsonExpectationhelper.assertJsonEqual("{message:\"" + messages.getString("TOO_MANY_REPORT_JOBS") + "\"}", ex.getResponseBodyAsString());
+			}
+
+			//Wait until the first job is running, so that cancelling it doesn't remove it from the queue
+			HttpEntity<String> jobEntity = new HttpEntity<>(headers);
+			for (int i = 0; i < 100; i++) {
+				responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/jobs/" + id, HttpMethod.GET, jobEntity, String.class);
+				assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+				if (mapper.readTree(responseEntity.getBody()).get("status").asText().equals("RUNNING"))
+					break;
+				Thread.sleep(100);
+			}
+			assertEquals("RUNNING", mapper.readTree(responseEntity.getBody()).get("status").asText());
+
+			responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/jobs/" + id, HttpMethod.DELETE, jobEntity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+			assertEquals("CANCELLED", mapper.readTree(responseEntity.getBody()).get("status").asText());
+
+			try {
+				restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics/jobs", entity, String.class);
+				fail("Expected an HttpClientErrorException to be thrown");
+			} catch (HttpStatusCodeException ex) {
+				assertEquals(HttpStatus.TOO_MANY_REQUESTS, ex.getStatusCode());
+				jsonExpectationhelper.assertJsonEqual("{message:\"" + messages.getString("TOO_MANY_REPORT_JOBS") + "\"}", ex.getResponseBodyAsString());
+			}
+		} finally {
+			reportsBlocked.countDown();
+		}
+
+		//The cancelled job is finished when its report is built
+		responseEntity = null;
+		for (int i = 0; i < 100 && responseEntity == null; i++) {
+			try {
+				responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics/jobs", entity, String.class);
+			} catch (HttpStatusCodeException ex) {
+				assertEquals(HttpStatus.TOO_MANY_REQUESTS, ex.getStatusCode());
+				Thread.sleep(100);
+			}
+		}
+		assertNotNull(responseEntity);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+	}
+
+	/**
+	 * Test that only the newest finished report jobs of a user are kept
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReportJobRetainedLimit() throws Exception {
+		prepopulate.prepopulateExtra();
+		given(vogonConfiguration.getReportUserRetainedJobs()).willReturn(2);
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		HttpEntity<String> jobEntity = new HttpEntity<>(headers);
+		ObjectMapper mapper = new ObjectMapper();
+		String[] ids = new String[3];
+		for (int i = 0; i < ids.length; i++) {
+			ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics/jobs", entity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+			ids[i] = mapper.readTree(responseEntity.getBody()).get("id").asText();
+			for (int j = 0; j < 100; j++) {
+				responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/jobs/" + ids[i], HttpMethod.GET, jobEntity, String.class);
+				assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+				if (mapper.readTree(responseEntity.getBody()).get("status").asText().equals("DONE"))
+					break;
+				Thread.sleep(100);
+			}
+			assertEquals("DONE", mapper.readTree(responseEntity.getBody()).get("status").asText());
+		}
+
+		try {
+			restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/jobs/" + ids[0], HttpMethod.GET, jobEntity, String.class);
+			fail("Expected an HttpServerErrorException to be thrown");
+		} catch (HttpStatusCodeException ex) {
+			assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, ex.getStatusCode());
+			jsonExpectationhelper.assertJsonEqual("{message:\"" + MessageFormat.format(messages.getString("REPORT_JOB_DOES_NOT_EXIST"), ids[0]) + "\"}", ex.getResponseBodyAsString());
+		}
+		for (int i = 1; i < ids.length; i++) {
+			ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/jobs/" + ids[i], HttpMethod.GET, jobEntity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+			assertEquals("DONE", mapper.readTree(responseEntity.getBody()).get("status").asText());
+		}
+	}
+
+	/**
+	 * Test that an authenticated user cannot get or cancel a report job
+	 * belonging to another user
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReportJobAnotherUser() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics/jobs", entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		String id = new ObjectMapper().readTree(responseEntity.getBody()).get("id").asText();
+
+		entity = new HttpEntity<>(restClient.authenticate("user02", "mypassword2"));
+		for (HttpMethod method : new HttpMethod[]{HttpMethod.GET, HttpMethod.DELETE}) {
+			try {
+				restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/jobs/" + id, method, entity, String.class);
+				fail("Expected an HttpServerErrorException to be thrown");
+			} catch (HttpStatusCodeException ex) {
+				assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, ex.getStatusCode());
+				jsonExpectationhelper.assertJsonEqual("{message:\"" + MessageFormat.format(messages.getString("REPORT_JOB_DOES_NOT_EXIST"), id) + "\"}", ex.getResponseBodyAsString());
+			}
+		}
+
+		entity = new HttpEntity<>(headers);
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/analytics/jobs/" + id, HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+	}
+
+	/**
+	 * Test that an authenticated user is allowed to stream analytics data for
+	 * all of their transactions
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStreamAnalyticsAllTranctions() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics/stream", entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		jsonExpectationhelper.assertJsonEqual("{"
+				+ "RUB:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:42},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:2.72}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:44.72},{tag:\"world\",amount:42},{tag:\"magic\",amount:2.72}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":42,\"2014-06-07\":-102,\"2015-01-07\":-99.28}"
+				+ "},EUR:{"
+				+ "transactions:[{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:160},{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:-3.14}],"
+				+ "tagExpenses:[{tag:\"world\",amount:160},{tag:\"hello\",amount:156.86},{tag:\"\",amount:144},{tag:\"magic\",amount:-3.14}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":160,\"2014-06-07\":304,\"2015-01-07\":300.86}"
+				+ "}"
+				+ "}", responseEntity.getBody(), true);
+	}
+
+	/**
+	 * Test that an authenticated user is allowed to stream analytics data for
+	 * their income transactions
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStreamAnalyticsIncomeTranctions() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":false,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":false,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics/stream", entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		jsonExpectationhelper.assertJsonEqual("{"
+				+ "RUB:{"
+				+ "transactions:[{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:42},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:2.72}],"
+				+ "tagExpenses:[{tag:\"hello\",amount:44.72},{tag:\"world\",amount:42},{tag:\"magic\",amount:2.72}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":42,\"2015-01-07\":44.72}"
+				+ "},EUR:{"
+				+ "transactions:[{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:160}],"
+				+ "tagExpenses:[{tag:\"hello\",amount:160},{tag:\"world\",amount:160}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":160}"
+				+ "}"
+				+ "}", responseEntity.getBody(), true);
+	}
+
+	/**
+	 * Test that an authenticated user is allowed to get a page of the largest
+	 * transactions, with complete tag expenses and balance graphs
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetAnalyticsTranctionsPage() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}],\"transactionsOffset\":1,\"transactionsLimit\":1}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		jsonExpectationhelper.assertJsonEqual("{"
+				+ "RUB:{"
+				+ "transactions:[{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:42}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:44.72},{tag:\"world\",amount:42},{tag:\"magic\",amount:2.72}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":42,\"2014-06-07\":-102,\"2015-01-07\":-99.28}"
+				+ "},EUR:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144}],"
+				+ "tagExpenses:[{tag:\"world\",amount:160},{tag:\"hello\",amount:156.86},{tag:\"\",amount:144},{tag:\"magic\",amount:-3.14}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":160,\"2014-06-07\":304,\"2015-01-07\":300.86}"
+				+ "}"
+				+ "}", responseEntity.getBody(), true);
+	}
+
+	/**
+	 * Test that an authenticated user is allowed to get a page of the largest
+	 * transactions as a stream, with complete tag expenses and balance graphs
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStreamAnalyticsTranctionsPage() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}],\"transactionsOffset\":1,\"transactionsLimit\":1}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics/stream", entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		jsonExpectationhelper.assertJsonEqual("{"
+				+ "RUB:{"
+				+ "transactions:[{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:42}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:44.72},{tag:\"world\",amount:42},{tag:\"magic\",amount:2.72}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":42,\"2014-06-07\":-102,\"2015-01-07\":-99.28}"
+				+ "},EUR:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144}],"
+				+ "tagExpenses:[{tag:\"world\",amount:160},{tag:\"hello\",amount:156.86},{tag:\"\",amount:144},{tag:\"magic\",amount:-3.14}],"
+				+ "accountsBalanceGraph:{\"2014-02-17\":160,\"2014-06-07\":304,\"2015-01-07\":300.86}"
+				+ "}"
+				+ "}", responseEntity.getBody(), true);
+	}
+
+	/**
+	 * Test that an authenticated user is allowed to get analytics data
+	 * with a downsampled balance graph
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetAnalyticsDownsampledBalanceGraph() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}],\"balanceGraphGranularity\":\"MONTH\",\"balanceGraphPoints\":2}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		jsonExpectationhelper.assertJsonEqual("{"
+				+ "RUB:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:42},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:2.72}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:44.72},{tag:\"world\",amount:42},{tag:\"magic\",amount:2.72}],"
+				+ "accountsBalanceGraph:{\"2014-06-07\":-102,\"2015-01-07\":-99.28}"
+				+ "},EUR:{"
+				+ "transactions:[{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:160},{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:-3.14}],"
+				+ "tagExpenses:[{tag:\"world\",amount:160},{tag:\"hello\",amount:156.86},{tag:\"\",amount:144},{tag:\"magic\",amount:-3.14}],"
+				+ "accountsBalanceGraph:{\"2014-06-07\":304,\"2015-01-07\":300.86}"
+				+ "}"
+				+ "}", responseEntity.getBody(), true);
+	}
+
+	/**
+	 * Test that an authenticated user is allowed to get analytics data as a stream
+	 * with a downsampled balance graph
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStreamAnalyticsDownsampledBalanceGraph() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}],\"balanceGraphGranularity\":\"MONTH\",\"balanceGraphPoints\":2}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics/stream", entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		jsonExpectationhelper.assertJsonEqual("{"
+				+ "RUB:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:42},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:2.72}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:44.72},{tag:\"world\",amount:42},{tag:\"magic\",amount:2.72}],"
+				+ "accountsBalanceGraph:{\"2014-06-07\":-102,\"2015-01-07\":-99.28}"
+				+ "},EUR:{"
+				+ "transactions:[{description:\"test transaction 1\",date:\"2014-02-17\",type:\"EXPENSEINCOME\",amount:160},{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:-3.14}],"
+				+ "tagExpenses:[{tag:\"world\",amount:160},{tag:\"hello\",amount:156.86},{tag:\"\",amount:144},{tag:\"magic\",amount:-3.14}],"
+				+ "accountsBalanceGraph:{\"2014-06-07\":304,\"2015-01-07\":300.86}"
+				+ "}"
+				+ "}", responseEntity.getBody(), true);
+	}
+
+	/**
+	 * Test that repeated analytics requests are returned from the cache, and
+	 * that changing a transaction invalidates the cached results
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetAnalyticsCached() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		String reorderedRequest = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"magic\",\"world\",\"hello\",\"\"],\"selectedAccounts\":[{\"id\":4},{\"id\":3}]}";
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", new HttpEntity<>(request, headers), String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		String report = responseEntity.getBody();
+
+		responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", new HttpEntity<>(reorderedRequest, headers), String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual(report, responseEntity.getBody(), true);
+		assertEquals(1, meterRegistry.get("cache.gets").tag("cache", "reports").tag("result", "hit").functionCounter().count(), 0);
+		assertEquals(1, meterRegistry.get("cache.gets").tag("cache", "reports").tag("result", "miss").functionCounter().count(), 0);
+
+		String changeRequest = "{\"tags\":[\"hello\",\"world\"],\"id\":6,\"type\":\"EXPENSEINCOME\",\"description\":\"test transaction 1a\",\"date\":\"2014-02-17\",\"version\":0,\"components\":[{\"accountId\":3,\"amount\":42,\"id\":7,\"version\":0},{\"accountId\":4,\"amount\":160,\"id\":8,\"version\":0}]}";
+		responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/transactions", new HttpEntity<>(changeRequest, headers), String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", new HttpEntity<>(request, headers), String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		jsonExpectationhelper.assertJsonEqual(report.replace("test transaction 1\"", "test transaction 1a\""), responseEntity.getBody(), true);
+		assertEquals(1, meterRegistry.get("cache.gets").tag("cache", "reports").tag("result", "hit").functionCounter().count(), 0);
+		assertEquals(2, meterRegistry.get("cache.gets").tag("cache", "reports").tag("result", "miss").functionCounter().count(), 0);
+		assertEquals(2, meterRegistry.get("cache.size").tag("cache", "reports").gauge().value(), 0);
+	}
+
+	/**
+	 * Test that the time of every report phase is recorded, tagged by the
+	 * number of currencies and scanned rows
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetAnalyticsPhaseTimers() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2010-01-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", new HttpEntity<>(request, headers), String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		for (String phase : new String[]{"query", "hydrate", "aggregate", "sort", "balance_graph", "serialize"})
+			assertEquals(1, meterRegistry.get("vogon.report.phase").tag("phase", phase).tag("currencies", "2").tag("rows", "100").timer().count());
+
+		responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", new HttpEntity<>(request, headers), String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		assertEquals(1, meterRegistry.get("vogon.report.phase").tag("phase", "serialize").tag("currencies", "2").tag("rows", "0").timer().count());
+		assertNull(meterRegistry.find("vogon.report.phase").tag("phase", "query").tag("rows", "0").timer());
+	}
+
 	/**
 	 * Test that an authenticated user is allowed to get analytics data for only
 	 * income transactions
@@ -237,6 +920,37 @@ public class AnalyticsControllerTest {
 				+ "}", responseEntity.getBody(), true);
 	}
 
+	/**
+	 * Test that an authenticated user is allowed to get analytics data for a
+	 * date range starting after their first transaction, and that the balance
+	 * graph includes the balance from before the range
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetAnalyticsDateRangeTranctions() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		String request = "{\"earliestDate\":\"2014-06-01\",\"latestDate\":\"2020-01-01\",\"enabledTransferTransactions\":true,\"enabledIncomeTransactions\":true,\"enabledExpenseTransactions\":true,\"selectedTags\":[\"\",\"hello\",\"world\",\"magic\"],\"selectedAccounts\":[{\"id\":3},{\"id\":4}]}";
+		HttpEntity<String> entity = new HttpEntity<>(request, headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().postForEntity("https://localhost:8443/service/analytics", entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		jsonExpectationhelper.assertJsonEqual("{"
+				+ "RUB:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:2.72}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:2.72},{tag:\"magic\",amount:2.72}],"
+				+ "accountsBalanceGraph:{\"2014-06-07\":-102,\"2015-01-07\":-99.28}"
+				+ "},EUR:{"
+				+ "transactions:[{description:\"test transaction 4\",date:\"2014-06-07\",type:\"TRANSFER\",amount:144},{description:\"test transaction 2\",date:\"2015-01-07\",type:\"EXPENSEINCOME\",amount:-3.14}],"
+				+ "tagExpenses:[{tag:\"\",amount:144},{tag:\"hello\",amount:-3.14},{tag:\"magic\",amount:-3.14}],"
+				+ "accountsBalanceGraph:{\"2014-06-07\":304,\"2015-01-07\":300.86}"
+				+ "}"
+				+ "}", responseEntity.getBody(), true);
+	}
+
 	/**
 	 * Test that an authenticated user is allowed to get analytics data for only
 	 * transactions with a specific account
@@ -10,6 +10,11 @@ import java.util.Arrays;
 import java.util.Currency;
 import java.util.List;
 import javax.annotation.Resource;
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.After;
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -73,6 +78,9 @@ public class DataControllerTest {
 	@Autowired
 	private Prepopupate prepopulate;
 
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+
 	@Resource
 	private TransactionTemplate transactionTemplate;
 
@@ -114,6 +122,39 @@ public class DataControllerTest {
 				+ "]}", response);
 	}
 
+	/**
+	 * Test that the number of statements needed to export data doesn't depend
+	 * on the number of transactions
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testExportDataStatementCount() throws Exception {
+		prepopulate.prepopulate();
+
+		HttpHeaders headers = restClient.authenticate();
+		headers.setAccept(Arrays.asList(MediaType.APPLICATION_OCTET_STREAM));
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		statistics.setStatisticsEnabled(true);
+
+		statistics.clear();
+		ResponseEntity<byte[]> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/export", HttpMethod.GET, entity, byte[].class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		long statementCount = statistics.getPrepareStatementCount();
+
+		prepopulate.prepopulateTaggedTransactions(250);
+
+		statistics.clear();
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/export", HttpMethod.GET, entity, byte[].class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		JSONArray transactions = new JSONObject(new String(responseEntity.getBody(), Charset.forName("utf-8"))).getJSONArray("transactions");
+		assertEquals(253, transactions.length());
+		assertEquals(2, transactions.getJSONObject(3).getJSONArray("components").length());
+		assertEquals(2, transactions.getJSONObject(3).getJSONArray("tags").length());
+		assertEquals(statementCount, statistics.getPrepareStatementCount());
+	}
+
 	/**
 	 * Test that an authenticated user with no accounts or transactions is
 	 * allowed to export their data
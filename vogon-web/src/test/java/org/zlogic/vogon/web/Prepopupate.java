@@ -7,10 +7,13 @@ package org.zlogic.vogon.web;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Currency;
 import java.util.Date;
 import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import javax.transaction.Transactional;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.crypto.factory.PasswordEncoderFactories;
@@ -18,6 +21,7 @@ import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 import org.zlogic.vogon.data.FinanceAccount;
 import org.zlogic.vogon.data.FinanceTransaction;
+import org.zlogic.vogon.data.TagResolver;
 import org.zlogic.vogon.data.TransactionComponent;
 import org.zlogic.vogon.data.VogonUser;
 import org.zlogic.vogon.web.data.AccountRepository;
@@ -42,6 +46,9 @@ public class Prepopupate {
 	@Autowired
 	private TransactionRepository transactionRepository;
 
+	@PersistenceContext
+	private EntityManager em;
+
 	/**
 	 * Parses a date in JSON format
 	 *
@@ -85,6 +92,9 @@ public class Prepopupate {
 		TransactionComponent component3 = new TransactionComponent(account2, transaction2, -314);
 		TransactionComponent component4 = new TransactionComponent(account1, transaction2, 272);
 		TransactionComponent component5 = new TransactionComponent(account3, transaction4, 100 * 100);
+		TagResolver tagResolver = new TagResolver(em);
+		for (FinanceTransaction transaction : Arrays.asList(transaction1, transaction3, transaction2, transaction4))
+			tagResolver.resolveTags(transaction);
 		transactionRepository.saveAll(Arrays.asList(transaction1, transaction3, transaction2, transaction4));
 		accountRepository.saveAll(Arrays.asList(account1, account2, account3));
 	}
@@ -108,6 +118,32 @@ public class Prepopupate {
 		accountRepository.saveAll(Arrays.asList(account1, account2));
 	}
 
+	/**
+	 * Adds tagged transactions with two components to user01, in addition to
+	 * the default test data
+	 *
+	 * @param count the number of transactions to add
+	 */
+	public void prepopulateTaggedTransactions(int count) {
+		VogonUser user01 = userRepository.findByUsernameIgnoreCase("user01");
+
+		List<FinanceAccount> accounts = accountRepository.findAll();
+		FinanceAccount account1 = accounts.get(0);
+		FinanceAccount account2 = accounts.get(1);
+
+		TagResolver tagResolver = new TagResolver(em);
+		List<FinanceTransaction> transactions = new ArrayList<>();
+		for (int i = 1; i <= count; i++) {
+			FinanceTransaction transaction = new FinanceTransaction(user01, "tagged transaction " + i, new String[]{"tag " + i, "hello"}, parseJSONDate("2016-01-01"), FinanceTransaction.Type.EXPENSEINCOME);
+			TransactionComponent component1 = new TransactionComponent(account1, transaction, -i * 100);
+			TransactionComponent component2 = new TransactionComponent(account2, transaction, i * 10);
+			tagResolver.resolveTags(transaction);
+			transactions.add(transaction);
+		}
+		transactionRepository.saveAll(transactions);
+		accountRepository.saveAll(Arrays.asList(account1, account2));
+	}
+
 	/**
 	 * Clear everything from the database
 	 */
@@ -0,0 +1,238 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache 2.0 License: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.sql.DataSource;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.zlogic.vogon.data.VogonUser;
+import org.zlogic.vogon.web.security.VogonSecurityUser;
+
+/**
+ * Tests for the read/write routing DataSource
+ * {@link org.zlogic.vogon.web.ReplicaRoutingDataSource}
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public class ReplicaRoutingDataSourceTest {
+
+	@After
+	public void after() {
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+			TransactionSynchronizationManager.clearSynchronization();
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+		SecurityContextHolder.clearContext();
+	}
+
+	/**
+	 * Creates a routing DataSource with two replicas
+	 *
+	 * @param stickySeconds the time (in seconds) to use the primary database
+	 * after a user's write
+	 * @return the routing DataSource
+	 */
+	private ReplicaRoutingDataSource createDataSource(long stickySeconds) {
+		DataSource primary = new DriverManagerDataSource();
+		ReplicaRoutingDataSource dataSource = new ReplicaRoutingDataSource(primary, Arrays.asList(new DriverManagerDataSource(), new DriverManagerDataSource()), stickySeconds);
+		dataSource.afterPropertiesSet();
+		return dataSource;
+	}
+
+	/**
+	 * Authenticates the current thread as a user
+	 *
+	 * @param userId the user ID
+	 */
+	private void authenticate(long userId) {
+		VogonUser user = mock(VogonUser.class);
+		given(user.getId()).willReturn(userId);
+		VogonSecurityUser securityUser = mock(VogonSecurityUser.class);
+		given(securityUser.getUser()).willReturn(user);
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(securityUser, null));
+	}
+
+	/**
+	 * Returns the lookup key of a read-only transaction
+	 *
+	 * @param dataSource the routing DataSource
+	 * @return the lookup key of a read-only transaction
+	 */
+	private Object getReadOnlyLookupKey(ReplicaRoutingDataSource dataSource) {
+		beginTransaction(true);
+		try {
+			return dataSource.determineCurrentLookupKey();
+		} finally {
+			commitTransaction();
+		}
+	}
+
+	/**
+	 * Starts a transaction in the current thread
+	 *
+	 * @param readOnly true if the transaction is read-only
+	 */
+	private void beginTransaction(boolean readOnly) {
+		TransactionSynchronizationManager.initSynchronization();
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(readOnly);
+	}
+
+	/**
+	 * Commits the transaction in the current thread
+	 */
+	private void commitTransaction() {
+		for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations())
+			synchronization.afterCommit();
+		TransactionSynchronizationManager.clearSynchronization();
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+	}
+
+	/**
+	 * Test that read-only transactions are sent to replicas in round-robin
+	 * order and other transactions are sent to the primary database
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRouting() throws Exception {
+		ReplicaRoutingDataSource dataSource = createDataSource(10);
+
+		assertEquals("primary", dataSource.determineCurrentLookupKey());
+
+		beginTransaction(false);
+		assertEquals("primary", dataSource.determineCurrentLookupKey());
+		commitTransaction();
+
+		beginTransaction(true);
+		assertEquals(0, dataSource.determineCurrentLookupKey());
+		commitTransaction();
+		beginTransaction(true);
+		assertEquals(1, dataSource.determineCurrentLookupKey());
+		commitTransaction();
+		beginTransaction(true);
+		assertEquals(0, dataSource.determineCurrentLookupKey());
+		commitTransaction();
+	}
+
+	/**
+	 * Test that a user's read-only transactions are sent to the primary
+	 * database after the user's write, and other users are not affected
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadYourWrites() throws Exception {
+		ReplicaRoutingDataSource dataSource = createDataSource(10);
+
+		authenticate(1);
+		beginTransaction(true);
+		assertEquals(0, dataSource.determineCurrentLookupKey());
+		commitTransaction();
+
+		//Rolled back writes are ignored
+		beginTransaction(false);
+		assertEquals("primary", dataSource.determineCurrentLookupKey());
+		TransactionSynchronizationManager.clearSynchronization();
+		beginTransaction(true);
+		assertEquals(1, dataSource.determineCurrentLookupKey());
+		commitTransaction();
+
+		beginTransaction(false);
+		assertEquals("primary", dataSource.determineCurrentLookupKey());
+		commitTransaction();
+		beginTransaction(true);
+		assertEquals("primary", dataSource.determineCurrentLookupKey());
+		commitTransaction();
+
+		authenticate(2);
+		beginTransaction(true);
+		assertEquals(0, dataSource.determineCurrentLookupKey());
+		commitTransaction();
+	}
+
+	/**
+	 * Test that read-only transactions are sent to replicas again after the
+	 * sticky time expires
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadYourWritesExpired() throws Exception {
+		ReplicaRoutingDataSource dataSource = createDataSource(0);
+
+		authenticate(1);
+		beginTransaction(false);
+		assertEquals("primary", dataSource.determineCurrentLookupKey());
+		commitTransaction();
+		beginTransaction(true);
+		assertEquals(0, dataSource.determineCurrentLookupKey());
+		commitTransaction();
+	}
+
+	/**
+	 * Test that a report built by a worker thread without a SecurityContext
+	 * uses the primary database right after the owner's write, if the owner
+	 * is set explicitly
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadYourWritesWorkerThread() throws Exception {
+		ReplicaRoutingDataSource dataSource = createDataSource(10);
+
+		authenticate(1);
+		beginTransaction(false);
+		assertEquals("primary", dataSource.determineCurrentLookupKey());
+		commitTransaction();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			assertEquals("primary", executor.submit(() -> ReplicaRoutingDataSource.executeForUser(1, () -> getReadOnlyLookupKey(dataSource))).get());
+			assertEquals(0, executor.submit(() -> ReplicaRoutingDataSource.executeForUser(2, () -> getReadOnlyLookupKey(dataSource))).get());
+			//Without the owner, the worker thread is not sticky
+			assertEquals(1, executor.submit(() -> getReadOnlyLookupKey(dataSource)).get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Test that writes of a worker thread are tracked for the explicitly set
+	 * user, and that executeOnPrimary sends read-only transactions to the
+	 * primary database
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testRoutingHint() throws Exception {
+		ReplicaRoutingDataSource dataSource = createDataSource(10);
+
+		assertEquals("primary", ReplicaRoutingDataSource.executeOnPrimary(1, () -> getReadOnlyLookupKey(dataSource)));
+		assertEquals(0, ReplicaRoutingDataSource.executeForUser(1, () -> getReadOnlyLookupKey(dataSource)));
+
+		ReplicaRoutingDataSource.executeForUser(1, () -> {
+			beginTransaction(false);
+			assertEquals("primary", dataSource.determineCurrentLookupKey());
+			commitTransaction();
+			return null;
+		});
+		assertEquals(1, getReadOnlyLookupKey(dataSource));
+		authenticate(1);
+		assertEquals("primary", getReadOnlyLookupKey(dataSource));
+		//The hint overrides the SecurityContext
+		assertEquals(0, ReplicaRoutingDataSource.executeForUser(2, () -> getReadOnlyLookupKey(dataSource)));
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Vogon personal finance/expense analyzer.
+ * Licensed under Apache 2.0 License: http://www.apache.org/licenses/LICENSE-2.0
+ * Author: Dmitry Zolotukhin <zlogic@gmail.com>
+ */
+package org.zlogic.vogon.web;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.mock;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.zlogic.vogon.data.VogonUser;
+import org.zlogic.vogon.data.report.Report;
+import org.zlogic.vogon.data.report.ReportFactory;
+import org.zlogic.vogon.data.report.ReportTimings;
+import org.zlogic.vogon.web.configuration.VogonConfiguration;
+import org.zlogic.vogon.web.data.ReportExecutor;
+
+/**
+ * Tests for the parallel report executor
+ * {@link org.zlogic.vogon.web.data.ReportExecutor}
+ *
+ * @author Dmitry Zolotukhin [zlogic@gmail.com]
+ */
+public class ReportExecutorTest {
+
+	private ReportExecutor reportExecutor;
+
+	private ExecutorService requestExecutor;
+
+	@Before
+	public void before() throws Exception {
+		VogonConfiguration configuration = mock(VogonConfiguration.class);
+		given(configuration.isParallelReports()).willReturn(true);
+		given(configuration.getReportThreads()).willReturn(1);
+		given(configuration.getReportUserThreads()).willReturn(2);
+		reportExecutor = new ReportExecutor();
+		ReflectionTestUtils.setField(reportExecutor, "configuration", configuration);
+		ReflectionTestUtils.setField(reportExecutor, "transactionManager", mock(PlatformTransactionManager.class));
+		reportExecutor.afterPropertiesSet();
+		requestExecutor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void after() throws Exception {
+		requestExecutor.shutdownNow();
+		reportExecutor.destroy();
+	}
+
+	/**
+	 * Creates a ReportFactory which is split into currency ReportFactories
+	 *
+	 * @param ownerId the owner ID
+	 * @param currencyReportFactories the currency ReportFactories
+	 * @return the ReportFactory
+	 */
+	private ReportFactory createReportFactory(long ownerId, ReportFactory... currencyReportFactories) {
+		VogonUser owner = mock(VogonUser.class);
+		given(owner.getId()).willReturn(ownerId);
+		ReportFactory reportFactory = mock(ReportFactory.class);
+		given(reportFactory.getOwner()).willReturn(owner);
+		given(reportFactory.splitByCurrency()).willReturn(Arrays.asList(currencyReportFactories));
+		return reportFactory;
+	}
+
+	/**
+	 * Creates a currency ReportFactory which returns a report and records the
+	 * thread building it
+	 *
+	 * @param currency the currency code
+	 * @param threads the array to store the thread name in
+	 * @param index the index of the thread name in threads
+	 * @return the currency ReportFactory
+	 */
+	private ReportFactory createCurrencyReportFactory(String currency, String[] threads, int index) {
+		ReportFactory reportFactory = mock(ReportFactory.class);
+		willAnswer(invocation -> {
+			threads[index] = Thread.currentThread().getName();
+			return Collections.singletonMap(currency, mock(Report.class));
+		}).given(reportFactory).buildReport(any(EntityManager.class), any(ReportTimings.class));
+		return reportFactory;
+	}
+
+	/**
+	 * Test that a report is built by the requesting thread, without waiting,
+	 * if all report threads are busy with another user's report
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testBusyPoolBuildsInRequestingThread() throws Exception {
+		CountDownLatch reportsStarted = new CountDownLatch(2);
+		CountDownLatch reportsBlocked = new CountDownLatch(1);
+		ReportFactory blockedCurrencyReportFactory = mock(ReportFactory.class);
+		willAnswer(invocation -> {
+			reportsStarted.countDown();
+			reportsBlocked.await();
+			return Collections.emptyMap();
+		}).given(blockedCurrencyReportFactory).buildReport(any(EntityManager.class), any(ReportTimings.class));
+		ReportFactory blockedReportFactory = createReportFactory(1, blockedCurrencyReportFactory, blockedCurrencyReportFactory);
+		//The first currency uses the only report thread, the second one blocks the requesting thread
+		Future<Map<String, Report>> blockedReport = requestExecutor.submit(() -> reportExecutor.buildReport(blockedReportFactory, null, new ReportTimings()));
+		assertTrue(reportsStarted.await(10, TimeUnit.SECONDS));
+
+		try {
+			String[] threads = new String[2];
+			ReportFactory reportFactory = createReportFactory(2, createCurrencyReportFactory("RUB", threads, 0), createCurrencyReportFactory("EUR", threads, 1)); //NOI18N
+			Map<String, Report> report = reportExecutor.buildReport(reportFactory, null, new ReportTimings());
+			assertEquals(Arrays.asList("EUR", "RUB"), Arrays.asList(report.keySet().toArray())); //NOI18N
+			assertEquals(Thread.currentThread().getName(), threads[0]);
+			assertEquals(Thread.currentThread().getName(), threads[1]);
+			assertFalse(blockedReport.isDone());
+		} finally {
+			reportsBlocked.countDown();
+		}
+		assertTrue(blockedReport.get(10, TimeUnit.SECONDS).isEmpty());
+	}
+}
@@ -7,9 +7,15 @@ package org.zlogic.vogon.web;
 
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.ResourceBundle;
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.After;
@@ -64,6 +70,9 @@ public class TransactionsControllerReadTest {
 	@Autowired
 	private TransactionRepository transactionRepository;
 
+	@Autowired
+	private EntityManagerFactory entityManagerFactory;
+
 	@Before
 	public void before() {
 		prepopulate.clear();
@@ -416,6 +425,390 @@ public class TransactionsControllerReadTest {
 		}
 	}
 
+	/**
+	 * Test that an authenticated user can get transactions with cursor paging,
+	 * and that pages are not shifted by inserted transactions
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAllPagesCursor() throws Exception {
+		prepopulate.prepopulate();
+
+		VogonUser user01 = userRepository.findByUsernameIgnoreCase("user01");
+
+		List<FinanceTransaction> addTransactions = new ArrayList<>();
+		for (int i = 1; i < 250; i++) {
+			FinanceTransaction generatedTransaction = new FinanceTransaction(user01, "page transaction " + i, null, new Date(), FinanceTransaction.Type.EXPENSEINCOME);
+			addTransactions.add(generatedTransaction);
+		}
+		transactionRepository.saveAll(addTransactions);
+
+		List<JSONObject> receivedTransactions = new ArrayList<>();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions?cursor=", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		JSONArray responseObject = new JSONArray(responseEntity.getBody());
+		assertEquals(100, responseObject.length());
+		for (int i = 0; i < responseObject.length(); i++) {
+			receivedTransactions.add(responseObject.getJSONObject(i));
+		}
+		String cursor = responseEntity.getHeaders().getFirst("X-Next-Cursor");
+		assertNotNull(cursor);
+
+		//An earlier transaction would shift offset-based pages
+		transactionRepository.save(new FinanceTransaction(user01, "inserted transaction", null, new GregorianCalendar(2000, 0, 1).getTime(), FinanceTransaction.Type.EXPENSEINCOME));
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions?cursor=" + cursor, HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		responseObject = new JSONArray(responseEntity.getBody());
+		assertEquals(100, responseObject.length());
+		for (int i = 0; i < responseObject.length(); i++) {
+			receivedTransactions.add(responseObject.getJSONObject(i));
+		}
+		cursor = responseEntity.getHeaders().getFirst("X-Next-Cursor");
+		assertNotNull(cursor);
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions?cursor=" + cursor, HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		responseObject = new JSONArray(responseEntity.getBody());
+		assertEquals(52, responseObject.length());
+		for (int i = 0; i < responseObject.length(); i++) {
+			receivedTransactions.add(responseObject.getJSONObject(i));
+		}
+		assertNull(responseEntity.getHeaders().getFirst("X-Next-Cursor"));
+
+		assertEquals("test transaction 1", receivedTransactions.get(0).getString("description"));
+		assertEquals("test transaction 3", receivedTransactions.get(1).getString("description"));
+		assertEquals("test transaction 2", receivedTransactions.get(2).getString("description"));
+		for (int i = 3; i < receivedTransactions.size(); i++) {
+			assertEquals("page transaction " + (i - 2), receivedTransactions.get(i).getString("description"));
+		}
+	}
+
+	/**
+	 * Test that an authenticated user can get transactions sorted by
+	 * description in descending order with cursor paging
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testAllPagesCursorDescriptionDescending() throws Exception {
+		prepopulate.prepopulate();
+
+		VogonUser user01 = userRepository.findByUsernameIgnoreCase("user01");
+
+		List<FinanceTransaction> addTransactions = new ArrayList<>();
+		List<String> expectedDescriptions = new ArrayList<>();
+		for (int i = 1; i < 250; i++) {
+			FinanceTransaction generatedTransaction = new FinanceTransaction(user01, "page transaction " + i, null, new Date(), FinanceTransaction.Type.EXPENSEINCOME);
+			addTransactions.add(generatedTransaction);
+			expectedDescriptions.add(generatedTransaction.getDescription());
+		}
+		transactionRepository.saveAll(addTransactions);
+		for (int i = 1; i <= 3; i++)
+			expectedDescriptions.add("test transaction " + i);
+		Collections.sort(expectedDescriptions, Collections.reverseOrder());
+
+		List<String> receivedDescriptions = new ArrayList<>();
+
+		HttpHeaders headers = restClient.authenticate();
+
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+		String cursor = "";
+		int pages = 0;
+		do {
+			ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions?sortColumn=DESCRIPTION&sortDirection=DESC&cursor=" + cursor, HttpMethod.GET, entity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+			JSONArray responseObject = new JSONArray(responseEntity.getBody());
+			for (int i = 0; i < responseObject.length(); i++) {
+				receivedDescriptions.add(responseObject.getJSONObject(i).getString("description"));
+			}
+			cursor = responseEntity.getHeaders().getFirst("X-Next-Cursor");
+			pages++;
+		} while (cursor != null);
+
+		assertEquals(3, pages);
+		assertEquals(expectedDescriptions, receivedDescriptions);
+	}
+
+	/**
+	 * Test that an invalid cursor or a cursor for another sort column is
+	 * rejected
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetTransactionsInvalidCursor() throws Exception {
+		prepopulate.prepopulate();
+		prepopulate.prepopulateTaggedTransactions(100);
+
+		HttpHeaders headers = restClient.authenticate();
+
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions?cursor=", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		String dateCursor = responseEntity.getHeaders().getFirst("X-Next-Cursor");
+		assertNotNull(dateCursor);
+
+		String[] urls = new String[]{"https://localhost:8443/service/transactions?cursor=invalid", "https://localhost:8443/service/transactions?sortColumn=DESCRIPTION&cursor=" + dateCursor};
+		for (String url : urls) {
+			try {
+				restClient.getRestTemplate().exchange(url, HttpMethod.GET, entity, String.class);
+				fail("Expected an HttpServerErrorException to be thrown");
+			} catch (HttpStatusCodeException ex) {
+				assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, ex.getStatusCode());
+				jsonExpectationhelper.assertJsonEqual("{message:\"" + messages.getString("INVALID_TRANSACTIONS_CURSOR") + "\"}", ex.getResponseBodyAsString());
+			}
+		}
+	}
+
+	/**
+	 * Test that an authenticated user can filter transactions by date range,
+	 * amount range and accounts
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetTransactionsRangeFilters() throws Exception {
+		prepopulate.prepopulateExtra();
+
+		HttpHeaders headers = restClient.authenticate();
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+
+		String[] filters = new String[]{"filterDateFrom=2014-03-01", "filterDateTo=2014-06-07", "filterDateFrom=2014-02-17&filterDateTo=2014-02-17",
+			"filterAmountMin=100", "filterAmountMax=3", "filterAmountMin=3&filterAmountMax=50", "filterAccounts=3&filterAmountMin=100",
+			"filterAccounts=4", "filterAccounts=3&filterAccounts=4&filterDateFrom=2014-06-01", "filterAccounts=5", "filterAmountMin=-144&filterAmountMax=144"};
+		String[][] expectedDescriptions = new String[][]{
+			{"test transaction 4", "test transaction 2"},
+			{"test transaction 1", "test transaction 3", "test transaction 4"},
+			{"test transaction 1", "test transaction 3"},
+			{"test transaction 1", "test transaction 4"},
+			{"test transaction 2"},
+			{"test transaction 1", "test transaction 2"},
+			{"test transaction 4"},
+			{"test transaction 1", "test transaction 4", "test transaction 2"},
+			{"test transaction 4", "test transaction 2"},
+			{},
+			{"test transaction 4"}};
+		for (int i = 0; i < filters.length; i++) {
+			ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions?" + filters[i], HttpMethod.GET, entity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+			JSONArray responseObject = new JSONArray(responseEntity.getBody());
+			List<String> descriptions = new ArrayList<>();
+			for (int j = 0; j < responseObject.length(); j++)
+				descriptions.add(responseObject.getJSONObject(j).getString("description"));
+			assertEquals(filters[i], Arrays.asList(expectedDescriptions[i]), descriptions);
+
+			responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions/count?" + filters[i], HttpMethod.GET, entity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+			assertEquals(filters[i], Integer.toString(expectedDescriptions[i].length), responseEntity.getBody());
+		}
+	}
+
+	/**
+	 * Test that an authenticated user can get the number of transactions and
+	 * pages matching filters
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetTransactionsCount() throws Exception {
+		prepopulate.prepopulate();
+		prepopulate.prepopulateTaggedTransactions(150);
+
+		HttpHeaders headers = restClient.authenticate();
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+
+		String[] urls = new String[]{"https://localhost:8443/service/transactions/count", "https://localhost:8443/service/transactions/pages",
+			"https://localhost:8443/service/transactions/count?filterTags=hello", "https://localhost:8443/service/transactions/pages?filterTags=hello",
+			"https://localhost:8443/service/transactions/count?filterTags=magic", "https://localhost:8443/service/transactions/pages?filterTags=magic",
+			"https://localhost:8443/service/transactions/count?filterDescription=%test transaction%", "https://localhost:8443/service/transactions/count?filterDate=2016-01-01",
+			"https://localhost:8443/service/transactions/count?filterDescription=%transaction 1000%"};
+		String[] expectedResults = new String[]{"153", "2", "152", "2", "1", "1", "3", "150", "0"};
+		for (int i = 0; i < urls.length; i++) {
+			ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange(urls[i], HttpMethod.GET, entity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+			assertEquals(urls[i], expectedResults[i], responseEntity.getBody());
+		}
+	}
+
+	/**
+	 * Test that the description index finds the same transactions as the
+	 * description filter, and is updated when transactions are deleted
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetTransactionsDescriptionIndex() throws Exception {
+		prepopulate.prepopulate();
+		prepopulate.prepopulateTaggedTransactions(150);
+
+		HttpHeaders headers = restClient.authenticate();
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		statistics.setStatisticsEnabled(true);
+
+		String[] filters = new String[]{"%transaction 1%", "%TRANSACTION 2", "tagged%5", "%ed transaction 1_%", "%zzz%", "%ns%"};
+		String[] expectedResults = new String[]{"63", "2", "15", "61", "0", "153"};
+		for (int i = 0; i < filters.length; i++) {
+			ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions/count?filterDescription=" + filters[i], HttpMethod.GET, entity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+			assertEquals(filters[i], expectedResults[i], responseEntity.getBody());
+		}
+
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions?filterDescription=%transaction 1%", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		JSONArray responseObject = new JSONArray(responseEntity.getBody());
+		assertEquals(63, responseObject.length());
+		assertEquals("test transaction 1", responseObject.getJSONObject(0).getString("description"));
+
+		statistics.clear();
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions/count?filterDescription=%transaction 1%", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		assertEquals("63", responseEntity.getBody());
+		long indexedStatementCount = statistics.getPrepareStatementCount();
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions/transaction/6", HttpMethod.DELETE, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		statistics.clear();
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions/count?filterDescription=%transaction 1%", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		assertEquals("62", responseEntity.getBody());
+		assertEquals(indexedStatementCount, statistics.getPrepareStatementCount());
+	}
+
+	/**
+	 * Test that the number of all transactions is cached until the data is
+	 * changed
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetTransactionsCountCached() throws Exception {
+		prepopulate.prepopulate();
+
+		HttpHeaders headers = restClient.authenticate();
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		statistics.setStatisticsEnabled(true);
+
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions/count", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		assertEquals("3", responseEntity.getBody());
+
+		statistics.clear();
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions/count", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		assertEquals("3", responseEntity.getBody());
+		long cachedStatementCount = statistics.getPrepareStatementCount();
+
+		statistics.clear();
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions/count?filterTags=hello", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		assertEquals("2", responseEntity.getBody());
+		assertEquals(cachedStatementCount + 1, statistics.getPrepareStatementCount());
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions/transaction/6", HttpMethod.DELETE, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		statistics.clear();
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions/count", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		assertEquals("2", responseEntity.getBody());
+		assertEquals(cachedStatementCount + 1, statistics.getPrepareStatementCount());
+	}
+
+	/**
+	 * Test that the number of statements needed to get a transaction list
+	 * doesn't depend on the number of transactions
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetTransactionsStatementCount() throws Exception {
+		prepopulate.prepopulate();
+
+		HttpHeaders headers = restClient.authenticate();
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		statistics.setStatisticsEnabled(true);
+
+		String[] urls = new String[]{"https://localhost:8443/service/transactions?page=0", "https://localhost:8443/service/transactions"};
+		long[] statementCounts = new long[urls.length];
+		for (int i = 0; i < urls.length; i++) {
+			statistics.clear();
+			ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange(urls[i], HttpMethod.GET, entity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+			assertEquals(3, new JSONArray(responseEntity.getBody()).length());
+			statementCounts[i] = statistics.getPrepareStatementCount();
+		}
+
+		prepopulate.prepopulateTaggedTransactions(50);
+
+		for (int i = 0; i < urls.length; i++) {
+			statistics.clear();
+			ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange(urls[i], HttpMethod.GET, entity, String.class);
+			assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+			JSONArray responseObject = new JSONArray(responseEntity.getBody());
+			assertEquals(53, responseObject.length());
+			assertEquals(2, responseObject.getJSONObject(0).getJSONArray("components").length());
+			assertEquals(2, responseObject.getJSONObject(0).getJSONArray("tags").length());
+			assertEquals(statementCounts[i], statistics.getPrepareStatementCount());
+		}
+	}
+
+	/**
+	 * Test that the data version is returned as a weak ETag, and requests with
+	 * the current ETag are answered with 304 Not Modified without reading
+	 * transactions or accounts
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetTransactionsNotModified() throws Exception {
+		prepopulate.prepopulate();
+
+		HttpHeaders headers = restClient.authenticate();
+		HttpEntity<String> entity = new HttpEntity<>(headers);
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		statistics.setStatisticsEnabled(true);
+
+		ResponseEntity<String> responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		String etag = responseEntity.getHeaders().getETag();
+		assertTrue(etag, etag.startsWith("W/\""));
+		assertEquals("no-cache, private", responseEntity.getHeaders().getCacheControl());
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/accounts", HttpMethod.GET, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		assertEquals(etag, responseEntity.getHeaders().getETag());
+
+		HttpHeaders conditionalHeaders = restClient.authenticate();
+		conditionalHeaders.setIfNoneMatch(etag);
+		HttpEntity<String> conditionalEntity = new HttpEntity<>(conditionalHeaders);
+		statistics.clear();
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions", HttpMethod.GET, conditionalEntity, String.class);
+		assertEquals(HttpStatus.NOT_MODIFIED, responseEntity.getStatusCode());
+		assertNull(responseEntity.getBody());
+		long notModifiedStatementCount = statistics.getPrepareStatementCount();
+		statistics.clear();
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/accounts", HttpMethod.GET, conditionalEntity, String.class);
+		assertEquals(HttpStatus.NOT_MODIFIED, responseEntity.getStatusCode());
+		assertEquals(notModifiedStatementCount, statistics.getPrepareStatementCount());
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions/transaction/6", HttpMethod.DELETE, entity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+
+		responseEntity = restClient.getRestTemplate().exchange("https://localhost:8443/service/transactions", HttpMethod.GET, conditionalEntity, String.class);
+		assertEquals(HttpStatus.OK, responseEntity.getStatusCode());
+		assertNotEquals(etag, responseEntity.getHeaders().getETag());
+		assertEquals(2, new JSONArray(responseEntity.getBody()).length());
+	}
+
 	/**
 	 * Test that an authenticated user will get an empty transaction list for a
 	 * non-existing page
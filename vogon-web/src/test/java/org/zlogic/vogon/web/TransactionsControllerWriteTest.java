@@ -508,12 +508,15 @@ public class TransactionsControllerWriteTest {
 	public void testUpdateTransactionVersionConstraint() throws Exception {
 		prepopulate.prepopulate();
 
-		for (FinanceTransaction transaction : transactionRepository.findAll()) {
-			if (transaction.getId() == 6) {
-				transaction.setTags(new String[]{"hello", "world"});
-				transactionRepository.save(transaction);
+		transactionTemplate.execute((ts) -> {
+			for (FinanceTransaction transaction : transactionRepository.findAll()) {
+				if (transaction.getId() == 6) {
+					transaction.setTags(new String[]{"hello", "world"});
+					transactionRepository.save(transaction);
+				}
 			}
-		}
+			return null;
+		});
 
 		HttpHeaders headers = restClient.authenticate();
 